@@ -221,6 +221,34 @@ smix(uint8_t * B, size_t r, uint64_t N, uint32_t * V, uint32_t * XY)
 		le32enc(&B[4 * k], X[k]);
 }
 
+/**
+ * crypto_scrypt_scratch(passwd, passwdlen, salt, saltlen, N, r, p, buf,
+ *     buflen, B, V, XY):
+ * Compute scrypt like crypto_scrypt, but using the caller-provided scratch
+ * space instead of allocating it.  B must be 128rp bytes, V must be 128rN
+ * bytes and XY must be 256r + 64 bytes in length, all aligned to a multiple
+ * of 64 bytes.  The parameters are not checked.
+ */
+void
+crypto_scrypt_scratch(const uint8_t * passwd, size_t passwdlen,
+    const uint8_t * salt, size_t saltlen, uint64_t N, uint32_t r, uint32_t p,
+    uint8_t * buf, size_t buflen, uint8_t * B, uint32_t * V, uint32_t * XY)
+{
+	uint32_t i;
+
+	/* 1: (B_0 ... B_{p-1}) <-- PBKDF2(P, S, 1, p * MFLen) */
+	PBKDF2_SHA256(passwd, passwdlen, salt, saltlen, 1, B, p * 128 * r);
+
+	/* 2: for i = 0 to p - 1 do */
+	for (i = 0; i < p; i++) {
+		/* 3: B_i <-- MF(B_i, N) */
+		smix(&B[i * 128 * r], r, N, V, XY);
+	}
+
+	/* 5: DK <-- PBKDF2(P, B, 1, dkLen) */
+	PBKDF2_SHA256(passwd, passwdlen, B, p * 128 * r, 1, buf, buflen);
+}
+
 /**
  * crypto_scrypt(passwd, passwdlen, salt, saltlen, N, r, p, buf, buflen):
  * Compute scrypt(passwd[0 .. passwdlen - 1], salt[0 .. saltlen - 1], N, r,
@@ -239,7 +267,6 @@ crypto_scrypt(const uint8_t * passwd, size_t passwdlen,
 	uint8_t * B;
 	uint32_t * V;
 	uint32_t * XY;
-	uint32_t i;
 
 	/* Sanity-check parameters. */
 #if SIZE_MAX > UINT32_MAX
@@ -303,17 +330,8 @@ crypto_scrypt(const uint8_t * passwd, size_t passwdlen,
 	V = (uint32_t *)(V0);
 #endif
 
-	/* 1: (B_0 ... B_{p-1}) <-- PBKDF2(P, S, 1, p * MFLen) */
-	PBKDF2_SHA256(passwd, passwdlen, salt, saltlen, 1, B, p * 128 * r);
-
-	/* 2: for i = 0 to p - 1 do */
-	for (i = 0; i < p; i++) {
-		/* 3: B_i <-- MF(B_i, N) */
-		smix(&B[i * 128 * r], r, N, V, XY);
-	}
-
-	/* 5: DK <-- PBKDF2(P, B, 1, dkLen) */
-	PBKDF2_SHA256(passwd, passwdlen, B, p * 128 * r, 1, buf, buflen);
+	crypto_scrypt_scratch(passwd, passwdlen, salt, saltlen, N, r, p, buf,
+	    buflen, B, V, XY);
 
 	/* Free memory. */
 #ifdef MAP_ANON
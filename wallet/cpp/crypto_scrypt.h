@@ -43,4 +43,16 @@
 int crypto_scrypt(const uint8_t *, size_t, const uint8_t *, size_t, uint64_t,
     uint32_t, uint32_t, uint8_t *, size_t);
 
+/**
+ * crypto_scrypt_scratch(passwd, passwdlen, salt, saltlen, N, r, p, buf,
+ *     buflen, B, V, XY):
+ * Compute scrypt like crypto_scrypt, but using the caller-provided scratch
+ * space instead of allocating it.  B must be 128rp bytes, V must be 128rN
+ * bytes and XY must be 256r + 64 bytes in length, all aligned to a multiple
+ * of 64 bytes.  The parameters are not checked.
+ */
+void crypto_scrypt_scratch(const uint8_t *, size_t, const uint8_t *, size_t,
+    uint64_t, uint32_t, uint32_t, uint8_t *, size_t, uint8_t *, uint32_t *,
+    uint32_t *);
+
 #endif /* !_CRYPTO_SCRYPT_H_ */
@@ -0,0 +1,178 @@
+#include "scrypt_platform.h"
+
+#include <errno.h>
+#include <pthread.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <unistd.h>
+
+#include "crypto_scrypt.h"
+#include "scrypt_batch.h"
+
+#define MAX_THREADS 8
+
+/* Per-thread scratch space, allocated once and reused for every header. */
+struct scratch {
+	void * B0;
+	void * V0;
+	void * XY0;
+	uint8_t * B;
+	uint32_t * V;
+	uint32_t * XY;
+};
+
+static pthread_once_t pool_once = PTHREAD_ONCE_INIT;
+static pthread_mutex_t batch_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_mutex_t pool_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t work_cond = PTHREAD_COND_INITIALIZER;
+static pthread_cond_t idle_cond = PTHREAD_COND_INITIALIZER;
+
+static int num_threads = -1;
+static struct scratch scratches[MAX_THREADS];
+
+/* Current batch, guarded by pool_lock except for the claim counter. */
+static const uint8_t * job_headers;
+static uint8_t * job_hashes;
+static size_t job_count;
+static size_t job_next;
+static unsigned long job_generation;
+static int job_active;
+
+static void *
+aligned_alloc64(void ** base, size_t len)
+{
+	if ((*base = malloc(len + 63)) == NULL)
+		return (NULL);
+	return ((void *)(((uintptr_t)(*base) + 63) & ~ (uintptr_t)(63)));
+}
+
+static int
+scratch_init(struct scratch * s)
+{
+	s->B = aligned_alloc64(&s->B0, 128 * SCRYPT_POW_R * SCRYPT_POW_P);
+	s->V = aligned_alloc64(&s->V0, 128 * SCRYPT_POW_R * SCRYPT_POW_N);
+	s->XY = aligned_alloc64(&s->XY0, 256 * SCRYPT_POW_R + 64);
+	if (s->B == NULL || s->V == NULL || s->XY == NULL) {
+		free(s->B0);
+		free(s->V0);
+		free(s->XY0);
+		return (-1);
+	}
+	return (0);
+}
+
+/* Claim and hash headers of the current batch until none are left. */
+static void
+work(struct scratch * s, const uint8_t * headers, uint8_t * hashes,
+    size_t count)
+{
+	size_t i;
+
+	while ((i = __atomic_fetch_add(&job_next, 1, __ATOMIC_RELAXED)) < count) {
+		const uint8_t * header = &headers[i * SCRYPT_POW_HEADER_SIZE];
+		crypto_scrypt_scratch(header, SCRYPT_POW_HEADER_SIZE, header,
+		    SCRYPT_POW_HEADER_SIZE, SCRYPT_POW_N, SCRYPT_POW_R,
+		    SCRYPT_POW_P, &hashes[i * SCRYPT_POW_HASH_SIZE],
+		    SCRYPT_POW_HASH_SIZE, s->B, s->V, s->XY);
+	}
+}
+
+static void *
+worker(void * arg)
+{
+	struct scratch * s = arg;
+	unsigned long seen = 0;
+
+	pthread_mutex_lock(&pool_lock);
+	for (;;) {
+		while (job_generation == seen)
+			pthread_cond_wait(&work_cond, &pool_lock);
+		seen = job_generation;
+		if (__atomic_load_n(&job_next, __ATOMIC_RELAXED) >= job_count)
+			continue;
+
+		job_active++;
+		const uint8_t * headers = job_headers;
+		uint8_t * hashes = job_hashes;
+		size_t count = job_count;
+		pthread_mutex_unlock(&pool_lock);
+
+		work(s, headers, hashes, count);
+
+		pthread_mutex_lock(&pool_lock);
+		if (--job_active == 0)
+			pthread_cond_broadcast(&idle_cond);
+	}
+	return (NULL);
+}
+
+static void
+pool_init(void)
+{
+	long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+	int n, i;
+	pthread_t thread;
+	pthread_attr_t attr;
+
+	n = cpus < 1 ? 1 : (cpus > MAX_THREADS ? MAX_THREADS : (int)(cpus));
+
+	/* Slot 0 belongs to whichever thread submits the batch. */
+	if (scratch_init(&scratches[0]))
+		return;
+
+	pthread_attr_init(&attr);
+	pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+	for (i = 1; i < n; i++) {
+		if (scratch_init(&scratches[i]))
+			break;
+		if (pthread_create(&thread, &attr, worker, &scratches[i])) {
+			free(scratches[i].B0);
+			free(scratches[i].V0);
+			free(scratches[i].XY0);
+			break;
+		}
+	}
+	pthread_attr_destroy(&attr);
+	num_threads = i;
+}
+
+int
+scrypt_pow_batch_threads(void)
+{
+	pthread_once(&pool_once, pool_init);
+	return (num_threads);
+}
+
+int
+scrypt_pow_batch(const uint8_t * headers, uint8_t * hashes, size_t count)
+{
+	if (scrypt_pow_batch_threads() < 1) {
+		errno = ENOMEM;
+		return (-1);
+	}
+	if (count == 0)
+		return (0);
+
+	pthread_mutex_lock(&batch_lock);
+
+	pthread_mutex_lock(&pool_lock);
+	job_headers = headers;
+	job_hashes = hashes;
+	job_count = count;
+	__atomic_store_n(&job_next, 0, __ATOMIC_RELAXED);
+	job_generation++;
+	if (count > 1)
+		pthread_cond_broadcast(&work_cond);
+	pthread_mutex_unlock(&pool_lock);
+
+	work(&scratches[0], headers, hashes, count);
+
+	/* All headers are claimed; wait for the workers still hashing theirs. */
+	pthread_mutex_lock(&pool_lock);
+	while (job_active > 0)
+		pthread_cond_wait(&idle_cond, &pool_lock);
+	pthread_mutex_unlock(&pool_lock);
+
+	pthread_mutex_unlock(&batch_lock);
+	return (0);
+}
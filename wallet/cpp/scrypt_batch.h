@@ -0,0 +1,33 @@
+#ifndef _SCRYPT_BATCH_H_
+#define _SCRYPT_BATCH_H_
+
+#include <stddef.h>
+#include <stdint.h>
+
+/* Parameters of scrypt proof-of-work: scrypt(header, header, 1024, 1, 1, 32) */
+#define SCRYPT_POW_HEADER_SIZE 80
+#define SCRYPT_POW_HASH_SIZE 32
+#define SCRYPT_POW_N 1024
+#define SCRYPT_POW_R 1
+#define SCRYPT_POW_P 1
+
+/**
+ * scrypt_pow_batch(headers, hashes, count):
+ * Compute the scrypt proof-of-work hash of count consecutive 80 byte block
+ * headers and write count consecutive 32 byte hashes.  The work is spread
+ * over a pool of worker threads, one per online CPU, which is started on
+ * first use and keeps its scratch space for later batches.  Concurrent
+ * batches are serialized.
+ *
+ * Return 0 on success; or -1 on error, with errno set.
+ */
+int scrypt_pow_batch(const uint8_t *, uint8_t *, size_t);
+
+/**
+ * scrypt_pow_batch_threads():
+ * Return the number of threads working on a batch, including the calling
+ * thread; or -1 if the pool could not be started.
+ */
+int scrypt_pow_batch_threads(void);
+
+#endif /* !_SCRYPT_BATCH_H_ */
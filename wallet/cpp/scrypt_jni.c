@@ -6,6 +6,7 @@
 
 #include <jni.h>
 #include "crypto_scrypt.h"
+#include "scrypt_batch.h"
 
 jbyteArray JNICALL scryptN(JNIEnv *env, jclass cls, jbyteArray passwd, jbyteArray salt,
     jint N, jint r, jint p, jint dkLen)
@@ -51,10 +52,44 @@ jbyteArray JNICALL scryptN(JNIEnv *env, jclass cls, jbyteArray passwd, jbyteArra
     return DK;
 }
 
+void JNICALL hashHeaders(JNIEnv *env, jclass cls, jobject headers, jobject hashes, jint count)
+{
+    uint8_t *H = (*env)->GetDirectBufferAddress(env, headers);
+    uint8_t *D = (*env)->GetDirectBufferAddress(env, hashes);
+
+    if (H == NULL || D == NULL) {
+        jclass e = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+        (*env)->ThrowNew(env, e, "Buffers must be direct");
+        return;
+    }
+    if (count < 0
+            || (*env)->GetDirectBufferCapacity(env, headers) < (jlong) count * SCRYPT_POW_HEADER_SIZE
+            || (*env)->GetDirectBufferCapacity(env, hashes) < (jlong) count * SCRYPT_POW_HASH_SIZE) {
+        jclass e = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+        (*env)->ThrowNew(env, e, "Buffers too small for count");
+        return;
+    }
+
+    if (scrypt_pow_batch(H, D, (size_t) count)) {
+        jclass e = (*env)->FindClass(env, "java/lang/IllegalStateException");
+        (*env)->ThrowNew(env, e, "Memory allocation failed");
+    }
+}
+
+jint JNICALL hashThreads(JNIEnv *env, jclass cls)
+{
+    return scrypt_pow_batch_threads();
+}
+
 static const JNINativeMethod methods[] = {
     { "scryptN", "([B[BIIII)[B", (void *) scryptN }
 };
 
+static const JNINativeMethod headerHasherMethods[] = {
+    { "hashHeaders", "(Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;I)V", (void *) hashHeaders },
+    { "hashThreads", "()I", (void *) hashThreads }
+};
+
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     JNIEnv *env;
 
@@ -65,5 +100,12 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     jclass cls = (*env)->FindClass(env, "com/lambdaworks/crypto/SCrypt");
     int r = (*env)->RegisterNatives(env, cls, methods, 1);
 
+    // batch hashing is optional, don't fail loading if the class is missing
+    jclass headerHasherCls = (*env)->FindClass(env, "de/schildbach/wallet/util/HeaderHasher");
+    if (headerHasherCls != NULL)
+        (*env)->RegisterNatives(env, headerHasherCls, headerHasherMethods, 2);
+    if ((*env)->ExceptionCheck(env))
+        (*env)->ExceptionClear(env);
+
     return (r == JNI_OK) ? JNI_VERSION_1_6 : -1;
 }
@@ -0,0 +1,158 @@
+/*
+ * Checks that the SIMD scrypt core selected for the host produces the same
+ * output as the portable reference in crypto_scrypt-nosse.c, and compares
+ * their speed.  The reference is built with its symbols renamed to ref_*,
+ * see CMakeLists.txt in this directory.
+ *
+ * Usage: scrypt_simd_test [iterations]
+ */
+#include "scrypt_platform.h"
+
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "crypto_scrypt.h"
+
+int ref_crypto_scrypt(const uint8_t *, size_t, const uint8_t *, size_t,
+    uint64_t, uint32_t, uint32_t, uint8_t *, size_t);
+
+typedef int (*scrypt_fn)(const uint8_t *, size_t, const uint8_t *, size_t,
+    uint64_t, uint32_t, uint32_t, uint8_t *, size_t);
+
+/* Test vectors from RFC 7914, section 12. */
+static const struct {
+	const char * passwd;
+	const char * salt;
+	uint64_t N;
+	uint32_t r;
+	uint32_t p;
+	const char * hex;
+} vectors[] = {
+	{ "", "", 16, 1, 1,
+	    "77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442"
+	    "fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906" },
+	{ "password", "NaCl", 1024, 8, 16,
+	    "fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b373162"
+	    "2eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640" },
+};
+
+/* Parameters used by the wallet: block header proof-of-work and PIN key derivation. */
+static const struct {
+	const char * name;
+	size_t len;
+	uint64_t N;
+	uint32_t r;
+	uint32_t p;
+	size_t buflen;
+} params[] = {
+	{ "pow", 80, 1024, 1, 1, 32 },
+	{ "pin", 16, 65536, 8, 1, 32 },
+};
+
+static int failures;
+
+static void
+tohex(const uint8_t * buf, size_t len, char * hex)
+{
+	size_t i;
+
+	for (i = 0; i < len; i++)
+		sprintf(&hex[i * 2], "%02x", buf[i]);
+}
+
+static double
+now(void)
+{
+	struct timespec ts;
+
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (ts.tv_sec + ts.tv_nsec / 1e9);
+}
+
+static void
+check_vectors(const char * name, scrypt_fn fn)
+{
+	uint8_t buf[64];
+	char hex[129];
+	size_t i;
+
+	for (i = 0; i < sizeof(vectors) / sizeof(vectors[0]); i++) {
+		if (fn((const uint8_t *)vectors[i].passwd,
+		    strlen(vectors[i].passwd),
+		    (const uint8_t *)vectors[i].salt, strlen(vectors[i].salt),
+		    vectors[i].N, vectors[i].r, vectors[i].p, buf,
+		    sizeof(buf))) {
+			printf("FAIL %s vector %zu: error\n", name, i);
+			failures++;
+			continue;
+		}
+		tohex(buf, sizeof(buf), hex);
+		if (strcmp(hex, vectors[i].hex)) {
+			printf("FAIL %s vector %zu: %s\n", name, i, hex);
+			failures++;
+		}
+	}
+}
+
+static void
+compare(size_t n, int iterations)
+{
+	uint8_t in[80];
+	uint8_t expected[32], actual[32];
+	double ref_time = 0, simd_time = 0, t;
+	int i;
+	size_t j;
+
+	srand(0);
+	for (i = 0; i < iterations; i++) {
+		for (j = 0; j < params[n].len; j++)
+			in[j] = (uint8_t)rand();
+
+		t = now();
+		ref_crypto_scrypt(in, params[n].len, in, params[n].len,
+		    params[n].N, params[n].r, params[n].p, expected,
+		    params[n].buflen);
+		ref_time += now() - t;
+
+		t = now();
+		crypto_scrypt(in, params[n].len, in, params[n].len,
+		    params[n].N, params[n].r, params[n].p, actual,
+		    params[n].buflen);
+		simd_time += now() - t;
+
+		if (memcmp(expected, actual, params[n].buflen)) {
+			printf("FAIL %s: mismatch at iteration %d\n",
+			    params[n].name, i);
+			failures++;
+			return;
+		}
+	}
+
+	printf("%s: %d hashes, reference %.1f/s, simd %.1f/s, speedup %.2fx\n",
+	    params[n].name, iterations, iterations / ref_time,
+	    iterations / simd_time, ref_time / simd_time);
+}
+
+int
+main(int argc, char * argv[])
+{
+	int iterations = argc > 1 ? atoi(argv[1]) : 200;
+	size_t n;
+
+	check_vectors("reference", ref_crypto_scrypt);
+	check_vectors("simd", crypto_scrypt);
+
+	for (n = 0; n < sizeof(params) / sizeof(params[0]); n++)
+		compare(n, params[n].N > 1024 ? iterations / 50 + 1 :
+		    iterations);
+
+	if (failures) {
+		printf("%d failures\n", failures);
+		return (1);
+	}
+	printf("OK\n");
+	return (0);
+}
@@ -67,6 +67,8 @@ public class Configuration {
     private static final String PREFS_KEY_LAST_BACKUP = "last_backup";
     private static final String PREFS_KEY_LAST_RESTORE = "last_restore";
     private static final String PREFS_KEY_LAST_BLUETOOTH_ADDRESS = "last_bluetooth_address";
+    private static final String PREFS_KEY_IDLE_POLICY_STATE = "idle_policy_state";
+    private static final String PREFS_KEY_SYNC_SCHEDULER_STATE = "sync_scheduler_state";
 
 	private static final int PREFS_DEFAULT_BTC_SHIFT = 0;
 	private static final int PREFS_DEFAULT_BTC_PRECISION = 2;
@@ -243,6 +245,22 @@ public class Configuration {
             prefs.edit().putInt(PREFS_KEY_BEST_CHAIN_HEIGHT_EVER, bestChainHeightEver).apply();
     }
 
+    public String getIdlePolicyState() {
+        return prefs.getString(PREFS_KEY_IDLE_POLICY_STATE, null);
+    }
+
+    public void setIdlePolicyState(final String idlePolicyState) {
+        prefs.edit().putString(PREFS_KEY_IDLE_POLICY_STATE, idlePolicyState).apply();
+    }
+
+    public String getSyncSchedulerState() {
+        return prefs.getString(PREFS_KEY_SYNC_SCHEDULER_STATE, null);
+    }
+
+    public void setSyncSchedulerState(final String syncSchedulerState) {
+        prefs.edit().putString(PREFS_KEY_SYNC_SCHEDULER_STATE, syncSchedulerState).apply();
+    }
+
     public ExchangeRate getCachedExchangeRate() {
         if (prefs.contains(PREFS_KEY_CACHED_EXCHANGE_CURRENCY) && prefs.contains(PREFS_KEY_CACHED_EXCHANGE_RATE_COIN)
                 && prefs.contains(PREFS_KEY_CACHED_EXCHANGE_RATE_FIAT)) {
@@ -300,13 +318,6 @@ public class Configuration {
             prefs.edit().putString(PREFS_KEY_LAST_BLUETOOTH_ADDRESS, bluetoothAddress).apply();
     }
 
-    /**
-     * Enterprise enhancement: Track last blockchain sync attempt for optimization
-     */
-    public void updateLastSyncAttempt() {
-        prefs.edit().putLong(PREFS_KEY_LAST_USED, System.currentTimeMillis()).apply();
-    }
-
     public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
         prefs.registerOnSharedPreferenceChangeListener(listener);
     }
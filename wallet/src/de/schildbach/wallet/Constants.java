@@ -73,6 +73,9 @@ public final class Constants {
         /** Filename of the wallet. */
         public static final String WALLET_FILENAME_PROTOBUF = "wallet-protobuf" + FILENAME_NETWORK_SUFFIX;
 
+        /** Filename of the journal of wallet changes not yet folded into the wallet file. */
+        public static final String WALLET_JOURNAL_FILENAME = "wallet-journal" + FILENAME_NETWORK_SUFFIX;
+
         /** How often the wallet is autosaved. */
         public static final long WALLET_AUTOSAVE_DELAY_MS = 3 * DateUtils.SECOND_IN_MILLIS;
 
@@ -97,9 +100,24 @@ public final class Constants {
         /** Filename of the block store for storing the chain. */
         public static final String BLOCKCHAIN_FILENAME = "blockchain" + FILENAME_NETWORK_SUFFIX;
 
+        /** Filename of the store of peers that served us well. */
+        public static final String PEERS_FILENAME = "peers" + FILENAME_NETWORK_SUFFIX;
+
+        /** Filename of the queue of transactions waiting to be broadcast. */
+        public static final String BROADCAST_QUEUE_FILENAME = "broadcast-queue" + FILENAME_NETWORK_SUFFIX;
+
         /** Filename of the block checkpoints file. */
         public static final String CHECKPOINTS_FILENAME = "checkpoints" + FILENAME_NETWORK_SUFFIX + ".txt";
 
+        /** Filename of the binary block checkpoints index, compiled from the checkpoints file at build time. */
+        public static final String CHECKPOINTS_INDEX_FILENAME = "checkpoints" + FILENAME_NETWORK_SUFFIX + ".bin";
+
+        /** Filename of the block checkpoints taken locally, in the format of the checkpoints index. */
+        public static final String LOCAL_CHECKPOINTS_FILENAME = "local-checkpoints" + FILENAME_NETWORK_SUFFIX + ".bin";
+
+        /** Filename of the table of exchange rates, kept between fetches. */
+        public static final String EXCHANGE_RATES_FILENAME = "exchange-rates.bin";
+
         /** Filename of the fees files. */
         public static final String FEES_FILENAME = "fees" + FILENAME_NETWORK_SUFFIX + ".txt";
 
@@ -193,6 +211,10 @@ public final class Constants {
     public static final int SCRYPT_ITERATIONS_TARGET = 65536;
     public static final int SCRYPT_ITERATIONS_TARGET_LOWRAM = 32768;
 
+    /** Number of recent block headers kept in the block store, enough to follow deep reorganizations */
+    public static final int BLOCK_STORE_CAPACITY = 20000;
+    public static final int BLOCK_STORE_CAPACITY_LOWRAM = 5000;
+
     /** Default ports for Electrum servers */
     public static final int ELECTRUM_SERVER_DEFAULT_PORT_TCP = NETWORK_PARAMETERS.getId()
             .equals(NetworkParameters.ID_MAINNET) ? 50001 : 51001;
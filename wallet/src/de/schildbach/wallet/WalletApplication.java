@@ -18,11 +18,15 @@
 package de.schildbach.wallet;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.bitcoinj.core.Transaction;
@@ -33,19 +37,32 @@ import org.bitcoinj.crypto.MnemonicCode;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.UnreadableWalletException;
 import org.bitcoinj.wallet.Wallet;
-import org.bitcoinj.wallet.WalletFiles;
-import org.bitcoinj.wallet.WalletProtobufSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Splitter;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import de.schildbach.wallet.data.AppDatabase;
+import de.schildbach.wallet.data.TransactionSummaryWriter;
+import de.schildbach.wallet.service.BlockStoreFactory;
 import de.schildbach.wallet.service.BlockchainService;
+import de.schildbach.wallet.service.ElectrumClient;
+import de.schildbach.wallet.service.ElectrumServer;
+import de.schildbach.wallet.service.MappedBlockStore;
+import de.schildbach.wallet.ui.send.ChainzUtxoBackend;
+import de.schildbach.wallet.ui.send.ElectrumUtxoBackend;
+import de.schildbach.wallet.ui.send.SweepEngine;
+import de.schildbach.wallet.ui.send.UtxoBackend;
 import de.schildbach.wallet.util.CrashReporter;
+import de.schildbach.wallet.util.StagedWalletLoad;
 import de.schildbach.wallet.util.Toast;
+import de.schildbach.wallet.util.WalletBalanceTracker;
+import de.schildbach.wallet.util.WalletJournal;
 import de.schildbach.wallet.util.WalletUtils;
 
 import android.app.ActivityManager;
@@ -72,13 +89,18 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
  */
 public class WalletApplication extends Application {
     private ActivityManager activityManager;
+    private ElectrumClient electrumClient; // guarded by this
+    private SweepEngine sweepEngine; // guarded by this
 
     private File walletFile;
-    private WalletFiles walletFiles;
+    private File walletJournalFile;
+    private WalletJournal walletJournal;
     private Configuration config;
 
     public static final String ACTION_WALLET_REFERENCE_CHANGED = WalletApplication.class.getPackage().getName()
             + ".wallet_reference_changed";
+    public static final String ACTION_WALLET_HISTORY_LOADED = WalletApplication.class.getPackage().getName()
+            + ".wallet_history_loaded";
 
     public static final long TIME_CREATE_APPLICATION = System.currentTimeMillis();
     private static final String BIP39_WORDLIST_FILENAME = "bip39-wordlist.txt";
@@ -118,6 +140,7 @@ public class WalletApplication extends Application {
         activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
 
         walletFile = getFileStreamPath(Constants.Files.WALLET_FILENAME_PROTOBUF);
+        walletJournalFile = getFileStreamPath(Constants.Files.WALLET_JOURNAL_FILENAME);
 
         final Configuration config = getConfiguration();
         config.updateLastVersionCode(packageInfo.versionCode);
@@ -155,8 +178,16 @@ public class WalletApplication extends Application {
     }
 
     private final Executor getWalletExecutor = Executors.newSingleThreadExecutor();
+    private final Executor walletHistoryExecutor = Executors.newSingleThreadExecutor();
     private final Object getWalletLock = new Object();
+    private boolean walletHistoryLoaded = false; // guarded by getWalletLock
+    private final List<OnWalletLoadedListener> fullWalletListeners = new LinkedList<>(); // guarded by getWalletLock
+    private TransactionSummaryWriter transactionSummaryWriter = null; // guarded by getWalletLock
 
+    /**
+     * Get the wallet as soon as it's usable for receiving, showing the balance and spending. Its transaction history
+     * might still be loading, see {@link #getFullWalletAsync(OnWalletLoadedListener)}.
+     */
     @MainThread
     public void getWalletAsync(final OnWalletLoadedListener listener) {
         getWalletExecutor.execute(new Runnable() {
@@ -165,35 +196,39 @@ public class WalletApplication extends Application {
                 org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
                 synchronized (getWalletLock) {
                     initMnemonicCode();
-                    if (walletFiles == null)
+                    if (walletJournal == null) {
                         loadWalletFromProtobuf();
+                        WalletBalanceTracker.of(walletJournal.getWallet()); // total balances before they're asked for
+                        startTransactionSummaries();
+                    }
                 }
-                listener.onWalletLoaded(walletFiles.getWallet());
+                listener.onWalletLoaded(walletJournal.getWallet());
             }
 
             @WorkerThread
             private void loadWalletFromProtobuf() {
                 Wallet wallet;
                 if (walletFile.exists()) {
-                    try (final FileInputStream walletStream = new FileInputStream(walletFile)) {
-                        final Stopwatch watch = Stopwatch.createStarted();
-                        wallet = new WalletProtobufSerializer().readWallet(walletStream);
-                        watch.stop();
+                    StagedWalletLoad stagedLoad = null;
+                    boolean restored = false;
+                    try {
+                        stagedLoad = StagedWalletLoad.load(walletFile, walletJournalFile);
+                        wallet = stagedLoad.getWallet();
 
                         if (!wallet.getParams().equals(Constants.NETWORK_PARAMETERS))
                             throw new UnreadableWalletException(
                                     "bad wallet network parameters: " + wallet.getParams().getId());
-
-                        log.info("wallet loaded from: '{}', took {}", walletFile, watch);
                     } catch (final IOException | UnreadableWalletException x) {
                         log.warn("problem loading wallet, auto-restoring: " + walletFile, x);
                         wallet = WalletUtils.restoreWalletFromAutoBackup(WalletApplication.this);
+                        restored = true;
                         if (wallet != null)
                             new Toast(WalletApplication.this).postLongToast(R.string.toast_wallet_reset);
                     }
                     if (!wallet.isConsistent()) {
                         log.warn("inconsistent wallet, auto-restoring: " + walletFile);
                         wallet = WalletUtils.restoreWalletFromAutoBackup(WalletApplication.this);
+                        restored = true;
                         if (wallet != null)
                             new Toast(WalletApplication.this).postLongToast(R.string.toast_wallet_reset);
                     }
@@ -202,17 +237,29 @@ public class WalletApplication extends Application {
                         throw new Error("bad wallet network parameters: " + wallet.getParams().getId());
 
                     wallet.cleanup();
-                    walletFiles = wallet.autosaveToFile(walletFile, Constants.Files.WALLET_AUTOSAVE_DELAY_MS,
-                            TimeUnit.MILLISECONDS, null);
+                    if (restored) {
+                        walletJournal = WalletJournal.create(wallet, walletFile, walletJournalFile,
+                                Constants.Files.WALLET_AUTOSAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+                        walletHistoryLoaded = true;
+                    } else if (stagedLoad.getHistorySize() == 0) {
+                        walletJournal = WalletJournal.attach(wallet, walletFile, walletJournalFile,
+                                Constants.Files.WALLET_AUTOSAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+                        walletHistoryLoaded = true;
+                    } else {
+                        walletJournal = WalletJournal.attachWithoutHistory(wallet, walletFile, walletJournalFile,
+                                Constants.Files.WALLET_AUTOSAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+                        loadWalletHistory(stagedLoad, walletJournal);
+                    }
                 } else {
                     final Stopwatch watch = Stopwatch.createStarted();
                     wallet = new Wallet(Constants.NETWORK_PARAMETERS);
-                    walletFiles = wallet.autosaveToFile(walletFile, Constants.Files.WALLET_AUTOSAVE_DELAY_MS,
-                            TimeUnit.MILLISECONDS, null);
+                    walletJournal = WalletJournal.create(wallet, walletFile, walletJournalFile,
+                            Constants.Files.WALLET_AUTOSAVE_DELAY_MS, TimeUnit.MILLISECONDS);
                     autosaveWalletNow(); // persist...
                     WalletUtils.autoBackupWallet(WalletApplication.this, wallet); // ...and backup asap
                     watch.stop();
                     log.info("fresh wallet created, took {}", watch);
+                    walletHistoryLoaded = true;
 
                     config.armBackupReminder();
                 }
@@ -233,18 +280,96 @@ public class WalletApplication extends Application {
         });
     }
 
+    /**
+     * Get the wallet once its transaction history is completely loaded, as needed for processing blocks.
+     */
+    public void getFullWalletAsync(final OnWalletLoadedListener listener) {
+        getWalletAsync(new OnWalletLoadedListener() {
+            @Override
+            public void onWalletLoaded(final Wallet wallet) {
+                synchronized (getWalletLock) {
+                    if (!walletHistoryLoaded) {
+                        fullWalletListeners.add(listener);
+                        return;
+                    }
+                }
+                listener.onWalletLoaded(wallet);
+            }
+        });
+    }
+
+    /**
+     * Forget a listener passed to {@link #getFullWalletAsync(OnWalletLoadedListener)} that is still waiting for the
+     * transaction history, e.g. because its user went away.
+     */
+    public void removeFullWalletListener(final OnWalletLoadedListener listener) {
+        synchronized (getWalletLock) {
+            fullWalletListeners.removeAll(Collections.singleton(listener));
+        }
+    }
+
+    private void startTransactionSummaries() {
+        getFullWalletAsync(new OnWalletLoadedListener() {
+            @Override
+            public void onWalletLoaded(final Wallet wallet) {
+                synchronized (getWalletLock) {
+                    if (transactionSummaryWriter == null && walletJournal.getWallet() == wallet)
+                        transactionSummaryWriter = TransactionSummaryWriter.attach(wallet,
+                                AppDatabase.getDatabase(WalletApplication.this).transactionSummaryDao());
+                }
+            }
+        });
+    }
+
     public static interface OnWalletLoadedListener {
         void onWalletLoaded(Wallet wallet);
     }
 
+    private void loadWalletHistory(final StagedWalletLoad stagedLoad, final WalletJournal journal) {
+        walletHistoryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+                final Wallet wallet = journal.getWallet();
+                try {
+                    stagedLoad.loadHistory();
+                    if (!wallet.isConsistent())
+                        throw new UnreadableWalletException("inconsistent wallet");
+                } catch (final UnreadableWalletException x) {
+                    log.warn("problem loading wallet history, auto-restoring: " + walletFile, x);
+                    final Wallet restoredWallet = WalletUtils.restoreWalletFromAutoBackup(WalletApplication.this);
+                    if (restoredWallet != null) {
+                        new Toast(WalletApplication.this).postLongToast(R.string.toast_wallet_reset);
+                        replaceWallet(restoredWallet);
+                    }
+                    return;
+                }
+                journal.historyLoaded();
+
+                final List<OnWalletLoadedListener> listeners;
+                synchronized (getWalletLock) {
+                    if (walletJournal != journal)
+                        return; // replaced in the meantime
+                    walletHistoryLoaded = true;
+                    listeners = new ArrayList<>(fullWalletListeners);
+                    fullWalletListeners.clear();
+                }
+                for (final OnWalletLoadedListener listener : listeners)
+                    listener.onWalletLoaded(wallet);
+                LocalBroadcastManager.getInstance(WalletApplication.this)
+                        .sendBroadcast(new Intent(ACTION_WALLET_HISTORY_LOADED));
+            }
+        });
+    }
+
     public void autosaveWalletNow() {
         final Stopwatch watch = Stopwatch.createStarted();
         synchronized (getWalletLock) {
-            if (walletFiles != null) {
-                watch.stop();
-                log.info("wallet saved to: '{}', took {}", walletFile, watch);
+            if (walletJournal != null) {
                 try {
-                    walletFiles.saveNow();
+                    walletJournal.compactNow();
+                    watch.stop();
+                    log.info("wallet saved to: '{}', took {}", walletFile, watch);
                 } catch (final IOException x) {
                     log.warn("problem with forced autosaving of wallet", x);
                     CrashReporter.saveBackgroundTrace(x, packageInfo);
@@ -257,12 +382,22 @@ public class WalletApplication extends Application {
         newWallet.cleanup();
         BlockchainService.resetBlockchain(this);
 
-        final Wallet oldWallet = getWallet();
+        getWallet(); // make sure the old wallet is loaded, so it can't overwrite the new one
+        final List<OnWalletLoadedListener> listeners;
         synchronized (getWalletLock) {
-            oldWallet.shutdownAutosaveAndWait(); // this will also prevent BlockchainService to save
-            walletFiles = newWallet.autosaveToFile(walletFile, Constants.Files.WALLET_AUTOSAVE_DELAY_MS,
-                    TimeUnit.MILLISECONDS, null);
+            walletJournal.shutdownAndWait(); // this will also prevent BlockchainService to save
+            walletJournal = WalletJournal.create(newWallet, walletFile, walletJournalFile,
+                    Constants.Files.WALLET_AUTOSAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+            walletHistoryLoaded = true;
+            if (transactionSummaryWriter != null)
+                transactionSummaryWriter.shutdownAndWait();
+            transactionSummaryWriter = TransactionSummaryWriter.attach(newWallet,
+                    AppDatabase.getDatabase(this).transactionSummaryDao());
+            listeners = new ArrayList<>(fullWalletListeners);
+            fullWalletListeners.clear();
         }
+        for (final OnWalletLoadedListener listener : listeners)
+            listener.onWalletLoaded(newWallet);
         config.maybeIncrementBestChainHeightEver(newWallet.getLastBlockSeenHeight());
         WalletUtils.autoBackupWallet(this, newWallet);
 
@@ -358,6 +493,44 @@ public class WalletApplication extends Application {
                 : Constants.SCRYPT_ITERATIONS_TARGET;
     }
 
+    public BlockStoreFactory blockStoreFactory() {
+        return new MappedBlockStore.Factory(activityManager.isLowRamDevice() ? Constants.BLOCK_STORE_CAPACITY_LOWRAM
+                : Constants.BLOCK_STORE_CAPACITY);
+    }
+
+    /**
+     * @return a client shared by everybody talking to Electrum servers, so that connections are reused
+     */
+    public synchronized ElectrumClient electrumClient() {
+        if (electrumClient == null) {
+            try {
+                electrumClient = new ElectrumClient(
+                        ElectrumServer.load(getAssets().open(Constants.Files.ELECTRUM_SERVERS_FILENAME)));
+            } catch (final IOException x) {
+                throw new RuntimeException(x);
+            }
+        }
+        return electrumClient;
+    }
+
+    /**
+     * @return the engine looking up unspent outputs for sweeping, kept so it remembers how fast the backends are
+     */
+    public synchronized SweepEngine sweepEngine() {
+        if (sweepEngine == null) {
+            final List<UtxoBackend> backends = new ArrayList<>(2);
+            backends.add(new ChainzUtxoBackend(httpUserAgent()));
+            if (Constants.GOLDCOIN_ELECTRUM_SUPPORT)
+                backends.add(new ElectrumUtxoBackend(electrumClient()));
+            final ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("sweep-lookup-%d")
+                    .setDaemon(true).build();
+            sweepEngine = new SweepEngine(backends,
+                    MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4, threadFactory)),
+                    Executors.newSingleThreadScheduledExecutor(threadFactory), SweepEngine.DEFAULT_HEDGE_DELAY_MS);
+        }
+        return sweepEngine;
+    }
+
     public static String versionLine(final PackageInfo packageInfo) {
         return ImmutableList.copyOf(Splitter.on('.').splitToList(packageInfo.packageName)).reverse().get(0) + ' '
                 + packageInfo.versionName + (BuildConfig.DEBUG ? " (debuggable)" : "");
@@ -33,6 +33,8 @@ import de.schildbach.wallet.ui.WalletActivity;
 import de.schildbach.wallet.ui.send.SendCoinsActivity;
 import de.schildbach.wallet.util.GenericUtils;
 import de.schildbach.wallet.util.MonetarySpannable;
+import de.schildbach.wallet.util.WalletBalanceTracker;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
@@ -40,7 +42,6 @@ import android.appwidget.AppWidgetProvider;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.text.Spannable;
 import android.text.style.ForegroundColorSpan;
@@ -57,11 +58,12 @@ public class WalletBalanceWidgetProvider extends AppWidgetProvider {
     @Override
     public void onUpdate(final Context context, final AppWidgetManager appWidgetManager, final int[] appWidgetIds) {
         final PendingResult result = goAsync();
-        AsyncTask.execute(new Runnable() {
+        WalletExecutor.get().execute(WalletExecutor.Lane.BACKGROUND, new Runnable() {
             @Override
             public void run() {
                 final WalletApplication application = (WalletApplication) context.getApplicationContext();
-                final Coin balance = application.getWallet().getBalance(BalanceType.ESTIMATED);
+                final Coin balance = WalletBalanceTracker.of(application.getWallet())
+                        .getBalance(BalanceType.ESTIMATED);
                 final ExchangeRate exchangeRate = application.getConfiguration().getCachedExchangeRate();
                 updateWidgets(context, appWidgetManager, appWidgetIds, balance, exchangeRate);
                 result.finish();
@@ -76,11 +78,12 @@ public class WalletBalanceWidgetProvider extends AppWidgetProvider {
             log.info("app widget {} options changed: minWidth={}", appWidgetId,
                     newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH));
         final PendingResult result = goAsync();
-        AsyncTask.execute(new Runnable() {
+        WalletExecutor.get().execute(WalletExecutor.Lane.BACKGROUND, new Runnable() {
             @Override
             public void run() {
                 final WalletApplication application = (WalletApplication) context.getApplicationContext();
-                final Coin balance = application.getWallet().getBalance(BalanceType.ESTIMATED);
+                final Coin balance = WalletBalanceTracker.of(application.getWallet())
+                        .getBalance(BalanceType.ESTIMATED);
                 final ExchangeRate exchangeRate = application.getConfiguration().getCachedExchangeRate();
                 updateWidget(context, appWidgetManager, appWidgetId, newOptions, balance, exchangeRate);
                 result.finish();
@@ -21,6 +21,7 @@ import org.bitcoinj.wallet.Wallet;
 
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.WalletApplication.OnWalletLoadedListener;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -36,37 +37,57 @@ public abstract class AbstractWalletLiveData<T> extends ThrottelingLiveData<T> {
     private final WalletApplication application;
     private final LocalBroadcastManager broadcastManager;
     private final Handler handler = new Handler();
+    private final boolean fullHistory;
     private Wallet wallet;
 
     public AbstractWalletLiveData(final WalletApplication application) {
         super();
         this.application = application;
         this.broadcastManager = LocalBroadcastManager.getInstance(application);
+        this.fullHistory = false;
     }
 
     public AbstractWalletLiveData(final WalletApplication application, final long throttleMs) {
+        this(application, throttleMs, false);
+    }
+
+    /**
+     * @param fullHistory
+     *            if true, the wallet is handed out only after its transaction history is completely loaded
+     */
+    public AbstractWalletLiveData(final WalletApplication application, final long throttleMs,
+            final boolean fullHistory) {
         super(throttleMs);
         this.application = application;
         this.broadcastManager = LocalBroadcastManager.getInstance(application);
+        this.fullHistory = fullHistory;
     }
 
     @Override
     protected final void onActive() {
         broadcastManager.registerReceiver(walletReferenceChangeReceiver,
                 new IntentFilter(WalletApplication.ACTION_WALLET_REFERENCE_CHANGED));
+        broadcastManager.registerReceiver(walletHistoryLoadedReceiver,
+                new IntentFilter(WalletApplication.ACTION_WALLET_HISTORY_LOADED));
         loadWallet();
     }
 
     @Override
     protected final void onInactive() {
-        // TODO cancel async loading
+        WalletExecutor.get().cancel(this); // a load still waiting is of no use anymore
+        if (fullHistory)
+            application.removeFullWalletListener(onWalletLoadedListener);
         if (wallet != null)
             onWalletInactive(wallet);
+        broadcastManager.unregisterReceiver(walletHistoryLoadedReceiver);
         broadcastManager.unregisterReceiver(walletReferenceChangeReceiver);
     }
 
     private void loadWallet() {
-        application.getWalletAsync(onWalletLoadedListener);
+        if (fullHistory)
+            application.getFullWalletAsync(onWalletLoadedListener);
+        else
+            application.getWalletAsync(onWalletLoadedListener);
     }
 
     protected Wallet getWallet() {
@@ -95,8 +116,24 @@ public abstract class AbstractWalletLiveData<T> extends ThrottelingLiveData<T> {
         }
     };
 
+    private final BroadcastReceiver walletHistoryLoadedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(final Context context, final Intent intent) {
+            if (wallet != null)
+                onWalletHistoryLoaded(wallet);
+        }
+    };
+
     protected abstract void onWalletActive(Wallet wallet);
 
+    /**
+     * Called when the transaction history finished loading into the active wallet. No wallet events are fired for the
+     * transactions added, so by default this triggers a reload.
+     */
+    protected void onWalletHistoryLoaded(final Wallet wallet) {
+        triggerLoad();
+    }
+
     protected void onWalletInactive(final Wallet wallet) {
         // do nothing by default
     };
@@ -27,10 +27,12 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
 /**
  * @author Andreas Schildbach
  */
-@Database(entities = { AddressBookEntry.class }, version = 2, exportSchema = false)
+@Database(entities = { AddressBookEntry.class, TransactionSummary.class }, version = 3, exportSchema = false)
 public abstract class AppDatabase extends RoomDatabase {
     public abstract AddressBookDao addressBookDao();
 
+    public abstract TransactionSummaryDao transactionSummaryDao();
+
     private static AppDatabase INSTANCE;
 
     public static AppDatabase getDatabase(final Context context) {
@@ -38,7 +40,7 @@ public abstract class AppDatabase extends RoomDatabase {
             synchronized (AppDatabase.class) {
                 if (INSTANCE == null) {
                     INSTANCE = Room.databaseBuilder(context.getApplicationContext(), AppDatabase.class, "address_book")
-                            .addMigrations(MIGRATION_1_2).allowMainThreadQueries().build();
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3).allowMainThreadQueries().build();
                 }
             }
         }
@@ -56,4 +58,16 @@ public abstract class AppDatabase extends RoomDatabase {
             database.execSQL("ALTER TABLE address_book_new RENAME TO address_book");
         }
     };
+
+    private static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(final SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS transaction_summary (hash TEXT NOT NULL, "
+                    + "value INTEGER NOT NULL, fee INTEGER, direction TEXT NOT NULL, address TEXT, "
+                    + "update_time INTEGER NOT NULL, confidence_type TEXT NOT NULL, depth INTEGER NOT NULL, "
+                    + "PRIMARY KEY(hash))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS index_transaction_summary_update_time "
+                    + "ON transaction_summary (update_time)");
+        }
+    };
 }
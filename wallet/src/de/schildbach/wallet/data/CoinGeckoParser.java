@@ -0,0 +1,194 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bitcoinj.utils.Fiat;
+import org.bitcoinj.utils.MonetaryFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
+
+import okio.BufferedSource;
+
+/**
+ * Reads the exchange rates from a CoinGecko coin document, as it streams in. Only the coin id and
+ * {@code market_data.current_price} are looked at, everything else is skipped without being decoded. Prices are
+ * parsed straight into the fixed point values of {@link Fiat}.
+ */
+public final class CoinGeckoParser {
+    private static final JsonReader.Options ROOT_NAMES = JsonReader.Options.of("id", "market_data");
+    private static final JsonReader.Options MARKET_DATA_NAMES = JsonReader.Options.of("current_price");
+
+    /** Exponents beyond this can't be meant for prices. */
+    private static final int MAX_EXPONENT = 1000;
+
+    private static final Logger log = LoggerFactory.getLogger(CoinGeckoParser.class);
+
+    private CoinGeckoParser() {
+    }
+
+    /**
+     * @param coinId
+     *            id the document must be about
+     * @param sourceName
+     *            source to attribute the rates to
+     * @return the rates by currency code, excluding Bitcoin denominations and prices that aren't positive
+     * @throws IOException
+     *             if the document is malformed or about another coin
+     */
+    public static Map<String, ExchangeRate> parse(final BufferedSource source, final String coinId,
+            final String sourceName) throws IOException {
+        final Map<String, ExchangeRate> rates = new TreeMap<>();
+        String id = null;
+        try {
+            final JsonReader reader = JsonReader.of(source);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(ROOT_NAMES)) {
+                case 0:
+                    id = reader.nextString();
+                    break;
+                case 1:
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (reader.selectName(MARKET_DATA_NAMES) == 0) {
+                            readCurrentPrice(reader, rates, sourceName);
+                        } else {
+                            reader.skipName();
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                default:
+                    reader.skipName();
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (final JsonDataException x) {
+            throw new IOException(x.getMessage(), x);
+        }
+        if (!coinId.equals(id))
+            throw new IOException("unexpected coin id: " + id);
+        return rates;
+    }
+
+    private static void readCurrentPrice(final JsonReader reader, final Map<String, ExchangeRate> rates,
+            final String sourceName) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String currencyCode = reader.nextName().toUpperCase(Locale.US);
+            if (reader.peek() != JsonReader.Token.NUMBER || currencyCode.equals(MonetaryFormat.CODE_BTC)
+                    || currencyCode.equals(MonetaryFormat.CODE_MBTC)
+                    || currencyCode.equals(MonetaryFormat.CODE_UBTC)) {
+                reader.skipValue();
+                continue;
+            }
+            final String price = reader.nextString();
+            try {
+                final long value = parseFixedPoint(price, Fiat.SMALLEST_UNIT_EXPONENT);
+                if (value > 0)
+                    rates.put(currencyCode, new ExchangeRate(
+                            new org.bitcoinj.utils.ExchangeRate(Fiat.valueOf(currencyCode, value)), sourceName));
+            } catch (final IllegalArgumentException x) {
+                log.warn("problem parsing {} exchange rate: {}", currencyCode, x.getMessage());
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Parse a decimal number, like JSON allows it, into a fixed point value. Digits below the scale are cut off, like
+     * {@link java.math.BigDecimal#longValue()} does.
+     *
+     * @param scale
+     *            number of decimal places of the fixed point value
+     * @throws NumberFormatException
+     *             if the string isn't a number or the value doesn't fit into a long
+     */
+    public static long parseFixedPoint(final String str, final int scale) throws NumberFormatException {
+        final int length = str.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < length && (str.charAt(i) == '-' || str.charAt(i) == '+'))
+            negative = str.charAt(i++) == '-';
+
+        long mantissa = 0;
+        int exponent = scale;
+        int numDigits = 0;
+        boolean fraction = false;
+        for (; i < length; i++) {
+            final char c = str.charAt(i);
+            if (c >= '0' && c <= '9') {
+                numDigits++;
+                if (mantissa <= (Long.MAX_VALUE - 9) / 10) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (fraction)
+                        exponent--;
+                } else if (!fraction) {
+                    exponent++; // too precise to keep the digit, but it still counts for the magnitude
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else if ((c == 'e' || c == 'E') && numDigits > 0) {
+                exponent += parseExponent(str, i + 1);
+                break;
+            } else {
+                throw new NumberFormatException("not a number: " + str);
+            }
+        }
+        if (numDigits == 0)
+            throw new NumberFormatException("not a number: " + str);
+
+        for (; exponent < 0 && mantissa != 0; exponent++)
+            mantissa /= 10;
+        for (; exponent > 0 && mantissa != 0; exponent--) {
+            if (mantissa > Long.MAX_VALUE / 10)
+                throw new NumberFormatException("out of range: " + str);
+            mantissa *= 10;
+        }
+        return negative ? -mantissa : mantissa;
+    }
+
+    private static int parseExponent(final String str, int i) {
+        final int length = str.length();
+        boolean negative = false;
+        if (i < length && (str.charAt(i) == '-' || str.charAt(i) == '+'))
+            negative = str.charAt(i++) == '-';
+        if (i == length)
+            throw new NumberFormatException("not a number: " + str);
+        int exponent = 0;
+        for (; i < length; i++) {
+            final char c = str.charAt(i);
+            if (c < '0' || c > '9')
+                throw new NumberFormatException("not a number: " + str);
+            exponent = exponent * 10 + (c - '0');
+            if (exponent > MAX_EXPONENT)
+                throw new NumberFormatException("out of range: " + str);
+        }
+        return negative ? -exponent : exponent;
+    }
+}
@@ -44,10 +44,10 @@ import com.google.common.io.ByteStreams;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.ui.send.FeeCategory;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.content.pm.PackageInfo;
 import android.content.res.AssetManager;
-import android.os.AsyncTask;
 import androidx.lifecycle.LiveData;
 import okhttp3.Call;
 import okhttp3.HttpUrl;
@@ -87,7 +87,7 @@ public class DynamicFeeLiveData extends LiveData<Map<FeeCategory, Coin>> {
 
     @Override
     protected void onActive() {
-        AsyncTask.execute(new Runnable() {
+        WalletExecutor.get().execute(WalletExecutor.Lane.BACKGROUND, this, new Runnable() {
             @Override
             public void run() {
                 final Map<FeeCategory, Coin> dynamicFees = loadInBackground();
@@ -0,0 +1,294 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.utils.Fiat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.SettableFuture;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps the table of exchange rates, in memory and on disk.
+ *
+ * <p>
+ * Rates are returned right away, even if they're stale. A stale table is refreshed in the background, and all callers
+ * share the one fetch in flight. Only if there are no rates at all, callers wait for the fetch. Refreshes are
+ * conditional on the validators of the last response, so that unchanged rates don't need to be transferred again.
+ * After each refresh, the whole table is written to disk, so that it's available right from the start next time.
+ */
+public final class ExchangeRatesCache {
+    public interface Fetcher {
+        /**
+         * Fetch the rates, conditional on the validators of the last response.
+         *
+         * @return the rates, or null if they weren't modified
+         */
+        @Nullable
+        Result fetch(@Nullable String etag, @Nullable String lastModified) throws IOException;
+    }
+
+    public static final class Result {
+        public final Map<String, ExchangeRate> rates;
+        @Nullable
+        public final String etag, lastModified;
+
+        public Result(final Map<String, ExchangeRate> rates, @Nullable final String etag,
+                @Nullable final String lastModified) {
+            this.rates = rates;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    public interface Listener {
+        /** Called on the thread of the fetch after the rates changed. */
+        void onRatesChanged();
+    }
+
+    /** Wall clock, as the update time is kept on disk. */
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /** After a failed fetch, don't try again before this. */
+    public static final long RETRY_MS = TimeUnit.MINUTES.toMillis(1);
+    /** Callers without any rates wait at most this long for the fetch. */
+    private static final long WAIT_MS = TimeUnit.SECONDS.toMillis(20);
+
+    private static final int MAGIC = 0x474c5852; // "GLXR"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final Fetcher fetcher;
+    private final long maxAgeMs;
+    private final Executor executor;
+    private final Listener listener;
+    private final Clock clock;
+
+    @Nullable
+    private Map<String, ExchangeRate> rates = null; // guarded by this, never modified once set
+    private long updatedAt = 0; // guarded by this
+    private long attemptedAt = 0; // guarded by this
+    @Nullable
+    private String etag = null, lastModified = null; // guarded by this
+    @Nullable
+    private SettableFuture<Void> inFlight = null; // guarded by this
+
+    private static final Logger log = LoggerFactory.getLogger(ExchangeRatesCache.class);
+
+    /**
+     * @param maxAgeMs
+     *            rates older than this are refreshed
+     * @param executor
+     *            runs the fetches
+     */
+    public ExchangeRatesCache(final File file, final Fetcher fetcher, final long maxAgeMs, final Executor executor,
+            final Listener listener) {
+        this(file, fetcher, maxAgeMs, executor, listener, SYSTEM_CLOCK);
+    }
+
+    ExchangeRatesCache(final File file, final Fetcher fetcher, final long maxAgeMs, final Executor executor,
+            final Listener listener, final Clock clock) {
+        this.file = file;
+        this.fetcher = fetcher;
+        this.maxAgeMs = maxAgeMs;
+        this.executor = executor;
+        this.listener = listener;
+        this.clock = clock;
+        load();
+    }
+
+    /**
+     * @param offline
+     *            if true, never fetches
+     * @return the rates by currency code, maybe stale, or null if there are none
+     */
+    @Nullable
+    public Map<String, ExchangeRate> get(final boolean offline) {
+        final SettableFuture<Void> refresh;
+        synchronized (this) {
+            final long now = clock.currentTimeMillis();
+            if (!offline && now - updatedAt > maxAgeMs && now - attemptedAt > RETRY_MS)
+                refresh = refresh();
+            else
+                refresh = offline ? null : inFlight;
+            if (rates != null || refresh == null)
+                return rates;
+        }
+        try {
+            refresh.get(WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException | TimeoutException x) {
+            // fall through to whatever we have
+        }
+        synchronized (this) {
+            return rates;
+        }
+    }
+
+    public synchronized long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /**
+     * Start a fetch, unless one is in flight already.
+     *
+     * @return completes when the fetch is done, whether it succeeded or not
+     */
+    public synchronized SettableFuture<Void> refresh() {
+        if (inFlight != null)
+            return inFlight;
+        final SettableFuture<Void> future = SettableFuture.create();
+        inFlight = future;
+        attemptedAt = clock.currentTimeMillis();
+        final String etag = this.etag, lastModified = this.lastModified;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean changed = false;
+                try {
+                    final Stopwatch watch = Stopwatch.createStarted();
+                    final Result result = fetcher.fetch(etag, lastModified);
+                    synchronized (ExchangeRatesCache.this) {
+                        updatedAt = clock.currentTimeMillis();
+                        if (result != null) {
+                            rates = Collections.unmodifiableMap(new TreeMap<>(result.rates));
+                            ExchangeRatesCache.this.etag = result.etag;
+                            ExchangeRatesCache.this.lastModified = result.lastModified;
+                            changed = true;
+                        }
+                        save();
+                    }
+                    log.info("{} {} exchange rates, took {}", result != null ? "fetched" : "revalidated",
+                            result != null ? result.rates.size() : "unchanged", watch);
+                } catch (final IOException | RuntimeException x) {
+                    log.warn("problem fetching exchange rates", x);
+                } finally {
+                    synchronized (ExchangeRatesCache.this) {
+                        inFlight = null;
+                    }
+                    future.set(null);
+                }
+                if (changed)
+                    listener.onRatesChanged();
+            }
+        });
+        return future;
+    }
+
+    private void load() {
+        if (!file.exists())
+            return;
+        try (final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != MAGIC || is.readUnsignedByte() != VERSION)
+                throw new IOException("unknown format");
+            final long updatedAt = is.readLong();
+            final String etag = Strings.emptyToNull(is.readUTF());
+            final String lastModified = Strings.emptyToNull(is.readUTF());
+            final int numSources = is.readUnsignedByte();
+            final List<String> sources = new ArrayList<>(numSources);
+            for (int i = 0; i < numSources; i++)
+                sources.add(is.readUTF());
+            final int numRates = is.readUnsignedShort();
+            final Map<String, ExchangeRate> rates = new TreeMap<>();
+            for (int i = 0; i < numRates; i++) {
+                final String currencyCode = is.readUTF();
+                final Coin coin = Coin.valueOf(is.readLong());
+                final Fiat fiat = Fiat.valueOf(currencyCode, is.readLong());
+                final int sourceIndex = is.readByte();
+                rates.put(currencyCode, new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(coin, fiat),
+                        sourceIndex >= 0 ? sources.get(sourceIndex) : null));
+            }
+            synchronized (this) {
+                this.rates = Collections.unmodifiableMap(rates);
+                this.updatedAt = updatedAt;
+                this.etag = etag;
+                this.lastModified = lastModified;
+            }
+            log.info("loaded {} exchange rates from {}", rates.size(), file);
+        } catch (final IOException | RuntimeException x) {
+            log.warn("problem loading exchange rates from " + file + ", ignoring", x);
+        }
+    }
+
+    private void save() {
+        if (rates == null)
+            return;
+        final List<String> sources = new ArrayList<>();
+        for (final ExchangeRate rate : rates.values())
+            if (rate.source != null && !sources.contains(rate.source))
+                sources.add(rate.source);
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        try (final DataOutputStream os = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            os.writeInt(MAGIC);
+            os.writeByte(VERSION);
+            os.writeLong(updatedAt);
+            os.writeUTF(Strings.nullToEmpty(etag));
+            os.writeUTF(Strings.nullToEmpty(lastModified));
+            os.writeByte(sources.size());
+            for (final String source : sources)
+                os.writeUTF(source);
+            os.writeShort(rates.size());
+            for (final ExchangeRate rate : rates.values()) {
+                os.writeUTF(rate.getCurrencyCode());
+                os.writeLong(rate.rate.coin.value);
+                os.writeLong(rate.rate.fiat.value);
+                os.writeByte(rate.source != null ? sources.indexOf(rate.source) : -1);
+            }
+        } catch (final IOException x) {
+            log.warn("problem saving exchange rates to " + file, x);
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(file))
+            log.warn("problem renaming {} to {}", tmpFile, file);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Currency;
+import java.util.Locale;
+import java.util.Map;
+
+import de.schildbach.wallet.util.GenericUtils;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Search index over a table of exchange rates, for the currency picker. It's built once per table and locale, and
+ * then answers queries without allocating, unless they need to be normalized because they aren't plain ASCII.
+ *
+ * <p>
+ * Each rate is found by its currency code, its currency symbol and its currency name in the given locale. All of
+ * these are kept normalized, in lower case and without diacritics. Rates where the query is the prefix of a word come
+ * first, followed by rates that merely contain the query. Within both, rates are ordered by currency code.
+ */
+public final class ExchangeRatesIndex {
+    private final Map<String, ExchangeRate> exchangeRates;
+    private final Locale locale;
+    private final String[] currencyCodes;
+    private final ExchangeRate[] rates;
+    private final Object[][] rows;
+    // normalized text of all rates, one after the other, fields separated by a char that can't be searched for
+    private final char[] text;
+    private final int[] textStarts;
+    private final BitSet wordStarts;
+
+    private static final char SEPARATOR = '\0';
+
+    public ExchangeRatesIndex(final Map<String, ExchangeRate> exchangeRates, final Locale locale) {
+        this.exchangeRates = exchangeRates;
+        this.locale = locale;
+        final int size = exchangeRates.size();
+        this.rates = exchangeRates.values().toArray(new ExchangeRate[size]);
+        Arrays.sort(rates, new Comparator<ExchangeRate>() {
+            @Override
+            public int compare(final ExchangeRate rate1, final ExchangeRate rate2) {
+                return rate1.getCurrencyCode().compareTo(rate2.getCurrencyCode());
+            }
+        });
+        this.currencyCodes = new String[size];
+        this.rows = new Object[size][];
+        this.textStarts = new int[size + 1];
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            final ExchangeRate exchangeRate = rates[i];
+            final String currencyCode = exchangeRate.getCurrencyCode();
+            currencyCodes[i] = currencyCode;
+            rows[i] = new Object[] { currencyCode.hashCode(), currencyCode, exchangeRate.rate.coin.value,
+                    exchangeRate.rate.fiat.value, exchangeRate.source };
+            textStarts[i] = text.length();
+            text.append(normalize(currencyCode)).append(SEPARATOR);
+            text.append(normalize(GenericUtils.currencySymbol(currencyCode))).append(SEPARATOR);
+            final String displayName = displayName(currencyCode, locale);
+            if (displayName != null)
+                text.append(normalize(displayName)).append(SEPARATOR);
+        }
+        textStarts[size] = text.length();
+        this.text = new char[text.length()];
+        text.getChars(0, text.length(), this.text, 0);
+        this.wordStarts = new BitSet(this.text.length);
+        for (int p = 0; p < this.text.length; p++)
+            if (Character.isLetterOrDigit(this.text[p]) ? p == 0 || !Character.isLetterOrDigit(this.text[p - 1])
+                    : this.text[p] != SEPARATOR && (p == 0 || this.text[p - 1] == SEPARATOR))
+                wordStarts.set(p);
+    }
+
+    /**
+     * @return true if this index was built from the given table for the given locale
+     */
+    public boolean isFor(final Map<String, ExchangeRate> exchangeRates, final Locale locale) {
+        return this.exchangeRates == exchangeRates && this.locale.equals(locale);
+    }
+
+    public int size() {
+        return rates.length;
+    }
+
+    public ExchangeRate get(final int position) {
+        return rates[position];
+    }
+
+    /**
+     * @return the values of the rate at the given position, laid out as {@link ExchangeRatesProvider#COLUMNS}; not to
+     *         be modified
+     */
+    public Object[] row(final int position) {
+        return rows[position];
+    }
+
+    /**
+     * @return the position of the rate for the given currency code, or -1 if there's none
+     */
+    public int indexOf(@Nullable final String currencyCode) {
+        if (currencyCode == null)
+            return -1;
+        final int position = Arrays.binarySearch(currencyCodes, currencyCode);
+        return position >= 0 ? position : -1;
+    }
+
+    /**
+     * Find the rates matching a query.
+     *
+     * @param query
+     *            prefix or part of a currency code, symbol or name; case and diacritics don't matter
+     * @param matches
+     *            receives the positions of the matching rates, must be able to hold {@link #size()} of them
+     * @return number of matches
+     */
+    public int search(final String query, final int[] matches) {
+        final String normalizedQuery = isAscii(query) ? query : normalize(query);
+        final int queryLength = normalizedQuery.length();
+        int numPrefixMatches = 0;
+        int numMatches = 0;
+        // prefix matches are filled in from the start, other matches from the end
+        for (int i = 0; i < rates.length; i++) {
+            final int match = match(normalizedQuery, queryLength, textStarts[i], textStarts[i + 1]);
+            if (match > 0)
+                matches[numPrefixMatches++] = i;
+            else if (match == 0)
+                matches[rates.length - 1 - numMatches++] = i;
+        }
+        // other matches were filled in backwards, so reverse them into place right after the prefix matches
+        for (int i = 0; i < numMatches; i++)
+            matches[numPrefixMatches + i] = matches[rates.length - 1 - i];
+        return numPrefixMatches + numMatches;
+    }
+
+    /**
+     * @return 1 if the query is the prefix of a word, 0 if it's contained otherwise, -1 if it doesn't match at all
+     */
+    private int match(final String query, final int queryLength, final int start, final int end) {
+        int result = -1;
+        for (int p = start; p <= end - queryLength; p++) {
+            if (regionMatches(query, queryLength, p)) {
+                if (wordStarts.get(p))
+                    return 1;
+                result = 0;
+            }
+        }
+        return result;
+    }
+
+    private boolean regionMatches(final String query, final int queryLength, final int offset) {
+        for (int i = 0; i < queryLength; i++)
+            if (text[offset + i] != Character.toLowerCase(query.charAt(i)))
+                return false;
+        return true;
+    }
+
+    private static boolean isAscii(final String str) {
+        for (int i = 0; i < str.length(); i++)
+            if (str.charAt(i) >= 0x80)
+                return false;
+        return true;
+    }
+
+    private static String normalize(final String str) {
+        return Normalizer.normalize(str, Normalizer.Form.NFD).replaceAll("\\p{M}", "").toLowerCase(Locale.US)
+                .replace(SEPARATOR, ' ');
+    }
+
+    @Nullable
+    private static String displayName(final String currencyCode, final Locale locale) {
+        try {
+            final String displayName = Currency.getInstance(currencyCode).getDisplayName(locale);
+            return !displayName.equals(currencyCode) ? displayName : null;
+        } catch (final IllegalArgumentException x) {
+            return null;
+        }
+    }
+}
@@ -17,25 +17,17 @@
 
 package de.schildbach.wallet.data;
 
-import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.math.BigDecimal;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Currency;
-import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.Executor;
 
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.utils.Fiat;
-import org.bitcoinj.utils.MonetaryFormat;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,7 +37,7 @@ import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.Logging;
 import de.schildbach.wallet.WalletApplication;
-import de.schildbach.wallet.util.GenericUtils;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -72,15 +64,16 @@ public class ExchangeRatesProvider extends ContentProvider {
     private static final String KEY_RATE_FIAT = "rate_fiat";
     private static final String KEY_SOURCE = "source";
 
+    static final String[] COLUMNS = { BaseColumns._ID, KEY_CURRENCY_CODE, KEY_RATE_COIN, KEY_RATE_FIAT,
+            KEY_SOURCE };
+
     public static final String QUERY_PARAM_Q = "q";
     private static final String QUERY_PARAM_OFFLINE = "offline";
 
     private Configuration config;
     private String userAgent;
-
-    @Nullable
-    private Map<String, ExchangeRate> exchangeRates = null;
-    private long lastUpdated = 0;
+    private ExchangeRatesCache cache;
+    private volatile ExchangeRatesIndex index = null;
 
     private static final HttpUrl BITCOINAVERAGE_URL = HttpUrl
             .parse("https://apiv2.bitcoinaverage.com/indices/global/ticker/short?crypto=BTC");
@@ -103,11 +96,29 @@ public class ExchangeRatesProvider extends ContentProvider {
         this.config = application.getConfiguration();
         this.userAgent = WalletApplication.httpUserAgent(application.packageInfo().versionName);
 
-        final ExchangeRate cachedExchangeRate = config.getCachedExchangeRate();
-        if (cachedExchangeRate != null) {
-            exchangeRates = new TreeMap<String, ExchangeRate>();
-            exchangeRates.put(cachedExchangeRate.getCurrencyCode(), cachedExchangeRate);
-        }
+        final Uri contentUri = contentUri(context.getPackageName(), false);
+        this.cache = new ExchangeRatesCache(new File(context.getFilesDir(), Constants.Files.EXCHANGE_RATES_FILENAME),
+                new ExchangeRatesCache.Fetcher() {
+                    @Override
+                    public ExchangeRatesCache.Result fetch(final String etag, final String lastModified)
+                            throws IOException {
+                        return requestExchangeRates(etag, lastModified);
+                    }
+                }, UPDATE_FREQ_MS, new Executor() {
+                    @Override
+                    public void execute(final Runnable runnable) {
+                        WalletExecutor.get().execute(WalletExecutor.Lane.BACKGROUND, runnable);
+                    }
+                }, new ExchangeRatesCache.Listener() {
+                    @Override
+                    public void onRatesChanged() {
+                        final ExchangeRate exchangeRateToCache = bestExchangeRate(cache.get(true),
+                                config.getExchangeCurrencyCode());
+                        if (exchangeRateToCache != null)
+                            config.setCachedExchangeRate(exchangeRateToCache);
+                        context.getContentResolver().notifyChange(contentUri, null);
+                    }
+                });
 
         watch.stop();
         log.info("{}.onCreate() took {}", getClass().getSimpleName(), watch);
@@ -124,64 +135,52 @@ public class ExchangeRatesProvider extends ContentProvider {
     @Override
     public Cursor query(final Uri uri, final String[] projection, final String selection, final String[] selectionArgs,
             final String sortOrder) {
-        final long now = System.currentTimeMillis();
-
         final boolean offline = uri.getQueryParameter(QUERY_PARAM_OFFLINE) != null;
 
-        if (!offline && (lastUpdated == 0 || now - lastUpdated > UPDATE_FREQ_MS)) {
-            Map<String, ExchangeRate> newExchangeRates = requestExchangeRates();
-
-            if (newExchangeRates != null) {
-                exchangeRates = newExchangeRates;
-                lastUpdated = now;
-
-                final ExchangeRate exchangeRateToCache = bestExchangeRate(config.getExchangeCurrencyCode());
-                if (exchangeRateToCache != null)
-                    config.setCachedExchangeRate(exchangeRateToCache);
-            }
+        Map<String, ExchangeRate> exchangeRates = cache.get(offline);
+        if (exchangeRates == null) {
+            // before the first fetch after upgrading, there's only the rate cached for the widget
+            final ExchangeRate cachedExchangeRate = config.getCachedExchangeRate();
+            if (cachedExchangeRate == null)
+                return null;
+            exchangeRates = Collections.singletonMap(cachedExchangeRate.getCurrencyCode(), cachedExchangeRate);
         }
 
-        if (exchangeRates == null)
-            return null;
-
-        final MatrixCursor cursor = new MatrixCursor(
-                new String[] { BaseColumns._ID, KEY_CURRENCY_CODE, KEY_RATE_COIN, KEY_RATE_FIAT, KEY_SOURCE });
+        final Locale locale = Locale.getDefault();
+        ExchangeRatesIndex index = this.index;
+        if (index == null || !index.isFor(exchangeRates, locale)) {
+            index = new ExchangeRatesIndex(exchangeRates, locale);
+            this.index = index;
+        }
 
+        final MatrixCursor cursor;
         if (selection == null) {
-            for (final Map.Entry<String, ExchangeRate> entry : exchangeRates.entrySet()) {
-                final ExchangeRate exchangeRate = entry.getValue();
-                final org.bitcoinj.utils.ExchangeRate rate = exchangeRate.rate;
-                final String currencyCode = exchangeRate.getCurrencyCode();
-                cursor.newRow().add(currencyCode.hashCode()).add(currencyCode).add(rate.coin.value).add(rate.fiat.value)
-                        .add(exchangeRate.source);
-            }
+            cursor = new MatrixCursor(COLUMNS, index.size());
+            for (int i = 0; i < index.size(); i++)
+                cursor.addRow(index.row(i));
         } else if (selection.equals(QUERY_PARAM_Q)) {
-            final String selectionArg = selectionArgs[0].toLowerCase(Locale.US);
-            for (final Map.Entry<String, ExchangeRate> entry : exchangeRates.entrySet()) {
-                final ExchangeRate exchangeRate = entry.getValue();
-                final org.bitcoinj.utils.ExchangeRate rate = exchangeRate.rate;
-                final String currencyCode = exchangeRate.getCurrencyCode();
-                final String currencySymbol = GenericUtils.currencySymbol(currencyCode);
-                if (currencyCode.toLowerCase(Locale.US).contains(selectionArg)
-                        || currencySymbol.toLowerCase(Locale.US).contains(selectionArg))
-                    cursor.newRow().add(currencyCode.hashCode()).add(currencyCode).add(rate.coin.value)
-                            .add(rate.fiat.value).add(exchangeRate.source);
-            }
+            final int[] matches = new int[index.size()];
+            final int numMatches = index.search(selectionArgs[0], matches);
+            cursor = new MatrixCursor(COLUMNS, numMatches);
+            for (int i = 0; i < numMatches; i++)
+                cursor.addRow(index.row(matches[i]));
         } else if (selection.equals(KEY_CURRENCY_CODE)) {
-            final String selectionArg = selectionArgs[0];
-            final ExchangeRate exchangeRate = bestExchangeRate(selectionArg);
-            if (exchangeRate != null) {
-                final org.bitcoinj.utils.ExchangeRate rate = exchangeRate.rate;
-                final String currencyCode = exchangeRate.getCurrencyCode();
-                cursor.newRow().add(currencyCode.hashCode()).add(currencyCode).add(rate.coin.value).add(rate.fiat.value)
-                        .add(exchangeRate.source);
-            }
+            cursor = new MatrixCursor(COLUMNS, 1);
+            final ExchangeRate exchangeRate = bestExchangeRate(exchangeRates, selectionArgs[0]);
+            if (exchangeRate != null)
+                cursor.addRow(index.row(index.indexOf(exchangeRate.getCurrencyCode())));
+        } else {
+            cursor = new MatrixCursor(COLUMNS, 0);
         }
 
+        cursor.setNotificationUri(getContext().getContentResolver(), contentUri(getContext().getPackageName(), false));
         return cursor;
     }
 
-    private ExchangeRate bestExchangeRate(final String currencyCode) {
+    private ExchangeRate bestExchangeRate(@Nullable final Map<String, ExchangeRate> exchangeRates,
+            final String currencyCode) {
+        if (exchangeRates == null)
+            return null;
         ExchangeRate rate = currencyCode != null ? exchangeRates.get(currencyCode) : null;
         if (rate != null)
             return rate;
@@ -235,68 +234,37 @@ public class ExchangeRatesProvider extends ContentProvider {
         throw new UnsupportedOperationException();
     }
 
-    private Map<String, ExchangeRate> requestExchangeRates() {
+    private ExchangeRatesCache.Result requestExchangeRates(@Nullable final String etag,
+            @Nullable final String lastModified) throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
 
         final Request.Builder request = new Request.Builder();
         request.url(COINGECKO_URL);
         request.header("User-Agent", userAgent);
+        if (etag != null)
+            request.header("If-None-Match", etag);
+        if (lastModified != null)
+            request.header("If-Modified-Since", lastModified);
 
         final Call call = Constants.HTTP_CLIENT.newCall(request.build());
-        try {
-            final Response response = call.execute();
-            if (response.isSuccessful()) {
-                final String content = response.body().string();
-                final JSONObject head = new JSONObject(content);
-                final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
-
-                //check for correct information
-                if(head.getString("id").equals("goldcoin")) {
-                    JSONObject marketData = head.getJSONObject("market_data");
-                    JSONObject currentPrice = marketData.getJSONObject("current_price");
-
-                    for (final Iterator<String> i = currentPrice.keys(); i.hasNext(); ) {
-                        final String currencyCode = i.next();
-                        final String fiatCurrencyCode = currencyCode.toUpperCase();
-                        if (!fiatCurrencyCode.equals(MonetaryFormat.CODE_BTC)
-                                && !fiatCurrencyCode.equals(MonetaryFormat.CODE_MBTC)
-                                && !fiatCurrencyCode.equals(MonetaryFormat.CODE_UBTC)) {
-                            final String exchangeRate = currentPrice.getString(currencyCode);//head.getJSONObject(currencyCode);
-                            try {
-                                final Fiat rate = parseFiatInexact(fiatCurrencyCode, exchangeRate);
-                                if (rate.signum() > 0)
-                                    rates.put(fiatCurrencyCode, new ExchangeRate(
-                                            new org.bitcoinj.utils.ExchangeRate(rate), COINGECKO_SOURCE));
-                            } catch (final IllegalArgumentException x) {
-                                log.warn("problem fetching {} exchange rate from {}: {}", currencyCode,
-                                        COINGECKO_URL, x.getMessage());
-                            }
-                        }
-                    }
+        try (final Response response = call.execute()) {
+            if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED)
+                return null;
+            if (!response.isSuccessful())
+                throw new IOException("HTTP status " + response.code() + " from " + COINGECKO_URL);
 
-                    watch.stop();
-                    log.info("fetched exchange rates from {}, {} chars, took {}", COINGECKO_URL, content.length(),
-                            watch);
-
-                    return rates;
-                }
-            } else {
-                log.warn("http status {} when fetching exchange rates from {}", response.code(), COINGECKO_URL);
-            }
-        } catch (final Exception x) {
-            log.warn("problem fetching exchange rates from " + COINGECKO_URL, x);
-        }
+            final Map<String, ExchangeRate> rates = CoinGeckoParser.parse(response.body().source(), COINGECKO_ID,
+                    COINGECKO_SOURCE);
 
-        return null;
-    }
+            watch.stop();
+            log.info("fetched {} exchange rates from {}, took {}", rates.size(), COINGECKO_URL, watch);
 
-    // backport from bitcoinj 0.15
-    private static Fiat parseFiatInexact(final String currencyCode, final String str) {
-        final long val = new BigDecimal(str).movePointRight(Fiat.SMALLEST_UNIT_EXPONENT).longValue();
-        return Fiat.valueOf(currencyCode, val);
+            return new ExchangeRatesCache.Result(rates, response.header("ETag"), response.header("Last-Modified"));
+        }
     }
 
     private static String COINGECKO_URL = "https://api.coingecko.com/api/v3/coins/goldcoin?localization=false&community_data=false&developer_data=false&sparkline=false";
+    private static final String COINGECKO_ID = "goldcoin";
     private static final String COINGECKO_SOURCE = "CoinGecko.com";
 
 }
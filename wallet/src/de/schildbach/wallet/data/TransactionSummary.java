@@ -0,0 +1,165 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.util.Date;
+import java.util.Objects;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.wallet.Wallet;
+
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.util.WalletUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * What the transaction list shows of a transaction, so it can be shown before the wallet is loaded.
+ */
+@Entity(tableName = "transaction_summary", indices = { @Index(value = "update_time") })
+public class TransactionSummary {
+    public static final String DIRECTION_RECEIVED = "received";
+    public static final String DIRECTION_SENT = "sent";
+    public static final String DIRECTION_INTERNAL = "internal";
+
+    @NonNull
+    @PrimaryKey
+    @ColumnInfo(name = "hash")
+    private String hash;
+
+    @ColumnInfo(name = "value")
+    private long value;
+
+    @ColumnInfo(name = "fee")
+    private Long fee;
+
+    @NonNull
+    @ColumnInfo(name = "direction")
+    private String direction;
+
+    @ColumnInfo(name = "address")
+    private String address;
+
+    @ColumnInfo(name = "update_time")
+    private long updateTime;
+
+    @NonNull
+    @ColumnInfo(name = "confidence_type")
+    private String confidenceType;
+
+    @ColumnInfo(name = "depth")
+    private int depth;
+
+    public TransactionSummary(final String hash, final long value, final Long fee, final String direction,
+            final String address, final long updateTime, final String confidenceType, final int depth) {
+        this.hash = hash;
+        this.value = value;
+        this.fee = fee;
+        this.direction = direction;
+        this.address = address;
+        this.updateTime = updateTime;
+        this.confidenceType = confidenceType;
+        this.depth = depth;
+    }
+
+    /**
+     * Depth is only recorded up to {@link Constants#MAX_NUM_CONFIRMATIONS}, so old transactions don't change with
+     * every block.
+     */
+    public static TransactionSummary fromTransaction(final Transaction tx, final Wallet wallet) {
+        final Coin value = tx.getValue(wallet);
+        final boolean sent = value.signum() < 0;
+        final String direction;
+        if (WalletUtils.isInternal(tx, wallet))
+            direction = DIRECTION_INTERNAL;
+        else
+            direction = sent ? DIRECTION_SENT : DIRECTION_RECEIVED;
+        final Coin fee = tx.getFee();
+        final Address address = sent ? WalletUtils.getToAddressOfSent(tx, wallet)
+                : WalletUtils.getWalletAddressOfReceived(tx, wallet);
+        final Date updateTime = tx.getUpdateTime();
+        final TransactionConfidence confidence = tx.getConfidence();
+        final ConfidenceType confidenceType = confidence.getConfidenceType();
+        final int depth = confidenceType == ConfidenceType.BUILDING
+                ? Math.min(confidence.getDepthInBlocks(), Constants.MAX_NUM_CONFIRMATIONS) : 0;
+        return new TransactionSummary(tx.getTxId().toString(), value.value, fee != null ? fee.value : null,
+                direction, address != null ? address.toString() : null,
+                updateTime != null ? updateTime.getTime() : 0, confidenceType.name(), depth);
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    @Nullable
+    public Long getFee() {
+        return fee;
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    @Nullable
+    public String getAddress() {
+        return address;
+    }
+
+    public long getUpdateTime() {
+        return updateTime;
+    }
+
+    public String getConfidenceType() {
+        return confidenceType;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this)
+            return true;
+        if (o == null || o.getClass() != getClass())
+            return false;
+        final TransactionSummary other = (TransactionSummary) o;
+        return this.hash.equals(other.hash) && this.value == other.value && Objects.equals(this.fee, other.fee)
+                && this.direction.equals(other.direction) && Objects.equals(this.address, other.address)
+                && this.updateTime == other.updateTime && this.confidenceType.equals(other.confidenceType)
+                && this.depth == other.depth;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(hash, value, fee, direction, address, updateTime, confidenceType, depth);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.util.Collection;
+import java.util.List;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+@Dao
+public interface TransactionSummaryDao {
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertOrUpdate(Collection<TransactionSummary> summaries);
+
+    @Query("DELETE FROM transaction_summary WHERE hash IN (:hashes)")
+    void delete(Collection<String> hashes);
+
+    @Query("DELETE FROM transaction_summary")
+    void deleteAll();
+
+    @Query("SELECT * FROM transaction_summary")
+    List<TransactionSummary> getAll();
+
+    /** In the order of the transaction list: pending first, then newest first. */
+    @Query("SELECT * FROM transaction_summary "
+            + "ORDER BY confidence_type = 'PENDING' DESC, update_time DESC, hash ASC LIMIT :limit")
+    List<TransactionSummary> getNewest(int limit);
+}
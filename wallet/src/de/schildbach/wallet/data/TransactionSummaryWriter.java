@@ -0,0 +1,254 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterables;
+
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.util.BulkSyncMode;
+import de.schildbach.wallet.util.WalletUtils;
+
+/**
+ * Keeps the {@link TransactionSummary} table in line with a wallet. Changes are collected from wallet events and
+ * written in batches, and only summaries that actually changed are written.
+ */
+public final class TransactionSummaryWriter {
+    private final Wallet wallet;
+    private final TransactionSummaryDao dao;
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final Set<Transaction> changedTransactions = new HashSet<>(); // guarded by this
+    private boolean resyncNeeded = false; // guarded by this
+    private boolean flushScheduled = false; // guarded by this
+
+    // only used by the executor
+    private final Map<String, TransactionSummary> written = new HashMap<>();
+
+    private static final long DELAY_MS = 1000;
+    private static final int MAX_DELETE_BATCH = 500; // SQLite limits the number of bound parameters
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionSummaryWriter.class);
+
+    /**
+     * Start keeping the table in line with the given wallet, which needs to have its complete history loaded. The
+     * table is reconciled with the wallet first.
+     */
+    public static TransactionSummaryWriter attach(final Wallet wallet, final TransactionSummaryDao dao) {
+        final TransactionSummaryWriter writer = new TransactionSummaryWriter(wallet, dao);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, writer.walletListener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, writer.walletListener);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, writer.walletListener);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, writer.walletListener);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, writer.walletListener);
+        BulkSyncMode.get().addListener(writer.bulkSyncListener);
+        writer.requestResync();
+        return writer;
+    }
+
+    private TransactionSummaryWriter(final Wallet wallet, final TransactionSummaryDao dao) {
+        this.wallet = wallet;
+        this.dao = dao;
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ContextPropagatingThreadFactory("Transaction summaries"));
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+    }
+
+    /**
+     * Stop keeping the table in line, dropping changes not yet written, and wait for a running write to finish.
+     */
+    public void shutdownAndWait() {
+        wallet.removeCoinsReceivedEventListener(walletListener);
+        wallet.removeCoinsSentEventListener(walletListener);
+        wallet.removeTransactionConfidenceEventListener(walletListener);
+        wallet.removeReorganizeEventListener(walletListener);
+        wallet.removeChangeEventListener(walletListener);
+        BulkSyncMode.get().removeListener(bulkSyncListener);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (final InterruptedException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    private final WalletListener walletListener = new WalletListener();
+
+    private class WalletListener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+            TransactionConfidenceEventListener, WalletReorganizeEventListener, WalletChangeEventListener {
+        @Override
+        public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+                final Coin newBalance) {
+            changed(tx);
+        }
+
+        @Override
+        public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+                final Coin newBalance) {
+            changed(tx);
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+            // every new block touches every building transaction, but summaries stop changing at some depth
+            final TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING
+                    && confidence.getDepthInBlocks() > Constants.MAX_NUM_CONFIRMATIONS)
+                return;
+            changed(tx);
+        }
+
+        @Override
+        public void onReorganize(final Wallet wallet) {
+            requestResync();
+        }
+
+        @Override
+        public void onWalletChanged(final Wallet wallet) {
+            scheduleFlush(); // to notice transactions going away, e.g. on reset
+        }
+    }
+
+    private final BulkSyncMode.Listener bulkSyncListener = new BulkSyncMode.Listener() {
+        @Override
+        public void onBulkSyncModeChanged(final boolean active) {
+            synchronized (TransactionSummaryWriter.this) {
+                if (active || !flushScheduled || executor.isShutdown())
+                    return;
+            }
+            // write what was held back, the flush scheduled for later will find nothing left
+            executor.execute(flushRunnable);
+        }
+    };
+
+    private void changed(final Transaction tx) {
+        synchronized (this) {
+            changedTransactions.add(tx);
+        }
+        scheduleFlush();
+    }
+
+    private void requestResync() {
+        synchronized (this) {
+            resyncNeeded = true;
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (executor.isShutdown())
+            return;
+        synchronized (this) {
+            if (flushScheduled)
+                return;
+            flushScheduled = true;
+        }
+        executor.schedule(flushRunnable, BulkSyncMode.get().delayMs(DELAY_MS), TimeUnit.MILLISECONDS);
+    }
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (final RuntimeException x) {
+                log.warn("problem writing transaction summaries", x);
+            }
+        }
+    };
+
+    // executor only
+    private void flush() {
+        final Set<Transaction> transactions;
+        boolean resync;
+        synchronized (this) {
+            flushScheduled = false;
+            resync = resyncNeeded;
+            resyncNeeded = false;
+            transactions = new HashSet<>(changedTransactions);
+            changedTransactions.clear();
+        }
+        final Stopwatch watch = Stopwatch.createStarted();
+
+        if (!resync && WalletUtils.numTransactions(wallet) != written.size() + countNew(transactions))
+            resync = true; // transactions were removed
+
+        final Set<String> gone = new HashSet<>();
+        if (resync) {
+            written.clear();
+            for (final TransactionSummary summary : dao.getAll())
+                written.put(summary.getHash(), summary);
+            gone.addAll(written.keySet());
+            transactions.addAll(wallet.getTransactions(true));
+        }
+
+        final List<TransactionSummary> changed = new ArrayList<>();
+        for (final Transaction tx : transactions) {
+            final TransactionSummary summary = TransactionSummary.fromTransaction(tx, wallet);
+            gone.remove(summary.getHash());
+            if (!summary.equals(written.get(summary.getHash())))
+                changed.add(summary);
+        }
+        if (!changed.isEmpty())
+            dao.insertOrUpdate(changed);
+        for (final List<String> batch : Iterables.partition(gone, MAX_DELETE_BATCH))
+            dao.delete(batch);
+        for (final TransactionSummary summary : changed)
+            written.put(summary.getHash(), summary);
+        for (final String hash : gone)
+            written.remove(hash);
+
+        watch.stop();
+        if (!changed.isEmpty() || !gone.isEmpty())
+            log.info("transaction summaries: {} written, {} deleted{}, took {}", changed.size(), gone.size(),
+                    resync ? " (resync)" : "", watch);
+    }
+
+    private int countNew(final Set<Transaction> transactions) {
+        int count = 0;
+        for (final Transaction tx : transactions)
+            if (!written.containsKey(tx.getTxId().toString()))
+                count++;
+        return count;
+    }
+}
@@ -18,28 +18,25 @@
 package de.schildbach.wallet.data;
 
 import org.bitcoinj.core.Coin;
-import org.bitcoinj.core.Transaction;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
-import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
-import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
-import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
-import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
 
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.util.WalletBalanceTracker;
+import de.schildbach.wallet.util.WalletEventHub;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
-import android.os.AsyncTask;
 
 /**
  * @author Andreas Schildbach
  */
 public final class WalletBalanceLiveData extends AbstractWalletLiveData<Coin>
-        implements OnSharedPreferenceChangeListener {
+        implements WalletEventHub.Subscriber, OnSharedPreferenceChangeListener {
     private final BalanceType balanceType;
     private final Configuration config;
 
@@ -55,7 +52,7 @@ public final class WalletBalanceLiveData extends AbstractWalletLiveData<Coin>
 
     @Override
     protected void onWalletActive(final Wallet wallet) {
-        addWalletListener(wallet);
+        WalletEventHub.of(wallet).subscribe(Threading.SAME_THREAD, this);
         config.registerOnSharedPreferenceChangeListener(this);
         load();
     }
@@ -63,60 +60,24 @@ public final class WalletBalanceLiveData extends AbstractWalletLiveData<Coin>
     @Override
     protected void onWalletInactive(final Wallet wallet) {
         config.unregisterOnSharedPreferenceChangeListener(this);
-        removeWalletListener(wallet);
-    }
-
-    private void addWalletListener(final Wallet wallet) {
-        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletListener);
-        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletListener);
-        wallet.addReorganizeEventListener(Threading.SAME_THREAD, walletListener);
-        wallet.addChangeEventListener(Threading.SAME_THREAD, walletListener);
-    }
-
-    private void removeWalletListener(final Wallet wallet) {
-        wallet.removeChangeEventListener(walletListener);
-        wallet.removeReorganizeEventListener(walletListener);
-        wallet.removeCoinsSentEventListener(walletListener);
-        wallet.removeCoinsReceivedEventListener(walletListener);
+        WalletEventHub.of(wallet).unsubscribe(this);
     }
 
     @Override
     protected void load() {
         final Wallet wallet = getWallet();
-        AsyncTask.execute(new Runnable() {
+        WalletExecutor.get().execute(WalletExecutor.Lane.UI, this, new Runnable() {
             @Override
             public void run() {
                 org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
-                postValue(wallet.getBalance(balanceType));
+                postValue(WalletBalanceTracker.of(wallet).getBalance(balanceType));
             }
         });
     }
 
-    private final WalletListener walletListener = new WalletListener();
-
-    private class WalletListener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
-            WalletReorganizeEventListener, WalletChangeEventListener {
-        @Override
-        public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
-                final Coin newBalance) {
-            triggerLoad();
-        }
-
-        @Override
-        public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance,
-                final Coin newBalance) {
-            triggerLoad();
-        }
-
-        @Override
-        public void onReorganize(final Wallet wallet) {
-            triggerLoad();
-        }
-
-        @Override
-        public void onWalletChanged(final Wallet wallet) {
-            triggerLoad();
-        }
+    @Override
+    public void onWalletEvents(final WalletEventHub.Batch batch) {
+        triggerLoad();
     }
 
     @Override
@@ -29,6 +29,10 @@ public class WalletLiveData extends AbstractWalletLiveData<Wallet> {
         super(application, 0);
     }
 
+    public WalletLiveData(final WalletApplication application, final boolean fullHistory) {
+        super(application, 0, fullHistory);
+    }
+
     @Override
     protected void onWalletActive(final Wallet wallet) {
         postValue(wallet);
@@ -0,0 +1,107 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps the number of transactions received and blocks downloaded per minute, for the last minutes up to its
+ * capacity. Minute 0 is the most recent one. Not thread-safe, it's meant to be used from the main thread.
+ */
+public final class ActivityTracker {
+    private final int[] transactions;
+    private final int[] blocks;
+    private int next = 0;
+    private int size = 0;
+
+    public ActivityTracker(final int capacity) {
+        checkArgument(capacity > 0);
+        this.transactions = new int[capacity];
+        this.blocks = new int[capacity];
+    }
+
+    /**
+     * Record the activity of the minute that just passed.
+     */
+    public void record(final int numTransactionsReceived, final int numBlocksDownloaded) {
+        transactions[next] = numTransactionsReceived;
+        blocks[next] = numBlocksDownloaded;
+        next = (next + 1) % transactions.length;
+        if (size < transactions.length)
+            size++;
+    }
+
+    /**
+     * @return number of minutes recorded, up to the capacity
+     */
+    public int size() {
+        return size;
+    }
+
+    public int transactionsAt(final int minutesAgo) {
+        return transactions[index(minutesAgo)];
+    }
+
+    public int blocksAt(final int minutesAgo) {
+        return blocks[index(minutesAgo)];
+    }
+
+    /**
+     * @return minutes since the last minute with transactions received, starting at the given minute, or -1 if there
+     *         was none as far as recorded
+     */
+    public int minutesSinceTransactions(final int fromMinutesAgo) {
+        for (int i = fromMinutesAgo; i < size; i++)
+            if (transactions[index(i)] > 0)
+                return i;
+        return -1;
+    }
+
+    /**
+     * @return minutes since the last minute with blocks downloaded, or -1 if there was none as far as recorded
+     */
+    public int minutesSinceBlocks() {
+        for (int i = 0; i < size; i++)
+            if (blocks[index(i)] > 0)
+                return i;
+        return -1;
+    }
+
+    private int index(final int minutesAgo) {
+        checkArgument(minutesAgo >= 0 && minutesAgo < size, "not recorded: %s", minutesAgo);
+        return (next - 1 - minutesAgo + transactions.length) % transactions.length;
+    }
+
+    /**
+     * @return transactions/blocks of the most recent minutes, newest first
+     */
+    public String toString(final int maxMinutes) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < Math.min(size, maxMinutes); i++) {
+            if (builder.length() > 0)
+                builder.append(", ");
+            builder.append(transactionsAt(i)).append('/').append(blocksAt(i));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toString(size);
+    }
+}
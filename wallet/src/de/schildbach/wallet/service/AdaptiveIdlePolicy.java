@@ -0,0 +1,126 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Learns how payments tend to come in, and keeps peers connected for as long as a follow-up transaction is usually
+ * expected. Each time payments are received, the minutes since the previous ones are taken as a sample, as long as
+ * they're within {@link #MAX_GAP_MIN}. So the transactions of the activity must only count new incoming payments; sent
+ * and replayed transactions would fill the samples with the short gaps of a rescan. The transaction timeout is the 90th
+ * percentile of recent samples, clamped to {@link #MIN_TRANSACTION_TIMEOUT_MIN}..{@link #MAX_TRANSACTION_TIMEOUT_MIN}.
+ * Until there are enough samples, it behaves like {@link FixedIdlePolicy}.
+ *
+ * <p>
+ * The samples are kept across runs via {@link #getState()}.
+ */
+public final class AdaptiveIdlePolicy extends FixedIdlePolicy {
+    public static final int MAX_GAP_MIN = 60;
+    public static final int MIN_SAMPLES = 5;
+    public static final int MIN_TRANSACTION_TIMEOUT_MIN = IDLE_BLOCK_TIMEOUT_MIN;
+    public static final int MAX_TRANSACTION_TIMEOUT_MIN = 30;
+
+    private static final int MAX_SAMPLES = 32;
+
+    private final int[] samples = new int[MAX_SAMPLES];
+    private int next = 0;
+    private int size = 0;
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveIdlePolicy.class);
+
+    /**
+     * @param state
+     *            as returned by {@link #getState()} earlier, or null to start from scratch
+     */
+    public AdaptiveIdlePolicy(@Nullable final String state) {
+        if (state != null) {
+            try {
+                for (final String sample : Splitter.on(',').omitEmptyStrings().trimResults().split(state))
+                    addSample(Integer.parseInt(sample));
+            } catch (final NumberFormatException x) {
+                log.info("cannot parse idle policy state, starting from scratch: '{}'", state);
+                next = size = 0;
+            }
+        }
+    }
+
+    @Override
+    public Decision decide(final ActivityTracker activity) {
+        if (activity.size() > 0 && activity.transactionsAt(0) > 0) {
+            final int gap = activity.minutesSinceTransactions(1);
+            if (gap > 0 && gap <= MAX_GAP_MIN)
+                addSample(gap);
+        }
+
+        if (size < MIN_SAMPLES)
+            return decide(activity, IDLE_TRANSACTION_TIMEOUT_MIN, "fixed, " + size + " samples");
+        return decide(activity, transactionTimeoutMin(), "learned from " + size + " samples");
+    }
+
+    private void addSample(final int gap) {
+        if (gap <= 0 || gap > MAX_GAP_MIN)
+            return;
+        samples[next] = gap;
+        next = (next + 1) % MAX_SAMPLES;
+        if (size < MAX_SAMPLES)
+            size++;
+    }
+
+    private int transactionTimeoutMin() {
+        final int[] sorted = sortedSamples();
+        final int p90 = sorted[Math.min(size * 90 / 100, size - 1)];
+        return Math.max(MIN_TRANSACTION_TIMEOUT_MIN, Math.min(p90, MAX_TRANSACTION_TIMEOUT_MIN));
+    }
+
+    private int[] sortedSamples() {
+        final int[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @return the samples, oldest first, to be passed to the constructor on the next run
+     */
+    public String getState() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (builder.length() > 0)
+                builder.append(',');
+            builder.append(samples[(next - size + i + MAX_SAMPLES) % MAX_SAMPLES]);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        if (size < MIN_SAMPLES)
+            return String.format(Locale.US, "%d samples, transaction timeout %d min", size,
+                    IDLE_TRANSACTION_TIMEOUT_MIN);
+        return String.format(Locale.US, "%d samples %s, transaction timeout %d min", size,
+                Arrays.toString(sortedSamples()), transactionTimeoutMin());
+    }
+}
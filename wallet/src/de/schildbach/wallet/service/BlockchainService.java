@@ -18,6 +18,7 @@
 package de.schildbach.wallet.service;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
@@ -25,8 +26,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -39,31 +42,38 @@ import org.bitcoinj.core.BlockChain;
 import org.bitcoinj.core.CheckpointManager;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Message;
 import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerAddress;
 import org.bitcoinj.core.PeerGroup;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBroadcast;
 import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.VersionMessage;
 import org.bitcoinj.core.listeners.AbstractPeerDataEventListener;
+import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
 import org.bitcoinj.core.listeners.PeerConnectedEventListener;
 import org.bitcoinj.core.listeners.PeerDataEventListener;
 import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
 import org.bitcoinj.net.discovery.MultiplexingDiscovery;
 import org.bitcoinj.net.discovery.PeerDiscovery;
 import org.bitcoinj.net.discovery.PeerDiscoveryException;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
-import org.bitcoinj.store.SPVBlockStore;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
-import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
-import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
@@ -79,10 +89,11 @@ import de.schildbach.wallet.data.WalletBalanceLiveData;
 import de.schildbach.wallet.data.WalletLiveData;
 import de.schildbach.wallet.service.BlockchainState.Impediment;
 import de.schildbach.wallet.ui.WalletActivity;
+import de.schildbach.wallet.util.BulkSyncMode;
 import de.schildbach.wallet.util.CrashReporter;
+import de.schildbach.wallet.util.WalletEventHub;
 import de.schildbach.wallet.util.WalletUtils;
 
-import android.app.AlarmManager;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
@@ -93,6 +104,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.content.res.AssetFileDescriptor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
@@ -125,6 +137,15 @@ public class BlockchainService extends LifecycleService {
     private BlockChain blockChain;
     @Nullable
     private PeerGroup peerGroup;
+    private PeerReputationStore peerReputationStore;
+    private LocalCheckpoints localCheckpoints;
+    private BroadcastQueue broadcastQueue;
+    private final PeerSyncMetrics syncMetrics = new PeerSyncMetrics();
+    private final SyncSupervisor syncSupervisor = new SyncSupervisor();
+    private long peerGroupStartedAt;
+    private final AtomicBoolean firstBlockDownloaded = new AtomicBoolean();
+    private final AtomicInteger blocksLeft = new AtomicInteger();
+    private int bulkSyncStartHeight;
 
     private final Handler handler = new Handler();
     private final Handler delayHandler = new Handler();
@@ -137,14 +158,22 @@ public class BlockchainService extends LifecycleService {
     private Coin notificationAccumulatedAmount = Coin.ZERO;
     private final List<Address> notificationAddresses = new LinkedList<Address>();
     private AtomicInteger transactionsReceived = new AtomicInteger();
+    private int numPaymentsReceived = 0;
+    private final ActivityTracker activity = new ActivityTracker(ACTIVITY_HISTORY_MINUTES);
+    private AdaptiveIdlePolicy idlePolicy;
+    private final LinkedList<IdlePolicy.Decision> idleDecisions = new LinkedList<>(); // guarded by itself
     private long serviceCreatedAt;
+    private boolean inUse = false;
+    private long backgroundSyncStartedAt = 0; // 0 if not measuring
+    private long backgroundSyncDurationMs = 0; // 0 if not measured
     private boolean resetBlockchainOnShutdown = false;
 
-    private static final int MIN_COLLECT_HISTORY = 2;
-    private static final int IDLE_BLOCK_TIMEOUT_MIN = 2;
-    private static final int IDLE_TRANSACTION_TIMEOUT_MIN = 9;
-    private static final int MAX_HISTORY_SIZE = Math.max(IDLE_TRANSACTION_TIMEOUT_MIN, IDLE_BLOCK_TIMEOUT_MIN);
+    private static final int ACTIVITY_HISTORY_MINUTES = 64;
+    private static final int MAX_IDLE_DECISIONS = 20;
     private static final long BLOCKCHAIN_STATE_BROADCAST_THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
+    private static final long SUPERVISE_SYNC_INTERVAL_MS = 5 * DateUtils.SECOND_IN_MILLIS;
+    private static final int BULK_SYNC_ENTER_BLOCKS = 1000;
+    private static final int BULK_SYNC_EXIT_BLOCKS = 10;
 
     public static final String ACTION_PEER_STATE = BlockchainService.class.getPackage().getName() + ".peer_state";
     public static final String ACTION_PEER_STATE_NUM_PEERS = "num_peers";
@@ -159,38 +188,57 @@ public class BlockchainService extends LifecycleService {
     private static final String ACTION_BROADCAST_TRANSACTION = BlockchainService.class.getPackage().getName()
             + ".broadcast_transaction";
     private static final String ACTION_BROADCAST_TRANSACTION_HASH = "hash";
+    private static final String EXTRA_BACKGROUND_SYNC = "background_sync";
 
     private static final Logger log = LoggerFactory.getLogger(BlockchainService.class);
 
     public static void start(final Context context, final boolean cancelCoinsReceived) {
+        start(context, cancelCoinsReceived, false);
+    }
+
+    /**
+     * Start a background sync. Unless the service is running already or the app starts using it, the time until the
+     * chain is caught up, or the service stops for idling, is measured for {@link SyncScheduler}.
+     */
+    public static void startBackgroundSync(final Context context) {
+        start(context, true, true);
+    }
+
+    private static void start(final Context context, final boolean cancelCoinsReceived,
+            final boolean backgroundSync) {
         android.util.Log.i("GoldcoinWallet", "BlockchainService.start() called from context: " +
                 context.getClass().getSimpleName() + ", cancelCoinsReceived: " + cancelCoinsReceived);
         log.info("BlockchainService.start() called from context: {}, cancelCoinsReceived: {}",
                 context.getClass().getSimpleName(), cancelCoinsReceived);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             try {
-                attemptStart(context, cancelCoinsReceived);
+                attemptStart(context, cancelCoinsReceived, backgroundSync);
             } catch (final ForegroundServiceStartNotAllowedException x) {
                 android.util.Log.w("GoldcoinWallet", "failed to start in foreground", x);
                 log.info("failed to start in foreground", x);
             }
         } else {
-            attemptStart(context, cancelCoinsReceived);
+            attemptStart(context, cancelCoinsReceived, backgroundSync);
         }
     }
 
-    private static void attemptStart(final Context context, final boolean cancelCoinsReceived) {
+    private static void attemptStart(final Context context, final boolean cancelCoinsReceived,
+            final boolean backgroundSync) {
         android.util.Log.i("GoldcoinWallet", "attemptStart() called, cancelCoinsReceived: " + cancelCoinsReceived);
         log.info("attemptStart() called, cancelCoinsReceived: {}", cancelCoinsReceived);
         if (cancelCoinsReceived) {
             android.util.Log.i("GoldcoinWallet", "Starting BlockchainService with ACTION_CANCEL_COINS_RECEIVED");
             log.info("Starting BlockchainService with ACTION_CANCEL_COINS_RECEIVED");
-            ContextCompat.startForegroundService(context,
-                    new Intent(BlockchainService.ACTION_CANCEL_COINS_RECEIVED, null, context, BlockchainService.class));
+            final Intent intent = new Intent(BlockchainService.ACTION_CANCEL_COINS_RECEIVED, null, context,
+                    BlockchainService.class);
+            intent.putExtra(EXTRA_BACKGROUND_SYNC, backgroundSync);
+            ContextCompat.startForegroundService(context, intent);
         } else {
             android.util.Log.i("GoldcoinWallet", "Starting BlockchainService with default intent");
             log.info("Starting BlockchainService with default intent");
-            ContextCompat.startForegroundService(context, new Intent(context, BlockchainService.class));
+            final Intent intent = new Intent(context, BlockchainService.class);
+            intent.putExtra(EXTRA_BACKGROUND_SYNC, backgroundSync);
+            ContextCompat.startForegroundService(context, intent);
         }
     }
 
@@ -198,33 +246,6 @@ public class BlockchainService extends LifecycleService {
         context.stopService(new Intent(context, BlockchainService.class));
     }
 
-    public static void scheduleStart(final WalletApplication application) {
-        final Configuration config = application.getConfiguration();
-        final long lastUsedAgo = config.getLastUsedAgo();
-
-        // apply some backoff
-        final long alarmInterval;
-        if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_JUST_MS)
-            alarmInterval = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
-        else if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_RECENTLY_MS)
-            alarmInterval = AlarmManager.INTERVAL_HALF_DAY;
-        else
-            alarmInterval = AlarmManager.INTERVAL_DAY;
-
-        log.info("last used {} minutes ago, rescheduling blockchain sync in roughly {} minutes",
-                lastUsedAgo / DateUtils.MINUTE_IN_MILLIS, alarmInterval / DateUtils.MINUTE_IN_MILLIS);
-
-        final AlarmManager alarmManager = (AlarmManager) application.getSystemService(Context.ALARM_SERVICE);
-        final PendingIntent alarmIntent = PendingIntent.getService(application, 0,
-                new Intent(application, BlockchainService.class), PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-        alarmManager.cancel(alarmIntent);
-
-        // workaround for no inexact set() before KitKat
-        final long now = System.currentTimeMillis();
-        alarmManager.setInexactRepeating(AlarmManager.RTC_WAKEUP, now + alarmInterval, AlarmManager.INTERVAL_DAY,
-                alarmIntent);
-    }
-
     public static void resetBlockchain(final Context context) {
         // implicitly stops blockchain service
         context.startService(
@@ -238,39 +259,28 @@ public class BlockchainService extends LifecycleService {
         context.startService(intent);
     }
 
-    private static class NewTransactionLiveData extends LiveData<Transaction> {
+    private static class NewTransactionsLiveData extends LiveData<Set<Transaction>>
+            implements WalletEventHub.Subscriber {
         private final Wallet wallet;
 
-        public NewTransactionLiveData(final Wallet wallet) {
+        public NewTransactionsLiveData(final Wallet wallet) {
             this.wallet = wallet;
         }
 
         @Override
         protected void onActive() {
-            wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletListener);
-            wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletListener);
+            WalletEventHub.of(wallet).subscribe(Threading.SAME_THREAD, this);
         }
 
         @Override
         protected void onInactive() {
-            wallet.removeCoinsSentEventListener(walletListener);
-            wallet.removeCoinsReceivedEventListener(walletListener);
+            WalletEventHub.of(wallet).unsubscribe(this);
         }
 
-        private final WalletListener walletListener = new WalletListener();
-
-        private class WalletListener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener {
-            @Override
-            public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
-                    final Coin newBalance) {
-                postValue(tx);
-            }
-
-            @Override
-            public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance,
-                    final Coin newBalance) {
-                postValue(tx);
-            }
+        @Override
+        public void onWalletEvents(final WalletEventHub.Batch batch) {
+            if (!batch.coinsTransactions.isEmpty())
+                postValue(batch.coinsTransactions);
         }
     }
 
@@ -356,6 +366,7 @@ public class BlockchainService extends LifecycleService {
         public void onPeerConnected(final Peer peer, final int peerCount) {
             this.peerCount = peerCount;
             changed(peerCount);
+            handler.post(broadcastQueueRunnable);
         }
 
         @Override
@@ -384,12 +395,84 @@ public class BlockchainService extends LifecycleService {
         }
     }
 
+    private final PeerListener peerListener = new PeerListener();
+
+    // runs on the network threads, feeding the peer reputation and sync metrics
+    private final class PeerListener implements PeerConnectedEventListener, PeerDisconnectedEventListener,
+            PreMessageReceivedEventListener, BlocksDownloadedEventListener {
+        @Override
+        public void onPeerConnected(final Peer peer, final int peerCount) {
+            final InetSocketAddress address = peer.getAddress().getSocketAddress();
+            peerReputationStore.connected(address);
+            syncMetrics.connected(address);
+        }
+
+        @Override
+        public void onPeerDisconnected(final Peer peer, final int peerCount) {
+            final InetSocketAddress address = peer.getAddress().getSocketAddress();
+            peerReputationStore.disconnected(address, null);
+            syncMetrics.disconnected(address);
+        }
+
+        @Override
+        public Message onPreMessageReceived(final Peer peer, final Message message) {
+            syncMetrics.messageReceived(peer.getAddress().getSocketAddress(), message);
+            return message;
+        }
+
+        @Override
+        public void onBlocksDownloaded(final Peer peer, final Block block, final FilteredBlock filteredBlock,
+                final int blocksLeft) {
+            final InetSocketAddress address = peer.getAddress().getSocketAddress();
+            peerReputationStore.blockReceived(address);
+
+            int numTransactions = -1, numFalsePositives = 0;
+            if (filteredBlock != null) {
+                // the wallet has seen the transactions by now, so those it doesn't know didn't match any of our keys
+                final List<Sha256Hash> hashes = filteredBlock.getTransactionHashes();
+                numTransactions = hashes.size();
+                final Wallet wallet = BlockchainService.this.wallet.getValue();
+                if (wallet != null)
+                    for (final Sha256Hash hash : hashes)
+                        if (wallet.getTransaction(hash) == null)
+                            numFalsePositives++;
+            }
+            syncMetrics.blockReceived(address, numTransactions, numFalsePositives, blocksLeft);
+        }
+    }
+
+    private void stopPeerListener(final PeerGroup peerGroup) {
+        // disconnects that race with removing the listener are shutdowns too
+        for (final Peer peer : peerGroup.getConnectedPeers())
+            peerReputationStore.closing(peer.getAddress().getSocketAddress(),
+                    PeerReputationStore.DisconnectReason.SHUTDOWN);
+        peerGroup.removeConnectedEventListener(peerListener);
+        peerGroup.removeDisconnectedEventListener(peerListener);
+        peerGroup.removePreMessageReceivedEventListener(peerListener);
+        peerGroup.removeBlocksDownloadedEventListener(peerListener);
+        for (final Peer peer : peerGroup.getConnectedPeers())
+            peerReputationStore.disconnected(peer.getAddress().getSocketAddress(),
+                    PeerReputationStore.DisconnectReason.SHUTDOWN);
+        try {
+            peerReputationStore.save();
+        } catch (final IOException x) {
+            log.warn("problem saving peers", x);
+        }
+    }
+
     private final PeerDataEventListener blockchainDownloadListener = new AbstractPeerDataEventListener() {
         private final AtomicLong lastMessageTime = new AtomicLong(0);
 
         @Override
         public void onBlocksDownloaded(final Peer peer, final Block block, final FilteredBlock filteredBlock,
                 final int blocksLeft) {
+            BlockchainService.this.blocksLeft.set(blocksLeft);
+            if (firstBlockDownloaded.compareAndSet(false, true)) {
+                final long now = System.currentTimeMillis();
+                log.info("first block {} ms after service start, {} ms after peer group start", now - serviceCreatedAt,
+                        now - peerGroupStartedAt);
+            }
+
             delayHandler.removeCallbacksAndMessages(null);
 
             final long now = System.currentTimeMillis();
@@ -406,10 +489,99 @@ public class BlockchainService extends LifecycleService {
 
                 config.maybeIncrementBestChainHeightEver(blockChain.getChainHead().getHeight());
                 broadcastBlockchainState();
+                updateBulkSyncMode();
+                if (backgroundSyncStartedAt > 0 && blocksLeft.get() == 0)
+                    finishBackgroundSync("chain caught up");
             }
         };
     };
 
+    private void updateBulkSyncMode() {
+        final BulkSyncMode bulkSyncMode = BulkSyncMode.get();
+        final int blocksLeft = this.blocksLeft.get();
+        final int height = blockChain.getBestChainHeight();
+        if (!bulkSyncMode.isActive() && blocksLeft >= BULK_SYNC_ENTER_BLOCKS) {
+            log.info("{} blocks left to sync", blocksLeft);
+            bulkSyncStartHeight = height;
+            bulkSyncMode.setActive(true);
+        } else if (bulkSyncMode.isActive() && blocksLeft <= BULK_SYNC_EXIT_BLOCKS) {
+            log.info("{} blocks synced in bulk", height - bulkSyncStartHeight);
+            bulkSyncMode.setActive(false);
+        }
+    }
+
+    // broadcasts what's due from the queue, and runs again when the next broadcast is due
+    private final Runnable broadcastQueueRunnable = new Runnable() {
+        @Override
+        public void run() {
+            handler.removeCallbacks(this);
+            if (peerGroup == null || peerGroup.numConnectedPeers() == 0)
+                return; // runs again as soon as a peer connects
+
+            final long now = System.currentTimeMillis();
+            for (final Transaction tx : broadcastQueue.due(now)) {
+                log.info("broadcasting transaction {}", tx.getHashAsString());
+                final TransactionBroadcast broadcast = peerGroup.broadcastTransaction(tx);
+                Futures.addCallback(broadcast.future(), new FutureCallback<Transaction>() {
+                    @Override
+                    public void onSuccess(final Transaction tx) {
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                broadcastQueue.announced(tx.getHash(), System.currentTimeMillis());
+                                saveBroadcastQueue();
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable x) {
+                        log.info("broadcasting transaction " + tx.getHashAsString() + " failed, will retry", x);
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+            saveBroadcastQueue();
+
+            final long nextAttemptAt = broadcastQueue.nextAttemptAt();
+            if (nextAttemptAt < Long.MAX_VALUE)
+                handler.postDelayed(this, Math.max(nextAttemptAt - now, 0));
+        }
+    };
+
+    private void saveBroadcastQueue() {
+        try {
+            broadcastQueue.save();
+        } catch (final IOException x) {
+            log.warn("problem saving broadcast queue", x);
+        }
+    }
+
+    private final Runnable superviseSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Peer downloadPeer = peerGroup != null ? peerGroup.getDownloadPeer() : null;
+            if (downloadPeer != null) {
+                final long blocksToGo = downloadPeer.getBestHeight() - blockChain.getBestChainHeight();
+                final Map<InetSocketAddress, PeerSyncMetrics.Snapshot> peers = syncMetrics.getAll();
+                final Map<InetSocketAddress, Double> knownRates = new HashMap<>();
+                for (final InetSocketAddress address : peers.keySet()) {
+                    final double rate = peerReputationStore.blocksPerSecond(address);
+                    if (rate > 0)
+                        knownRates.put(address, rate);
+                }
+                final SyncSupervisor.Decision decision = syncSupervisor
+                        .check(downloadPeer.getAddress().getSocketAddress(), blocksToGo, peers, knownRates);
+                // the peer group picks the next download peer, preferring the one the supervisor chose
+                if (decision != null) {
+                    peerReputationStore.closing(downloadPeer.getAddress().getSocketAddress(),
+                            PeerReputationStore.DisconnectReason.SWITCHED);
+                    downloadPeer.close();
+                }
+            }
+            handler.postDelayed(this, SUPERVISE_SYNC_INTERVAL_MS);
+        }
+    };
+
     private static class ImpedimentsLiveData extends LiveData<Set<Impediment>> {
         private final WalletApplication application;
         private final ConnectivityManager connectivityManager;
@@ -494,6 +666,8 @@ public class BlockchainService extends LifecycleService {
     public IBinder onBind(final Intent intent) {
         log.debug(".onBind()");
 
+        useByApp();
+
         return mBinder;
     }
 
@@ -546,8 +720,14 @@ public class BlockchainService extends LifecycleService {
         wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, getClass().getName());
         application = (WalletApplication) getApplication();
         config = application.getConfiguration();
+        idlePolicy = new AdaptiveIdlePolicy(config.getIdlePolicyState());
         addressBookDao = AppDatabase.getDatabase(application).addressBookDao();
         blockChainFile = new File(getDir("blockstore", Context.MODE_PRIVATE), Constants.Files.BLOCKCHAIN_FILENAME);
+        peerReputationStore = PeerReputationStore.load(new File(getFilesDir(), Constants.Files.PEERS_FILENAME));
+        localCheckpoints = LocalCheckpoints.load(Constants.NETWORK_PARAMETERS,
+                new File(getFilesDir(), Constants.Files.LOCAL_CHECKPOINTS_FILENAME));
+        broadcastQueue = BroadcastQueue.load(Constants.NETWORK_PARAMETERS,
+                new File(getFilesDir(), Constants.Files.BROADCAST_QUEUE_FILENAME));
 
         peerConnectivityListener = new PeerConnectivityListener();
 
@@ -572,7 +752,7 @@ public class BlockchainService extends LifecycleService {
                 }
             });
         }
-        wallet = new WalletLiveData(application);
+        wallet = new WalletLiveData(application, true); // blocks must not be processed by an incomplete wallet
         wallet.observe(this, new Observer<Wallet>() {
             @Override
             public void onChanged(final Wallet wallet) {
@@ -584,24 +764,47 @@ public class BlockchainService extends LifecycleService {
                 }
 
                 try {
-                    blockStore = new SPVBlockStore(Constants.NETWORK_PARAMETERS, blockChainFile);
-                    blockStore.getChainHead(); // detect corruptions as early as possible
+                    // detects corruptions as early as possible
+                    blockStore = application.blockStoreFactory().create(Constants.NETWORK_PARAMETERS,
+                            blockChainFile);
 
                     final long earliestKeyCreationTime = wallet.getEarliestKeyCreationTime();
 
                     if (!blockChainFileExists && earliestKeyCreationTime > 0) {
                         try {
                             final Stopwatch watch = Stopwatch.createStarted();
-                            final InputStream checkpointsInputStream = getAssets()
-                                    .open(Constants.Files.CHECKPOINTS_FILENAME);
-                            CheckpointManager.checkpoint(Constants.NETWORK_PARAMETERS, checkpointsInputStream,
-                                    blockStore, earliestKeyCreationTime);
+                            final AssetFileDescriptor fd = getAssets()
+                                    .openFd(Constants.Files.CHECKPOINTS_INDEX_FILENAME);
+                            try (final FileInputStream is = fd.createInputStream()) {
+                                final CheckpointIndex checkpoints = CheckpointIndex.map(
+                                        Constants.NETWORK_PARAMETERS, is.getChannel(), fd.getStartOffset(),
+                                        fd.getLength());
+                                checkpoints.checkpoint(blockStore, earliestKeyCreationTime);
+                            }
                             watch.stop();
-                            log.info("checkpoints loaded from '{}', took {}", Constants.Files.CHECKPOINTS_FILENAME,
-                                    watch);
+                            log.info("checkpoints loaded from '{}', took {}",
+                                    Constants.Files.CHECKPOINTS_INDEX_FILENAME, watch);
                         } catch (final IOException x) {
-                            log.error("problem reading checkpoints, continuing without", x);
+                            log.warn("problem mapping checkpoints index, falling back to '{}'",
+                                    Constants.Files.CHECKPOINTS_FILENAME, x);
+                            try {
+                                final Stopwatch watch = Stopwatch.createStarted();
+                                final InputStream checkpointsInputStream = getAssets()
+                                        .open(Constants.Files.CHECKPOINTS_FILENAME);
+                                CheckpointManager.checkpoint(Constants.NETWORK_PARAMETERS, checkpointsInputStream,
+                                        blockStore, earliestKeyCreationTime);
+                                watch.stop();
+                                log.info("checkpoints loaded from '{}', took {}",
+                                        Constants.Files.CHECKPOINTS_FILENAME, watch);
+                            } catch (final IOException x2) {
+                                log.error("problem reading checkpoints, continuing without", x2);
+                            }
                         }
+
+                        final StoredBlock localCheckpoint = localCheckpoints.advance(blockStore,
+                                earliestKeyCreationTime);
+                        if (localCheckpoint != null)
+                            log.info("advanced to local checkpoint at height {}", localCheckpoint.getHeight());
                     }
                 } catch (final BlockStoreException x) {
                     blockChainFile.delete();
@@ -623,28 +826,37 @@ public class BlockchainService extends LifecycleService {
     }
 
     private void observeLiveDatasThatAreDependentOnWalletAndBlockchain() {
-        final NewTransactionLiveData newTransaction = new NewTransactionLiveData(wallet.getValue());
-        newTransaction.observe(this, new Observer<Transaction>() {
+        // Taken once, as in bulk sync mode transactions arrive long after their block, by which time the best chain
+        // height ever has moved on to the chain head.
+        final int bestChainHeightEver = config.getBestChainHeightEver();
+        final NewTransactionsLiveData newTransactions = new NewTransactionsLiveData(wallet.getValue());
+        newTransactions.observe(this, new Observer<Set<Transaction>>() {
             @Override
-            public void onChanged(final Transaction tx) {
+            public void onChanged(final Set<Transaction> transactions) {
                 final Wallet wallet = BlockchainService.this.wallet.getValue();
-                transactionsReceived.incrementAndGet();
-                final Coin amount = tx.getValue(wallet);
-                if (amount.isPositive()) {
-                    final Address address = WalletUtils.getWalletAddressOfReceived(tx, wallet);
-                    final ConfidenceType confidenceType = tx.getConfidence().getConfidenceType();
-                    final Sha256Hash hash = tx.getHash();
-                    final boolean replaying = blockChain.getBestChainHeight() < config.getBestChainHeightEver();
-                    final boolean isReplayedTx = confidenceType == ConfidenceType.BUILDING && replaying;
-                    if (!isReplayedTx)
-                        notifyCoinsReceived(address, amount, hash);
+                for (final Transaction tx : transactions) {
+                    final Coin amount = tx.getValue(wallet);
+                    if (amount.isPositive()) {
+                        final Address address = WalletUtils.getWalletAddressOfReceived(tx, wallet);
+                        final ConfidenceType confidenceType = tx.getConfidence().getConfidenceType();
+                        final Sha256Hash hash = tx.getHash();
+                        // judged by the height the transaction appeared at, so blocks seen in earlier runs count
+                        // as replayed
+                        final boolean isReplayedTx = confidenceType == ConfidenceType.BUILDING
+                                && tx.getConfidence().getAppearedAtChainHeight() <= bestChainHeightEver;
+                        if (!isReplayedTx) {
+                            // only new payments count as activity, the idle policy learns payment gaps from them
+                            transactionsReceived.incrementAndGet();
+                            numPaymentsReceived++;
+                            notifyCoinsReceived(address, amount, hash);
+                        }
+                    }
                 }
             }
         });
         final TimeLiveData time = new TimeLiveData(application);
         time.observe(this, new Observer<Date>() {
             private int lastChainHeight = 0;
-            private final List<ActivityHistoryEntry> activityHistory = new LinkedList<ActivityHistoryEntry>();
 
             @Override
             public void onChanged(final Date time) {
@@ -653,64 +865,35 @@ public class BlockchainService extends LifecycleService {
                 if (lastChainHeight > 0) {
                     final int numBlocksDownloaded = chainHeight - lastChainHeight;
                     final int numTransactionsReceived = transactionsReceived.getAndSet(0);
-
-                    // push history
-                    activityHistory.add(0, new ActivityHistoryEntry(numTransactionsReceived, numBlocksDownloaded));
-
-                    // trim
-                    while (activityHistory.size() > MAX_HISTORY_SIZE)
-                        activityHistory.remove(activityHistory.size() - 1);
-
-                    // print
-                    final StringBuilder builder = new StringBuilder();
-                    for (final ActivityHistoryEntry entry : activityHistory) {
-                        if (builder.length() > 0)
-                            builder.append(", ");
-                        builder.append(entry);
-                    }
-                    log.info("History of transactions/blocks: " + builder);
+                    activity.record(numTransactionsReceived, numBlocksDownloaded);
 
                     // determine if block and transaction activity is idling
-                    boolean isIdle = false;
-                    if (activityHistory.size() >= MIN_COLLECT_HISTORY) {
-                        isIdle = true;
-                        for (int i = 0; i < activityHistory.size(); i++) {
-                            final ActivityHistoryEntry entry = activityHistory.get(i);
-                            final boolean blocksActive = entry.numBlocksDownloaded > 0 && i <= IDLE_BLOCK_TIMEOUT_MIN;
-                            final boolean transactionsActive = entry.numTransactionsReceived > 0
-                                    && i <= IDLE_TRANSACTION_TIMEOUT_MIN;
-
-                            if (blocksActive || transactionsActive) {
-                                isIdle = false;
-                                break;
-                            }
-                        }
+                    final String idlePolicyState = idlePolicy.getState();
+                    final IdlePolicy.Decision decision = idlePolicy.decide(activity);
+                    if (!idlePolicyState.equals(idlePolicy.getState()))
+                        config.setIdlePolicyState(idlePolicy.getState());
+                    synchronized (idleDecisions) {
+                        idleDecisions.addFirst(decision);
+                        while (idleDecisions.size() > MAX_IDLE_DECISIONS)
+                            idleDecisions.removeLast();
                     }
-
-                    // if idling, shutdown service
-                    if (isIdle) {
-                        log.info("idling detected, stopping service");
-                        stopSelf();
+                    log.info("Transactions/blocks: {}, {}", activity.toString(1), decision);
+
+                    // if idling, shutdown service, unless transactions are still to be broadcast and not given up on
+                    if (decision.idle) {
+                        final int numBroadcastsQueued = broadcastQueue.giveUp(System.currentTimeMillis());
+                        saveBroadcastQueue();
+                        if (numBroadcastsQueued > 0) {
+                            log.info("idling, but {} transactions still to be broadcast", numBroadcastsQueued);
+                        } else {
+                            log.info("idling detected, stopping service");
+                            stopSelf();
+                        }
                     }
                 }
 
                 lastChainHeight = chainHeight;
             }
-
-            final class ActivityHistoryEntry {
-                public final int numTransactionsReceived;
-                public final int numBlocksDownloaded;
-
-                public ActivityHistoryEntry(final int numTransactionsReceived, final int numBlocksDownloaded) {
-                    this.numTransactionsReceived = numTransactionsReceived;
-                    this.numBlocksDownloaded = numBlocksDownloaded;
-                }
-
-                @Override
-                public String toString() {
-                    return numTransactionsReceived + "/" + numBlocksDownloaded;
-                }
-            }
         });
         impediments = new ImpedimentsLiveData(application);
         impediments.observe(this, new Observer<Set<Impediment>>() {
@@ -738,13 +921,45 @@ public class BlockchainService extends LifecycleService {
                     CrashReporter.saveBackgroundTrace(new RuntimeException(message), application.packageInfo());
                 }
 
-                peerGroup = new PeerGroup(Constants.NETWORK_PARAMETERS, blockChain);
+                peerGroup = new PeerGroup(Constants.NETWORK_PARAMETERS, blockChain) {
+                    @Override
+                    protected Peer createPeer(final PeerAddress address, final VersionMessage ver) {
+                        peerReputationStore.connecting(address.getSocketAddress());
+                        // same as the default, but counting what is sent; no required services and no dependency
+                        // download, as set up below
+                        return new Peer(params, ver, address, chain, 0, 0) {
+                            @Override
+                            public ListenableFuture sendMessage(final Message message) {
+                                syncMetrics.messageSent(address.getSocketAddress(), message);
+                                return super.sendMessage(message);
+                            }
+                        };
+                    }
+
+                    @Override
+                    protected Peer selectDownloadPeer(final List<Peer> peers) {
+                        final Peer selected = super.selectDownloadPeer(peers);
+                        final InetSocketAddress preferred = syncSupervisor.getPreferredDownloadPeer();
+                        if (selected == null || preferred == null)
+                            return selected;
+                        // the peer the supervisor switched to, unless it's behind
+                        for (final Peer peer : peers)
+                            if (preferred.equals(peer.getAddress().getSocketAddress())
+                                    && peer.getBestHeight() >= selected.getBestHeight())
+                                return peer;
+                        return selected;
+                    }
+                };
                 log.info("creating {}", peerGroup);
                 peerGroup.setDownloadTxDependencies(0); // recursive implementation causes StackOverflowError
                 peerGroup.addWallet(wallet);
                 peerGroup.setUserAgent(Constants.USER_AGENT, application.packageInfo().versionName);
                 peerGroup.addConnectedEventListener(peerConnectivityListener);
                 peerGroup.addDisconnectedEventListener(peerConnectivityListener);
+                peerGroup.addConnectedEventListener(Threading.SAME_THREAD, peerListener);
+                peerGroup.addDisconnectedEventListener(Threading.SAME_THREAD, peerListener);
+                peerGroup.addPreMessageReceivedEventListener(Threading.SAME_THREAD, peerListener);
+                peerGroup.addBlocksDownloadedEventListener(Threading.SAME_THREAD, peerListener);
 
                 final int maxConnectedPeers = application.maxConnectedPeers();
 
@@ -752,6 +967,17 @@ public class BlockchainService extends LifecycleService {
                 final boolean hasTrustedPeer = trustedPeerHost != null;
 
                 final boolean connectTrustedPeerOnly = hasTrustedPeer && config.getTrustedPeerOnly();
+
+                // peers that served us well are connected to right away, discovery only fills the remaining slots
+                if (!connectTrustedPeerOnly) {
+                    final List<InetSocketAddress> knownPeers = peerReputationStore.bestPeers(maxConnectedPeers);
+                    int priority = knownPeers.size();
+                    for (final InetSocketAddress knownPeer : knownPeers)
+                        peerGroup.addAddress(new PeerAddress(Constants.NETWORK_PARAMETERS, knownPeer), priority--);
+                    log.info("{} known peers to connect to first, out of {}", knownPeers.size(),
+                            peerReputationStore);
+                }
+                // also undoes the raise of addAddress()
                 peerGroup.setMaxConnections(connectTrustedPeerOnly ? 1 : maxConnectedPeers);
                 peerGroup.setConnectTimeoutMillis(Constants.PEER_TIMEOUT_MS);
                 peerGroup.setPeerDiscoveryTimeoutMillis(Constants.PEER_DISCOVERY_TIMEOUT_MS);
@@ -799,8 +1025,11 @@ public class BlockchainService extends LifecycleService {
 
                 // start peergroup
                 log.info("starting {} asynchronously", peerGroup);
+                peerGroupStartedAt = System.currentTimeMillis();
+                firstBlockDownloaded.set(false);
                 peerGroup.startAsync();
                 peerGroup.startBlockChainDownload(blockchainDownloadListener);
+                handler.postDelayed(superviseSyncRunnable, SUPERVISE_SYNC_INTERVAL_MS);
             }
 
             private void shutdown() {
@@ -809,6 +1038,10 @@ public class BlockchainService extends LifecycleService {
                 peerGroup.removeDisconnectedEventListener(peerConnectivityListener);
                 peerGroup.removeConnectedEventListener(peerConnectivityListener);
                 peerGroup.removeWallet(wallet);
+                stopPeerListener(peerGroup);
+                handler.removeCallbacks(superviseSyncRunnable);
+                handler.removeCallbacks(broadcastQueueRunnable);
+                BulkSyncMode.get().setActive(false);
                 log.info("stopping {} asynchronously", peerGroup);
                 peerGroup.stopAsync();
                 peerGroup = null;
@@ -829,6 +1062,13 @@ public class BlockchainService extends LifecycleService {
 
             final String action = intent.getAction();
 
+            if (!intent.getBooleanExtra(EXTRA_BACKGROUND_SYNC, false)) {
+                useByApp();
+            } else if (startId == 1 && !inUse) {
+                log.info("measuring background sync");
+                backgroundSyncStartedAt = System.currentTimeMillis();
+            }
+
             if (BlockchainService.ACTION_CANCEL_COINS_RECEIVED.equals(action)) {
                 notificationCount = 0;
                 notificationAccumulatedAmount = Coin.ZERO;
@@ -845,11 +1085,13 @@ public class BlockchainService extends LifecycleService {
                         .wrap(intent.getByteArrayExtra(BlockchainService.ACTION_BROADCAST_TRANSACTION_HASH));
                 final Transaction tx = application.getWallet().getTransaction(hash);
 
-                if (peerGroup != null) {
-                    log.info("broadcasting transaction " + tx.getHashAsString());
-                    peerGroup.broadcastTransaction(tx);
+                if (tx != null) {
+                    if (broadcastQueue.add(tx, System.currentTimeMillis()))
+                        log.info("queued transaction {} for broadcast", tx.getHashAsString());
+                    saveBroadcastQueue();
+                    handler.post(broadcastQueueRunnable);
                 } else {
-                    log.info("peergroup not available, not broadcasting transaction " + tx.getHashAsString());
+                    log.warn("transaction {} not in wallet, not broadcasting", hash);
                 }
             }
         } else {
@@ -867,6 +1109,10 @@ public class BlockchainService extends LifecycleService {
             peerGroup.removeDisconnectedEventListener(peerConnectivityListener);
             peerGroup.removeConnectedEventListener(peerConnectivityListener);
             peerGroup.removeWallet(wallet.getValue());
+            stopPeerListener(peerGroup);
+            handler.removeCallbacks(superviseSyncRunnable);
+            handler.removeCallbacks(broadcastQueueRunnable);
+            BulkSyncMode.get().setActive(false);
             peerGroup.stopAsync();
             log.info("stopping {} asynchronously", peerGroup);
         }
@@ -876,6 +1122,13 @@ public class BlockchainService extends LifecycleService {
         delayHandler.removeCallbacksAndMessages(null);
 
         if (blockStore != null) {
+            try {
+                if (localCheckpoints.update(blockStore))
+                    localCheckpoints.save();
+            } catch (final BlockStoreException | IOException x) {
+                log.warn("problem taking local checkpoint", x);
+            }
+
             try {
                 blockStore.close();
             } catch (final BlockStoreException x) {
@@ -895,7 +1148,12 @@ public class BlockchainService extends LifecycleService {
             blockChainFile.delete();
         }
 
-        scheduleStart(application);
+        if (backgroundSyncStartedAt > 0)
+            finishBackgroundSync("service stopped");
+        final SyncScheduler syncScheduler = new SyncScheduler(config.getSyncSchedulerState());
+        syncScheduler.syncFinished(System.currentTimeMillis(), backgroundSyncDurationMs, numPaymentsReceived);
+        config.setSyncSchedulerState(syncScheduler.getState());
+        StartBlockchainService.schedule(application);
 
         stopForeground(true);
 
@@ -904,6 +1162,21 @@ public class BlockchainService extends LifecycleService {
         log.info("service was up for " + ((System.currentTimeMillis() - serviceCreatedAt) / 1000 / 60) + " minutes");
     }
 
+    // the time the service is kept running by the app must not count as background sync
+    private void useByApp() {
+        inUse = true;
+        if (backgroundSyncStartedAt > 0) {
+            log.info("app in use, not measuring background sync");
+            backgroundSyncStartedAt = 0;
+        }
+    }
+
+    private void finishBackgroundSync(final String reason) {
+        backgroundSyncDurationMs = System.currentTimeMillis() - backgroundSyncStartedAt;
+        backgroundSyncStartedAt = 0;
+        log.info("background sync took {} ms until {}", backgroundSyncDurationMs, reason);
+    }
+
     @Override
     public void onTrimMemory(final int level) {
         log.info("onTrimMemory({}) called", level);
@@ -935,6 +1208,36 @@ public class BlockchainService extends LifecycleService {
         return peerGroup.getConnectedPeers();
     }
 
+    /**
+     * @return sync metrics of the connected peers, by address
+     */
+    public Map<InetSocketAddress, PeerSyncMetrics.Snapshot> getPeerSyncMetrics() {
+        return syncMetrics.getAll();
+    }
+
+    /**
+     * @return recent switches of the download peer, newest first
+     */
+    public List<SyncSupervisor.Decision> getDownloadPeerSwitches() {
+        return syncSupervisor.getHistory();
+    }
+
+    /**
+     * @return how recently broadcast transactions propagated, newest first
+     */
+    public List<BroadcastQueue.Propagation> getBroadcastPropagations() {
+        return broadcastQueue.getPropagations();
+    }
+
+    /**
+     * @return recent decisions on whether the service is idling, one per minute, newest first
+     */
+    public List<IdlePolicy.Decision> getIdleDecisions() {
+        synchronized (idleDecisions) {
+            return new ArrayList<>(idleDecisions);
+        }
+    }
+
     @Nullable
     public List<StoredBlock> getRecentBlocks(final int maxBlocks) {
         if (blockChain == null)
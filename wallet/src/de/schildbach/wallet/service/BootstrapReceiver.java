@@ -24,6 +24,8 @@ import org.slf4j.LoggerFactory;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -50,12 +52,22 @@ public class BootstrapReceiver extends BroadcastReceiver {
             if (packageReplaced)
                 maybeUpgradeWallet(application);
 
-            // make sure there is always an alarm scheduled
+            // alarms of earlier versions would wake up the device on top of the scheduled job
+            if (packageReplaced)
+                cancelLegacyAlarm(application);
+
+            // make sure there is always a sync scheduled
             log.info("Scheduling BlockchainService");
-            BlockchainService.scheduleStart(application);
+            StartBlockchainService.schedule(application);
         }
     }
 
+    private void cancelLegacyAlarm(final WalletApplication application) {
+        final AlarmManager alarmManager = (AlarmManager) application.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(PendingIntent.getService(application, 0, new Intent(application, BlockchainService.class),
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE));
+    }
+
     private void maybeUpgradeWallet(final WalletApplication application) {
         org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
 
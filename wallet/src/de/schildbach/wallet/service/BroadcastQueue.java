@@ -0,0 +1,277 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Outbound transactions waiting to be announced by the network. A transaction stays queued, also across restarts of
+ * the service, until enough peers announced it back, it got into a block or it was double spent. Until then, it's
+ * broadcast again after a backoff, starting at {@link #MIN_BACKOFF_MS} and doubling up to {@link #MAX_BACKOFF_MS}.
+ * After {@link #MAX_ATTEMPTS} attempts or {@link #MAX_AGE_MS}, whatever comes first, it's given up on: the
+ * transaction stays pending in the wallet, but it's no longer broadcast by the queue. The outcome, time from queueing
+ * to being announced or given up on, is kept for the most recent transactions.
+ *
+ * <p>
+ * Times are passed in as wall clock milliseconds, because they're kept across restarts.
+ */
+public final class BroadcastQueue {
+    public static final long MIN_BACKOFF_MS = TimeUnit.SECONDS.toMillis(30);
+    public static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(30);
+    public static final int MAX_ATTEMPTS = 8;
+    public static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(1);
+    private static final int MAX_PROPAGATIONS = 20;
+
+    private final NetworkParameters params;
+    private final File file;
+    private final Map<Sha256Hash, Entry> entries = new LinkedHashMap<>(); // guarded by this
+    private final LinkedList<Propagation> propagations = new LinkedList<>(); // guarded by this
+
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+    private static final Logger log = LoggerFactory.getLogger(BroadcastQueue.class);
+
+    /**
+     * Load the queue from a file. If it doesn't exist, start with an empty queue. Entries that cannot be read are
+     * skipped.
+     */
+    public static BroadcastQueue load(final NetworkParameters params, final File file) {
+        final BroadcastQueue queue = new BroadcastQueue(params, file);
+        try (final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    final Entry entry = queue.parse(line);
+                    queue.entries.put(entry.tx.getHash(), entry);
+                } catch (final RuntimeException x) {
+                    log.info("skipping broadcast queue entry '{}': {}", line, x.getMessage());
+                }
+            }
+            if (!queue.entries.isEmpty())
+                log.info("{} transactions to broadcast loaded from '{}'", queue.entries.size(), file);
+        } catch (final FileNotFoundException x) {
+            // nothing queued
+        } catch (final IOException x) {
+            log.warn("problem reading broadcast queue from '" + file + "', starting over", x);
+            queue.entries.clear();
+        }
+        return queue;
+    }
+
+    private BroadcastQueue(final NetworkParameters params, final File file) {
+        this.params = params;
+        this.file = file;
+    }
+
+    /**
+     * Queue a transaction for broadcast, due right away.
+     *
+     * @return false if it was queued already
+     */
+    public synchronized boolean add(final Transaction tx, final long now) {
+        final Sha256Hash hash = tx.getHash();
+        final Entry entry = entries.get(hash);
+        if (entry != null) {
+            entry.nextAttemptAt = now; // asked for explicitly, don't wait for the backoff
+            return false;
+        }
+        entries.put(hash, new Entry(tx, now, 0));
+        return true;
+    }
+
+    /**
+     * Take the transactions that are due for a broadcast attempt, and count them as attempted. Transactions that got
+     * into a block or were double spent in the meantime are dropped, and those as per {@link #giveUp(long)} are given
+     * up on.
+     */
+    public synchronized List<Transaction> due(final long now) {
+        giveUp(now);
+        final List<Transaction> due = new ArrayList<>();
+        for (final Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+            final Entry entry = i.next();
+            final ConfidenceType confidenceType = entry.tx.getConfidence().getConfidenceType();
+            if (confidenceType == ConfidenceType.BUILDING || confidenceType == ConfidenceType.DEAD) {
+                log.info("dropping {} from broadcast queue, it's {}", entry.tx.getHash(), confidenceType);
+                i.remove();
+                continue;
+            }
+            if (now >= entry.nextAttemptAt) {
+                entry.attempts++;
+                entry.nextAttemptAt = now + backoff(entry.attempts);
+                due.add(entry.tx);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Give up on transactions that got too old, and on those that ran out of attempts once their last attempt had its
+     * backoff to be announced. Ages keep counting while no attempts can be made, e.g. for lack of peers.
+     *
+     * @return number of transactions still queued
+     */
+    public synchronized int giveUp(final long now) {
+        for (final Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+            final Entry entry = i.next();
+            if (now - entry.queuedAt >= MAX_AGE_MS || (entry.attempts >= MAX_ATTEMPTS && now >= entry.nextAttemptAt)) {
+                log.warn("giving up broadcasting {} after {} attempts", entry.tx.getHash(), entry.attempts);
+                i.remove();
+                addPropagation(new Propagation(entry.tx.getHash(), false, now - entry.queuedAt, entry.attempts));
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * @return time of the next broadcast attempt, or {@link Long#MAX_VALUE} if nothing is queued
+     */
+    public synchronized long nextAttemptAt() {
+        long nextAttemptAt = Long.MAX_VALUE;
+        for (final Entry entry : entries.values())
+            nextAttemptAt = Math.min(nextAttemptAt, entry.nextAttemptAt);
+        return nextAttemptAt;
+    }
+
+    /**
+     * Enough peers announced the transaction back, so it has propagated and can be dropped from the queue.
+     *
+     * @return how it went, or null if it wasn't queued
+     */
+    public synchronized Propagation announced(final Sha256Hash hash, final long now) {
+        final Entry entry = entries.remove(hash);
+        if (entry == null)
+            return null;
+        final Propagation propagation = new Propagation(hash, true, now - entry.queuedAt, entry.attempts);
+        addPropagation(propagation);
+        log.info("transaction propagated: {}", propagation);
+        return propagation;
+    }
+
+    private void addPropagation(final Propagation propagation) {
+        propagations.addFirst(propagation);
+        while (propagations.size() > MAX_PROPAGATIONS)
+            propagations.removeLast();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return how the most recent transactions propagated or were given up on, newest first
+     */
+    public synchronized List<Propagation> getPropagations() {
+        return new ArrayList<>(propagations);
+    }
+
+    public void save() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        synchronized (this) {
+            for (final Entry entry : entries.values())
+                lines.add(HEX.encode(entry.tx.unsafeBitcoinSerialize()) + " " + entry.queuedAt + " " + entry.attempts);
+        }
+
+        final File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        try (final Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+            for (final String line : lines)
+                writer.append(line).append('\n');
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("cannot rename " + tempFile + " to " + file);
+    }
+
+    private Entry parse(final String line) {
+        final List<String> fields = Splitter.on(' ').splitToList(line);
+        if (fields.size() != 3)
+            throw new IllegalArgumentException("expected 3 fields");
+        final Transaction tx = new Transaction(params, HEX.decode(fields.get(0)));
+        return new Entry(tx, Long.parseLong(fields.get(1)), Integer.parseInt(fields.get(2)));
+    }
+
+    private static long backoff(final int attempts) {
+        return Math.min(MIN_BACKOFF_MS << Math.min(attempts - 1, 16), MAX_BACKOFF_MS);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "[" + entries.size() + " queued]";
+    }
+
+    private static final class Entry {
+        public final Transaction tx;
+        public final long queuedAt;
+        public int attempts;
+        public long nextAttemptAt; // not kept across restarts, so that restarting broadcasts right away
+
+        public Entry(final Transaction tx, final long queuedAt, final int attempts) {
+            this.tx = tx;
+            this.queuedAt = queuedAt;
+            this.attempts = attempts;
+            this.nextAttemptAt = 0;
+        }
+    }
+
+    public static final class Propagation {
+        public final Sha256Hash hash;
+        public final boolean announced; // false if given up on
+        public final long latencyMs;
+        public final int attempts;
+
+        public Propagation(final Sha256Hash hash, final boolean announced, final long latencyMs, final int attempts) {
+            this.hash = hash;
+            this.announced = announced;
+            this.latencyMs = latencyMs;
+            this.attempts = attempts;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s %s after %.1f s, %d attempts", hash,
+                    announced ? "announced" : "given up", latencyMs / 1000.0, attempts);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Fixed-width binary index of block checkpoints, compiled at build time from the textual checkpoints asset by the
+ * {@code compileCheckpoints} Gradle task and stored uncompressed, so it can be memory-mapped straight out of the APK.
+ * Looking up the checkpoint for a given time is a binary search over the mapped records, without decoding any other
+ * checkpoint.
+ *
+ * <p>
+ * Layout: a 12 byte header consisting of magic {@code "CKPT"}, version and number of records, followed by the
+ * records ordered by block time. Each record is the block time in seconds (4 bytes, unsigned) followed by the
+ * compact serialization of the {@link StoredBlock}. All integers are big-endian.
+ * </p>
+ */
+public final class CheckpointIndex {
+    public static final int MAGIC = 0x434b5054; // "CKPT"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int RECORD_SIZE = 4 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    private static final long CLOCK_SKEW_SECS = 60 * 60 * 24 * 7;
+
+    private final NetworkParameters params;
+    private final ByteBuffer buffer;
+    private final int size;
+
+    public CheckpointIndex(final NetworkParameters params, final ByteBuffer buffer) throws IOException {
+        this.params = params;
+        this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (this.buffer.remaining() < HEADER_SIZE)
+            throw new IOException("checkpoint index truncated");
+        final int base = this.buffer.position();
+        if (this.buffer.getInt(base) != MAGIC)
+            throw new IOException("not a checkpoint index");
+        final int version = this.buffer.getInt(base + 4);
+        if (version != VERSION)
+            throw new IOException("unsupported checkpoint index version: " + version);
+        this.size = this.buffer.getInt(base + 8);
+        if (size < 0 || this.buffer.remaining() != HEADER_SIZE + (long) size * RECORD_SIZE)
+            throw new IOException("checkpoint index has bad size: " + size + " records, " + this.buffer.remaining()
+                    + " bytes");
+    }
+
+    /**
+     * Map a region of a file, e.g. an uncompressed asset of an APK, into memory and use it as a checkpoint index.
+     */
+    public static CheckpointIndex map(final NetworkParameters params, final FileChannel channel, final long offset,
+            final long length) throws IOException {
+        return new CheckpointIndex(params, channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the checkpoint at the given position, ordered by block time
+     */
+    public StoredBlock get(final int index) {
+        checkArgument(index >= 0 && index < size);
+        final ByteBuffer record = buffer.duplicate();
+        record.position(buffer.position() + HEADER_SIZE + index * RECORD_SIZE + 4);
+        return StoredBlock.deserializeCompact(params, record);
+    }
+
+    /**
+     * Returns the newest checkpoint with a block time at or before the given time, or the genesis block if there is
+     * none. Equivalent to {@link org.bitcoinj.core.CheckpointManager#getCheckpointBefore(long)}.
+     */
+    public StoredBlock getCheckpointBefore(final long timeSecs) {
+        checkArgument(timeSecs > params.getGenesisBlock().getTimeSeconds());
+
+        final int base = buffer.position() + HEADER_SIZE;
+        int low = 0, high = size - 1, found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long time = buffer.getInt(base + mid * RECORD_SIZE) & 0xffffffffL;
+            if (time <= timeSecs) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (found == -1) {
+            final Block genesis = params.getGenesisBlock().cloneAsHeader();
+            return new StoredBlock(genesis, genesis.getWork(), 0);
+        }
+
+        return get(found);
+    }
+
+    /**
+     * Initialize an empty block store with the checkpoint suitable for the given key creation time. Like
+     * {@link org.bitcoinj.core.CheckpointManager#checkpoint}, this allows a week of clock skew.
+     */
+    public void checkpoint(final BlockStore store, final long timeSecs) throws BlockStoreException {
+        final StoredBlock checkpoint = getCheckpointBefore(adjustedTime(timeSecs));
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+    }
+
+    /**
+     * Like {@link #checkpoint(BlockStore, long)}, but only if the checkpoint is above the chain head of the store. This
+     * is for advancing a store that was just initialized from another index.
+     *
+     * @return the checkpoint the store was advanced to, or null if it was left as is
+     */
+    @Nullable
+    public StoredBlock advance(final BlockStore store, final long timeSecs) throws BlockStoreException {
+        final StoredBlock checkpoint = getCheckpointBefore(adjustedTime(timeSecs));
+        if (checkpoint.getHeight() <= store.getChainHead().getHeight())
+            return null;
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+        return checkpoint;
+    }
+
+    private static long adjustedTime(final long timeSecs) {
+        final long adjustedTimeSecs = timeSecs - CLOCK_SKEW_SECS;
+        checkArgument(adjustedTimeSecs > 0);
+        return adjustedTimeSecs;
+    }
+
+    /**
+     * Write checkpoints into a binary index. Of several checkpoints with the same block time only the last one is
+     * kept.
+     */
+    public static void write(final Iterable<StoredBlock> checkpoints, final OutputStream out) throws IOException {
+        final Map<Long, byte[]> records = new TreeMap<>();
+        for (final StoredBlock checkpoint : checkpoints) {
+            final ByteBuffer compact = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+            checkpoint.serializeCompact(compact);
+            records.put(checkpoint.getHeader().getTimeSeconds(), compact.array());
+        }
+        write(records, out);
+    }
+
+    private static void write(final Map<Long, byte[]> records, final OutputStream out) throws IOException {
+        final ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + records.size() * RECORD_SIZE);
+        index.putInt(MAGIC).putInt(VERSION).putInt(records.size());
+        for (final Map.Entry<Long, byte[]> record : records.entrySet())
+            index.putInt((int) (long) record.getKey()).put(record.getValue());
+        out.write(index.array());
+    }
+}
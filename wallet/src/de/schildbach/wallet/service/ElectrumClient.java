@@ -0,0 +1,599 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonWriter;
+
+import androidx.annotation.Nullable;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Talks JSON-RPC to Electrum servers over a small pool of long-lived connections.
+ *
+ * <p>
+ * Requests are pipelined: they're written as they come, and responses are matched to them by {@code id}, in whatever
+ * order they arrive. Several requests can also go out as one batch array. A request is sent on the connection with the
+ * fewest requests in flight; another connection, to another server, is only opened if all are busy. Servers are
+ * picked by their health, which is made of how fast they accept connections and how often requests to them fail.
+ * Connections that aren't used for {@link #IDLE_TIMEOUT_MS} are closed, unless they carry subscriptions.
+ *
+ * <p>
+ * Results are the plain values Moshi reads JSON into: maps, lists, strings, doubles, booleans and null. Futures of
+ * failed requests fail with {@link IOException}, or {@link RpcException} if the server answered with an error.
+ * Connecting blocks the calling thread, so this must not be used from the main thread.
+ */
+public final class ElectrumClient {
+    public interface SubscriptionListener {
+        /**
+         * Called on a background thread whenever the status of a subscribed script hash changes.
+         *
+         * @param status
+         *            status hash of the script hash history, or null if it has no history
+         */
+        void onStatusChanged(String scripthash, @Nullable String status);
+    }
+
+    public static final class Request {
+        public final String method;
+        public final Object[] params;
+
+        public Request(final String method, final Object... params) {
+            this.method = method;
+            this.params = params;
+        }
+    }
+
+    public static final class RpcException extends IOException {
+        public RpcException(final String message) {
+            super(message);
+        }
+    }
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 2;
+    public static final long DEFAULT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+    /** Beyond this many requests in flight on each connection, another connection is opened if allowed. */
+    public static final int MAX_PIPELINED_REQUESTS = 32;
+    public static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String METHOD_SCRIPTHASH_SUBSCRIBE = "blockchain.scripthash.subscribe";
+    private static final int MAX_CONNECT_ATTEMPTS = 3;
+    /** Penalty added to the score of a server that fails every request, in terms of connect latency. */
+    private static final double ERROR_PENALTY_MS = 10000;
+    private static final double HEALTH_ALPHA = 0.2;
+
+    private final List<ElectrumServer> servers;
+    private final int maxConnections;
+    private final long timeoutMs;
+    private final Map<ElectrumServer, Health> health = new HashMap<>(); // guarded by this
+    private final List<Connection> connections = new LinkedList<>(); // guarded by this
+    private int numConnecting = 0; // guarded by this
+    private final Map<String, SubscriptionListener> subscriptions = new HashMap<>(); // guarded by this
+    private boolean closed = false; // guarded by this
+    private final AtomicInteger idCounter = new AtomicInteger();
+    // timeouts and closing idle connections
+    private final ScheduledExecutorService timer;
+    // notifications and resubscribing, in order
+    private final ScheduledExecutorService callbackExecutor;
+
+    private static final Logger log = LoggerFactory.getLogger(ElectrumClient.class);
+
+    public ElectrumClient(final List<ElectrumServer> servers) {
+        this(servers, DEFAULT_MAX_CONNECTIONS, DEFAULT_TIMEOUT_MS);
+    }
+
+    public ElectrumClient(final List<ElectrumServer> servers, final int maxConnections, final long timeoutMs) {
+        checkArgument(!servers.isEmpty(), "no servers");
+        checkArgument(maxConnections > 0);
+        this.servers = new ArrayList<>(servers);
+        Collections.shuffle(this.servers); // spread load among servers nobody knows anything about yet
+        this.maxConnections = maxConnections;
+        this.timeoutMs = timeoutMs;
+        for (final ElectrumServer server : this.servers)
+            health.put(server, new Health());
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("electrum-timer").setDaemon(true).build());
+        this.callbackExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("electrum-callback").setDaemon(true).build());
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeIdleConnections();
+            }
+        }, IDLE_TIMEOUT_MS / 2, IDLE_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    public ListenableFuture<Object> call(final String method, final Object... params) {
+        return batch(Collections.singletonList(new Request(method, params))).get(0);
+    }
+
+    /**
+     * Send requests as one JSON-RPC batch array.
+     *
+     * @return a future for each request, in the same order
+     */
+    public List<ListenableFuture<Object>> batch(final List<Request> requests) {
+        try {
+            return connection().send(requests);
+        } catch (final IOException x) {
+            final List<ListenableFuture<Object>> futures = new ArrayList<>(requests.size());
+            for (int i = 0; i < requests.size(); i++)
+                futures.add(Futures.<Object> immediateFailedFuture(x));
+            return futures;
+        }
+    }
+
+    /**
+     * Subscribe to changes of a script hash. The subscription is kept across reconnects until it's unsubscribed or
+     * the client is closed.
+     *
+     * @return the current status, see {@link SubscriptionListener#onStatusChanged(String, String)}
+     */
+    public ListenableFuture<Object> subscribe(final String scripthash, final SubscriptionListener listener) {
+        synchronized (this) {
+            subscriptions.put(scripthash, listener);
+        }
+        try {
+            final Connection connection = connection();
+            // keeps the connection from being closed as idle, and tells what to resubscribe if it's lost
+            connection.subscriptions.add(scripthash);
+            return connection.send(Collections.singletonList(new Request(METHOD_SCRIPTHASH_SUBSCRIBE, scripthash)))
+                    .get(0);
+        } catch (final IOException x) {
+            return Futures.immediateFailedFuture(x);
+        }
+    }
+
+    public synchronized void unsubscribe(final String scripthash) {
+        subscriptions.remove(scripthash);
+    }
+
+    public void close() {
+        final List<Connection> connections;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            connections = new ArrayList<>(this.connections);
+        }
+        for (final Connection connection : connections)
+            connection.close(new IOException("client closed"));
+        timer.shutdownNow();
+        callbackExecutor.shutdownNow();
+    }
+
+    /**
+     * @return health of each server, best first, for diagnostics
+     */
+    public synchronized String getHealth() {
+        final StringBuilder builder = new StringBuilder();
+        for (final ElectrumServer server : serversByHealth()) {
+            final Health health = this.health.get(server);
+            builder.append(server).append(": ").append(health);
+            for (final Connection connection : connections)
+                if (connection.server.equals(server))
+                    builder.append(", connected");
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    synchronized double score(final ElectrumServer server) {
+        return health.get(server).score();
+    }
+
+    synchronized int numConnections() {
+        return connections.size();
+    }
+
+    private Connection connection() throws IOException {
+        final List<ElectrumServer> candidates = new ArrayList<>(MAX_CONNECT_ATTEMPTS);
+        Connection least = null;
+        synchronized (this) {
+            if (closed)
+                throw new IOException("client closed");
+            for (final Connection connection : connections)
+                if (least == null || connection.pending.size() < least.pending.size())
+                    least = connection;
+            if (least != null && (least.pending.size() < MAX_PIPELINED_REQUESTS
+                    || connections.size() + numConnecting >= maxConnections)) {
+                least.lastUsedAt = System.currentTimeMillis();
+                return least;
+            }
+            if (least == null && numConnecting > 0 && connections.size() + numConnecting >= maxConnections) {
+                // somebody else is connecting, wait for them rather than exceed the pool
+                while (connections.isEmpty() && numConnecting > 0 && !closed)
+                    waitUninterruptibly();
+                if (!connections.isEmpty())
+                    return connections.get(0);
+                if (closed)
+                    throw new IOException("client closed");
+            }
+            for (final ElectrumServer server : serversByHealth()) {
+                if (candidates.size() >= MAX_CONNECT_ATTEMPTS)
+                    break;
+                boolean connected = false;
+                for (final Connection connection : connections)
+                    if (connection.server.equals(server))
+                        connected = true;
+                if (!connected)
+                    candidates.add(server);
+            }
+            numConnecting++;
+        }
+
+        IOException lastException = new IOException("no server to connect to");
+        try {
+            for (final ElectrumServer server : candidates) {
+                synchronized (this) {
+                    if (closed)
+                        throw new IOException("client closed");
+                }
+                final long start = System.currentTimeMillis();
+                final Socket socket;
+                final long latency;
+                final Connection connection;
+                try {
+                    socket = server.connect((int) timeoutMs);
+                    latency = System.currentTimeMillis() - start;
+                    connection = new Connection(server, socket);
+                } catch (final IOException x) {
+                    log.info("problem connecting to {}: {}", server, x.getMessage());
+                    synchronized (this) {
+                        health.get(server).record(false);
+                    }
+                    lastException = x;
+                    continue;
+                }
+                // outside of the above, as the client having been closed meanwhile is no fault of the server
+                synchronized (this) {
+                    health.get(server).connected(latency);
+                    if (closed) {
+                        try {
+                            socket.close();
+                        } catch (final IOException x) {
+                            // swallow
+                        }
+                        throw new IOException("client closed");
+                    }
+                    connections.add(connection);
+                }
+                connection.start();
+                log.info("connected to {}, took {} ms", server, latency);
+                return connection;
+            }
+        } finally {
+            synchronized (this) {
+                numConnecting--;
+                notifyAll();
+            }
+        }
+        if (least != null)
+            return least;
+        throw lastException;
+    }
+
+    private List<ElectrumServer> serversByHealth() {
+        final List<ElectrumServer> sorted = new ArrayList<>(servers);
+        Collections.sort(sorted, new Comparator<ElectrumServer>() {
+            @Override
+            public int compare(final ElectrumServer lhs, final ElectrumServer rhs) {
+                return Double.compare(health.get(lhs).score(), health.get(rhs).score());
+            }
+        });
+        return sorted;
+    }
+
+    private void waitUninterruptibly() {
+        try {
+            wait();
+        } catch (final InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void recordHealth(final ElectrumServer server, final boolean success) {
+        health.get(server).record(success);
+    }
+
+    private void closeIdleConnections() {
+        final long now = System.currentTimeMillis();
+        for (final Connection connection : connectionsSnapshot())
+            if (connection.pending.isEmpty() && connection.subscriptions.isEmpty()
+                    && now - connection.lastUsedAt > IDLE_TIMEOUT_MS)
+                connection.close(null);
+    }
+
+    private synchronized List<Connection> connectionsSnapshot() {
+        return new ArrayList<>(connections);
+    }
+
+    private void connectionClosed(final Connection connection) {
+        final List<String> resubscribe = new ArrayList<>();
+        synchronized (this) {
+            connections.remove(connection);
+            if (closed)
+                return;
+            for (final String scripthash : connection.subscriptions)
+                if (subscriptions.containsKey(scripthash))
+                    resubscribe.add(scripthash);
+        }
+        if (!resubscribe.isEmpty()) {
+            log.info("resubscribing {} script hashes", resubscribe.size());
+            callbackExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    for (final String scripthash : resubscribe) {
+                        final SubscriptionListener listener;
+                        synchronized (ElectrumClient.this) {
+                            listener = subscriptions.get(scripthash);
+                        }
+                        if (listener != null)
+                            subscribe(scripthash, listener);
+                    }
+                }
+            }, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    private void notification(final String method, final List<?> params) {
+        if (!METHOD_SCRIPTHASH_SUBSCRIBE.equals(method) || params.size() < 2)
+            return;
+        final String scripthash = (String) params.get(0);
+        final String status = (String) params.get(1);
+        final SubscriptionListener listener;
+        synchronized (this) {
+            listener = subscriptions.get(scripthash);
+        }
+        if (listener != null) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onStatusChanged(scripthash, status);
+                }
+            });
+        }
+    }
+
+    private static void writeValue(final JsonWriter writer, final Object value) throws IOException {
+        if (value == null)
+            writer.nullValue();
+        else if (value instanceof String)
+            writer.value((String) value);
+        else if (value instanceof Number)
+            writer.value((Number) value);
+        else if (value instanceof Boolean)
+            writer.value((Boolean) value);
+        else
+            throw new IllegalArgumentException("cannot write: " + value.getClass());
+    }
+
+    private final class Connection implements Runnable {
+        private final ElectrumServer server;
+        private final Socket socket;
+        private final BufferedSink sink; // guarded by itself
+        private final BufferedSource source;
+        private final Map<Integer, SettableFuture<Object>> pending = new ConcurrentHashMap<>();
+        private final List<String> subscriptions = Collections.synchronizedList(new ArrayList<String>());
+        private volatile long lastUsedAt = System.currentTimeMillis();
+        private final AtomicInteger closed = new AtomicInteger();
+
+        public Connection(final ElectrumServer server, final Socket socket) throws IOException {
+            this.server = server;
+            this.socket = socket;
+            this.sink = Okio.buffer(Okio.sink(socket));
+            this.source = Okio.buffer(Okio.source(socket));
+        }
+
+        public void start() {
+            final Thread thread = new Thread(this, "electrum-" + server);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private ListenableFuture<Object> expect(final int id) {
+            final SettableFuture<Object> future = SettableFuture.create();
+            pending.put(id, future);
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (pending.remove(id) != null) {
+                        future.setException(new IOException("timeout after " + timeoutMs + " ms from " + server));
+                        // the connection might be dead without us noticing
+                        close(new IOException("request timed out"));
+                    }
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+            return future;
+        }
+
+        public List<ListenableFuture<Object>> send(final List<Request> requests) {
+            final Buffer json = new Buffer();
+            final List<ListenableFuture<Object>> futures = new ArrayList<>(requests.size());
+            try {
+                final JsonWriter writer = JsonWriter.of(json);
+                if (requests.size() > 1)
+                    writer.beginArray();
+                for (final Request request : requests) {
+                    final int id = idCounter.incrementAndGet();
+                    futures.add(expect(id));
+                    writer.beginObject();
+                    writer.name("jsonrpc").value("2.0");
+                    writer.name("id").value(id);
+                    writer.name("method").value(request.method);
+                    writer.name("params").beginArray();
+                    for (final Object param : request.params)
+                        writeValue(writer, param);
+                    writer.endArray();
+                    writer.endObject();
+                }
+                if (requests.size() > 1)
+                    writer.endArray();
+                writer.flush();
+                synchronized (sink) {
+                    sink.write(json, json.size());
+                    sink.writeByte('\n');
+                    sink.flush();
+                }
+                lastUsedAt = System.currentTimeMillis();
+            } catch (final IOException x) {
+                close(x);
+            }
+            return futures;
+        }
+
+        @Override
+        public void run() {
+            IOException cause = null;
+            try {
+                while (true) {
+                    final String line = source.readUtf8Line();
+                    if (line == null)
+                        throw new IOException("connection closed by " + server);
+                    if (line.isEmpty())
+                        continue;
+                    final Object message;
+                    try {
+                        message = JsonReader.of(new Buffer().writeUtf8(line)).readJsonValue();
+                    } catch (final JsonDataException x) {
+                        throw new IOException("cannot parse message from " + server, x);
+                    }
+                    if (message instanceof List) {
+                        for (final Object item : (List<?>) message)
+                            dispatch(item);
+                    } else {
+                        dispatch(message);
+                    }
+                }
+            } catch (final IOException x) {
+                cause = x;
+            } catch (final RuntimeException x) {
+                cause = new IOException("cannot handle message from " + server, x);
+            } finally {
+                close(cause);
+            }
+        }
+
+        private void dispatch(final Object message) throws IOException {
+            if (!(message instanceof Map))
+                throw new IOException("unexpected message from " + server + ": " + message);
+            final Map<?, ?> map = (Map<?, ?>) message;
+            final Object id = map.get("id");
+            if (id instanceof Number) {
+                final SettableFuture<Object> future = pending.remove(((Number) id).intValue());
+                if (future == null)
+                    return; // timed out already
+                lastUsedAt = System.currentTimeMillis();
+                final Object error = map.get("error");
+                if (error != null) {
+                    final Object errorMessage = error instanceof Map ? ((Map<?, ?>) error).get("message") : error;
+                    future.setException(new RpcException(String.valueOf(errorMessage)));
+                } else {
+                    recordHealth(server, true);
+                    future.set(map.get("result"));
+                }
+            } else if (map.get("method") instanceof String && map.get("params") instanceof List) {
+                notification((String) map.get("method"), (List<?>) map.get("params"));
+            }
+        }
+
+        public void close(@Nullable final IOException cause) {
+            if (closed.getAndIncrement() > 0)
+                return;
+            if (cause != null) {
+                log.info("closing connection to {}: {}", server, cause.getMessage());
+                recordHealth(server, false);
+            } else {
+                log.info("closing idle connection to {}", server);
+            }
+            try {
+                socket.close();
+            } catch (final IOException x) {
+                // swallow
+            }
+            final IOException failure = cause != null ? cause : new IOException("connection closed");
+            for (final Iterator<SettableFuture<Object>> i = pending.values().iterator(); i.hasNext();) {
+                i.next().setException(failure);
+                i.remove();
+            }
+            connectionClosed(this);
+        }
+    }
+
+    private static final class Health {
+        private double connectLatencyMs = -1;
+        private double errorRate = 0;
+        private int numConnects = 0, numErrors = 0;
+
+        public void connected(final long latencyMs) {
+            connectLatencyMs = connectLatencyMs < 0 ? latencyMs
+                    : connectLatencyMs * (1 - HEALTH_ALPHA) + latencyMs * HEALTH_ALPHA;
+            numConnects++;
+            record(true);
+        }
+
+        public void record(final boolean success) {
+            errorRate = errorRate * (1 - HEALTH_ALPHA) + (success ? 0 : HEALTH_ALPHA);
+            if (!success)
+                numErrors++;
+        }
+
+        /**
+         * @return lower is better, servers that were never tried come first
+         */
+        public double score() {
+            return Math.max(connectLatencyMs, 0) + errorRate * ERROR_PENALTY_MS;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "connect %.0f ms, error rate %.2f, %d connects, %d errors",
+                    connectLatencyMs, errorRate, numConnects, numErrors);
+        }
+    }
+}
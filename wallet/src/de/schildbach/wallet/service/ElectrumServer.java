@@ -0,0 +1,180 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+
+import de.schildbach.wallet.Constants;
+
+/**
+ * An Electrum server as listed in {@link Constants.Files#ELECTRUM_SERVERS_FILENAME}.
+ */
+public final class ElectrumServer {
+    public enum Type {
+        TCP, TLS
+    }
+
+    public final InetSocketAddress socketAddress;
+    public final Type type;
+    public final String certificateFingerprint;
+
+    public ElectrumServer(final String type, final String host, final String port,
+            final String certificateFingerprint) {
+        this.type = Type.valueOf(type.toUpperCase());
+        if (port != null)
+            this.socketAddress = InetSocketAddress.createUnresolved(host, Integer.parseInt(port));
+        else if ("tcp".equalsIgnoreCase(type))
+            this.socketAddress = InetSocketAddress.createUnresolved(host, Constants.ELECTRUM_SERVER_DEFAULT_PORT_TCP);
+        else if ("tls".equalsIgnoreCase(type))
+            this.socketAddress = InetSocketAddress.createUnresolved(host, Constants.ELECTRUM_SERVER_DEFAULT_PORT_TLS);
+        else
+            throw new IllegalStateException("Cannot handle: " + type);
+        this.certificateFingerprint = certificateFingerprint;
+    }
+
+    /**
+     * Connect to the server. For TLS, the certificate is checked against the fingerprint, or if there is none, it must
+     * be signed by a CA and match the host name.
+     */
+    public Socket connect(final int timeoutMs) throws IOException {
+        final InetSocketAddress address = new InetSocketAddress(socketAddress.getHostString(), socketAddress.getPort());
+        final Socket socket = new Socket();
+        try {
+            socket.connect(address, timeoutMs);
+            if (type == Type.TCP)
+                return socket;
+            final SSLSocket sslSocket = (SSLSocket) sslTrustAllCertificates().createSocket(socket,
+                    socketAddress.getHostString(), socketAddress.getPort(), true);
+            socket.setSoTimeout(timeoutMs);
+            sslSocket.startHandshake();
+            socket.setSoTimeout(0);
+            final SSLSession sslSession = sslSocket.getSession();
+            final Certificate certificate = sslSession.getPeerCertificates()[0];
+            final String certificateFingerprint = sslCertificateFingerprint(certificate);
+            if (this.certificateFingerprint == null) {
+                // signed by CA
+                if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(socketAddress.getHostString(), sslSession))
+                    throw new SSLHandshakeException("Expected " + socketAddress.getHostString() + ", got "
+                            + sslSession.getPeerPrincipal());
+            } else {
+                // self-signed
+                if (!certificateFingerprint.equals(this.certificateFingerprint))
+                    throw new SSLHandshakeException("Expected " + this.certificateFingerprint + ", got "
+                            + certificateFingerprint);
+            }
+            return sslSocket;
+        } catch (final IOException | RuntimeException x) {
+            socket.close();
+            throw x;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase() + ":" + socketAddress.getHostString() + ":" + socketAddress.getPort();
+    }
+
+    public static List<ElectrumServer> load(final InputStream is) throws IOException {
+        final Splitter splitter = Splitter.on(':').trimResults();
+        final List<ElectrumServer> servers = new LinkedList<>();
+        String line = null;
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            while (true) {
+                line = reader.readLine();
+                if (line == null)
+                    break;
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#')
+                    continue;
+
+                final Iterator<String> i = splitter.split(line).iterator();
+                final String type = i.next();
+                final String host = i.next();
+                final String port = i.hasNext() ? Strings.emptyToNull(i.next()) : null;
+                final String fingerprint = i.hasNext() ? Strings.emptyToNull(i.next()) : null;
+                servers.add(new ElectrumServer(type, host, port, fingerprint));
+            }
+        } catch (final Exception x) {
+            throw new RuntimeException("Error while parsing: '" + line + "'", x);
+        } finally {
+            is.close();
+        }
+        return servers;
+    }
+
+    private static SSLSocketFactory sslTrustAllCertificates() {
+        try {
+            final SSLContext context = SSLContext.getInstance("SSL");
+            context.init(null, new TrustManager[] { TRUST_ALL_CERTIFICATES }, null);
+            final SSLSocketFactory socketFactory = context.getSocketFactory();
+            return socketFactory;
+        } catch (final Exception x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    private static final X509TrustManager TRUST_ALL_CERTIFICATES = new X509TrustManager() {
+        @Override
+        public void checkClientTrusted(final X509Certificate[] chain, final String authType)
+                throws CertificateException {
+        }
+
+        @Override
+        public void checkServerTrusted(final X509Certificate[] chain, final String authType)
+                throws CertificateException {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    };
+
+    private static String sslCertificateFingerprint(final Certificate certificate) {
+        try {
+            return Hashing.sha256().newHasher().putBytes(certificate.getEncoded()).hash().toString();
+        } catch (final Exception x) {
+            throw new RuntimeException(x);
+        }
+    }
+}
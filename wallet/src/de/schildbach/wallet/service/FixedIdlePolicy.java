@@ -0,0 +1,43 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+/**
+ * Idle after fixed timeouts of block and transaction activity.
+ */
+public class FixedIdlePolicy implements IdlePolicy {
+    public static final int MIN_COLLECT_HISTORY = 2;
+    public static final int IDLE_BLOCK_TIMEOUT_MIN = 2;
+    public static final int IDLE_TRANSACTION_TIMEOUT_MIN = 9;
+
+    @Override
+    public Decision decide(final ActivityTracker activity) {
+        return decide(activity, IDLE_TRANSACTION_TIMEOUT_MIN, "fixed");
+    }
+
+    protected static Decision decide(final ActivityTracker activity, final int transactionTimeoutMin,
+            final String basis) {
+        final int sinceBlocks = activity.minutesSinceBlocks();
+        final int sinceTransactions = activity.minutesSinceTransactions(0);
+        final boolean idle = activity.size() >= MIN_COLLECT_HISTORY
+                && (sinceBlocks < 0 || sinceBlocks > IDLE_BLOCK_TIMEOUT_MIN)
+                && (sinceTransactions < 0 || sinceTransactions > transactionTimeoutMin);
+        return new Decision(idle, IDLE_BLOCK_TIMEOUT_MIN, transactionTimeoutMin, sinceBlocks, sinceTransactions,
+                basis);
+    }
+}
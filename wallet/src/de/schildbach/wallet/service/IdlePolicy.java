@@ -0,0 +1,62 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.util.Locale;
+
+/**
+ * Decides, once a minute, whether {@link BlockchainService} is idling and can stop, based on recent block and
+ * transaction activity.
+ */
+public interface IdlePolicy {
+    /**
+     * Called after each minute has been recorded.
+     */
+    Decision decide(ActivityTracker activity);
+
+    final class Decision {
+        public final boolean idle;
+        /** minutes without blocks and without transactions it takes to be idle */
+        public final int blockTimeoutMin, transactionTimeoutMin;
+        /** inputs, -1 meaning none as far as recorded */
+        public final int minutesSinceBlocks, minutesSinceTransactions;
+        /** what the timeouts are based on */
+        public final String basis;
+
+        public Decision(final boolean idle, final int blockTimeoutMin, final int transactionTimeoutMin,
+                final int minutesSinceBlocks, final int minutesSinceTransactions, final String basis) {
+            this.idle = idle;
+            this.blockTimeoutMin = blockTimeoutMin;
+            this.transactionTimeoutMin = transactionTimeoutMin;
+            this.minutesSinceBlocks = minutesSinceBlocks;
+            this.minutesSinceTransactions = minutesSinceTransactions;
+            this.basis = basis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: blocks %s/%d min, transactions %s/%d min (%s)",
+                    idle ? "idle" : "active", since(minutesSinceBlocks), blockTimeoutMin,
+                    since(minutesSinceTransactions), transactionTimeoutMin, basis);
+        }
+
+        private static String since(final int minutes) {
+            return minutes >= 0 ? Integer.toString(minutes) : "-";
+        }
+    }
+}
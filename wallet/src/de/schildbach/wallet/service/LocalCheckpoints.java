@@ -0,0 +1,161 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Checkpoints taken from our own block chain, so that a store that was reset or restored doesn't need to start from
+ * the newest bundled checkpoint, which can be months old. Every {@link #INTERVAL} blocks, once buried by
+ * {@link #CONFIRMATIONS} blocks, the block is added as a checkpoint. They're kept in the binary format of
+ * {@link CheckpointIndex} and used the same way, on top of the bundled ones.
+ *
+ * <p>
+ * Not thread-safe, it's meant to be used from the main thread.
+ */
+public final class LocalCheckpoints {
+    public static final int INTERVAL = 2016;
+    public static final int CONFIRMATIONS = 100;
+    private static final int MAX_CHECKPOINTS = 64;
+
+    private final NetworkParameters params;
+    private final File file;
+    private final List<StoredBlock> checkpoints = new ArrayList<>(); // ordered by height
+    private CheckpointIndex index;
+
+    private static final Logger log = LoggerFactory.getLogger(LocalCheckpoints.class);
+
+    /**
+     * Load the checkpoints from a file. If it doesn't exist or cannot be read, start with none.
+     */
+    public static LocalCheckpoints load(final NetworkParameters params, final File file) {
+        final LocalCheckpoints localCheckpoints = new LocalCheckpoints(params, file);
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            final CheckpointIndex index = new CheckpointIndex(params, buffer);
+            for (int i = 0; i < index.size(); i++)
+                localCheckpoints.checkpoints.add(index.get(i));
+            localCheckpoints.index = index;
+            log.info("{} local checkpoints loaded from '{}'", index.size(), file);
+        } catch (final NoSuchFileException x) {
+            // none taken yet
+        } catch (final IOException | RuntimeException x) {
+            log.warn("problem reading local checkpoints from '" + file + "', starting over", x);
+            localCheckpoints.checkpoints.clear();
+        }
+        return localCheckpoints;
+    }
+
+    private LocalCheckpoints(final NetworkParameters params, final File file) {
+        this.params = params;
+        this.file = file;
+    }
+
+    public int size() {
+        return checkpoints.size();
+    }
+
+    @Nullable
+    public StoredBlock newest() {
+        return checkpoints.isEmpty() ? null : checkpoints.get(checkpoints.size() - 1);
+    }
+
+    /**
+     * Take a checkpoint if one is due, walking back from the chain head through the store.
+     *
+     * @return true if a checkpoint was taken and needs to be saved
+     */
+    public boolean update(final BlockStore store) throws BlockStoreException {
+        StoredBlock block = store.getChainHead();
+        final int height = ((block.getHeight() - CONFIRMATIONS) / INTERVAL) * INTERVAL;
+        final StoredBlock newest = newest();
+        if (height <= 0 || (newest != null && height <= newest.getHeight()))
+            return false;
+        while (block.getHeight() > height) {
+            block = block.getPrev(store);
+            if (block == null)
+                return false; // store doesn't reach back that far
+        }
+        checkpoints.add(block);
+        while (checkpoints.size() > MAX_CHECKPOINTS)
+            checkpoints.remove(0);
+        index = null;
+        log.info("took local checkpoint at height {}: {}", block.getHeight(), block.getHeader().getHash());
+        return true;
+    }
+
+    public void save() throws IOException {
+        final File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        try (final OutputStream os = new FileOutputStream(tempFile)) {
+            CheckpointIndex.write(checkpoints, os);
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("cannot rename " + tempFile + " to " + file);
+    }
+
+    /**
+     * Advance a store that was just initialized from the bundled checkpoints, if there is a newer local checkpoint
+     * suitable for the given key creation time.
+     *
+     * @return the checkpoint the store was advanced to, or null if it was left as is
+     */
+    @Nullable
+    public StoredBlock advance(final BlockStore store, final long timeSecs) throws BlockStoreException {
+        if (checkpoints.isEmpty())
+            return null;
+        return index().advance(store, timeSecs);
+    }
+
+    private CheckpointIndex index() {
+        if (index == null) {
+            try {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                CheckpointIndex.write(checkpoints, bytes);
+                index = new CheckpointIndex(params, ByteBuffer.wrap(bytes.toByteArray()));
+            } catch (final IOException x) {
+                throw new RuntimeException(x); // can't happen in memory
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        final StoredBlock newest = newest();
+        return getClass().getSimpleName() + "[" + checkpoints.size() + " checkpoints"
+                + (newest != null ? ", newest at " + newest.getHeight() : "") + "]";
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.SPVBlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Block store that keeps the most recent block headers in a ring of fixed-size slots in a memory-mapped file. Unlike
+ * {@link SPVBlockStore}, the number of slots is configurable, and lookups by hash don't scan: an open-addressing hash
+ * table from block hash to slot is kept in the same file.
+ *
+ * <p>
+ * Layout: a {@link #HEADER_SIZE} byte header, followed by the slots and then the index. The header consists of magic
+ * {@code "GLRB"}, version, number of slots, number of index entries, the next slot to write, a flag telling if the
+ * store is open, the hash of the chain head and a CRC32 of all of these except the flag. Each slot consists of the
+ * block hash, the compact serialization of the {@link StoredBlock} and a CRC32 of both. The index is an array of slot
+ * numbers plus one, using linear probing keyed by {@link Sha256Hash#hashCode()}, 0 meaning empty. It's at most half
+ * full. All integers are big-endian.
+ *
+ * <p>
+ * When opening, the header and the chain head are checked, which doesn't depend on the number of slots. Only if the
+ * store wasn't closed properly, all slots are checked and the index is rebuilt from them.
+ */
+public final class MappedBlockStore implements BlockStore {
+    public static final int MAGIC = 0x474c5242; // "GLRB"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int SLOT_SIZE = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE + 4;
+    /** Keeps the mapped file well below 2 GB, the most a single mapping can hold. */
+    public static final int MAX_CAPACITY = 1 << 23;
+
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_INDEX_SIZE = 12;
+    private static final int OFFSET_CURSOR = 16;
+    private static final int OFFSET_OPEN = 20;
+    private static final int OFFSET_CHAIN_HEAD = 24;
+    private static final int OFFSET_HEADER_CRC = 56;
+
+    private final NetworkParameters params;
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer; // guarded by this
+    private final int capacity;
+    private final int indexMask;
+    private final long indexOffset;
+    private int cursor; // guarded by this
+    private StoredBlock chainHead; // guarded by this
+    private boolean closed = false; // guarded by this
+
+    private static final Logger log = LoggerFactory.getLogger(MappedBlockStore.class);
+
+    /**
+     * Open the store in the given file, or create it if it doesn't exist.
+     *
+     * @param capacity
+     *            number of block headers to keep, only used when creating the store
+     */
+    public MappedBlockStore(final NetworkParameters params, final File file, final int capacity)
+            throws BlockStoreException {
+        checkArgument(capacity > 0 && capacity <= MAX_CAPACITY, "capacity out of range: %s", capacity);
+        this.params = params;
+        this.file = file;
+        final boolean exists = file.exists();
+        try {
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            final FileChannel channel = randomAccessFile.getChannel();
+            if (exists) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                if (header.getInt(0) != MAGIC)
+                    throw new BlockStoreException("not a mapped block store: " + file);
+                if (header.getInt(4) != VERSION)
+                    throw new BlockStoreException("unsupported mapped block store version: " + header.getInt(4));
+                this.capacity = header.getInt(OFFSET_CAPACITY);
+                if (this.capacity <= 0 || this.capacity > MAX_CAPACITY)
+                    throw new BlockStoreException("mapped block store has bad capacity: " + this.capacity);
+            } else {
+                this.capacity = capacity;
+            }
+            final int indexSize = indexSize(this.capacity);
+            this.indexMask = indexSize - 1;
+            this.indexOffset = HEADER_SIZE + (long) this.capacity * SLOT_SIZE;
+            final long fileSize = indexOffset + (long) indexSize * 4;
+            if (exists && channel.size() != fileSize)
+                throw new BlockStoreException("mapped block store has bad size: " + channel.size() + ", expected "
+                        + fileSize);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        } catch (final IOException x) {
+            closeQuietly();
+            throw new BlockStoreException(x);
+        }
+
+        synchronized (this) {
+            try {
+                if (!exists)
+                    create();
+                else
+                    open();
+            } catch (final BlockStoreException | RuntimeException x) {
+                closeQuietly();
+                throw x;
+            }
+        }
+    }
+
+    private void create() throws BlockStoreException {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(OFFSET_CAPACITY, capacity);
+        buffer.putInt(OFFSET_INDEX_SIZE, indexMask + 1);
+        buffer.putInt(OFFSET_OPEN, 1);
+        cursor = 0;
+        final Block genesis = params.getGenesisBlock().cloneAsHeader();
+        final StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+        put(storedGenesis);
+        setChainHead(storedGenesis);
+    }
+
+    private void open() throws BlockStoreException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        if (buffer.getInt(OFFSET_INDEX_SIZE) != indexMask + 1 || buffer.getInt(OFFSET_HEADER_CRC) != headerCrc())
+            throw new BlockStoreException("mapped block store header is corrupt: " + file);
+        cursor = buffer.getInt(OFFSET_CURSOR);
+        if (cursor < 0 || cursor >= capacity)
+            throw new BlockStoreException("mapped block store cursor out of range: " + cursor);
+        final boolean wasOpen = buffer.getInt(OFFSET_OPEN) != 0;
+        if (wasOpen) {
+            log.info("{} wasn't closed properly, rebuilding index", file);
+            rebuildIndex();
+        }
+        buffer.putInt(OFFSET_OPEN, 1);
+
+        final Sha256Hash chainHeadHash = readHash(OFFSET_CHAIN_HEAD);
+        final int slot = find(chainHeadHash);
+        if (slot < 0)
+            throw new BlockStoreException("chain head missing from mapped block store: " + chainHeadHash);
+        chainHead = readSlot(slot);
+        if (chainHead == null || !chainHead.getHeader().getHash().equals(chainHeadHash))
+            throw new BlockStoreException("chain head in mapped block store is corrupt: " + chainHeadHash);
+        log.info("opened {} with {} slots{}, took {}", file, capacity, wasOpen ? ", index rebuilt" : "", watch);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized void put(final StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        final Sha256Hash hash = block.getHeader().getHash();
+        int slot = find(hash);
+        if (slot < 0) {
+            slot = cursor;
+            if (!isSlotEmpty(slot))
+                removeFromIndex(slot);
+            cursor = (cursor + 1) % capacity;
+            writeSlot(slot, hash, block);
+            insertIntoIndex(hash, slot);
+            writeHeader();
+        } else {
+            writeSlot(slot, hash, block);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        final int slot = find(hash);
+        return slot >= 0 ? readSlot(slot) : null;
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(final StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        this.chainHead = chainHead;
+        final ByteBuffer header = buffer.duplicate();
+        header.position(OFFSET_CHAIN_HEAD);
+        header.put(chainHead.getHeader().getHash().getBytes());
+        writeHeader();
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (closed)
+            return;
+        buffer.putInt(OFFSET_OPEN, 0);
+        buffer.force();
+        closed = true;
+        try {
+            randomAccessFile.close();
+        } catch (final IOException x) {
+            throw new BlockStoreException(x);
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("mapped block store is closed: " + file);
+    }
+
+    private void closeQuietly() {
+        try {
+            if (randomAccessFile != null)
+                randomAccessFile.close();
+        } catch (final IOException x) {
+            // swallow
+        }
+    }
+
+    private void writeHeader() {
+        buffer.putInt(OFFSET_CURSOR, cursor);
+        buffer.putInt(OFFSET_HEADER_CRC, headerCrc());
+    }
+
+    private int headerCrc() {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer header = buffer.duplicate();
+        header.position(0).limit(OFFSET_OPEN);
+        crc.update(header);
+        header.limit(OFFSET_HEADER_CRC).position(OFFSET_CHAIN_HEAD);
+        crc.update(header);
+        return (int) crc.getValue();
+    }
+
+    // slots
+
+    private long slotOffset(final int slot) {
+        return HEADER_SIZE + (long) slot * SLOT_SIZE;
+    }
+
+    private boolean isSlotEmpty(final int slot) {
+        final int offset = (int) slotOffset(slot);
+        for (int i = 0; i < 32; i += 8)
+            if (buffer.getLong(offset + i) != 0)
+                return false;
+        return true;
+    }
+
+    private void writeSlot(final int slot, final Sha256Hash hash, final StoredBlock block) {
+        final ByteBuffer record = ByteBuffer.allocate(SLOT_SIZE);
+        record.put(hash.getBytes());
+        block.serializeCompact(record);
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, SLOT_SIZE - 4);
+        record.putInt((int) crc.getValue());
+        final ByteBuffer target = buffer.duplicate();
+        target.position((int) slotOffset(slot));
+        target.put(record.array());
+    }
+
+    /**
+     * @return the block in the slot, or null if the slot is damaged
+     */
+    private StoredBlock readSlot(final int slot) {
+        final byte[] record = new byte[SLOT_SIZE];
+        final ByteBuffer source = buffer.duplicate();
+        source.position((int) slotOffset(slot));
+        source.get(record);
+        final CRC32 crc = new CRC32();
+        crc.update(record, 0, SLOT_SIZE - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(record, SLOT_SIZE - 4, 4).getInt())
+            return null;
+        return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(record, 32, StoredBlock.COMPACT_SERIALIZED_SIZE));
+    }
+
+    private Sha256Hash readHash(final long offset) {
+        final byte[] hash = new byte[32];
+        final ByteBuffer source = buffer.duplicate();
+        source.position((int) offset);
+        source.get(hash);
+        return Sha256Hash.wrap(hash);
+    }
+
+    private boolean slotHashEquals(final int slot, final Sha256Hash hash) {
+        final byte[] bytes = hash.getBytes();
+        final int offset = (int) slotOffset(slot);
+        for (int i = 0; i < 32; i++)
+            if (buffer.get(offset + i) != bytes[i])
+                return false;
+        return true;
+    }
+
+    // index
+
+    private static int indexSize(final int capacity) {
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
+    private int home(final int slot) {
+        // same as Sha256Hash.hashCode(), the last four bytes of the hash
+        return buffer.getInt((int) slotOffset(slot) + 28) & indexMask;
+    }
+
+    private int indexEntry(final int i) {
+        return buffer.getInt((int) (indexOffset + i * 4L));
+    }
+
+    private void setIndexEntry(final int i, final int value) {
+        buffer.putInt((int) (indexOffset + i * 4L), value);
+    }
+
+    private int find(final Sha256Hash hash) {
+        for (int i = hash.hashCode() & indexMask;; i = (i + 1) & indexMask) {
+            final int entry = indexEntry(i);
+            if (entry == 0)
+                return -1;
+            if (slotHashEquals(entry - 1, hash))
+                return entry - 1;
+        }
+    }
+
+    private void insertIntoIndex(final Sha256Hash hash, final int slot) {
+        int i = hash.hashCode() & indexMask;
+        while (indexEntry(i) != 0)
+            i = (i + 1) & indexMask;
+        setIndexEntry(i, slot + 1);
+    }
+
+    private void removeFromIndex(final int slot) {
+        int i = home(slot);
+        while (indexEntry(i) != slot + 1) {
+            if (indexEntry(i) == 0)
+                return; // not indexed
+            i = (i + 1) & indexMask;
+        }
+        // shift back following entries that would become unreachable, so that no tombstones are needed
+        for (int j = (i + 1) & indexMask;; j = (j + 1) & indexMask) {
+            final int entry = indexEntry(j);
+            if (entry == 0)
+                break;
+            final int home = home(entry - 1);
+            final boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                setIndexEntry(i, entry);
+                i = j;
+            }
+        }
+        setIndexEntry(i, 0);
+    }
+
+    private void rebuildIndex() {
+        for (int i = 0; i <= indexMask; i++)
+            setIndexEntry(i, 0);
+        int numDamaged = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (isSlotEmpty(slot))
+                continue;
+            final StoredBlock block = readSlot(slot);
+            if (block != null && slotHashEquals(slot, block.getHeader().getHash())) {
+                insertIntoIndex(block.getHeader().getHash(), slot);
+            } else {
+                final ByteBuffer target = buffer.duplicate();
+                target.position((int) slotOffset(slot));
+                target.put(new byte[SLOT_SIZE]);
+                numDamaged++;
+            }
+        }
+        if (numDamaged > 0)
+            log.warn("{} damaged slots dropped from {}", numDamaged, file);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + file + ", " + capacity + " slots]";
+    }
+
+    /**
+     * Creates mapped block stores with the given number of slots. A file in the format of {@link SPVBlockStore} is
+     * migrated, keeping its most recent headers.
+     */
+    public static final class Factory implements BlockStoreFactory {
+        private final int capacity;
+
+        public Factory(final int capacity) {
+            checkArgument(capacity > 0 && capacity <= MAX_CAPACITY, "capacity out of range: %s", capacity);
+            this.capacity = capacity;
+        }
+
+        @Override
+        public BlockStore create(final NetworkParameters params, final File file) throws BlockStoreException {
+            if (file.exists() && !hasMagic(file)) {
+                final File oldFile = new File(file.getPath() + ".old");
+                if (!file.renameTo(oldFile))
+                    throw new BlockStoreException("cannot rename " + file + " to " + oldFile);
+                try {
+                    final MappedBlockStore store = new MappedBlockStore(params, file, capacity);
+                    migrate(new SPVBlockStore(params, oldFile), store);
+                    return store;
+                } finally {
+                    oldFile.delete();
+                }
+            }
+            return new MappedBlockStore(params, file, capacity);
+        }
+
+        private void migrate(final BlockStore from, final MappedBlockStore to) throws BlockStoreException {
+            final Stopwatch watch = Stopwatch.createStarted();
+            try {
+                final List<StoredBlock> blocks = new ArrayList<>();
+                for (StoredBlock block = from.getChainHead(); block != null && blocks.size() < capacity; block = block
+                        .getPrev(from))
+                    blocks.add(block);
+                for (int i = blocks.size() - 1; i >= 0; i--)
+                    to.put(blocks.get(i));
+                if (!blocks.isEmpty())
+                    to.setChainHead(blocks.get(0));
+                log.info("migrated {} headers from {}, took {}", blocks.size(), from, watch);
+            } finally {
+                from.close();
+            }
+        }
+
+        private static boolean hasMagic(final File file) throws BlockStoreException {
+            try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                return randomAccessFile.length() >= 4 && randomAccessFile.readInt() == MAGIC;
+            } catch (final IOException x) {
+                throw new BlockStoreException(x);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return MappedBlockStore.class.getSimpleName() + "[" + capacity + " slots]";
+        }
+    }
+}
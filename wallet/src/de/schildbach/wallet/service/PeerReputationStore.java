@@ -0,0 +1,344 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Ticker;
+import com.google.common.net.InetAddresses;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Remembers how well peers served us in earlier runs of the service, so that the next run can connect to the best of
+ * them right away instead of waiting for peer discovery.
+ *
+ * <p>
+ * Per peer address, it keeps the time of the last successful connect, the handshake latency, the rate blocks were
+ * served at and why the last connection ended. The store is a small text file, one peer per line.
+ */
+public final class PeerReputationStore {
+    public enum DisconnectReason {
+        /** the connection was never established */
+        CONNECT_FAILED,
+        /** the connection was lost after it was established */
+        LOST,
+        /** we closed it, because the service stopped */
+        SHUTDOWN,
+        /** we closed it, to download from a faster peer */
+        SWITCHED
+    }
+
+    private final File file;
+    private final Ticker ticker;
+    private final Map<InetSocketAddress, Entry> entries = new HashMap<>(); // guarded by this
+
+    private static final int MAX_ENTRIES = 200;
+    private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(14);
+    private static final int MAX_CONSECUTIVE_FAILURES = 4;
+    // weight of the newest measurement in the moving averages
+    private static final double AVERAGE_WEIGHT = 0.3;
+
+    private static final Logger log = LoggerFactory.getLogger(PeerReputationStore.class);
+
+    /**
+     * Load the store from the given file. If it doesn't exist or can't be read, the store starts empty.
+     */
+    public static PeerReputationStore load(final File file) {
+        return load(file, Ticker.systemTicker());
+    }
+
+    static PeerReputationStore load(final File file, final Ticker ticker) {
+        final PeerReputationStore store = new PeerReputationStore(file, ticker);
+        try (final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    final Entry entry = Entry.parse(line);
+                    store.entries.put(entry.address, entry);
+                } catch (final IllegalArgumentException x) {
+                    log.info("skipping peer entry '{}': {}", line, x.getMessage());
+                }
+            }
+            log.info("{} peers loaded from '{}'", store.entries.size(), file);
+        } catch (final FileNotFoundException x) {
+            // nothing known yet
+        } catch (final IOException x) {
+            log.warn("problem reading peers from '" + file + "', starting over", x);
+            store.entries.clear();
+        }
+        return store;
+    }
+
+    private PeerReputationStore(final File file, final Ticker ticker) {
+        this.file = file;
+        this.ticker = ticker;
+    }
+
+    /** A connection attempt to the peer is starting. */
+    public synchronized void connecting(final InetSocketAddress address) {
+        if (address.isUnresolved())
+            return;
+        final Entry entry = entryOf(address);
+        entry.attemptStartedNanos = ticker.read();
+        entry.connectedNanos = 0;
+        entry.closingReason = null;
+    }
+
+    /** The handshake with the peer completed. */
+    public synchronized void connected(final InetSocketAddress address) {
+        if (address.isUnresolved())
+            return;
+        final Entry entry = entryOf(address);
+        final long now = ticker.read();
+        if (entry.attemptStartedNanos > 0)
+            entry.handshakeMs = average(entry.handshakeMs,
+                    TimeUnit.NANOSECONDS.toMillis(now - entry.attemptStartedNanos));
+        entry.connectedNanos = now;
+        entry.lastConnectedAt = System.currentTimeMillis();
+        entry.numConsecutiveFailures = 0;
+        entry.firstBlockNanos = 0;
+        entry.numBlocks = 0;
+    }
+
+    /** The peer served a block. */
+    public synchronized void blockReceived(final InetSocketAddress address) {
+        final Entry entry = entries.get(address);
+        if (entry == null || entry.connectedNanos == 0)
+            return;
+        final long now = ticker.read();
+        if (entry.firstBlockNanos == 0)
+            entry.firstBlockNanos = now;
+        entry.lastBlockNanos = now;
+        entry.numBlocks++;
+    }
+
+    /**
+     * We are about to close the connection to the peer ourselves. When it ends, this reason is recorded rather than
+     * {@link DisconnectReason#LOST}.
+     */
+    public synchronized void closing(final InetSocketAddress address, final DisconnectReason reason) {
+        final Entry entry = entries.get(address);
+        if (entry != null)
+            entry.closingReason = reason;
+    }
+
+    /**
+     * The connection to the peer ended, or never came about.
+     *
+     * @param reason
+     *            if null, the one given to {@link #closing}, or else it is told from whether the handshake completed
+     */
+    public synchronized void disconnected(final InetSocketAddress address, final @Nullable DisconnectReason reason) {
+        final Entry entry = entries.get(address);
+        if (entry == null)
+            return;
+        final boolean wasConnected = entry.connectedNanos > 0;
+        if (reason != null)
+            entry.lastDisconnectReason = reason;
+        else if (entry.closingReason != null)
+            entry.lastDisconnectReason = entry.closingReason;
+        else
+            entry.lastDisconnectReason = wasConnected ? DisconnectReason.LOST : DisconnectReason.CONNECT_FAILED;
+        if (!wasConnected) {
+            entry.numConsecutiveFailures++;
+        } else if (entry.numBlocks > 1) {
+            final double seconds = (entry.lastBlockNanos - entry.firstBlockNanos) / 1e9;
+            if (seconds > 0)
+                entry.blocksPerSecond = average(entry.blocksPerSecond, (entry.numBlocks - 1) / seconds);
+        }
+        entry.attemptStartedNanos = 0;
+        entry.connectedNanos = 0;
+        entry.closingReason = null;
+    }
+
+    /**
+     * @return the peers that are worth connecting to right away, best first
+     */
+    public synchronized List<InetSocketAddress> bestPeers(final int maxPeers) {
+        final long now = System.currentTimeMillis();
+        final List<Entry> candidates = new ArrayList<>();
+        for (final Entry entry : entries.values())
+            if (entry.lastConnectedAt > 0 && now - entry.lastConnectedAt < MAX_AGE_MS
+                    && entry.numConsecutiveFailures < MAX_CONSECUTIVE_FAILURES)
+                candidates.add(entry);
+        Collections.sort(candidates, new EntryComparator(now));
+        final List<InetSocketAddress> peers = new ArrayList<>(Math.min(candidates.size(), maxPeers));
+        for (final Entry entry : candidates) {
+            if (peers.size() >= maxPeers)
+                break;
+            peers.add(entry.address);
+        }
+        return peers;
+    }
+
+    /**
+     * @return the block rate the peer served at in earlier connections, or -1 if unknown
+     */
+    public synchronized double blocksPerSecond(final InetSocketAddress address) {
+        final Entry entry = entries.get(address);
+        return entry != null ? entry.blocksPerSecond : -1;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Write the store to its file, forgetting about the peers that are least worth keeping if there are too many.
+     */
+    public void save() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            final List<Entry> sorted = new ArrayList<>(entries.values());
+            Collections.sort(sorted, new EntryComparator(now));
+            while (sorted.size() > MAX_ENTRIES)
+                entries.remove(sorted.remove(sorted.size() - 1).address);
+            for (final Entry entry : sorted)
+                lines.add(entry.format());
+        }
+
+        final File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        try (final Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+            for (final String line : lines)
+                writer.append(line).append('\n');
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("cannot rename " + tempFile + " to " + file);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "[" + entries.size() + " peers]";
+    }
+
+    private Entry entryOf(final InetSocketAddress address) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            entry = new Entry(address);
+            entries.put(address, entry);
+        }
+        return entry;
+    }
+
+    private static long average(final long average, final long value) {
+        return average < 0 ? value : Math.round(average * (1 - AVERAGE_WEIGHT) + value * AVERAGE_WEIGHT);
+    }
+
+    private static double average(final double average, final double value) {
+        return average < 0 ? value : average * (1 - AVERAGE_WEIGHT) + value * AVERAGE_WEIGHT;
+    }
+
+    private static final class Entry {
+        public final InetSocketAddress address;
+        public long lastConnectedAt = 0; // 0 if never
+        public long handshakeMs = -1; // -1 if unknown
+        public double blocksPerSecond = -1; // -1 if unknown
+        public int numConsecutiveFailures = 0;
+        @Nullable
+        public DisconnectReason lastDisconnectReason = null;
+
+        // only for the current connection
+        public long attemptStartedNanos = 0, connectedNanos = 0;
+        public long firstBlockNanos = 0, lastBlockNanos = 0;
+        public int numBlocks = 0;
+        @Nullable
+        public DisconnectReason closingReason = null;
+
+        public Entry(final InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * Higher is better. Recent successful connects count most, failures and slow handshakes count against a
+         * peer, a fast block rate in favor.
+         */
+        public double score(final long now) {
+            double score = 100;
+            score -= 10.0 * (now - lastConnectedAt) / TimeUnit.DAYS.toMillis(1);
+            score -= 25 * numConsecutiveFailures;
+            if (handshakeMs >= 0)
+                score -= Math.min(handshakeMs, 5000) / 100.0;
+            if (blocksPerSecond >= 0)
+                score += Math.min(blocksPerSecond, 200) / 4;
+            if (lastDisconnectReason == DisconnectReason.LOST)
+                score -= 10;
+            return score;
+        }
+
+        public String format() {
+            return InetAddresses.toAddrString(address.getAddress()) + ' ' + address.getPort() + ' ' + lastConnectedAt
+                    + ' ' + handshakeMs + ' ' + blocksPerSecond + ' ' + numConsecutiveFailures + ' '
+                    + (lastDisconnectReason != null ? lastDisconnectReason.name() : "-");
+        }
+
+        public static Entry parse(final String line) {
+            final List<String> fields = Splitter.on(' ').splitToList(line);
+            if (fields.size() != 7)
+                throw new IllegalArgumentException("expected 7 fields");
+            final InetAddress address = InetAddresses.forString(fields.get(0));
+            final Entry entry = new Entry(new InetSocketAddress(address, Integer.parseInt(fields.get(1))));
+            entry.lastConnectedAt = Long.parseLong(fields.get(2));
+            entry.handshakeMs = Long.parseLong(fields.get(3));
+            entry.blocksPerSecond = Double.parseDouble(fields.get(4));
+            entry.numConsecutiveFailures = Integer.parseInt(fields.get(5));
+            final String reason = fields.get(6);
+            entry.lastDisconnectReason = "-".equals(reason) ? null : DisconnectReason.valueOf(reason);
+            return entry;
+        }
+    }
+
+    private static final class EntryComparator implements Comparator<Entry> {
+        private final long now;
+
+        public EntryComparator(final long now) {
+            this.now = now;
+        }
+
+        @Override
+        public int compare(final Entry entry1, final Entry entry2) {
+            return Double.compare(entry2.score(now), entry1.score(now));
+        }
+    }
+}
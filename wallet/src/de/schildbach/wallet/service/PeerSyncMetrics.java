@@ -0,0 +1,238 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.Ping;
+import org.bitcoinj.core.Pong;
+
+import com.google.common.base.Ticker;
+
+import de.schildbach.wallet.util.LongRingBuffer;
+
+/**
+ * Collects how well each connected peer is serving the chain: block rate, traffic, ping round trips, false positives
+ * of filtered blocks and stalls. It's fed from the network threads, so everything is kept in atomics and ring buffers
+ * of recent samples rather than behind locks.
+ */
+public final class PeerSyncMetrics {
+    private final Ticker ticker;
+    private final ConcurrentMap<InetSocketAddress, Metrics> peers = new ConcurrentHashMap<>();
+
+    /** Blocks are counted over this window to tell the current block rate. */
+    public static final long BLOCK_RATE_WINDOW_MS = TimeUnit.SECONDS.toMillis(30);
+    /** A gap this long between blocks, while the peer still has blocks to serve, counts as stall. */
+    public static final long STALL_THRESHOLD_MS = TimeUnit.SECONDS.toMillis(5);
+
+    // magic, command, length and checksum
+    private static final int MESSAGE_HEADER_SIZE = 4 + 12 + 4 + 4;
+
+    public PeerSyncMetrics() {
+        this(Ticker.systemTicker());
+    }
+
+    PeerSyncMetrics(final Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    public void connected(final InetSocketAddress address) {
+        peers.put(address, new Metrics(now()));
+    }
+
+    public void disconnected(final InetSocketAddress address) {
+        peers.remove(address);
+    }
+
+    public void messageSent(final InetSocketAddress address, final Message message) {
+        final Metrics metrics = peers.get(address);
+        if (metrics == null)
+            return;
+        metrics.bytesSent.addAndGet(MESSAGE_HEADER_SIZE + message.unsafeBitcoinSerialize().length);
+        if (message instanceof Ping && ((Ping) message).hasNonce()) {
+            metrics.pingNonce = ((Ping) message).getNonce();
+            metrics.pingSentAt = now();
+        }
+    }
+
+    public void messageReceived(final InetSocketAddress address, final Message message) {
+        final Metrics metrics = peers.get(address);
+        if (metrics == null)
+            return;
+        metrics.bytesReceived.addAndGet(MESSAGE_HEADER_SIZE + message.getMessageSize());
+        if (message instanceof Pong) {
+            final long pingSentAt = metrics.pingSentAt;
+            if (pingSentAt > 0 && ((Pong) message).getNonce() == metrics.pingNonce) {
+                metrics.pingSentAt = 0;
+                metrics.pingTimes.add(now() - pingSentAt);
+            }
+        }
+    }
+
+    /**
+     * @param numTransactions
+     *            number of transactions matched by the filter, or -1 if the block wasn't filtered
+     * @param numFalsePositives
+     *            how many of these turned out to be unrelated to the wallet
+     * @param blocksLeft
+     *            blocks the peer has yet to serve after this one
+     */
+    public void blockReceived(final InetSocketAddress address, final int numTransactions,
+            final int numFalsePositives, final int blocksLeft) {
+        final Metrics metrics = peers.get(address);
+        if (metrics == null)
+            return;
+        final long now = now();
+        final long gap = now - metrics.lastBlockAt;
+        if (metrics.lastBlocksLeft > 0 && gap >= STALL_THRESHOLD_MS)
+            metrics.stallTimes.add(gap);
+        metrics.lastBlockAt = now;
+        metrics.lastBlocksLeft = blocksLeft;
+        metrics.blockTimes.add(now);
+        if (numTransactions >= 0) {
+            metrics.numFilteredBlocks.incrementAndGet();
+            metrics.numFilteredTransactions.addAndGet(numTransactions);
+            metrics.numFalsePositives.addAndGet(numFalsePositives);
+        }
+    }
+
+    /**
+     * @return the metrics of a connected peer, or null if it's not connected
+     */
+    public Snapshot get(final InetSocketAddress address) {
+        final Metrics metrics = peers.get(address);
+        return metrics != null ? metrics.snapshot(now()) : null;
+    }
+
+    public Map<InetSocketAddress, Snapshot> getAll() {
+        final long now = now();
+        final Map<InetSocketAddress, Snapshot> snapshots = new HashMap<>(peers.size());
+        for (final Map.Entry<InetSocketAddress, Metrics> entry : peers.entrySet())
+            snapshots.put(entry.getKey(), entry.getValue().snapshot(now));
+        return snapshots;
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+    }
+
+    private static final class Metrics {
+        private final long connectedAt;
+        private final AtomicLong bytesReceived = new AtomicLong(), bytesSent = new AtomicLong();
+        private final LongRingBuffer blockTimes = new LongRingBuffer(1024);
+        private final LongRingBuffer pingTimes = new LongRingBuffer(64);
+        private final LongRingBuffer stallTimes = new LongRingBuffer(16);
+        private final AtomicLong numFilteredBlocks = new AtomicLong(), numFilteredTransactions = new AtomicLong(),
+                numFalsePositives = new AtomicLong();
+        // only written by the thread of the peer
+        private volatile long pingNonce, pingSentAt;
+        private volatile long lastBlockAt;
+        private volatile int lastBlocksLeft;
+
+        public Metrics(final long connectedAt) {
+            this.connectedAt = connectedAt;
+            this.lastBlockAt = connectedAt;
+        }
+
+        public Snapshot snapshot(final long now) {
+            // blocks within the window, or all that are kept if they arrive faster than the buffer can hold
+            final long[] blocks = blockTimes.toArray();
+            int numBlocks = 0;
+            while (numBlocks < blocks.length && blocks[blocks.length - 1 - numBlocks] > now - BLOCK_RATE_WINDOW_MS)
+                numBlocks++;
+            long span = Math.min(BLOCK_RATE_WINDOW_MS, now - connectedAt);
+            if (numBlocks == blocks.length && numBlocks == blockTimes.capacity())
+                span = Math.min(span, now - blocks[0]);
+            final double blocksPerSecond = span > 0 ? numBlocks * 1000.0 / span : 0;
+
+            final long[] pings = pingTimes.toArray();
+            Arrays.sort(pings);
+
+            final long[] stalls = stallTimes.toArray();
+            long longestStall = 0;
+            for (final long stall : stalls)
+                longestStall = Math.max(longestStall, stall);
+            final long sinceLastBlock = now - lastBlockAt;
+            final long currentStall = lastBlocksLeft > 0 && sinceLastBlock >= STALL_THRESHOLD_MS ? sinceLastBlock
+                    : 0;
+
+            return new Snapshot(blocksPerSecond, bytesReceived.get(), bytesSent.get(), percentile(pings, 50),
+                    percentile(pings, 90), numFilteredBlocks.get(), numFilteredTransactions.get(),
+                    numFalsePositives.get(), stallTimes.count(), Math.max(longestStall, currentStall), currentStall);
+        }
+
+        private static long percentile(final long[] sorted, final int percentile) {
+            if (sorted.length == 0)
+                return -1;
+            return sorted[Math.min((sorted.length * percentile) / 100, sorted.length - 1)];
+        }
+    }
+
+    public static final class Snapshot {
+        public final double blocksPerSecond;
+        public final long bytesReceived, bytesSent;
+        /** percentiles of recent ping round trips in milliseconds, -1 if none yet */
+        public final long pingP50, pingP90;
+        public final long numFilteredBlocks, numFilteredTransactions, numFalsePositives;
+        public final long numStalls;
+        /** longest of the recent stalls, including the current one */
+        public final long longestStallMs;
+        /** 0 if not stalled */
+        public final long currentStallMs;
+
+        public Snapshot(final double blocksPerSecond, final long bytesReceived, final long bytesSent,
+                final long pingP50, final long pingP90, final long numFilteredBlocks,
+                final long numFilteredTransactions, final long numFalsePositives, final long numStalls,
+                final long longestStallMs, final long currentStallMs) {
+            this.blocksPerSecond = blocksPerSecond;
+            this.bytesReceived = bytesReceived;
+            this.bytesSent = bytesSent;
+            this.pingP50 = pingP50;
+            this.pingP90 = pingP90;
+            this.numFilteredBlocks = numFilteredBlocks;
+            this.numFilteredTransactions = numFilteredTransactions;
+            this.numFalsePositives = numFalsePositives;
+            this.numStalls = numStalls;
+            this.longestStallMs = longestStallMs;
+            this.currentStallMs = currentStallMs;
+        }
+
+        /**
+         * @return share of matched transactions that were unrelated to the wallet, or -1 if none were matched
+         */
+        public double falsePositiveRate() {
+            return numFilteredTransactions > 0 ? (double) numFalsePositives / numFilteredTransactions : -1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.1f blocks/s, %d/%d bytes in/out, ping %d/%d ms, %d/%d false positives, "
+                    + "%d stalls (longest %d ms)", blocksPerSecond, bytesReceived, bytesSent, pingP50, pingP90,
+                    numFalsePositives, numFilteredTransactions, numStalls, longestStallMs);
+        }
+    }
+}
@@ -17,20 +17,27 @@
 
 package de.schildbach.wallet.service;
 
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.data.ExchangeRatesProvider;
 import de.schildbach.wallet.util.PowerSaveMode;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.app.job.JobInfo;
 import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
 import android.app.job.JobService;
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.BatteryManager;
 import android.os.StatFs;
 
@@ -57,21 +64,10 @@ public final class StartBlockchainService extends JobService {
         final JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
         final long lastUsedAgo = config.getLastUsedAgo();
 
-        // Calculate sync interval based on usage patterns (Goldcoin optimization)
-        final long syncInterval;
-        if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_JUST_MS) {
-            // Recently used - sync more frequently
-            syncInterval = 15 * 60 * 1000; // 15 minutes
-        } else if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_RECENTLY_MS) {
-            // Used today - moderate sync
-            syncInterval = 60 * 60 * 1000; // 1 hour
-        } else if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_INACTIVE_MS) {
-            // Used recently but not today - less frequent
-            syncInterval = 12 * 60 * 60 * 1000; // 12 hours
-        } else {
-            // Used long ago - minimal sync
-            syncInterval = 24 * 60 * 60 * 1000; // 1 day
-        }
+        // the one place background syncs are scheduled
+        final SyncScheduler syncScheduler = new SyncScheduler(config.getSyncSchedulerState());
+        final long syncInterval = syncScheduler.nextSyncDelayMs(lastUsedAgo);
+        log.info("last used {} minutes ago, {}", TimeUnit.MILLISECONDS.toMinutes(lastUsedAgo), syncScheduler);
 
         // Enhanced job configuration for enterprise-grade optimization
         final JobInfo.Builder jobBuilder = new JobInfo.Builder(JOB_ID_START_BLOCKCHAIN,
@@ -127,10 +123,10 @@ public final class StartBlockchainService extends JobService {
         }
 
         // Start blockchain service
-        BlockchainService.start(this, true);
+        BlockchainService.startBackgroundSync(this);
 
-        // Update last sync attempt
-        config.updateLastSyncAttempt();
+        // batch other network work with the same wake-up
+        refreshExchangeRates();
 
         log.info("Blockchain sync started successfully");
         jobFinished(params, false); // Job completed successfully
@@ -143,6 +139,19 @@ public final class StartBlockchainService extends JobService {
         return false; // Don't reschedule
     }
 
+    private void refreshExchangeRates() {
+        final ContentResolver contentResolver = getContentResolver();
+        final Uri uri = ExchangeRatesProvider.contentUri(getPackageName(), false);
+        WalletExecutor.get().execute(WalletExecutor.Lane.BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
+                final Cursor cursor = contentResolver.query(uri, null, null, null, null);
+                if (cursor != null)
+                    cursor.close();
+            }
+        });
+    }
+
     /**
      * Enterprise-grade system condition checks to determine if blockchain sync should start.
      * Enhanced beyond upstream with additional optimizations.
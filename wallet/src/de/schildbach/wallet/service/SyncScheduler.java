@@ -0,0 +1,159 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+
+import de.schildbach.wallet.Constants;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Picks the time of the next background sync from what has been measured: the rate of incoming payments, the time
+ * since the app was last used and how long syncs are keeping the device awake.
+ *
+ * <ul>
+ * <li>Right after the app was used, syncs are {@link #INTERVAL_JUST_USED_MS} apart.</li>
+ * <li>Otherwise, once payments have been watched for {@link #MIN_MEASURED_MS}, the interval is half their mean gap,
+ * but not below {@link #MIN_PAYMENT_INTERVAL_MS} and not above {@link #INTERVAL_USED_MS} if the app was used recently,
+ * or {@link #INTERVAL_INACTIVE_MS} if not.</li>
+ * <li>Until then, the interval goes up with the time since last use, from {@link #INTERVAL_RECENTLY_USED_MS} to
+ * {@link #INTERVAL_INACTIVE_MS}.</li>
+ * <li>The interval is at least {@link #DUTY_CYCLE_FACTOR} times the time a sync keeps the device awake, but not
+ * longer than {@link #INTERVAL_INACTIVE_MS}.</li>
+ * </ul>
+ *
+ * The payment rate is the number of payments per time, both decayed with a time constant of
+ * {@link #PAYMENT_RATE_DECAY_MS}. The state is kept across runs via {@link #getState()}.
+ */
+public final class SyncScheduler {
+    public static final long INTERVAL_JUST_USED_MS = TimeUnit.MINUTES.toMillis(15);
+    public static final long INTERVAL_RECENTLY_USED_MS = TimeUnit.HOURS.toMillis(1);
+    public static final long INTERVAL_USED_MS = TimeUnit.HOURS.toMillis(12);
+    public static final long INTERVAL_INACTIVE_MS = TimeUnit.DAYS.toMillis(1);
+    public static final long MIN_PAYMENT_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+    public static final long MIN_MEASURED_MS = TimeUnit.DAYS.toMillis(1);
+    public static final long PAYMENT_RATE_DECAY_MS = TimeUnit.DAYS.toMillis(7);
+    public static final int DUTY_CYCLE_FACTOR = 4;
+
+    private long lastSyncAt = 0;
+    private double decayedPayments = 0, decayedTimeMs = 0;
+    private long syncDurationMs = 0;
+
+    private static final Logger log = LoggerFactory.getLogger(SyncScheduler.class);
+
+    /**
+     * @param state
+     *            as returned by {@link #getState()} earlier, or null to start from scratch
+     */
+    public SyncScheduler(@Nullable final String state) {
+        if (state != null) {
+            final List<String> fields = Splitter.on(',').trimResults().splitToList(state);
+            try {
+                if (fields.size() != 4)
+                    throw new NumberFormatException();
+                lastSyncAt = Long.parseLong(fields.get(0));
+                decayedPayments = Double.parseDouble(fields.get(1));
+                decayedTimeMs = Double.parseDouble(fields.get(2));
+                syncDurationMs = Long.parseLong(fields.get(3));
+            } catch (final NumberFormatException x) {
+                log.info("cannot parse sync scheduler state, starting from scratch: '{}'", state);
+                lastSyncAt = 0;
+                decayedPayments = decayedTimeMs = 0;
+                syncDurationMs = 0;
+            }
+        }
+    }
+
+    /**
+     * Record a sync that just finished.
+     *
+     * @param now
+     *            time the sync finished
+     * @param durationMs
+     *            how long the sync kept the device awake, or 0 if it wasn't measured, e.g. because the app was in use
+     * @param numPayments
+     *            payments received by the sync, or while it was running
+     */
+    public void syncFinished(final long now, final long durationMs, final int numPayments) {
+        if (lastSyncAt > 0 && now > lastSyncAt) {
+            final long elapsedMs = now - lastSyncAt;
+            final double decay = Math.exp(-(double) elapsedMs / PAYMENT_RATE_DECAY_MS);
+            decayedPayments = decayedPayments * decay + numPayments;
+            decayedTimeMs = decayedTimeMs * decay + elapsedMs;
+        }
+        lastSyncAt = now;
+        if (durationMs > 0)
+            syncDurationMs = syncDurationMs > 0 ? (syncDurationMs + durationMs) / 2 : durationMs;
+    }
+
+    /**
+     * @return payments per day, or 0 if unknown
+     */
+    public double paymentsPerDay() {
+        return decayedTimeMs > 0 ? decayedPayments * TimeUnit.DAYS.toMillis(1) / decayedTimeMs : 0;
+    }
+
+    /**
+     * @param lastUsedAgoMs
+     *            time since the app was last used
+     * @return delay until the next sync
+     */
+    public long nextSyncDelayMs(final long lastUsedAgoMs) {
+        long interval;
+        if (lastUsedAgoMs < Constants.LAST_USAGE_THRESHOLD_JUST_MS) {
+            interval = INTERVAL_JUST_USED_MS;
+        } else if (decayedTimeMs >= MIN_MEASURED_MS) {
+            final long maxInterval = lastUsedAgoMs < Constants.LAST_USAGE_THRESHOLD_RECENTLY_MS ? INTERVAL_USED_MS
+                    : INTERVAL_INACTIVE_MS;
+            final double paymentsPerDay = paymentsPerDay();
+            final long paymentInterval = paymentsPerDay > 0
+                    ? (long) (TimeUnit.DAYS.toMillis(1) / paymentsPerDay / 2) : Long.MAX_VALUE;
+            interval = Math.max(MIN_PAYMENT_INTERVAL_MS, Math.min(paymentInterval, maxInterval));
+        } else if (lastUsedAgoMs < Constants.LAST_USAGE_THRESHOLD_RECENTLY_MS) {
+            interval = INTERVAL_RECENTLY_USED_MS;
+        } else if (lastUsedAgoMs < Constants.LAST_USAGE_THRESHOLD_INACTIVE_MS) {
+            interval = INTERVAL_USED_MS;
+        } else {
+            interval = INTERVAL_INACTIVE_MS;
+        }
+
+        return Math.min(Math.max(interval, syncDurationMs * DUTY_CYCLE_FACTOR), INTERVAL_INACTIVE_MS);
+    }
+
+    /**
+     * @return the measurements, to be passed to the constructor on the next run
+     */
+    public String getState() {
+        return String.format(Locale.US, "%d,%.3f,%.0f,%d", lastSyncAt, decayedPayments, decayedTimeMs,
+                syncDurationMs);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%.2f payments/day, syncs take %d s", paymentsPerDay(),
+                TimeUnit.MILLISECONDS.toSeconds(syncDurationMs));
+    }
+}
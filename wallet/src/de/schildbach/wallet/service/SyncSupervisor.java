@@ -0,0 +1,228 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Watches the download peer during chain sync and decides when it's worth switching to another peer.
+ *
+ * <p>
+ * The download peer is judged by its block rate over the last {@link PeerSyncMetrics#BLOCK_RATE_WINDOW_MS}. It is
+ * given up if it serves no blocks at all, or far fewer than the other connected peers are expected to serve, judging
+ * by what they served earlier in this session or in earlier runs. Near the chain head, where the remaining blocks
+ * arrive in a few seconds anyway, it's left alone. Every decision is kept in a short history for diagnostics.
+ */
+public final class SyncSupervisor {
+    public enum Reason {
+        /** no blocks at all for a while */
+        STALLED,
+        /** far slower than the other peers */
+        SLOW
+    }
+
+    private final Ticker ticker;
+
+    private InetSocketAddress downloadPeer = null; // guarded by this
+    private long downloadPeerSince = 0; // guarded by this
+    private long lastSwitchAt = 0; // guarded by this, 0 if never
+    private final Map<InetSocketAddress, Double> sessionRates = new HashMap<>(); // guarded by this
+    @Nullable
+    private InetSocketAddress preferredDownloadPeer = null; // guarded by this
+    private final LinkedList<Decision> history = new LinkedList<>(); // guarded by this
+
+    /** A download peer is judged only after it had a full block rate window. */
+    public static final long JUDGE_AFTER_MS = PeerSyncMetrics.BLOCK_RATE_WINDOW_MS;
+    /** Minimum time between switches, so that a bad network doesn't make us hop from peer to peer. */
+    public static final long SWITCH_COOLDOWN_MS = TimeUnit.MINUTES.toMillis(1);
+    /** Below this share of the rate expected from the other peers, the download peer is switched. */
+    public static final double SLOW_RATIO = 0.3;
+    /** If the remaining blocks are expected in less time than this, switching isn't worth it. */
+    public static final long MIN_REMAINING_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final int MAX_HISTORY_SIZE = 20;
+
+    private static final Logger log = LoggerFactory.getLogger(SyncSupervisor.class);
+
+    public SyncSupervisor() {
+        this(Ticker.systemTicker());
+    }
+
+    SyncSupervisor(final Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    /**
+     * Check on the download peer. Called regularly during sync.
+     *
+     * @param downloadPeer
+     *            current download peer
+     * @param blocksToGo
+     *            blocks between our chain head and the best height the download peer announced
+     * @param peers
+     *            sync metrics of all connected peers, including the download peer
+     * @param knownRates
+     *            block rates peers served at in earlier runs, if known
+     * @return the decision to switch, or null to stay with the download peer
+     */
+    @Nullable
+    public synchronized Decision check(final InetSocketAddress downloadPeer, final long blocksToGo,
+            final Map<InetSocketAddress, PeerSyncMetrics.Snapshot> peers,
+            final Map<InetSocketAddress, Double> knownRates) {
+        final long now = now();
+        if (!downloadPeer.equals(this.downloadPeer)) {
+            this.downloadPeer = downloadPeer;
+            this.downloadPeerSince = now;
+            if (downloadPeer.equals(preferredDownloadPeer))
+                preferredDownloadPeer = null;
+        }
+
+        final PeerSyncMetrics.Snapshot metrics = peers.get(downloadPeer);
+        if (metrics == null || blocksToGo <= 0)
+            return null;
+        final double rate = metrics.blocksPerSecond;
+        if (now - downloadPeerSince < JUDGE_AFTER_MS)
+            return null;
+        final Double sessionRate = sessionRates.get(downloadPeer);
+        if (sessionRate == null || rate > sessionRate)
+            sessionRates.put(downloadPeer, rate);
+        if (lastSwitchAt > 0 && now - lastSwitchAt < SWITCH_COOLDOWN_MS)
+            return null;
+
+        // what the others are expected to do
+        InetSocketAddress bestCandidate = null;
+        double bestCandidateRate = -1;
+        final List<Double> expectedRates = new ArrayList<>();
+        for (final InetSocketAddress peer : peers.keySet()) {
+            if (peer.equals(downloadPeer))
+                continue;
+            final double expectedRate = expectedRate(peer, knownRates);
+            if (expectedRate > 0)
+                expectedRates.add(expectedRate);
+            if (bestCandidate == null || expectedRate > bestCandidateRate
+                    || (expectedRate == bestCandidateRate && isBetterPing(peers.get(peer), peers.get(bestCandidate)))) {
+                bestCandidate = peer;
+                bestCandidateRate = expectedRate;
+            }
+        }
+        if (bestCandidate == null)
+            return null; // nobody to switch to
+        final double referenceRate = median(expectedRates);
+
+        final Reason reason;
+        if (rate == 0) {
+            reason = Reason.STALLED;
+        } else if (referenceRate > 0 && rate < referenceRate * SLOW_RATIO
+                && blocksToGo * 1000 / rate > MIN_REMAINING_MS) {
+            reason = Reason.SLOW;
+        } else {
+            return null;
+        }
+
+        final Decision decision = new Decision(System.currentTimeMillis(), downloadPeer, bestCandidate, reason, rate,
+                referenceRate, blocksToGo);
+        log.info("switching download peer: {}", decision);
+        history.addFirst(decision);
+        while (history.size() > MAX_HISTORY_SIZE)
+            history.removeLast();
+        lastSwitchAt = now;
+        preferredDownloadPeer = bestCandidate;
+        return decision;
+    }
+
+    /**
+     * @return the peer that should be picked as the next download peer, or null if there's no preference
+     */
+    @Nullable
+    public synchronized InetSocketAddress getPreferredDownloadPeer() {
+        return preferredDownloadPeer;
+    }
+
+    /**
+     * @return recent decisions, newest first
+     */
+    public synchronized List<Decision> getHistory() {
+        return new ArrayList<>(history);
+    }
+
+    private double expectedRate(final InetSocketAddress peer, final Map<InetSocketAddress, Double> knownRates) {
+        final Double sessionRate = sessionRates.get(peer);
+        if (sessionRate != null && sessionRate > 0)
+            return sessionRate;
+        final Double knownRate = knownRates.get(peer);
+        return knownRate != null ? knownRate : -1;
+    }
+
+    private static boolean isBetterPing(final PeerSyncMetrics.Snapshot metrics, final PeerSyncMetrics.Snapshot other) {
+        return metrics.pingP50 >= 0 && (other.pingP50 < 0 || metrics.pingP50 < other.pingP50);
+    }
+
+    private static double median(final List<Double> values) {
+        if (values.isEmpty())
+            return -1;
+        final double[] sorted = new double[values.size()];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = values.get(i);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+    }
+
+    public static final class Decision {
+        public final long time;
+        public final InetSocketAddress from, to;
+        public final Reason reason;
+        public final double rate, referenceRate;
+        public final long blocksToGo;
+
+        public Decision(final long time, final InetSocketAddress from, final InetSocketAddress to,
+                final Reason reason, final double rate, final double referenceRate, final long blocksToGo) {
+            this.time = time;
+            this.from = from;
+            this.to = to;
+            this.reason = reason;
+            this.rate = rate;
+            this.referenceRate = referenceRate;
+            this.blocksToGo = blocksToGo;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s -> %s, %s at %.1f blocks/s (others %.1f blocks/s), %d blocks to go",
+                    from, to, reason, rate, referenceRate, blocksToGo);
+        }
+    }
+}
@@ -280,6 +280,8 @@ public class EncryptKeysDialogFragment extends DialogFragment {
                         updateView();
 
                         if (state == State.DONE) {
+                            // persist manually because of missing callbacks for encryption state
+                            application.autosaveWalletNow();
                             WalletUtils.autoBackupWallet(activity, wallet);
                             // trigger load manually because of missing callbacks for encryption state
                             ViewModelProviders.of(activity).get(WalletActivityViewModel.class).walletEncrypted.load();
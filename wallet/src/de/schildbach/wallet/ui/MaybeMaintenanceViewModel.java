@@ -30,9 +30,9 @@ import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.data.AbstractWalletLiveData;
 import de.schildbach.wallet.data.BlockchainStateLiveData;
 import de.schildbach.wallet.service.BlockchainState;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.app.Application;
-import android.os.AsyncTask;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.MediatorLiveData;
 import androidx.lifecycle.Observer;
@@ -95,7 +95,7 @@ public class MaybeMaintenanceViewModel extends AndroidViewModel {
         @Override
         protected void load() {
             final Wallet wallet = getWallet();
-            AsyncTask.execute(new Runnable() {
+            WalletExecutor.get().execute(WalletExecutor.Lane.MAINTENANCE, this, new Runnable() {
                 @Override
                 public void run() {
                     org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
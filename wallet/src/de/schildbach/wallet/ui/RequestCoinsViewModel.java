@@ -30,12 +30,12 @@ import de.schildbach.wallet.data.ConfigOwnNameLiveData;
 import de.schildbach.wallet.data.SelectedExchangeRateLiveData;
 import de.schildbach.wallet.util.Bluetooth;
 import de.schildbach.wallet.util.Qr;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.app.Application;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.AsyncTask;
 import androidx.annotation.Nullable;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.MediatorLiveData;
@@ -137,7 +137,7 @@ public class RequestCoinsViewModel extends AndroidViewModel {
     private void maybeGenerateQrCode() {
         final Address address = freshReceiveAddress.getValue();
         if (address != null) {
-            AsyncTask.execute(new Runnable() {
+            WalletExecutor.get().execute(WalletExecutor.Lane.UI, qrCode, new Runnable() {
                 @Override
                 public void run() {
                     qrCode.postValue(
@@ -191,7 +191,7 @@ public class RequestCoinsViewModel extends AndroidViewModel {
         private void maybeLoad() {
             if (getValue() == null) {
                 final Wallet wallet = getWallet();
-                AsyncTask.execute(new Runnable() {
+                WalletExecutor.get().execute(WalletExecutor.Lane.UI, this, new Runnable() {
                     @Override
                     public void run() {
                         org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
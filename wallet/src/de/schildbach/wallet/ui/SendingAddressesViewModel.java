@@ -34,6 +34,7 @@ import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.data.AbstractWalletLiveData;
 import de.schildbach.wallet.data.AddressBookEntry;
 import de.schildbach.wallet.data.WalletLiveData;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.app.Application;
 import android.content.ClipData;
@@ -41,7 +42,6 @@ import android.content.ClipboardManager;
 import android.content.ClipboardManager.OnPrimaryClipChangedListener;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
@@ -78,7 +78,7 @@ public class SendingAddressesViewModel extends AndroidViewModel {
 
         private void loadAddressesToExclude() {
             final Wallet wallet = getWallet();
-            AsyncTask.execute(new Runnable() {
+            WalletExecutor.get().execute(WalletExecutor.Lane.UI, this, new Runnable() {
                 @Override
                 public void run() {
                     final List<ECKey> derivedKeys = wallet.getIssuedReceiveKeys();
@@ -17,8 +17,6 @@
 
 package de.schildbach.wallet.ui;
 
-import java.util.ArrayList;
-import java.util.Date;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
@@ -40,6 +38,7 @@ import org.bitcoinj.wallet.Wallet;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.R;
 import de.schildbach.wallet.data.AddressBookEntry;
+import de.schildbach.wallet.data.TransactionSummary;
 import de.schildbach.wallet.ui.TransactionsAdapter.ListItem.TransactionItem;
 import de.schildbach.wallet.ui.TransactionsAdapter.ListItem.WarningItem;
 import de.schildbach.wallet.util.Formats;
@@ -70,20 +69,6 @@ import androidx.recyclerview.widget.RecyclerView.ViewHolder;
  * @author Andreas Schildbach
  */
 public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListItem, RecyclerView.ViewHolder> {
-    public static List<ListItem> buildListItems(final Context context, final List<Transaction> transactions,
-            final WarningType warning, final @Nullable Wallet wallet,
-            final @Nullable Map<String, AddressBookEntry> addressBook, final MonetaryFormat format,
-            final int maxConnectedPeers, final @Nullable Sha256Hash selectedTransaction) {
-        final MonetaryFormat noCodeFormat = format.noCode();
-        final List<ListItem> items = new ArrayList<>(transactions.size() + 1);
-        if (warning != null)
-            items.add(new ListItem.WarningItem(warning));
-        for (final Transaction tx : transactions)
-            items.add(new ListItem.TransactionItem(context, tx, wallet, addressBook, noCodeFormat, maxConnectedPeers,
-                    tx.getHash().equals(selectedTransaction)));
-        return items;
-    }
-
     public static class ListItem {
         public static class TransactionItem extends ListItem {
             public final Sha256Hash transactionHash;
@@ -93,7 +78,7 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
             @Nullable
             public final String confidenceTextual;
             public final int confidenceTextualColor;
-            public final CharSequence time;
+            public final long time; // formatted when bound, so that relative times can be refreshed
             public final int timeColor;
             @Nullable
             public final Spanned address;
@@ -121,7 +106,21 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
             public TransactionItem(final Context context, final Transaction tx, final @Nullable Wallet wallet,
                     final @Nullable Map<String, AddressBookEntry> addressBook, final MonetaryFormat format,
                     final int maxConnectedPeers, final boolean isSelected) {
-                this.transactionHash = tx.getHash();
+                this(context, new Details(tx, wallet, addressBook, maxConnectedPeers), format, isSelected);
+            }
+
+            /**
+             * Build an item from what was stored of the transaction, for showing the list before the wallet is
+             * loaded. Details that need the transaction itself, like the message, are left out.
+             */
+            public TransactionItem(final Context context, final TransactionSummary summary,
+                    final @Nullable Map<String, AddressBookEntry> addressBook, final MonetaryFormat format) {
+                this(context, new Details(summary, addressBook), format, false);
+            }
+
+            private TransactionItem(final Context context, final Details details, final MonetaryFormat format,
+                    final boolean isSelected) {
+                this.transactionHash = details.hash;
                 this.isSelected = isSelected;
 
                 final Resources res = context.getResources();
@@ -132,21 +131,18 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
                 final int colorValueNegative = res.getColor(R.color.fg_value_negative);
                 final int colorError = res.getColor(R.color.fg_error);
 
-                final Coin value = tx.getValue(wallet);
+                final Coin value = details.value;
                 final boolean sent = value.signum() < 0;
-                final boolean self = WalletUtils.isEntirelySelf(tx, wallet);
-                final TransactionConfidence confidence = tx.getConfidence();
-                final ConfidenceType confidenceType = confidence.getConfidenceType();
-                final boolean isOwn = confidence.getSource().equals(TransactionConfidence.Source.SELF);
-                final Transaction.Purpose purpose = tx.getPurpose();
-                final String[] memo = Formats.sanitizeMemo(tx.getMemo());
+                final ConfidenceType confidenceType = details.confidenceType;
+                final Transaction.Purpose purpose = details.purpose;
+                final String[] memo = details.memo;
 
                 final int textColor, lessSignificantColor, valueColor;
                 if (confidenceType == ConfidenceType.DEAD) {
                     textColor = colorError;
                     lessSignificantColor = colorError;
                     valueColor = colorError;
-                } else if (DefaultCoinSelector.isSelectable(tx)) {
+                } else if (details.selectable) {
                     textColor = colorSignificant;
                     lessSignificantColor = colorLessSignificant;
                     valueColor = sent ? colorValueNegative : colorValuePositve;
@@ -160,8 +156,8 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
                 if (confidenceType == ConfidenceType.PENDING) {
                     this.confidenceCircularMaxProgress = 1;
                     this.confidenceCircularProgress = 1;
-                    this.confidenceCircularMaxSize = maxConnectedPeers / 2; // magic value
-                    this.confidenceCircularSize = confidence.numBroadcastPeers();
+                    this.confidenceCircularMaxSize = details.maxBroadcastPeers;
+                    this.confidenceCircularSize = details.numBroadcastPeers;
                     this.confidenceCircularFillColor = colorInsignificant;
                     this.confidenceCircularStrokeColor = Color.TRANSPARENT;
                     this.confidenceTextual = null;
@@ -176,11 +172,8 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
                     this.confidenceCircularFillColor = 0;
                     this.confidenceCircularStrokeColor = 0;
                 } else if (confidenceType == ConfidenceType.BUILDING) {
-                    this.confidenceCircularMaxProgress = tx.isCoinBase()
-                            ? Constants.NETWORK_PARAMETERS.getSpendableCoinbaseDepth()
-                            : Constants.MAX_NUM_CONFIRMATIONS;
-                    this.confidenceCircularProgress = Math.min(confidence.getDepthInBlocks(),
-                            this.confidenceCircularMaxProgress);
+                    this.confidenceCircularMaxProgress = details.maxDepth;
+                    this.confidenceCircularProgress = Math.min(details.depth, details.maxDepth);
                     this.confidenceCircularMaxSize = 1;
                     this.confidenceCircularSize = 1;
                     this.confidenceCircularFillColor = valueColor;
@@ -208,27 +201,11 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
                 }
 
                 // time
-                final Date time = tx.getUpdateTime();
-                this.time = isSelected
-                        ? DateUtils.formatDateTime(context, time.getTime(),
-                                DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME)
-                        : DateUtils.getRelativeTimeSpanString(context, time.getTime());
+                this.time = details.updateTime;
                 this.timeColor = textColor;
 
                 // address
-                final Address address = sent ? WalletUtils.getToAddressOfSent(tx, wallet)
-                        : WalletUtils.getWalletAddressOfReceived(tx, wallet);
-                final String addressLabel;
-                if (addressBook == null || address == null) {
-                    addressLabel = null;
-                } else {
-                    final AddressBookEntry entry = addressBook.get(address.toString());
-                    if (entry != null)
-                        addressLabel = entry.getLabel();
-                    else
-                        addressLabel = null;
-                }
-                if (tx.isCoinBase()) {
+                if (details.coinBase) {
                     this.address = SpannedString
                             .valueOf(context.getString(R.string.wallet_transactions_fragment_coinbase));
                     this.addressColor = textColor;
@@ -237,22 +214,21 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
                     this.address = null;
                     this.addressColor = 0;
                     this.addressTypeface = Typeface.DEFAULT;
-                } else if (purpose == Purpose.KEY_ROTATION || self) {
+                } else if (details.internal) {
                     this.address = SpannedString.valueOf(context.getString(R.string.symbol_internal) + " "
                             + context.getString(R.string.wallet_transactions_fragment_internal));
                     this.addressColor = lessSignificantColor;
                     this.addressTypeface = Typeface.DEFAULT_BOLD;
-                } else if (addressLabel != null) {
-                    this.address = SpannedString.valueOf(addressLabel);
+                } else if (details.addressLabel != null) {
+                    this.address = SpannedString.valueOf(details.addressLabel);
                     this.addressColor = textColor;
                     this.addressTypeface = Typeface.DEFAULT_BOLD;
                 } else if (memo != null && memo.length >= 2) {
                     this.address = SpannedString.valueOf(memo[1]);
                     this.addressColor = textColor;
                     this.addressTypeface = Typeface.DEFAULT_BOLD;
-                } else if (address != null) {
-                    this.address = WalletUtils.formatAddress(address, Constants.ADDRESS_FORMAT_GROUP_SIZE,
-                            Constants.ADDRESS_FORMAT_LINE_SIZE);
+                } else if (details.address != null) {
+                    this.address = details.address;
                     this.addressColor = lessSignificantColor;
                     this.addressTypeface = Typeface.DEFAULT;
                 } else {
@@ -263,7 +239,7 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
                 this.addressSingleLine = !isSelected;
 
                 // fee
-                final Coin fee = tx.getFee();
+                final Coin fee = details.fee;
                 final boolean showFee = sent && fee != null && !fee.isZero();
                 this.feeFormat = format;
                 this.fee = isSelected && showFee ? fee.negate() : null;
@@ -282,7 +258,7 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
                 }
 
                 // fiat value
-                final ExchangeRate exchangeRate = tx.getExchangeRate();
+                final ExchangeRate exchangeRate = details.exchangeRate;
                 if (exchangeRate != null && !value.isZero()) {
                     this.fiat = exchangeRate.coinToFiat(value);
                     this.fiatFormat = Constants.LOCAL_FORMAT.code(0,
@@ -295,6 +271,9 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
                 }
 
                 // message
+                final Transaction tx = details.tx;
+                final boolean isOwn = tx != null
+                        && tx.getConfidence().getSource().equals(TransactionConfidence.Source.SELF);
                 if (purpose == Purpose.KEY_ROTATION) {
                     this.message = Html
                             .fromHtml(context.getString(R.string.transaction_row_message_purpose_key_rotation));
@@ -305,12 +284,17 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
                             .valueOf(context.getString(R.string.transaction_row_message_purpose_raise_fee));
                     this.messageColor = colorInsignificant;
                     this.messageSingleLine = false;
-                } else if (isOwn && confidenceType == ConfidenceType.PENDING && confidence.numBroadcastPeers() == 0) {
+                } else if (tx == null) {
+                    // not known from the summary
+                    this.message = null;
+                    this.messageColor = 0;
+                    this.messageSingleLine = false;
+                } else if (isOwn && confidenceType == ConfidenceType.PENDING && details.numBroadcastPeers == 0) {
                     this.message = SpannedString
                             .valueOf(context.getString(R.string.transaction_row_message_own_unbroadcasted));
                     this.messageColor = colorInsignificant;
                     this.messageSingleLine = false;
-                } else if (!isOwn && confidenceType == ConfidenceType.PENDING && confidence.numBroadcastPeers() == 0) {
+                } else if (!isOwn && confidenceType == ConfidenceType.PENDING && details.numBroadcastPeers == 0) {
                     this.message = SpannedString
                             .valueOf(context.getString(R.string.transaction_row_message_received_direct));
                     this.messageColor = colorInsignificant;
@@ -321,7 +305,7 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
                     this.messageColor = colorInsignificant;
                     this.messageSingleLine = false;
                 } else if (!sent && confidenceType == ConfidenceType.PENDING
-                        && (tx.getUpdateTime() == null || wallet.getLastBlockSeenTimeSecs() * 1000
+                        && (tx.getUpdateTime() == null || details.wallet.getLastBlockSeenTimeSecs() * 1000
                                 - tx.getUpdateTime().getTime() > Constants.DELAYED_TRANSACTION_THRESHOLD_MS)) {
                     this.message = SpannedString
                             .valueOf(context.getString(R.string.transaction_row_message_received_unconfirmed_delayed));
@@ -364,6 +348,97 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
             }
         }
 
+        /**
+         * What an item is rendered from, taken either from a transaction of the wallet or from what was stored of
+         * it.
+         */
+        private static final class Details {
+            public final Sha256Hash hash;
+            @Nullable
+            public final Transaction tx;
+            @Nullable
+            public final Wallet wallet;
+            public final Coin value;
+            @Nullable
+            public final Coin fee;
+            public final ConfidenceType confidenceType;
+            public final boolean selectable;
+            public final int depth, maxDepth;
+            public final int numBroadcastPeers, maxBroadcastPeers;
+            public final long updateTime;
+            public final boolean coinBase;
+            @Nullable
+            public final Transaction.Purpose purpose;
+            public final boolean internal;
+            @Nullable
+            public final String addressLabel;
+            @Nullable
+            public final Spanned address;
+            @Nullable
+            public final String[] memo;
+            @Nullable
+            public final ExchangeRate exchangeRate;
+
+            public Details(final Transaction tx, final @Nullable Wallet wallet,
+                    final @Nullable Map<String, AddressBookEntry> addressBook, final int maxConnectedPeers) {
+                this.hash = tx.getHash();
+                this.tx = tx;
+                this.wallet = wallet;
+                this.value = tx.getValue(wallet);
+                this.fee = tx.getFee();
+                final TransactionConfidence confidence = tx.getConfidence();
+                this.confidenceType = confidence.getConfidenceType();
+                this.selectable = DefaultCoinSelector.isSelectable(tx);
+                this.depth = confidenceType == ConfidenceType.BUILDING ? confidence.getDepthInBlocks() : 0;
+                this.maxDepth = tx.isCoinBase() ? Constants.NETWORK_PARAMETERS.getSpendableCoinbaseDepth()
+                        : Constants.MAX_NUM_CONFIRMATIONS;
+                this.numBroadcastPeers = confidence.numBroadcastPeers();
+                this.maxBroadcastPeers = maxConnectedPeers / 2; // magic value
+                this.updateTime = tx.getUpdateTime().getTime();
+                this.coinBase = tx.isCoinBase();
+                this.purpose = tx.getPurpose();
+                this.internal = WalletUtils.isInternal(tx, wallet);
+                final Address address = value.signum() < 0 ? WalletUtils.getToAddressOfSent(tx, wallet)
+                        : WalletUtils.getWalletAddressOfReceived(tx, wallet);
+                final AddressBookEntry entry = addressBook != null && address != null
+                        ? addressBook.get(address.toString()) : null;
+                this.addressLabel = entry != null ? entry.getLabel() : null;
+                this.address = address != null ? WalletUtils.formatAddress(address,
+                        Constants.ADDRESS_FORMAT_GROUP_SIZE, Constants.ADDRESS_FORMAT_LINE_SIZE) : null;
+                this.memo = Formats.sanitizeMemo(tx.getMemo());
+                this.exchangeRate = tx.getExchangeRate();
+            }
+
+            public Details(final TransactionSummary summary,
+                    final @Nullable Map<String, AddressBookEntry> addressBook) {
+                this.hash = Sha256Hash.wrap(summary.getHash());
+                this.tx = null;
+                this.wallet = null;
+                this.value = Coin.valueOf(summary.getValue());
+                final Long fee = summary.getFee();
+                this.fee = fee != null ? Coin.valueOf(fee) : null;
+                this.confidenceType = ConfidenceType.valueOf(summary.getConfidenceType());
+                this.selectable = confidenceType == ConfidenceType.BUILDING
+                        || confidenceType == ConfidenceType.PENDING;
+                this.depth = summary.getDepth();
+                this.maxDepth = Constants.MAX_NUM_CONFIRMATIONS;
+                this.numBroadcastPeers = 0; // not known yet
+                this.maxBroadcastPeers = 1;
+                this.updateTime = summary.getUpdateTime();
+                this.coinBase = false;
+                this.purpose = null;
+                this.internal = TransactionSummary.DIRECTION_INTERNAL.equals(summary.getDirection());
+                final String address = summary.getAddress();
+                final AddressBookEntry entry = addressBook != null && address != null ? addressBook.get(address)
+                        : null;
+                this.addressLabel = entry != null ? entry.getLabel() : null;
+                this.address = address != null ? WalletUtils.formatHash(address, Constants.ADDRESS_FORMAT_GROUP_SIZE,
+                        Constants.ADDRESS_FORMAT_LINE_SIZE) : null;
+                this.memo = null;
+                this.exchangeRate = null;
+            }
+        }
+
         public static class WarningItem extends ListItem {
             public final WarningType type;
 
@@ -371,6 +446,15 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
                 this.type = type;
             }
         }
+
+        /** Stands in for a {@link TransactionItem} that hasn't been materialized. */
+        public static class PlaceholderItem extends ListItem {
+            public final Sha256Hash transactionHash;
+
+            public PlaceholderItem(final Sha256Hash transactionHash) {
+                this.transactionHash = transactionHash;
+            }
+        }
     }
 
     public enum WarningType {
@@ -389,6 +473,7 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
 
     private static final int VIEW_TYPE_TRANSACTION = 0;
     private static final int VIEW_TYPE_WARNING = 1;
+    private static final int VIEW_TYPE_PLACEHOLDER = 2;
 
     private enum ChangeType {
         CONFIDENCE, TIME, ADDRESS, FEE, VALUE, FIAT, MESSAGE, IS_SELECTED
@@ -399,11 +484,20 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
         super(new DiffUtil.ItemCallback<ListItem>() {
             @Override
             public boolean areItemsTheSame(final ListItem oldItem, final ListItem newItem) {
-                if (oldItem instanceof TransactionItem) {
-                    if (!(newItem instanceof TransactionItem))
+                if (oldItem == newItem)
+                    return true; // reused by TransactionsListIndex
+                if (oldItem instanceof TransactionItem || oldItem instanceof PlaceholderItem) {
+                    final Sha256Hash newTransactionHash;
+                    if (newItem instanceof TransactionItem)
+                        newTransactionHash = ((TransactionItem) newItem).transactionHash;
+                    else if (newItem instanceof PlaceholderItem)
+                        newTransactionHash = ((PlaceholderItem) newItem).transactionHash;
+                    else
                         return false;
-                    return Objects.equals(((TransactionItem) oldItem).transactionHash,
-                            ((TransactionItem) newItem).transactionHash);
+                    final Sha256Hash oldTransactionHash = oldItem instanceof TransactionItem
+                            ? ((TransactionItem) oldItem).transactionHash
+                            : ((PlaceholderItem) oldItem).transactionHash;
+                    return Objects.equals(oldTransactionHash, newTransactionHash);
                 } else {
                     if (!(newItem instanceof WarningItem))
                         return false;
@@ -413,6 +507,10 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
 
             @Override
             public boolean areContentsTheSame(final ListItem oldItem, final ListItem newItem) {
+                if (oldItem == newItem)
+                    return true;
+                if (oldItem.getClass() != newItem.getClass())
+                    return false; // placeholder was materialized or released
                 if (oldItem instanceof TransactionItem) {
                     final TransactionItem oldTransactionItem = (TransactionItem) oldItem;
                     final TransactionItem newTransactionItem = (TransactionItem) newItem;
@@ -489,6 +587,8 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
 
             @Override
             public Object getChangePayload(final ListItem oldItem, final ListItem newItem) {
+                if (oldItem.getClass() != newItem.getClass())
+                    return null; // full bind
                 final EnumSet<ChangeType> changes = EnumSet.noneOf(ChangeType.class);
                 if (oldItem instanceof TransactionItem) {
                     final TransactionItem oldTransactionItem = (TransactionItem) oldItem;
@@ -553,6 +653,14 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
         this.onClickListener = onClickListener;
     }
 
+    /**
+     * Rebind the times of all items, so that relative times like "5 minutes ago" don't go stale. Only the items on
+     * screen are actually bound.
+     */
+    public void rebindTimes() {
+        notifyItemRangeChanged(0, getItemCount(), EnumSet.of(ChangeType.TIME));
+    }
+
     @Override
     public int getItemViewType(final int position) {
         final ListItem listItem = getItem(position);
@@ -560,6 +668,8 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
             return VIEW_TYPE_WARNING;
         else if (listItem instanceof ListItem.TransactionItem)
             return VIEW_TYPE_TRANSACTION;
+        else if (listItem instanceof ListItem.PlaceholderItem)
+            return VIEW_TYPE_PLACEHOLDER;
         else
             throw new IllegalStateException();
     }
@@ -574,6 +684,8 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
             return new TransactionViewHolder(cardView);
         } else if (viewType == VIEW_TYPE_WARNING) {
             return new WarningViewHolder(inflater.inflate(R.layout.transaction_row_warning, parent, false));
+        } else if (viewType == VIEW_TYPE_PLACEHOLDER) {
+            return new PlaceholderViewHolder(inflater.inflate(R.layout.transaction_row_placeholder, parent, false));
         } else {
             throw new IllegalStateException("unknown type: " + viewType);
         }
@@ -643,7 +755,7 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
     @Override
     public void onBindViewHolder(final RecyclerView.ViewHolder holder, final int position,
             final List<Object> payloads) {
-        if (payloads.isEmpty()) { // Full bind
+        if (payloads.isEmpty() || !(holder instanceof TransactionViewHolder)) { // Full bind
             onBindViewHolder(holder, position);
         } else { // Partial bind
             final ListItem listItem = getItem(position);
@@ -776,7 +888,11 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
             (item.isSelected ? extendTimeView : timeView).setVisibility(View.VISIBLE);
             (item.isSelected ? timeView : extendTimeView).setVisibility(View.GONE);
             final TextView timeView = item.isSelected ? this.fullTimeView : this.timeView;
-            timeView.setText(item.time);
+            final Context context = itemView.getContext();
+            timeView.setText(item.isSelected
+                    ? DateUtils.formatDateTime(context, item.time,
+                            DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME)
+                    : DateUtils.getRelativeTimeSpanString(context, item.time));
             timeView.setTextColor(item.timeColor);
         }
 
@@ -829,6 +945,12 @@ public class TransactionsAdapter extends ListAdapter<TransactionsAdapter.ListIte
         }
     }
 
+    public static class PlaceholderViewHolder extends RecyclerView.ViewHolder {
+        private PlaceholderViewHolder(final View itemView) {
+            super(itemView);
+        }
+    }
+
     public static class WarningViewHolder extends RecyclerView.ViewHolder {
         private final TextView messageView;
 
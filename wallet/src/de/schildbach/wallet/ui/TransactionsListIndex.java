@@ -0,0 +1,299 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.utils.MonetaryFormat;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.data.AddressBookEntry;
+import de.schildbach.wallet.ui.TransactionsAdapter.ListItem;
+import de.schildbach.wallet.ui.TransactionsAdapter.WarningType;
+import de.schildbach.wallet.ui.WalletTransactionsViewModel.Direction;
+import de.schildbach.wallet.util.WalletUtils;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps the items of the transaction list sorted and indexed by transaction hash, so that on changes only the items
+ * of the transactions named by wallet events need to be rebuilt. Items that are reused keep their identity, which lets
+ * {@link TransactionsAdapter} skip them quickly when diffing. Relative times like "5 minutes ago" aren't part of the
+ * items, they're refreshed by {@link TransactionsAdapter#rebindTimes()}.
+ *
+ * <p>
+ * Only the items around the visible range are materialized. All other positions are held by placeholders, which
+ * are replaced as the visible range moves, see {@link #setVisibleRange(int, int)}.
+ */
+final class TransactionsListIndex {
+    private final Context context;
+    private final int maxConnectedPeers;
+
+    private final Map<Sha256Hash, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> sortedEntries = new TreeSet<>(ENTRY_COMPARATOR);
+
+    private Wallet wallet = null;
+    private MonetaryFormat format = null;
+    private List<AddressBookEntry> addressBook = null;
+    private Map<String, AddressBookEntry> addressBookMap = null;
+    private Direction direction = null;
+    private Sha256Hash selectedTransaction = null;
+    private WarningType warning = null;
+    private List<ListItem> list = null;
+    private int windowFrom = 0, windowTo = 0;
+    private long lastBlockSeenTimeSecs = 0;
+
+    private volatile int visibleFrom = 0, visibleTo = 0;
+    private volatile int materializedFrom = 0, materializedTo = 0, listSize = -1;
+
+    // positions materialized beyond each end of the visible range
+    private static final int PREFETCH = 30;
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionsListIndex.class);
+
+    public TransactionsListIndex(final Context context, final int maxConnectedPeers) {
+        this.context = context;
+        this.maxConnectedPeers = maxConnectedPeers;
+    }
+
+    /**
+     * Tell which list positions are on screen. Takes effect with the next {@link #update}.
+     *
+     * @return true if the range isn't well covered by materialized items, so an update is needed
+     */
+    public boolean setVisibleRange(final int from, final int to) {
+        visibleFrom = from;
+        visibleTo = to;
+        final int listSize = this.listSize;
+        if (listSize < 0)
+            return false; // first update is pending anyway
+        final boolean fromCovered = materializedFrom == 0 || from - materializedFrom >= PREFETCH / 2;
+        final boolean toCovered = materializedTo >= listSize || materializedTo - to > PREFETCH / 2;
+        return !(fromCovered && toCovered);
+    }
+
+    /**
+     * Bring the list up to date.
+     *
+     * @param changedTransactions
+     *            transactions that might have changed since the last update, as reported by wallet events
+     * @param resync
+     *            if true, all transactions of the wallet are checked, e.g. after they changed without events
+     * @return the list, or the same instance as last time if nothing changed
+     */
+    public synchronized List<ListItem> update(final Wallet wallet, final MonetaryFormat format,
+            final List<AddressBookEntry> addressBook, final @Nullable Direction direction,
+            final @Nullable Sha256Hash selectedTransaction, final @Nullable WarningType warning,
+            final Collection<Transaction> changedTransactions, boolean resync) {
+        final Stopwatch watch = Stopwatch.createStarted();
+        boolean dirty = list == null || direction != this.direction || warning != this.warning;
+        this.direction = direction;
+        this.warning = warning;
+        final int windowFrom = Math.max(visibleFrom - PREFETCH, 0);
+        final int windowTo = visibleTo + PREFETCH + 1;
+        if (windowFrom != this.windowFrom || windowTo != this.windowTo) {
+            this.windowFrom = windowFrom;
+            this.windowTo = windowTo;
+            dirty = true;
+        }
+
+        // everything shown depends on these
+        if (wallet != this.wallet || format != this.format || addressBook != this.addressBook) {
+            this.wallet = wallet;
+            this.format = format;
+            this.addressBook = addressBook;
+            this.addressBookMap = AddressBookEntry.asMap(addressBook);
+            entries.clear();
+            sortedEntries.clear();
+            resync = true;
+        }
+
+        final Set<Transaction> refresh = new HashSet<>(changedTransactions);
+        if (!Objects.equals(selectedTransaction, this.selectedTransaction)) {
+            addIfPresent(refresh, this.selectedTransaction);
+            addIfPresent(refresh, selectedTransaction);
+            this.selectedTransaction = selectedTransaction;
+        }
+        if (!resync && WalletUtils.numTransactions(wallet) != entries.size() + countNew(refresh))
+            resync = true; // transactions were added without events or removed
+
+        if (resync) {
+            final Set<Sha256Hash> gone = new HashSet<>(entries.keySet());
+            for (final Transaction tx : wallet.getTransactions(true)) {
+                gone.remove(tx.getTxId());
+                refresh.add(tx);
+            }
+            for (final Sha256Hash hash : gone)
+                sortedEntries.remove(entries.remove(hash));
+            dirty |= !gone.isEmpty();
+        }
+
+        // whether pending transactions are delayed depends on the last block, which comes without events for them
+        final long lastBlockSeenTimeSecs = wallet.getLastBlockSeenTimeSecs();
+        if (lastBlockSeenTimeSecs != this.lastBlockSeenTimeSecs) {
+            this.lastBlockSeenTimeSecs = lastBlockSeenTimeSecs;
+            for (final Entry entry : entries.values())
+                if (entry.pending)
+                    refresh.add(entry.tx);
+        }
+
+        for (final Transaction tx : refresh) {
+            final Sha256Hash hash = tx.getTxId();
+            final Entry oldEntry = entries.get(hash);
+            final int state = stateOf(tx, wallet);
+            final boolean isSelected = hash.equals(selectedTransaction);
+            if (!resync && oldEntry != null && oldEntry.state == state && oldEntry.isSelected == isSelected)
+                continue; // no visible change, e.g. depth beyond what's displayed
+            final Entry newEntry = new Entry(tx, state, wallet, isSelected);
+            if (oldEntry != null)
+                sortedEntries.remove(oldEntry);
+            entries.put(hash, newEntry);
+            sortedEntries.add(newEntry);
+            dirty = true;
+        }
+
+        int materialized = 0;
+        if (dirty) {
+            final List<ListItem> list = new ArrayList<>(sortedEntries.size() + 1);
+            if (warning != null)
+                list.add(new ListItem.WarningItem(warning));
+            for (final Entry entry : sortedEntries) {
+                if ((direction == Direction.RECEIVED && !entry.sent && !entry.internal) || direction == null
+                        || (direction == Direction.SENT && entry.sent && !entry.internal)) {
+                    final int position = list.size();
+                    if ((position >= windowFrom && position < windowTo) || entry.isSelected) {
+                        if (entry.item == null) {
+                            entry.item = new ListItem.TransactionItem(context, entry.tx, wallet, addressBookMap,
+                                    format.noCode(), maxConnectedPeers, entry.isSelected);
+                            materialized++;
+                        }
+                        list.add(entry.item);
+                    } else {
+                        entry.item = null; // let it go
+                        list.add(entry.placeholder);
+                    }
+                } else {
+                    entry.item = null;
+                }
+            }
+            this.list = list;
+            this.materializedFrom = windowFrom;
+            this.materializedTo = windowTo;
+            this.listSize = list.size();
+        }
+
+        watch.stop();
+        if (materialized > 0 || resync)
+            log.debug("updated transaction list, {} of {} items materialized{}, took {}", materialized,
+                    entries.size(), resync ? " (resync)" : "", watch);
+        return list;
+    }
+
+    private int countNew(final Set<Transaction> transactions) {
+        int count = 0;
+        for (final Transaction tx : transactions)
+            if (!entries.containsKey(tx.getTxId()))
+                count++;
+        return count;
+    }
+
+    private void addIfPresent(final Set<Transaction> set, final @Nullable Sha256Hash hash) {
+        if (hash != null) {
+            final Entry entry = entries.get(hash);
+            if (entry != null)
+                set.add(entry.tx);
+        }
+    }
+
+    /**
+     * Everything about a transaction that changes after it is added and shows in its item. Depth only counts up to
+     * what the confidence circle displays.
+     */
+    private static int stateOf(final Transaction tx, final Wallet wallet) {
+        final TransactionConfidence confidence = tx.getConfidence();
+        final ConfidenceType type = confidence.getConfidenceType();
+        final int depth = type == ConfidenceType.BUILDING ? Math.min(confidence.getDepthInBlocks(),
+                tx.isCoinBase() ? Constants.NETWORK_PARAMETERS.getSpendableCoinbaseDepth()
+                        : Constants.MAX_NUM_CONFIRMATIONS)
+                : -1;
+        final Date updateTime = tx.getUpdateTime();
+        final boolean delayed = type == ConfidenceType.PENDING && (updateTime == null || wallet
+                .getLastBlockSeenTimeSecs() * 1000 - updateTime.getTime() > Constants.DELAYED_TRANSACTION_THRESHOLD_MS);
+        return Objects.hash(type, depth, delayed, confidence.numBroadcastPeers(), confidence.getSource(), updateTime,
+                tx.getMemo(), tx.getExchangeRate(), tx.getPurpose());
+    }
+
+    private static final class Entry {
+        public final Transaction tx;
+        public final Sha256Hash hash;
+        public final int state;
+        public final boolean pending;
+        public final long time;
+        public final boolean sent;
+        public final boolean internal;
+        public final boolean isSelected;
+        public final ListItem.PlaceholderItem placeholder;
+        @Nullable
+        public ListItem.TransactionItem item; // only within the window
+
+        public Entry(final Transaction tx, final int state, final Wallet wallet, final boolean isSelected) {
+            this.tx = tx;
+            this.hash = tx.getTxId();
+            this.state = state;
+            this.pending = tx.getConfidence().getConfidenceType() == ConfidenceType.PENDING;
+            final Date updateTime = tx.getUpdateTime();
+            this.time = updateTime != null ? updateTime.getTime() : 0;
+            this.sent = tx.getValue(wallet).signum() < 0;
+            this.internal = WalletUtils.isInternal(tx, wallet);
+            this.isSelected = isSelected;
+            this.placeholder = new ListItem.PlaceholderItem(hash);
+        }
+    }
+
+    // pending first, then newest first
+    private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry entry1, final Entry entry2) {
+            if (entry1.pending != entry2.pending)
+                return entry1.pending ? -1 : 1;
+            if (entry1.time != entry2.time)
+                return entry1.time > entry2.time ? -1 : 1;
+            return entry1.hash.compareTo(entry2.hash);
+        }
+    };
+}
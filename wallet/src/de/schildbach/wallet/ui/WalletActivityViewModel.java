@@ -23,9 +23,9 @@ import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.data.AbstractWalletLiveData;
 import de.schildbach.wallet.util.OnFirstPreDraw;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.app.Application;
-import android.os.AsyncTask;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.MutableLiveData;
 
@@ -109,7 +109,7 @@ public class WalletActivityViewModel extends AndroidViewModel implements OnFirst
         @Override
         protected void load() {
             final Wallet wallet = getWallet();
-            AsyncTask.execute(new Runnable() {
+            WalletExecutor.get().execute(WalletExecutor.Lane.UI, this, new Runnable() {
                 @Override
                 public void run() {
                     org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
@@ -18,26 +18,21 @@
 package de.schildbach.wallet.ui;
 
 import org.bitcoinj.core.Address;
-import org.bitcoinj.core.Coin;
-import org.bitcoinj.core.Transaction;
 import org.bitcoinj.uri.BitcoinURI;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
-import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
-import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
-import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
-import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
 
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.data.AbstractWalletLiveData;
 import de.schildbach.wallet.data.ConfigOwnNameLiveData;
 import de.schildbach.wallet.util.Qr;
+import de.schildbach.wallet.util.WalletEventHub;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.app.Application;
 import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.AsyncTask;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.MediatorLiveData;
 import androidx.lifecycle.MutableLiveData;
@@ -88,7 +83,7 @@ public class WalletAddressViewModel extends AndroidViewModel {
     private void maybeGenerateQrCode() {
         final Address address = currentAddress.getValue();
         if (address != null) {
-            AsyncTask.execute(new Runnable() {
+            WalletExecutor.get().execute(WalletExecutor.Lane.UI, qrCode, new Runnable() {
                 @Override
                 public void run() {
                     qrCode.postValue(Qr.bitmap(uri(address, ownName.getValue())));
@@ -108,40 +103,27 @@ public class WalletAddressViewModel extends AndroidViewModel {
         return BitcoinURI.convertToBitcoinURI(address, null, label, null);
     }
 
-    public static class CurrentAddressLiveData extends AbstractWalletLiveData<Address> {
+    public static class CurrentAddressLiveData extends AbstractWalletLiveData<Address>
+            implements WalletEventHub.Subscriber {
         public CurrentAddressLiveData(final WalletApplication application) {
             super(application);
         }
 
         @Override
         protected void onWalletActive(final Wallet wallet) {
-            addWalletListener(wallet);
+            WalletEventHub.of(wallet).subscribe(Threading.SAME_THREAD, this);
             load();
         }
 
         @Override
         protected void onWalletInactive(final Wallet wallet) {
-            removeWalletListener(wallet);
-        }
-
-        private void addWalletListener(final Wallet wallet) {
-            wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletListener);
-            wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletListener);
-            wallet.addReorganizeEventListener(Threading.SAME_THREAD, walletListener);
-            wallet.addChangeEventListener(Threading.SAME_THREAD, walletListener);
-        }
-
-        private void removeWalletListener(final Wallet wallet) {
-            wallet.removeChangeEventListener(walletListener);
-            wallet.removeReorganizeEventListener(walletListener);
-            wallet.removeCoinsSentEventListener(walletListener);
-            wallet.removeCoinsReceivedEventListener(walletListener);
+            WalletEventHub.of(wallet).unsubscribe(this);
         }
 
         @Override
         protected void load() {
             final Wallet wallet = getWallet();
-            AsyncTask.execute(new Runnable() {
+            WalletExecutor.get().execute(WalletExecutor.Lane.UI, this, new Runnable() {
                 @Override
                 public void run() {
                     org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
@@ -150,31 +132,9 @@ public class WalletAddressViewModel extends AndroidViewModel {
             });
         }
 
-        private final WalletListener walletListener = new WalletListener();
-
-        private class WalletListener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
-                WalletReorganizeEventListener, WalletChangeEventListener {
-            @Override
-            public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
-                    final Coin newBalance) {
-                triggerLoad();
-            }
-
-            @Override
-            public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance,
-                    final Coin newBalance) {
-                triggerLoad();
-            }
-
-            @Override
-            public void onReorganize(final Wallet wallet) {
-                triggerLoad();
-            }
-
-            @Override
-            public void onWalletChanged(final Wallet wallet) {
-                triggerLoad();
-            }
+        @Override
+        public void onWalletEvents(final WalletEventHub.Batch batch) {
+            triggerLoad();
         }
     }
 }
@@ -35,10 +35,10 @@ import de.schildbach.wallet.data.AddressBookEntry;
 import de.schildbach.wallet.data.AppDatabase;
 import de.schildbach.wallet.data.ConfigOwnNameLiveData;
 import de.schildbach.wallet.data.WalletLiveData;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.app.Application;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
@@ -90,7 +90,7 @@ public class WalletAddressesViewModel extends AndroidViewModel {
 
         private void loadAddresses() {
             final Wallet wallet = getWallet();
-            AsyncTask.execute(new Runnable() {
+            WalletExecutor.get().execute(WalletExecutor.Lane.UI, this, new Runnable() {
                 @Override
                 public void run() {
                     postValue(wallet.getIssuedReceiveAddresses());
@@ -123,7 +123,7 @@ public class WalletAddressesViewModel extends AndroidViewModel {
 
         private void loadAddresses() {
             final Wallet wallet = getWallet();
-            AsyncTask.execute(new Runnable() {
+            WalletExecutor.get().execute(WalletExecutor.Lane.UI, this, new Runnable() {
                 @Override
                 public void run() {
                     final List<ECKey> importedKeys = wallet.getImportedKeys();
@@ -17,6 +17,7 @@
 
 package de.schildbach.wallet.ui;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
@@ -150,6 +151,12 @@ public class WalletTransactionsFragment extends Fragment implements Transactions
                 ViewModelProviders.of(activity).get(WalletActivityViewModel.class).transactionsLoadingFinished();
             }
         });
+        viewModel.time.observe(this, new Observer<Date>() {
+            @Override
+            public void onChanged(final Date time) {
+                adapter.rebindTimes();
+            }
+        });
         viewModel.showBitmapDialog.observe(this, new Event.Observer<Bitmap>() {
             @Override
             public void onEvent(final Bitmap bitmap) {
@@ -185,9 +192,19 @@ public class WalletTransactionsFragment extends Fragment implements Transactions
 
         recyclerView = (RecyclerView) view.findViewById(R.id.wallet_transactions_list);
         recyclerView.setHasFixedSize(true);
-        recyclerView.setLayoutManager(new StickToTopLinearLayoutManager(activity));
+        final StickToTopLinearLayoutManager layoutManager = new StickToTopLinearLayoutManager(activity);
+        recyclerView.setLayoutManager(layoutManager);
         recyclerView.setItemAnimator(new TransactionsAdapter.ItemAnimator());
         recyclerView.setAdapter(adapter);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(final RecyclerView recyclerView, final int dx, final int dy) {
+                // also called after layout
+                final int first = layoutManager.findFirstVisibleItemPosition();
+                if (first != RecyclerView.NO_POSITION)
+                    viewModel.setVisibleRange(first, layoutManager.findLastVisibleItemPosition());
+            }
+        });
         recyclerView.addItemDecoration(new RecyclerView.ItemDecoration() {
             private final int PADDING = 2
                     * activity.getResources().getDimensionPixelOffset(R.dimen.card_padding_vertical);
@@ -18,27 +18,19 @@
 package de.schildbach.wallet.ui;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.bitcoinj.core.Address;
-import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
-import org.bitcoinj.core.Transaction.Purpose;
+import org.bitcoinj.core.TransactionConfidence;
 import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
-import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
-import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
-import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
-import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
-import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
 
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
@@ -46,11 +38,14 @@ import de.schildbach.wallet.data.AbstractWalletLiveData;
 import de.schildbach.wallet.data.AddressBookEntry;
 import de.schildbach.wallet.data.AppDatabase;
 import de.schildbach.wallet.data.ConfigFormatLiveData;
+import de.schildbach.wallet.data.TimeLiveData;
+import de.schildbach.wallet.data.TransactionSummary;
 import de.schildbach.wallet.data.WalletLiveData;
+import de.schildbach.wallet.util.WalletEventHub;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.app.Application;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MediatorLiveData;
@@ -68,9 +63,10 @@ public class WalletTransactionsViewModel extends AndroidViewModel {
     private final WalletApplication application;
     public final TransactionsLiveData transactions;
     public final WalletLiveData wallet;
-    private final TransactionsConfidenceLiveData transactionsConfidence;
+    private final TransactionChangesLiveData transactionChanges;
     private final LiveData<List<AddressBookEntry>> addressBook;
     private final ConfigFormatLiveData configFormat;
+    public final TimeLiveData time;
     public final MutableLiveData<Direction> direction = new MutableLiveData<>();
     private final MutableLiveData<Sha256Hash> selectedTransaction = new MutableLiveData<>();
     public final MutableLiveData<TransactionsAdapter.WarningType> warning = new MutableLiveData<>();
@@ -79,14 +75,24 @@ public class WalletTransactionsViewModel extends AndroidViewModel {
     public final MutableLiveData<Event<Address>> showEditAddressBookEntryDialog = new MutableLiveData<>();
     public final MutableLiveData<Event<String>> showReportIssueDialog = new MutableLiveData<>();
 
+    private final TransactionsListIndex listIndex;
+    private final Object postListLock = new Object();
+    private boolean walletListPosted = false; // guarded by postListLock
+
+    // enough to fill the screen until the wallet is loaded
+    private static final int NUM_SUMMARIES = 50;
+
     public WalletTransactionsViewModel(final Application application) {
         super(application);
         this.application = (WalletApplication) application;
         this.transactions = new TransactionsLiveData(this.application);
         this.wallet = new WalletLiveData(this.application);
-        this.transactionsConfidence = new TransactionsConfidenceLiveData(this.application);
+        this.transactionChanges = new TransactionChangesLiveData(this.application);
+        this.listIndex = new TransactionsListIndex(this.application, this.application.maxConnectedPeers());
         this.addressBook = AppDatabase.getDatabase(this.application).addressBookDao().getAll();
         this.configFormat = new ConfigFormatLiveData(this.application);
+        this.time = new TimeLiveData(this.application);
+        maybePostSummaries();
         this.list.addSource(transactions, new Observer<Set<Transaction>>() {
             @Override
             public void onChanged(final Set<Transaction> transactions) {
@@ -99,7 +105,7 @@ public class WalletTransactionsViewModel extends AndroidViewModel {
                 maybePostList();
             }
         });
-        this.list.addSource(transactionsConfidence, new Observer<Void>() {
+        this.list.addSource(transactionChanges, new Observer<Void>() {
             @Override
             public void onChanged(final Void v) {
                 maybePostList();
@@ -147,57 +153,76 @@ public class WalletTransactionsViewModel extends AndroidViewModel {
         this.warning.setValue(warning);
     }
 
+    /**
+     * Only items around the visible positions are materialized, the rest of the list is held by placeholders.
+     */
+    public void setVisibleRange(final int from, final int to) {
+        if (listIndex.setVisibleRange(from, to))
+            maybePostList();
+    }
+
     private void maybePostList() {
-        AsyncTask.execute(new Runnable() {
+        WalletExecutor.get().execute(WalletExecutor.Lane.UI, listIndex, new Runnable() {
             @Override
             public void run() {
                 org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
                 final Set<Transaction> transactions = WalletTransactionsViewModel.this.transactions.getValue();
                 final MonetaryFormat format = configFormat.getValue();
-                final Map<String, AddressBookEntry> addressBook = AddressBookEntry
-                        .asMap(WalletTransactionsViewModel.this.addressBook.getValue());
+                final List<AddressBookEntry> addressBook = WalletTransactionsViewModel.this.addressBook.getValue();
                 if (transactions != null && format != null && addressBook != null) {
-                    final List<Transaction> filteredTransactions = new ArrayList<Transaction>(transactions.size());
-                    final Wallet wallet = application.getWallet();
-                    final Direction direction = WalletTransactionsViewModel.this.direction.getValue();
-                    for (final Transaction tx : transactions) {
-                        final boolean sent = tx.getValue(wallet).signum() < 0;
-                        final boolean isInternal = tx.getPurpose() == Purpose.KEY_ROTATION;
-                        if ((direction == Direction.RECEIVED && !sent && !isInternal) || direction == null
-                                || (direction == Direction.SENT && sent && !isInternal))
-                            filteredTransactions.add(tx);
+                    final Set<Transaction> changedTransactions = new HashSet<>();
+                    final boolean resync = transactionChanges.drain(changedTransactions);
+                    final List<TransactionsAdapter.ListItem> previousList = list.getValue();
+                    final List<TransactionsAdapter.ListItem> newList = listIndex.update(application.getWallet(),
+                            format, addressBook, direction.getValue(), selectedTransaction.getValue(),
+                            warning.getValue(), changedTransactions, resync);
+                    synchronized (postListLock) {
+                        walletListPosted = true;
+                        if (newList != previousList)
+                            list.postValue(newList);
                     }
-
-                    Collections.sort(filteredTransactions, TRANSACTION_COMPARATOR);
-
-                    list.postValue(TransactionsAdapter.buildListItems(application, filteredTransactions,
-                            warning.getValue(), wallet, addressBook, format, application.maxConnectedPeers(),
-                            selectedTransaction.getValue()));
                 }
             }
         });
     }
 
-    private static final Comparator<Transaction> TRANSACTION_COMPARATOR = new Comparator<Transaction>() {
-        @Override
-        public int compare(final Transaction tx1, final Transaction tx2) {
-            final boolean pending1 = tx1.getConfidence().getConfidenceType() == ConfidenceType.PENDING;
-            final boolean pending2 = tx2.getConfidence().getConfidenceType() == ConfidenceType.PENDING;
-            if (pending1 != pending2)
-                return pending1 ? -1 : 1;
-
-            final Date updateTime1 = tx1.getUpdateTime();
-            final long time1 = updateTime1 != null ? updateTime1.getTime() : 0;
-            final Date updateTime2 = tx2.getUpdateTime();
-            final long time2 = updateTime2 != null ? updateTime2.getTime() : 0;
-            if (time1 != time2)
-                return time1 > time2 ? -1 : 1;
-
-            return tx1.getHash().compareTo(tx2.getHash());
-        }
-    };
+    /**
+     * Show what was stored of the newest transactions until the list from the wallet takes over.
+     */
+    private void maybePostSummaries() {
+        WalletExecutor.get().execute(WalletExecutor.Lane.UI, new Runnable() {
+            @Override
+            public void run() {
+                final AppDatabase database = AppDatabase.getDatabase(application);
+                final List<TransactionSummary> summaries = database.transactionSummaryDao()
+                        .getNewest(NUM_SUMMARIES);
+                if (summaries.isEmpty())
+                    return;
+                final Map<String, AddressBookEntry> addressBook = AddressBookEntry
+                        .asMap(database.addressBookDao().get(""));
+                final MonetaryFormat format = application.getConfiguration().getFormat().noCode();
+                final Direction direction = WalletTransactionsViewModel.this.direction.getValue();
+                final List<TransactionsAdapter.ListItem> items = new ArrayList<>(summaries.size());
+                for (final TransactionSummary summary : summaries) {
+                    final String summaryDirection = summary.getDirection();
+                    if (direction == null
+                            || (direction == Direction.RECEIVED
+                                    && TransactionSummary.DIRECTION_RECEIVED.equals(summaryDirection))
+                            || (direction == Direction.SENT
+                                    && TransactionSummary.DIRECTION_SENT.equals(summaryDirection)))
+                        items.add(new TransactionsAdapter.ListItem.TransactionItem(application, summary,
+                                addressBook, format));
+                }
+                synchronized (postListLock) {
+                    if (!walletListPosted)
+                        list.postValue(items);
+                }
+            }
+        });
+    }
 
-    public static class TransactionsLiveData extends AbstractWalletLiveData<Set<Transaction>> {
+    public static class TransactionsLiveData extends AbstractWalletLiveData<Set<Transaction>>
+            implements WalletEventHub.Subscriber {
         private static final long THROTTLE_MS = 1000;
 
         public TransactionsLiveData(final WalletApplication application) {
@@ -206,33 +231,19 @@ public class WalletTransactionsViewModel extends AndroidViewModel {
 
         @Override
         protected void onWalletActive(final Wallet wallet) {
-            addWalletListener(wallet);
+            WalletEventHub.of(wallet).subscribe(Threading.SAME_THREAD, this);
             load();
         }
 
         @Override
         protected void onWalletInactive(final Wallet wallet) {
-            removeWalletListener(wallet);
-        }
-
-        private void addWalletListener(final Wallet wallet) {
-            wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletListener);
-            wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletListener);
-            wallet.addReorganizeEventListener(Threading.SAME_THREAD, walletListener);
-            wallet.addChangeEventListener(Threading.SAME_THREAD, walletListener);
-        }
-
-        private void removeWalletListener(final Wallet wallet) {
-            wallet.removeChangeEventListener(walletListener);
-            wallet.removeReorganizeEventListener(walletListener);
-            wallet.removeCoinsSentEventListener(walletListener);
-            wallet.removeCoinsReceivedEventListener(walletListener);
+            WalletEventHub.of(wallet).unsubscribe(this);
         }
 
         @Override
         protected void load() {
             final Wallet wallet = getWallet();
-            AsyncTask.execute(new Runnable() {
+            WalletExecutor.get().execute(WalletExecutor.Lane.UI, this, new Runnable() {
                 @Override
                 public void run() {
                     org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
@@ -241,55 +252,79 @@ public class WalletTransactionsViewModel extends AndroidViewModel {
             });
         }
 
-        private final WalletListener walletListener = new WalletListener();
-
-        private class WalletListener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
-                WalletReorganizeEventListener, WalletChangeEventListener {
-            @Override
-            public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
-                    final Coin newBalance) {
-                triggerLoad();
-            }
-
-            @Override
-            public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance,
-                    final Coin newBalance) {
-                triggerLoad();
-            }
-
-            @Override
-            public void onReorganize(final Wallet wallet) {
-                triggerLoad();
-            }
-
-            @Override
-            public void onWalletChanged(final Wallet wallet) {
-                triggerLoad();
-            }
+        @Override
+        public void onWalletEvents(final WalletEventHub.Batch batch) {
+            triggerLoad();
         }
     }
 
-    private static class TransactionsConfidenceLiveData extends AbstractWalletLiveData<Void>
-            implements TransactionConfidenceEventListener {
-        public TransactionsConfidenceLiveData(final WalletApplication application) {
+    /**
+     * Collects the transactions that changed since the last {@link #drain(Set)}, so that only their list items need to
+     * be rebuilt.
+     */
+    private static class TransactionChangesLiveData extends AbstractWalletLiveData<Void>
+            implements WalletEventHub.Subscriber {
+        private final Set<Transaction> changedTransactions = new HashSet<>();
+        private boolean resyncNeeded = true;
+
+        public TransactionChangesLiveData(final WalletApplication application) {
             super(application);
         }
 
         @Override
         protected void onWalletActive(final Wallet wallet) {
-            wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, this);
+            WalletEventHub.of(wallet).subscribe(Threading.SAME_THREAD, this);
+            synchronized (this) {
+                resyncNeeded = true; // events were missed while inactive
+            }
+            triggerLoad();
         }
 
         @Override
         protected void onWalletInactive(final Wallet wallet) {
-            wallet.removeTransactionConfidenceEventListener(this);
+            WalletEventHub.of(wallet).unsubscribe(this);
+        }
+
+        @Override
+        protected void onWalletHistoryLoaded(final Wallet wallet) {
+            synchronized (this) {
+                resyncNeeded = true; // the history was added without events
+            }
+            triggerLoad();
         }
 
         @Override
-        public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+        public void onWalletEvents(final WalletEventHub.Batch batch) {
+            synchronized (this) {
+                if (batch.contains(WalletEventHub.Type.REORGANIZE))
+                    resyncNeeded = true;
+                changedTransactions.addAll(batch.coinsTransactions);
+                for (final Transaction tx : batch.confidenceTransactions) {
+                    // every new block touches every building transaction, but the list only shows depth up to a
+                    // point
+                    final TransactionConfidence confidence = tx.getConfidence();
+                    if (confidence.getConfidenceType() != ConfidenceType.BUILDING || confidence
+                            .getDepthInBlocks() <= Constants.NETWORK_PARAMETERS.getSpendableCoinbaseDepth())
+                        changedTransactions.add(tx);
+                }
+            }
+            // added or removed transactions are noticed by the index
             triggerLoad();
         }
 
+        /**
+         * Move the collected transactions to the given set.
+         *
+         * @return true if all transactions need to be checked
+         */
+        public synchronized boolean drain(final Set<Transaction> transactions) {
+            transactions.addAll(changedTransactions);
+            changedTransactions.clear();
+            final boolean resync = resyncNeeded;
+            resyncNeeded = false;
+            return resync;
+        }
+
         @Override
         protected void load() {
             postValue(null);
@@ -35,6 +35,7 @@ import de.schildbach.wallet.data.AppDatabase;
 import de.schildbach.wallet.data.TimeLiveData;
 import de.schildbach.wallet.data.WalletLiveData;
 import de.schildbach.wallet.service.BlockchainService;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.app.Application;
 import android.content.BroadcastReceiver;
@@ -43,7 +44,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.os.AsyncTask;
 import android.os.IBinder;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
@@ -150,7 +150,7 @@ public class BlockListViewModel extends AndroidViewModel {
             final Wallet wallet = getWallet();
             if (wallet == null)
                 return;
-            AsyncTask.execute(new Runnable() {
+            WalletExecutor.get().execute(WalletExecutor.Lane.UI, this, new Runnable() {
                 @Override
                 public void run() {
                     org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
@@ -18,6 +18,7 @@
 package de.schildbach.wallet.ui.monitor;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -27,13 +28,16 @@ import org.bitcoinj.core.Peer;
 import org.bitcoinj.core.VersionMessage;
 
 import de.schildbach.wallet.R;
+import de.schildbach.wallet.service.PeerSyncMetrics;
 
 import android.content.Context;
 import android.graphics.Typeface;
+import android.text.format.Formatter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
+import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
@@ -43,15 +47,17 @@ import androidx.recyclerview.widget.RecyclerView;
  */
 public class PeerListAdapter extends ListAdapter<PeerListAdapter.ListItem, PeerListAdapter.ViewHolder> {
     public static List<ListItem> buildListItems(final Context context, final List<Peer> peers,
-            final Map<InetAddress, String> hostnames) {
+            final Map<InetAddress, String> hostnames,
+            final Map<InetSocketAddress, PeerSyncMetrics.Snapshot> syncMetrics) {
         final List<ListItem> items = new ArrayList<>(peers.size());
         for (final Peer peer : peers)
-            items.add(new ListItem(context, peer, hostnames));
+            items.add(new ListItem(context, peer, hostnames, syncMetrics.get(peer.getAddress().getSocketAddress())));
         return items;
     }
 
     public static class ListItem {
-        public ListItem(final Context context, final Peer peer, final Map<InetAddress, String> hostnames) {
+        public ListItem(final Context context, final Peer peer, final Map<InetAddress, String> hostnames,
+                @Nullable final PeerSyncMetrics.Snapshot syncMetrics) {
             this.ip = peer.getAddress().getAddr();
             this.hostname = hostnames.get(ip);
             this.height = peer.getBestHeight();
@@ -62,6 +68,32 @@ public class PeerListAdapter extends ListAdapter<PeerListAdapter.ListItem, PeerL
             this.ping = pingTime < Long.MAX_VALUE ? context.getString(R.string.peer_list_row_ping_time, pingTime)
                     : null;
             this.isDownloading = peer.isDownloadData();
+            if (syncMetrics != null) {
+                this.throughput = context.getString(R.string.peer_list_row_throughput, syncMetrics.blocksPerSecond,
+                        Formatter.formatShortFileSize(context, syncMetrics.bytesReceived),
+                        Formatter.formatShortFileSize(context, syncMetrics.bytesSent));
+                final StringBuilder quality = new StringBuilder();
+                if (syncMetrics.pingP50 >= 0)
+                    quality.append(context.getString(R.string.peer_list_row_ping_percentiles, syncMetrics.pingP50,
+                            syncMetrics.pingP90));
+                final double falsePositiveRate = syncMetrics.falsePositiveRate();
+                if (falsePositiveRate >= 0)
+                    appendSeparated(quality, context.getString(R.string.peer_list_row_false_positives,
+                            Math.round(falsePositiveRate * 100)));
+                if (syncMetrics.numStalls > 0 || syncMetrics.currentStallMs > 0)
+                    appendSeparated(quality, context.getString(R.string.peer_list_row_stalls, syncMetrics.numStalls,
+                            syncMetrics.longestStallMs / 1000));
+                this.quality = quality.length() > 0 ? quality.toString() : null;
+            } else {
+                this.throughput = null;
+                this.quality = null;
+            }
+        }
+
+        private static void appendSeparated(final StringBuilder builder, final String text) {
+            if (builder.length() > 0)
+                builder.append("  ");
+            builder.append(text);
         }
 
         public final InetAddress ip;
@@ -71,6 +103,8 @@ public class PeerListAdapter extends ListAdapter<PeerListAdapter.ListItem, PeerL
         public final String protocol;
         public final String ping;
         public final boolean isDownloading;
+        public final String throughput;
+        public final String quality;
     }
 
     private final LayoutInflater inflater;
@@ -90,6 +124,10 @@ public class PeerListAdapter extends ListAdapter<PeerListAdapter.ListItem, PeerL
                     return false;
                 if (!Objects.equals(oldItem.isDownloading, newItem.isDownloading))
                     return false;
+                if (!Objects.equals(oldItem.throughput, newItem.throughput))
+                    return false;
+                if (!Objects.equals(oldItem.quality, newItem.quality))
+                    return false;
                 return true;
             }
         });
@@ -114,6 +152,10 @@ public class PeerListAdapter extends ListAdapter<PeerListAdapter.ListItem, PeerL
         holder.protocolView.setTypeface(listItem.isDownloading ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
         holder.pingView.setText(listItem.ping);
         holder.pingView.setTypeface(listItem.isDownloading ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
+        holder.throughputView.setText(listItem.throughput);
+        holder.throughputView.setVisibility(listItem.throughput != null ? View.VISIBLE : View.GONE);
+        holder.qualityView.setText(listItem.quality);
+        holder.qualityView.setVisibility(listItem.quality != null ? View.VISIBLE : View.GONE);
     }
 
     public static class ViewHolder extends RecyclerView.ViewHolder {
@@ -122,6 +164,8 @@ public class PeerListAdapter extends ListAdapter<PeerListAdapter.ListItem, PeerL
         private final TextView versionView;
         private final TextView protocolView;
         private final TextView pingView;
+        private final TextView throughputView;
+        private final TextView qualityView;
 
         private ViewHolder(final View itemView) {
             super(itemView);
@@ -130,6 +174,8 @@ public class PeerListAdapter extends ListAdapter<PeerListAdapter.ListItem, PeerL
             versionView = (TextView) itemView.findViewById(R.id.peer_list_row_version);
             protocolView = (TextView) itemView.findViewById(R.id.peer_list_row_protocol);
             pingView = (TextView) itemView.findViewById(R.id.peer_list_row_ping);
+            throughputView = (TextView) itemView.findViewById(R.id.peer_list_row_throughput);
+            qualityView = (TextView) itemView.findViewById(R.id.peer_list_row_quality);
         }
     }
 }
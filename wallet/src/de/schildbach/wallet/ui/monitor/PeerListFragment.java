@@ -99,6 +99,7 @@ public final class PeerListFragment extends Fragment {
     private void maybeSubmitList() {
         final List<Peer> peers = viewModel.getPeers().getValue();
         if (peers != null)
-            adapter.submitList(PeerListAdapter.buildListItems(activity, peers, viewModel.getHostnames().getValue()));
+            adapter.submitList(PeerListAdapter.buildListItems(activity, peers, viewModel.getHostnames().getValue(),
+                    viewModel.getPeers().getSyncMetrics()));
     }
 }
@@ -18,6 +18,8 @@
 package de.schildbach.wallet.ui.monitor;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,6 +28,8 @@ import org.bitcoinj.core.Peer;
 
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.service.BlockchainService;
+import de.schildbach.wallet.service.PeerSyncMetrics;
+import de.schildbach.wallet.util.WalletExecutor;
 
 import android.app.Application;
 import android.content.BroadcastReceiver;
@@ -34,7 +38,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.IBinder;
 import androidx.lifecycle.AndroidViewModel;
@@ -70,6 +73,10 @@ public class PeerListViewModel extends AndroidViewModel {
         private final WalletApplication application;
         private LocalBroadcastManager broadcastManager;
         private BlockchainService blockchainService;
+        private Map<InetSocketAddress, PeerSyncMetrics.Snapshot> syncMetrics = Collections.emptyMap();
+        private final Handler handler = new Handler();
+
+        private static final long SYNC_METRICS_REFRESH_MS = 2000;
 
         private PeersLiveData(final WalletApplication application) {
             this.application = application;
@@ -84,6 +91,7 @@ public class PeerListViewModel extends AndroidViewModel {
 
         @Override
         protected void onInactive() {
+            handler.removeCallbacksAndMessages(null);
             application.unbindService(this);
             broadcastManager.unregisterReceiver(broadcastReceiver);
         }
@@ -91,19 +99,41 @@ public class PeerListViewModel extends AndroidViewModel {
         @Override
         public void onServiceConnected(final ComponentName name, final IBinder service) {
             blockchainService = ((BlockchainService.LocalBinder) service).getService();
-            setValue(blockchainService.getConnectedPeers());
+            refresh();
         }
 
         @Override
         public void onServiceDisconnected(final ComponentName name) {
+            handler.removeCallbacksAndMessages(null);
             blockchainService = null;
         }
 
+        /**
+         * @return sync metrics of the peers, as of the last change of the value
+         */
+        public Map<InetSocketAddress, PeerSyncMetrics.Snapshot> getSyncMetrics() {
+            return syncMetrics;
+        }
+
+        private void refresh() {
+            handler.removeCallbacksAndMessages(null);
+            syncMetrics = blockchainService.getPeerSyncMetrics();
+            setValue(blockchainService.getConnectedPeers());
+            // metrics change all the time, unlike the peers
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (blockchainService != null)
+                        refresh();
+                }
+            }, SYNC_METRICS_REFRESH_MS);
+        }
+
         private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(final Context context, final Intent intent) {
                 if (blockchainService != null)
-                    setValue(blockchainService.getConnectedPeers());
+                    refresh();
             }
         };
     }
@@ -118,7 +148,7 @@ public class PeerListViewModel extends AndroidViewModel {
         public void reverseLookup(final InetAddress address) {
             final Map<InetAddress, String> hostnames = getValue();
             if (!hostnames.containsKey(address)) {
-                AsyncTask.execute(new Runnable() {
+                WalletExecutor.get().execute(WalletExecutor.Lane.BACKGROUND, new Runnable() {
                     @Override
                     public void run() {
                         final String hostname = address.getCanonicalHostName();
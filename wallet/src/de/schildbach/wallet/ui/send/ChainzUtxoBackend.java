@@ -0,0 +1,113 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharStreams;
+
+import de.schildbach.wallet.Constants;
+
+import android.text.format.DateUtils;
+import androidx.annotation.Nullable;
+
+/**
+ * Looks up unspent outputs at the chainz block explorer.
+ */
+public final class ChainzUtxoBackend implements UtxoBackend {
+    @Nullable
+    private final String userAgent;
+
+    public ChainzUtxoBackend(@Nullable final String userAgent) {
+        this.userAgent = userAgent;
+    }
+
+    @Override
+    public String name() {
+        return "chainz";
+    }
+
+    @Override
+    public Set<UTXO> lookup(final Address address) throws IOException, InterruptedException {
+        final StringBuilder url = new StringBuilder(Constants.BITEASY_API_URL);
+        url.append("&key=d47da926b82e"); // Cryptoid API key
+        url.append("&active=").append(address.toBase58());
+
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url.toString()).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(15 * (int) DateUtils.SECOND_IN_MILLIS);
+            connection.setReadTimeout(15 * (int) DateUtils.SECOND_IN_MILLIS);
+            connection.setUseCaches(false);
+            connection.setDoInput(true);
+            connection.setDoOutput(false);
+            connection.setRequestMethod("GET");
+            if (userAgent != null)
+                connection.addRequestProperty("User-Agent", userAgent);
+            connection.connect();
+
+            final int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK)
+                throw new IOException("HTTP " + responseCode + " " + connection.getResponseMessage());
+
+            final StringBuilder content = new StringBuilder();
+            try (final Reader reader = new InputStreamReader(
+                    new BufferedInputStream(connection.getInputStream(), 1024), Charsets.UTF_8)) {
+                CharStreams.copy(reader, content);
+            }
+            if (Thread.interrupted())
+                throw new InterruptedException();
+
+            final JSONArray jsonOutputs = new JSONObject(content.toString()).getJSONArray("unspent_outputs");
+            final Script outputScript = ScriptBuilder.createOutputScript(address);
+            final Set<UTXO> utxos = new HashSet<>(jsonOutputs.length());
+            for (int i = 0; i < jsonOutputs.length(); i++) {
+                final JSONObject jsonOutput = jsonOutputs.getJSONObject(i);
+                final Sha256Hash utxoHash = Sha256Hash.wrap(jsonOutput.getString("tx_hash"));
+                final int utxoIndex = jsonOutput.getInt("tx_ouput_n");
+                final Coin utxoValue = Coin.valueOf(Long.parseLong(jsonOutput.getString("value")));
+                utxos.add(new UTXO(utxoHash, utxoIndex, utxoValue, 0, false, outputScript, address.toString()));
+            }
+            return utxos;
+        } catch (final JSONException x) {
+            throw new IOException("cannot parse unspent outputs", x);
+        } finally {
+            if (connection != null)
+                connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.service.ElectrumClient;
+
+/**
+ * Looks up unspent outputs at Electrum servers.
+ */
+public final class ElectrumUtxoBackend implements UtxoBackend {
+    private final ElectrumClient client;
+
+    public ElectrumUtxoBackend(final ElectrumClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public String name() {
+        return "electrum";
+    }
+
+    @Override
+    public Set<UTXO> lookup(final Address address) throws IOException, InterruptedException {
+        final Script outputScript = ScriptBuilder.createOutputScript(address);
+        final String scripthash = Constants.HEX.encode(Sha256Hash.of(outputScript.getProgram()).getReversedBytes());
+        final Object result;
+        try {
+            result = client.call("blockchain.scripthash.listunspent", scripthash).get();
+        } catch (final ExecutionException x) {
+            final Throwable cause = x.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        if (result == null)
+            throw new IOException("empty response");
+        try {
+            final Set<UTXO> utxos = new HashSet<>();
+            for (final Object responseUtxo : (List<?>) result) {
+                final Map<?, ?> map = (Map<?, ?>) responseUtxo;
+                final Sha256Hash utxoHash = Sha256Hash.wrap((String) map.get("tx_hash"));
+                final int utxoIndex = ((Number) map.get("tx_pos")).intValue();
+                final Coin utxoValue = Coin.valueOf(((Number) map.get("value")).longValue());
+                final int utxoHeight = ((Number) map.get("height")).intValue();
+                utxos.add(new UTXO(utxoHash, utxoIndex, utxoValue, utxoHeight, false, outputScript));
+            }
+            return utxos;
+        } catch (final RuntimeException x) {
+            throw new IOException("cannot parse unspent outputs: " + result, x);
+        }
+    }
+}
@@ -76,6 +76,7 @@ import de.schildbach.wallet.ui.TransactionsAdapter;
 import de.schildbach.wallet.ui.scan.ScanActivity;
 import de.schildbach.wallet.util.Bluetooth;
 import de.schildbach.wallet.util.Nfc;
+import de.schildbach.wallet.util.WalletBalanceTracker;
 import de.schildbach.wallet.util.WalletUtils;
 
 import android.app.Activity;
@@ -775,7 +776,7 @@ public final class SendCoinsFragment extends Fragment {
         final Wallet wallet = viewModel.wallet.getValue();
         final SendRequest sendRequest = finalPaymentIntent.toSendRequest();
         sendRequest.emptyWallet = viewModel.paymentIntent.mayEditAmount()
-                && finalAmount.equals(wallet.getBalance(BalanceType.AVAILABLE));
+                && finalAmount.equals(WalletBalanceTracker.of(wallet).getBalance(BalanceType.AVAILABLE));
         sendRequest.feePerKb = fees.get(viewModel.feeCategory);
         sendRequest.memo = viewModel.paymentIntent.memo;
         sendRequest.exchangeRate = amountCalculatorLink.getExchangeRate();
@@ -881,8 +882,9 @@ public final class SendCoinsFragment extends Fragment {
             protected void onInsufficientMoney(final Coin missing) {
                 setState(SendCoinsViewModel.State.INPUT);
 
-                final Coin estimated = wallet.getBalance(BalanceType.ESTIMATED);
-                final Coin available = wallet.getBalance(BalanceType.AVAILABLE);
+                final WalletBalanceTracker balanceTracker = WalletBalanceTracker.of(wallet);
+                final Coin estimated = balanceTracker.getBalance(BalanceType.ESTIMATED);
+                final Coin available = balanceTracker.getBalance(BalanceType.AVAILABLE);
                 final Coin pending = estimated.subtract(available);
 
                 final MonetaryFormat btcFormat = config.getFormat();
@@ -983,7 +985,7 @@ public final class SendCoinsFragment extends Fragment {
                             .toSendRequest();
                     sendRequest.signInputs = false;
                     sendRequest.emptyWallet = viewModel.paymentIntent.mayEditAmount()
-                            && amount.equals(wallet.getBalance(BalanceType.AVAILABLE));
+                            && amount.equals(WalletBalanceTracker.of(wallet).getBalance(BalanceType.AVAILABLE));
                     sendRequest.feePerKb = fees.get(viewModel.feeCategory);
                     wallet.completeTx(sendRequest);
                     viewModel.dryrunTransaction = sendRequest.tx;
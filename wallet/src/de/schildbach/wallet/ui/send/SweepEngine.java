@@ -0,0 +1,271 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.script.ScriptBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.schildbach.wallet.util.LongRingBuffer;
+
+/**
+ * Looks up the unspent outputs of many addresses at once, for sweeping a stack of paper wallets or all forms of a key.
+ *
+ * <p>
+ * The addresses are looked up concurrently. Each lookup is hedged: it goes to the backend that answered fastest so
+ * far, and if there's no valid answer within {@link #hedgeDelayMs}, or the backend fails, also to the next one. The
+ * first valid answer wins and the others are cancelled. Answers are valid if all outputs pay to the address that was
+ * asked for. The outputs of all addresses are merged into one set, without duplicates.
+ */
+public final class SweepEngine {
+    public static final long DEFAULT_HEDGE_DELAY_MS = TimeUnit.SECONDS.toMillis(2);
+
+    private final List<Backend> backends;
+    private final ListeningExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final long hedgeDelayMs;
+
+    private static final Logger log = LoggerFactory.getLogger(SweepEngine.class);
+
+    /**
+     * @param executor
+     *            runs the lookups, its number of threads limits how many run concurrently
+     * @param scheduler
+     *            fires the hedged requests
+     */
+    public SweepEngine(final List<UtxoBackend> backends, final ListeningExecutorService executor,
+            final ScheduledExecutorService scheduler, final long hedgeDelayMs) {
+        checkArgument(!backends.isEmpty(), "no backends");
+        this.backends = new ArrayList<>(backends.size());
+        for (final UtxoBackend backend : backends)
+            this.backends.add(new Backend(backend));
+        this.executor = executor;
+        this.scheduler = scheduler;
+        this.hedgeDelayMs = hedgeDelayMs;
+    }
+
+    /**
+     * @return the key itself and its form with the other compression, as funds may have been sent to either
+     */
+    public static List<ECKey> keyVariants(final ECKey key) {
+        if (!key.hasPrivKey())
+            return Collections.singletonList(key);
+        return Arrays.asList(key, ECKey.fromPrivate(key.getPrivKey(), !key.isCompressed()));
+    }
+
+    /**
+     * @return unspent outputs of all addresses, fails if any address couldn't be looked up at any backend
+     */
+    public ListenableFuture<Set<UTXO>> lookup(final Collection<Address> addresses) {
+        final Stopwatch watch = Stopwatch.createStarted();
+        final List<ListenableFuture<Set<UTXO>>> futures = new ArrayList<>();
+        for (final Address address : new LinkedHashSet<>(addresses))
+            futures.add(lookup(address));
+        return Futures.transform(Futures.allAsList(futures), new Function<List<Set<UTXO>>, Set<UTXO>>() {
+            @Override
+            public Set<UTXO> apply(final List<Set<UTXO>> results) {
+                // the same output can only be spent once, no matter who reported it
+                final Map<String, UTXO> merged = new LinkedHashMap<>();
+                for (final Set<UTXO> utxos : results)
+                    for (final UTXO utxo : utxos)
+                        merged.put(utxo.getHash() + ":" + utxo.getIndex(), utxo);
+                log.info("looked up {} unspent outputs of {} addresses, took {}; {}", merged.size(),
+                        futures.size(), watch, getLatencyReport());
+                return new HashSet<>(merged.values());
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * @return latency and outcomes of each backend, for diagnostics
+     */
+    public String getLatencyReport() {
+        final StringBuilder builder = new StringBuilder();
+        for (final Backend backend : backends) {
+            if (builder.length() > 0)
+                builder.append("; ");
+            builder.append(backend);
+        }
+        return builder.toString();
+    }
+
+    private ListenableFuture<Set<UTXO>> lookup(final Address address) {
+        final List<Backend> order = new ArrayList<>(backends);
+        Collections.sort(order, new Comparator<Backend>() {
+            @Override
+            public int compare(final Backend lhs, final Backend rhs) {
+                return Long.compare(lhs.expectedLatencyMs(), rhs.expectedLatencyMs());
+            }
+        });
+        return new HedgedLookup(address, order).start();
+    }
+
+    private final class HedgedLookup {
+        private final Address address;
+        private final List<Backend> order;
+        private final SettableFuture<Set<UTXO>> result = SettableFuture.create();
+        private final List<ListenableFuture<Set<UTXO>>> attempts = new ArrayList<>(); // guarded by this
+        private final AtomicInteger numFailed = new AtomicInteger();
+
+        public HedgedLookup(final Address address, final List<Backend> order) {
+            this.address = address;
+            this.order = order;
+        }
+
+        public ListenableFuture<Set<UTXO>> start() {
+            launchNext();
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    // losers are of no use anymore
+                    synchronized (HedgedLookup.this) {
+                        for (final ListenableFuture<Set<UTXO>> attempt : attempts)
+                            attempt.cancel(true);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+            return result;
+        }
+
+        private void launchNext() {
+            final Backend backend;
+            synchronized (this) {
+                if (result.isDone() || attempts.size() >= order.size())
+                    return;
+                backend = order.get(attempts.size());
+                if (!attempts.isEmpty())
+                    backend.numHedged.incrementAndGet();
+                final Stopwatch watch = Stopwatch.createStarted();
+                final ListenableFuture<Set<UTXO>> attempt = executor.submit(new Callable<Set<UTXO>>() {
+                    @Override
+                    public Set<UTXO> call() throws Exception {
+                        final Set<UTXO> utxos = backend.backend.lookup(address);
+                        validate(utxos);
+                        return utxos;
+                    }
+                });
+                attempts.add(attempt);
+                Futures.addCallback(attempt, new FutureCallback<Set<UTXO>>() {
+                    @Override
+                    public void onSuccess(final Set<UTXO> utxos) {
+                        backend.latencies.add(watch.elapsed(TimeUnit.MILLISECONDS));
+                        backend.numAnswered.incrementAndGet();
+                        if (result.set(utxos))
+                            backend.numWon.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable x) {
+                        if (attempt.isCancelled()) {
+                            // lost the race, so it takes at least this long
+                            backend.latencies.add(watch.elapsed(TimeUnit.MILLISECONDS));
+                            return;
+                        }
+                        backend.numFailed.incrementAndGet();
+                        log.info("{} failed looking up {}: {}", backend.backend.name(), address, x.toString());
+                        if (numFailed.incrementAndGet() == order.size())
+                            result.setException(x);
+                        else
+                            launchNext();
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+            if (order.size() > 1) {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        launchNext();
+                    }
+                }, hedgeDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void validate(final Set<UTXO> utxos) throws IOException {
+            final byte[] program = ScriptBuilder.createOutputScript(address).getProgram();
+            for (final UTXO utxo : utxos)
+                if (!Arrays.equals(program, utxo.getScript().getProgram()) || utxo.getValue().signum() < 0)
+                    throw new IOException("output not paying to " + address + ": " + utxo);
+        }
+    }
+
+    private static final class Backend {
+        private final UtxoBackend backend;
+        // latencies of lost races count too, as they tell the backend is slow
+        private final LongRingBuffer latencies = new LongRingBuffer(64);
+        private final AtomicLong numAnswered = new AtomicLong(), numWon = new AtomicLong(),
+                numFailed = new AtomicLong(), numHedged = new AtomicLong();
+
+        public Backend(final UtxoBackend backend) {
+            this.backend = backend;
+        }
+
+        /**
+         * @return median latency, or 0 if never measured so that it gets its chance
+         */
+        public long expectedLatencyMs() {
+            final long[] sorted = latencies.toArray();
+            if (sorted.length == 0)
+                return 0;
+            Arrays.sort(sorted);
+            return sorted[sorted.length / 2];
+        }
+
+        @Override
+        public String toString() {
+            final long[] sorted = latencies.toArray();
+            Arrays.sort(sorted);
+            final long p50 = sorted.length > 0 ? sorted[sorted.length / 2] : -1;
+            final long p90 = sorted.length > 0 ? sorted[Math.min(sorted.length * 9 / 10, sorted.length - 1)] : -1;
+            return String.format(Locale.US, "%s: latency %d/%d ms, %d answers, %d won, %d failed, %d hedged",
+                    backend.name(), p50, p90, numAnswered.get(), numWon.get(), numFailed.get(), numHedged.get());
+        }
+    }
+}
@@ -21,10 +21,12 @@ import static androidx.core.util.Preconditions.checkState;
 
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
+import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.DumpedPrivateKey;
 import org.bitcoinj.core.ECKey;
@@ -380,9 +382,9 @@ public class SweepWalletFragment extends Fragment {
     }
 
     private void askConfirmSweep(final ECKey key) {
-        // create non-HD wallet
+        // create non-HD wallet, with both forms of the key so that funds sent to either can be swept
         final KeyChainGroup group = new KeyChainGroup(Constants.NETWORK_PARAMETERS);
-        group.importKeys(key);
+        group.importKeys(SweepEngine.keyVariants(key));
         viewModel.walletToSweep = new Wallet(Constants.NETWORK_PARAMETERS, group);
 
         setState(SweepWalletViewModel.State.CONFIRM_SWEEP);
@@ -478,11 +480,10 @@ public class SweepWalletFragment extends Fragment {
             }
         };
 
-        final ECKey key = viewModel.walletToSweep.getImportedKeys().iterator().next();
-        if(Constants.GOLDCOIN_ELECTRUM_SUPPORT)
-            new RequestWalletBalanceTask(backgroundHandler, callback).requestWalletBalance(activity.getAssets(), key);
-        else
-            new RequestWalletBalanceTaskChainz(backgroundHandler, callback, application.httpUserAgent()).requestWalletBalance(key);
+        final Set<Address> addresses = new LinkedHashSet<>();
+        for (final ECKey key : viewModel.walletToSweep.getImportedKeys())
+            addresses.add(key.toAddress(Constants.NETWORK_PARAMETERS));
+        new RequestWalletBalanceTask(callback).requestWalletBalance(application.sweepEngine(), addresses);
     }
 
     private void setState(final SweepWalletViewModel.State state) {
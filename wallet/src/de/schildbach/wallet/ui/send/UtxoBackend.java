@@ -0,0 +1,36 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.UTXO;
+
+/**
+ * Somewhere to look up unspent outputs of an address, like an Electrum server or a block explorer.
+ */
+public interface UtxoBackend {
+    String name();
+
+    /**
+     * Look up the unspent outputs. This blocks, and should give up when the thread is interrupted.
+     */
+    Set<UTXO> lookup(Address address) throws IOException, InterruptedException;
+}
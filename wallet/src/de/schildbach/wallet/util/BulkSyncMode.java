@@ -0,0 +1,101 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Tells if the chain is being synced in bulk, like when replaying or catching up after a long time offline. While
+ * it's active, the work following each wallet change, like notifying observers, autosaving and writing transaction
+ * summaries, is done at most every {@link #DELAY_MS}. On leaving, whatever was held back is done right away, once.
+ */
+public final class BulkSyncMode {
+    public interface Listener {
+        void onBulkSyncModeChanged(boolean active);
+    }
+
+    /** Delay of work following wallet changes while in bulk sync mode. */
+    public static final long DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private volatile boolean active = false;
+    private final Stopwatch activeWatch = Stopwatch.createUnstarted(); // guarded by this
+    // guarded by this, held weakly so they go away with their owners
+    private final Set<Listener> listeners = Collections.newSetFromMap(new WeakHashMap<Listener, Boolean>());
+
+    private static final BulkSyncMode INSTANCE = new BulkSyncMode();
+
+    private static final Logger log = LoggerFactory.getLogger(BulkSyncMode.class);
+
+    public static BulkSyncMode get() {
+        return INSTANCE;
+    }
+
+    BulkSyncMode() {
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return the delay to use for work following wallet changes, given the delay used normally
+     */
+    public long delayMs(final long normalDelayMs) {
+        return active ? Math.max(normalDelayMs, DELAY_MS) : normalDelayMs;
+    }
+
+    /**
+     * Enter or leave bulk sync mode. Listeners are called on the calling thread.
+     */
+    public void setActive(final boolean active) {
+        final List<Listener> listeners;
+        synchronized (this) {
+            if (active == this.active)
+                return;
+            this.active = active;
+            if (active) {
+                activeWatch.reset().start();
+                log.info("entering bulk sync mode");
+            } else {
+                activeWatch.stop();
+                log.info("leaving bulk sync mode, was active for {}", activeWatch);
+            }
+            listeners = new ArrayList<>(this.listeners);
+        }
+        for (final Listener listener : listeners)
+            listener.onBulkSyncModeChanged(active);
+    }
+
+    public synchronized void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lambdaworks.crypto.SCrypt;
+
+/**
+ * Computes scrypt proof-of-work hashes of block headers in batches. With the bundled native library, a whole batch
+ * crosses JNI once and is hashed by a native worker pool sized to the number of cores, which reuses its scratch space
+ * across headers. Without it, headers are hashed one by one via {@link SCrypt}.
+ */
+public final class HeaderHasher {
+    public static final int HEADER_SIZE = Block.HEADER_SIZE;
+    public static final int HASH_SIZE = 32;
+
+    private static final int SCRYPT_N = 1024;
+    private static final int SCRYPT_R = 1;
+    private static final int SCRYPT_P = 1;
+
+    private static final boolean NATIVE_AVAILABLE;
+
+    private static final Logger log = LoggerFactory.getLogger(HeaderHasher.class);
+
+    static {
+        boolean nativeAvailable;
+        try {
+            System.loadLibrary("scrypt");
+            log.info("native header hashing using {} threads", hashThreads());
+            nativeAvailable = true;
+        } catch (final UnsatisfiedLinkError x) {
+            log.info("native header hashing not available: {}", x.getMessage());
+            nativeAvailable = false;
+        }
+        NATIVE_AVAILABLE = nativeAvailable;
+    }
+
+    private HeaderHasher() {
+    }
+
+    public static boolean isNativeAvailable() {
+        return NATIVE_AVAILABLE;
+    }
+
+    /**
+     * Hash {@code count} consecutive 80 byte headers starting at the beginning of {@code headers} into {@code count}
+     * consecutive 32 byte hashes starting at the beginning of {@code hashes}. Both buffers should be direct, otherwise
+     * the slow path is used. Positions and limits of the buffers are left untouched.
+     */
+    public static void hash(final ByteBuffer headers, final ByteBuffer hashes, final int count) {
+        checkArgument(count >= 0, "negative count: %s", count);
+        checkArgument(headers.capacity() >= count * HEADER_SIZE, "headers too small for %s", count);
+        checkArgument(hashes.capacity() >= count * HASH_SIZE, "hashes too small for %s", count);
+
+        if (NATIVE_AVAILABLE && headers.isDirect() && hashes.isDirect()) {
+            hashHeaders(headers, hashes, count);
+        } else {
+            final byte[] header = new byte[HEADER_SIZE];
+            for (int i = 0; i < count; i++) {
+                final ByteBuffer in = headers.duplicate();
+                in.position(i * HEADER_SIZE);
+                in.get(header);
+                final ByteBuffer out = hashes.duplicate();
+                out.position(i * HASH_SIZE);
+                out.put(hashSingle(header));
+            }
+        }
+    }
+
+    /**
+     * Hash the headers of the given blocks. The returned hashes are in the byte order used for comparing against the
+     * difficulty target, e.g. via {@link Sha256Hash#toBigInteger()}.
+     */
+    public static List<Sha256Hash> hash(final List<Block> blocks) {
+        final int count = blocks.size();
+        final ByteBuffer headers = ByteBuffer.allocateDirect(count * HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (final Block block : blocks) {
+            final byte[] header = block.cloneAsHeader().bitcoinSerialize();
+            checkArgument(header.length == HEADER_SIZE, "not a header: %s bytes", header.length);
+            headers.put(header);
+        }
+        final ByteBuffer hashes = ByteBuffer.allocateDirect(count * HASH_SIZE);
+        hash(headers, hashes, count);
+
+        final List<Sha256Hash> result = new ArrayList<>(count);
+        final byte[] hash = new byte[HASH_SIZE];
+        for (int i = 0; i < count; i++) {
+            hashes.get(hash);
+            result.add(Sha256Hash.wrapReversed(hash));
+        }
+        return result;
+    }
+
+    /**
+     * Hash a single header via {@link SCrypt}, the path taken for each header without batching.
+     */
+    public static byte[] hashSingle(final byte[] header) {
+        try {
+            return SCrypt.scrypt(header, header, SCRYPT_N, SCRYPT_R, SCRYPT_P, HASH_SIZE);
+        } catch (final GeneralSecurityException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    private static native void hashHeaders(ByteBuffer headers, ByteBuffer hashes, int count);
+
+    private static native int hashThreads();
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the most recent values added, overwriting the oldest ones. Adding and reading don't block each other, which
+ * makes it usable on network threads.
+ *
+ * <p>
+ * A reader racing with writers may see a slot that was just claimed but not yet written, so it gets the value that
+ * was there before. This is fine for the statistics it's meant for.
+ */
+public final class LongRingBuffer {
+    private final AtomicLongArray values;
+    private final int mask;
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            number of values to keep, must be a power of two
+     */
+    public LongRingBuffer(final int capacity) {
+        checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1, "capacity must be a power of two: %s",
+                capacity);
+        this.values = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+    }
+
+    public void add(final long value) {
+        final long index = count.getAndIncrement();
+        values.lazySet((int) (index & mask), value);
+    }
+
+    /**
+     * @return number of values ever added
+     */
+    public long count() {
+        return count.get();
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the values kept, oldest first
+     */
+    public long[] toArray() {
+        final long count = this.count.get();
+        final int size = (int) Math.min(count, capacity());
+        final long[] array = new long[size];
+        for (int i = 0; i < size; i++)
+            array[i] = values.get((int) ((count - size + i) & mask));
+        return array;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.KeyChainGroup;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.UnreadableWalletException;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.protobuf.ByteString;
+
+/**
+ * Loads a wallet in two stages, so that it can be used before its whole transaction history is parsed.
+ *
+ * <p>
+ * The first stage reads the key chains and those transactions that make up the balance: unspent, pending and dead
+ * ones, plus everything they are connected to via spending or overriding transactions. That's enough for receive
+ * addresses, balances and spending. The second stage, {@link #loadHistory()}, parses the remaining transactions and
+ * adds them to the same wallet, without firing wallet events. It's meant to run in the background, while the wallet is
+ * already in use, so the merge happens with the wallet lock held.
+ *
+ * <p>
+ * Until the second stage is done, the wallet must not be written out as a whole, see
+ * {@link WalletJournal#attachWithoutHistory(Wallet, File, File, long, java.util.concurrent.TimeUnit)}, and should not
+ * be used for processing blocks.
+ */
+public final class StagedWalletLoad {
+    private final NetworkParameters params;
+    private final StagedWallet wallet;
+    private Protos.Wallet history; // null once read
+    private final List<Spend> historySpends = new ArrayList<>();
+    private final int historySize;
+
+    private static final Logger log = LoggerFactory.getLogger(StagedWalletLoad.class);
+
+    /**
+     * Run the first stage: load the base file, replay the journal on top of it and read the wallet without the parts
+     * of the transaction history that aren't needed for the balance.
+     */
+    public static StagedWalletLoad load(final File walletFile, final File journalFile)
+            throws IOException, UnreadableWalletException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        final StagedWalletLoad load = new StagedWalletLoad(WalletJournal.loadProto(walletFile, journalFile));
+        watch.stop();
+        log.info("wallet stage one loaded from: '{}', {} transactions left for stage two, took {}", walletFile,
+                load.historySize, watch);
+        return load;
+    }
+
+    StagedWalletLoad(final Protos.Wallet proto) throws UnreadableWalletException {
+        this.params = NetworkParameters.fromID(proto.getNetworkIdentifier());
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + proto.getNetworkIdentifier());
+
+        // the transactions reachable from the balance, following spends and overrides, as the serializer needs those
+        // to be present
+        final Map<ByteString, Protos.Transaction> txs = new HashMap<>(proto.getTransactionCount());
+        final LinkedList<ByteString> queue = new LinkedList<>();
+        for (final Protos.Transaction tx : proto.getTransactionList()) {
+            txs.put(tx.getHash(), tx);
+            if (tx.getPool() != Protos.Transaction.Pool.SPENT)
+                queue.add(tx.getHash());
+        }
+        final Set<ByteString> reachable = new HashSet<>();
+        while (!queue.isEmpty()) {
+            final ByteString hash = queue.removeFirst();
+            if (!reachable.add(hash))
+                continue;
+            final Protos.Transaction tx = txs.get(hash);
+            if (tx == null)
+                continue; // will fail to read in any case
+            for (final Protos.TransactionOutput output : tx.getTransactionOutputList())
+                if (output.hasSpentByTransactionHash())
+                    queue.add(output.getSpentByTransactionHash());
+            if (tx.getConfidence().hasOverridingTransaction())
+                queue.add(tx.getConfidence().getOverridingTransaction());
+        }
+
+        final Protos.Wallet.Builder stageOne = proto.toBuilder().clearTransaction();
+        final Protos.Wallet.Builder stageTwo = proto.toBuilder().clearTransaction();
+        for (final Protos.Transaction tx : proto.getTransactionList()) {
+            if (reachable.contains(tx.getHash())) {
+                stageOne.addTransaction(tx);
+                continue;
+            }
+            // spends by transactions of the first stage are connected later, to the instances of the first stage
+            Protos.Transaction.Builder txBuilder = null;
+            for (int i = 0; i < tx.getTransactionOutputCount(); i++) {
+                final Protos.TransactionOutput output = tx.getTransactionOutput(i);
+                if (output.hasSpentByTransactionHash() && reachable.contains(output.getSpentByTransactionHash())) {
+                    if (txBuilder == null)
+                        txBuilder = tx.toBuilder();
+                    txBuilder.setTransactionOutput(i,
+                            output.toBuilder().clearSpentByTransactionHash().clearSpentByTransactionIndex());
+                    historySpends.add(new Spend(byteStringToHash(tx.getHash()), i,
+                            byteStringToHash(output.getSpentByTransactionHash()),
+                            output.getSpentByTransactionIndex()));
+                }
+            }
+            stageTwo.addTransaction(txBuilder != null ? txBuilder.build() : tx);
+        }
+
+        this.wallet = (StagedWallet) new WalletProtobufSerializer(new WalletProtobufSerializer.WalletFactory() {
+            @Override
+            public Wallet create(final NetworkParameters params, final KeyChainGroup keyChainGroup) {
+                return new StagedWallet(params, keyChainGroup);
+            }
+        }).readWallet(params, null, stageOne.build());
+        this.historySize = stageTwo.getTransactionCount();
+        this.history = historySize > 0 ? stageTwo.build() : null;
+    }
+
+    public Wallet getWallet() {
+        return wallet;
+    }
+
+    /**
+     * @return number of transactions left for {@link #loadHistory()}, or 0 if the first stage read everything
+     */
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    /**
+     * Run the second stage: read the rest of the transaction history and add it to the wallet of the first stage.
+     * Calling it again has no effect.
+     */
+    public synchronized void loadHistory() throws UnreadableWalletException {
+        if (history == null)
+            return;
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        final Wallet historyWallet = new WalletProtobufSerializer().readWallet(params, null, history);
+        history = null;
+
+        int added = 0;
+        final ReentrantLock lock = wallet.lock();
+        lock.lock();
+        try {
+            for (final Spend spend : historySpends) {
+                final Transaction spendingTx = wallet.getTransaction(spend.spendingTxHash);
+                if (spendingTx != null) {
+                    final TransactionOutput output = historyWallet.getTransaction(spend.txHash)
+                            .getOutput(spend.outputIndex);
+                    spendingTx.getInput(spend.spendingInputIndex).connect(output); // as the serializer does
+                } else {
+                    log.warn("spending transaction {} has gone missing from wallet", spend.spendingTxHash);
+                }
+            }
+            historySpends.clear();
+
+            for (final WalletTransaction wtx : historyWallet.getWalletTransactions()) {
+                // could have been received again by the first stage
+                if (wallet.getTransaction(wtx.getTransaction().getTxId()) == null) {
+                    wallet.addWalletTransaction(wtx);
+                    added++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        historyWallet.clearTransactions(0); // the transactions now belong to the other wallet
+
+        watch.stop();
+        log.info("wallet stage two added {} transactions, took {}", added, watch);
+    }
+
+    // exposes the wallet lock, which is needed to merge the history into a wallet that is in use
+    private static final class StagedWallet extends Wallet {
+        public StagedWallet(final NetworkParameters params, final KeyChainGroup keyChainGroup) {
+            super(params, keyChainGroup);
+        }
+
+        public ReentrantLock lock() {
+            return lock;
+        }
+    }
+
+    private static Sha256Hash byteStringToHash(final ByteString bs) {
+        return Sha256Hash.wrap(bs.toByteArray());
+    }
+
+    private static final class Spend {
+        public final Sha256Hash txHash;
+        public final int outputIndex;
+        public final Sha256Hash spendingTxHash;
+        public final int spendingInputIndex;
+
+        public Spend(final Sha256Hash txHash, final int outputIndex, final Sha256Hash spendingTxHash,
+                final int spendingInputIndex) {
+            this.txHash = txHash;
+            this.outputIndex = outputIndex;
+            this.spendingTxHash = spendingTxHash;
+            this.spendingInputIndex = spendingInputIndex;
+        }
+    }
+}
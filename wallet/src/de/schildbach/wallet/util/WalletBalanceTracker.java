@@ -0,0 +1,322 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.CoinSelector;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+import de.schildbach.wallet.BuildConfig;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps running totals of the balances of a wallet, so that they can be queried without walking all its unspent
+ * outputs under the wallet lock.
+ *
+ * <p>
+ * Each transaction of the wallet contributes its unspent outputs to the totals. When a transaction changes, its
+ * contribution and those of the transactions it spends from are computed anew. Only on reorganizations, and when
+ * the wallet has a different number of transactions than the tracker has seen, e.g. after {@link Wallet#reset()},
+ * all transactions are totalled again. Debug builds check the totals against {@link Wallet#getBalance(BalanceType)}
+ * after each change.
+ */
+public final class WalletBalanceTracker {
+    private final boolean verify;
+
+    private final Map<Sha256Hash, Contribution> contributions = new HashMap<>(); // guarded by this
+    private final long[] totals = new long[NUM_TYPES]; // guarded by this
+    private long sequence = 0; // guarded by this
+    private int numResyncs = 0; // guarded by this
+    private long lastResyncStart = 0; // guarded by this
+    private int numTransactions = 0; // guarded by this
+    private long numTransactionsSequence = 0; // guarded by this
+
+    private static final BalanceType[] TYPES = { BalanceType.ESTIMATED, BalanceType.ESTIMATED_SPENDABLE,
+            BalanceType.AVAILABLE, BalanceType.AVAILABLE_SPENDABLE };
+    private static final int NUM_TYPES = TYPES.length;
+    private static final Map<Wallet, WalletBalanceTracker> TRACKERS = new WeakHashMap<>();
+
+    private static final Logger log = LoggerFactory.getLogger(WalletBalanceTracker.class);
+
+    /**
+     * Get the tracker of a wallet. On first use, it is registered with the wallet and the totals are computed, which
+     * takes as long as a regular balance query.
+     */
+    public static WalletBalanceTracker of(final Wallet wallet) {
+        synchronized (TRACKERS) {
+            WalletBalanceTracker tracker = TRACKERS.get(wallet);
+            if (tracker == null) {
+                tracker = new WalletBalanceTracker(BuildConfig.DEBUG);
+                tracker.register(wallet);
+                TRACKERS.put(wallet, tracker);
+            }
+            return tracker;
+        }
+    }
+
+    // the tracker must not reference the wallet, as it's the value of a weak map keyed by the wallet
+    WalletBalanceTracker(final boolean verify) {
+        this.verify = verify;
+    }
+
+    void register(final Wallet wallet) {
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, walletListener);
+        resync(wallet);
+    }
+
+    /**
+     * Same as {@link Wallet#getBalance(BalanceType)}, but in constant time.
+     */
+    public synchronized Coin getBalance(final BalanceType balanceType) {
+        for (int i = 0; i < NUM_TYPES; i++)
+            if (TYPES[i] == balanceType)
+                return Coin.valueOf(totals[i]);
+        throw new IllegalArgumentException("unsupported: " + balanceType);
+    }
+
+    private final WalletListener walletListener = new WalletListener();
+
+    private class WalletListener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+            TransactionConfidenceEventListener, WalletReorganizeEventListener, WalletChangeEventListener {
+        @Override
+        public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+                final Coin newBalance) {
+            update(wallet, tx);
+        }
+
+        @Override
+        public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+                final Coin newBalance) {
+            update(wallet, tx);
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+            // every new block fires this for every confirmed transaction, but after the first confirmation only
+            // coinbase maturity changes what's spendable
+            final TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING) {
+                final int depth = confidence.getDepthInBlocks();
+                if (depth > (tx.isCoinBase() ? wallet.getParams().getSpendableCoinbaseDepth() : 1))
+                    return;
+            }
+            update(wallet, tx);
+        }
+
+        @Override
+        public void onReorganize(final Wallet wallet) {
+            resync(wallet);
+        }
+
+        @Override
+        public void onWalletChanged(final Wallet wallet) {
+            // fires for about every change, but it's the only event if transactions are removed
+            final boolean changed;
+            synchronized (WalletBalanceTracker.this) {
+                changed = WalletUtils.numTransactions(wallet) != numTransactions;
+            }
+            if (changed)
+                resync(wallet);
+        }
+    }
+
+    // called with the wallet lock held
+    private void update(final Wallet wallet, final Transaction tx) {
+        final Map<Sha256Hash, long[]> updated = new HashMap<>();
+        updated.put(tx.getTxId(), valuesOf(wallet, tx));
+        // the outputs spent by the transaction, or no longer spent if it's dead
+        if (!tx.isCoinBase()) {
+            for (final TransactionInput input : tx.getInputs()) {
+                final Sha256Hash parentHash = input.getOutpoint().getHash();
+                if (!updated.containsKey(parentHash)) {
+                    final Transaction parent = wallet.getTransaction(parentHash);
+                    if (parent != null)
+                        updated.put(parentHash, valuesOf(wallet, parent));
+                }
+            }
+        }
+
+        final int numTransactions = WalletUtils.numTransactions(wallet);
+        final boolean resyncing;
+        synchronized (this) {
+            final long sequence = ++this.sequence;
+            for (final Map.Entry<Sha256Hash, long[]> entry : updated.entrySet())
+                put(entry.getKey(), entry.getValue(), sequence);
+            this.numTransactions = numTransactions;
+            this.numTransactionsSequence = sequence;
+            resyncing = numResyncs > 0;
+        }
+
+        if (verify && !resyncing)
+            verify(wallet);
+    }
+
+    /**
+     * Total all transactions of the wallet. This can race with updates and other resyncs if it's not called with
+     * the wallet lock held, so whatever was updated after it started is kept, and if a resync that started later has
+     * finished first, its totals are kept altogether.
+     */
+    private void resync(final Wallet wallet) {
+        final Stopwatch watch = Stopwatch.createStarted();
+        final long start;
+        synchronized (this) {
+            start = ++sequence;
+            numResyncs++;
+        }
+
+        final int numTransactions = WalletUtils.numTransactions(wallet);
+        final Map<Sha256Hash, long[]> resynced = new HashMap<>();
+        for (final Transaction tx : wallet.getTransactions(false)) {
+            final long[] values = valuesOf(wallet, tx);
+            if (values != null)
+                resynced.put(tx.getTxId(), values);
+        }
+
+        synchronized (this) {
+            numResyncs--;
+            if (lastResyncStart < start) {
+                lastResyncStart = start;
+                final Map<Sha256Hash, Contribution> newer = new HashMap<>();
+                for (final Map.Entry<Sha256Hash, Contribution> entry : contributions.entrySet())
+                    if (entry.getValue().sequence > start)
+                        newer.put(entry.getKey(), entry.getValue());
+                contributions.clear();
+                for (int i = 0; i < NUM_TYPES; i++)
+                    totals[i] = 0;
+                for (final Map.Entry<Sha256Hash, long[]> entry : resynced.entrySet())
+                    if (!newer.containsKey(entry.getKey()))
+                        put(entry.getKey(), entry.getValue(), start);
+                for (final Map.Entry<Sha256Hash, Contribution> entry : newer.entrySet())
+                    put(entry.getKey(), entry.getValue().values, entry.getValue().sequence);
+                if (numTransactionsSequence < start) {
+                    this.numTransactions = numTransactions;
+                    this.numTransactionsSequence = start;
+                }
+            }
+            if (numResyncs == 0) {
+                // removals only need to be remembered while a resync could still bring them back
+                for (final Iterator<Contribution> i = contributions.values().iterator(); i.hasNext();)
+                    if (i.next().values == null)
+                        i.remove();
+            }
+        }
+
+        watch.stop();
+        log.info("balances of {} transactions totalled, took {}", resynced.size(), watch);
+    }
+
+    private void put(final Sha256Hash hash, final long[] values, final long sequence) {
+        final Contribution previous = values != null || numResyncs > 0
+                ? contributions.put(hash, new Contribution(values, sequence))
+                : contributions.remove(hash);
+        for (int i = 0; i < NUM_TYPES; i++) {
+            if (values != null)
+                totals[i] += values[i];
+            if (previous != null && previous.values != null)
+                totals[i] -= previous.values[i];
+        }
+    }
+
+    /**
+     * What the unspent outputs of a transaction add to each balance, the same way
+     * {@link Wallet#getBalance(BalanceType)} counts them. The coin selector is asked about each output on its own.
+     *
+     * @return value per balance type, or null if none
+     */
+    private static long[] valuesOf(final Wallet wallet, final Transaction tx) {
+        if (tx.getConfidence().getConfidenceType() == ConfidenceType.DEAD)
+            return null;
+        if (wallet.getTransaction(tx.getTxId()) != tx)
+            return null; // not part of the wallet (anymore)
+
+        long[] values = null;
+        final boolean mature = tx.isMature();
+        final CoinSelector coinSelector = wallet.getCoinSelector();
+        for (final TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending() || !output.isMineOrWatched(wallet))
+                continue;
+            final long value = output.getValue().value;
+            final boolean spendable = wallet.canSignFor(output.getScriptPubKey());
+            final boolean available = mature && coinSelector
+                    .select(NetworkParameters.MAX_MONEY, Collections.singletonList(output)).valueGathered.signum() > 0;
+            if (values == null)
+                values = new long[NUM_TYPES];
+            values[0] += value;
+            if (spendable)
+                values[1] += value;
+            if (available)
+                values[2] += value;
+            if (available && spendable)
+                values[3] += value;
+        }
+        return values;
+    }
+
+    private void verify(final Wallet wallet) {
+        for (final BalanceType type : TYPES) {
+            final Coin expected = wallet.getBalance(type);
+            final Coin tracked = getBalance(type);
+            if (!tracked.equals(expected)) {
+                log.warn("tracked {} balance {} differs from wallet {}, resyncing", type, tracked.toFriendlyString(),
+                        expected.toFriendlyString());
+                resync(wallet);
+                return;
+            }
+        }
+    }
+
+    private static final class Contribution {
+        @Nullable
+        public final long[] values; // null if removed
+        public final long sequence;
+
+        public Contribution(final @Nullable long[] values, final long sequence) {
+            this.values = values;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens to a wallet once on behalf of any number of subscribers. Events are only taken note of while the wallet
+ * lock is held. Bursts of them, like when replaying blocks, are coalesced into one {@link Batch} which is handed to
+ * the subscribers on a thread of the hub. In {@link BulkSyncMode}, batches are held back much longer.
+ */
+public final class WalletEventHub {
+    public enum Type {
+        COINS_RECEIVED, COINS_SENT, CONFIDENCE, REORGANIZE, CHANGED
+    }
+
+    /**
+     * Everything that happened to a wallet since the previous batch.
+     */
+    public static final class Batch {
+        public final Wallet wallet;
+        public final Set<Type> types;
+        /** received or sent, in order of the events */
+        public final Set<Transaction> coinsTransactions;
+        public final Set<Transaction> confidenceTransactions;
+        public final int numEvents;
+        private final long createdNanos;
+
+        private Batch(final Wallet wallet, final Set<Type> types, final Set<Transaction> coinsTransactions,
+                final Set<Transaction> confidenceTransactions, final int numEvents) {
+            this.wallet = wallet;
+            this.types = Collections.unmodifiableSet(types);
+            this.coinsTransactions = Collections.unmodifiableSet(coinsTransactions);
+            this.confidenceTransactions = Collections.unmodifiableSet(confidenceTransactions);
+            this.numEvents = numEvents;
+            this.createdNanos = System.nanoTime();
+        }
+
+        public boolean contains(final Type type) {
+            return types.contains(type);
+        }
+    }
+
+    public interface Subscriber {
+        void onWalletEvents(Batch batch);
+    }
+
+    private final long coalesceMs;
+    private final BulkSyncMode bulkSyncMode;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private Wallet pendingWallet = null; // guarded by this
+    private Set<Type> pendingTypes = EnumSet.noneOf(Type.class); // guarded by this
+    private Set<Transaction> pendingCoinsTransactions = new LinkedHashSet<>(); // guarded by this
+    private Set<Transaction> pendingConfidenceTransactions = new LinkedHashSet<>(); // guarded by this
+    private int pendingNumEvents = 0; // guarded by this
+    private boolean dispatchScheduled = false; // guarded by this
+
+    private final AtomicLong numEvents = new AtomicLong();
+    private final AtomicLong numBatches = new AtomicLong();
+    private final AtomicLong numDeliveries = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private static final long DEFAULT_COALESCE_MS = 200;
+    private static final Map<Wallet, WalletEventHub> HUBS = new WeakHashMap<>();
+    private static final ScheduledExecutorService DISPATCHER;
+    static {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ContextPropagatingThreadFactory("Wallet events"));
+        executor.setKeepAliveTime(10, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        DISPATCHER = executor;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(WalletEventHub.class);
+
+    /**
+     * Get the hub of a wallet, registering it with the wallet on first use.
+     */
+    public static WalletEventHub of(final Wallet wallet) {
+        synchronized (HUBS) {
+            WalletEventHub hub = HUBS.get(wallet);
+            if (hub == null) {
+                hub = new WalletEventHub(DEFAULT_COALESCE_MS, BulkSyncMode.get());
+                hub.register(wallet);
+                HUBS.put(wallet, hub);
+            }
+            return hub;
+        }
+    }
+
+    // the hub must not reference the wallet, as it's the value of a weak map keyed by the wallet
+    WalletEventHub(final long coalesceMs, final BulkSyncMode bulkSyncMode) {
+        this.coalesceMs = coalesceMs;
+        this.bulkSyncMode = bulkSyncMode;
+    }
+
+    void register(final Wallet wallet) {
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, walletListener);
+        bulkSyncMode.addListener(bulkSyncListener);
+    }
+
+    /**
+     * Receive batches on the given executor. {@link Threading#SAME_THREAD} delivers on the thread of the hub, which
+     * is shared by all hubs, so subscribers doing so should return quickly.
+     */
+    public void subscribe(final Executor executor, final Subscriber subscriber) {
+        subscriptions.add(new Subscription(executor, subscriber));
+    }
+
+    public boolean unsubscribe(final Subscriber subscriber) {
+        for (final Subscription subscription : subscriptions)
+            if (subscription.subscriber == subscriber)
+                return subscriptions.remove(subscription);
+        return false;
+    }
+
+    /** @return number of events received from the wallet */
+    public long getNumEvents() {
+        return numEvents.get();
+    }
+
+    /** @return number of batches the events were coalesced into */
+    public long getNumBatches() {
+        return numBatches.get();
+    }
+
+    /** @return number of batches handed to subscribers */
+    public long getNumDeliveries() {
+        return numDeliveries.get();
+    }
+
+    /** @return average time from coalescing a batch until a subscriber is done with it */
+    public long getAverageLatencyMs() {
+        final long numDeliveries = this.numDeliveries.get();
+        return numDeliveries > 0 ? TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos.get() / numDeliveries) : 0;
+    }
+
+    /** @return longest time from coalescing a batch until a subscriber was done with it */
+    public long getMaxLatencyMs() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + subscriptions.size() + " subscribers, " + numEvents + " events in "
+                + numBatches + " batches, latency avg " + getAverageLatencyMs() + " ms, max " + getMaxLatencyMs()
+                + " ms]";
+    }
+
+    private final WalletListener walletListener = new WalletListener();
+
+    private class WalletListener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+            TransactionConfidenceEventListener, WalletReorganizeEventListener, WalletChangeEventListener {
+        @Override
+        public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+                final Coin newBalance) {
+            event(wallet, Type.COINS_RECEIVED, tx);
+        }
+
+        @Override
+        public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+                final Coin newBalance) {
+            event(wallet, Type.COINS_SENT, tx);
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+            event(wallet, Type.CONFIDENCE, tx);
+        }
+
+        @Override
+        public void onReorganize(final Wallet wallet) {
+            event(wallet, Type.REORGANIZE, null);
+        }
+
+        @Override
+        public void onWalletChanged(final Wallet wallet) {
+            event(wallet, Type.CHANGED, null);
+        }
+    }
+
+    private final BulkSyncMode.Listener bulkSyncListener = new BulkSyncMode.Listener() {
+        @Override
+        public void onBulkSyncModeChanged(final boolean active) {
+            if (active)
+                return;
+            synchronized (WalletEventHub.this) {
+                if (!dispatchScheduled)
+                    return;
+            }
+            // deliver what was held back, the dispatch scheduled for later will find nothing left
+            DISPATCHER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            });
+        }
+    };
+
+    private void event(final Wallet wallet, final Type type, final Transaction tx) {
+        numEvents.incrementAndGet();
+        synchronized (this) {
+            pendingWallet = wallet;
+            pendingTypes.add(type);
+            if (type == Type.CONFIDENCE)
+                pendingConfidenceTransactions.add(tx);
+            else if (tx != null)
+                pendingCoinsTransactions.add(tx);
+            pendingNumEvents++;
+            if (dispatchScheduled)
+                return;
+            dispatchScheduled = true;
+        }
+        DISPATCHER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, bulkSyncMode.delayMs(coalesceMs), TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch() {
+        final Batch batch;
+        synchronized (this) {
+            if (pendingNumEvents == 0)
+                return;
+            dispatchScheduled = false;
+            batch = new Batch(pendingWallet, pendingTypes, pendingCoinsTransactions, pendingConfidenceTransactions,
+                    pendingNumEvents);
+            pendingTypes = EnumSet.noneOf(Type.class);
+            pendingCoinsTransactions = new LinkedHashSet<>();
+            pendingConfidenceTransactions = new LinkedHashSet<>();
+            pendingNumEvents = 0;
+            pendingWallet = null;
+        }
+        numBatches.incrementAndGet();
+        if (batch.numEvents > 1)
+            log.debug("{} wallet events coalesced: {}", batch.numEvents, batch.types);
+
+        for (final Subscription subscription : subscriptions) {
+            subscription.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!subscriptions.contains(subscription))
+                        return; // unsubscribed in the meantime
+                    try {
+                        subscription.subscriber.onWalletEvents(batch);
+                    } catch (final RuntimeException x) {
+                        log.warn("subscriber failed on wallet events", x);
+                    }
+                    final long latencyNanos = System.nanoTime() - batch.createdNanos;
+                    numDeliveries.incrementAndGet();
+                    totalLatencyNanos.addAndGet(latencyNanos);
+                    long max;
+                    while ((max = maxLatencyNanos.get()) < latencyNanos)
+                        if (maxLatencyNanos.compareAndSet(max, latencyNanos))
+                            break;
+                }
+            });
+        }
+    }
+
+    private static final class Subscription {
+        public final Executor executor;
+        public final Subscriber subscriber;
+
+        public Subscription(final Executor executor, final Subscriber subscriber) {
+            this.executor = executor;
+            this.subscriber = subscriber;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Runs work on wallets in the background, in lanes of different priority. Each lane has its own threads, so a slow
+ * task of one lane can't hold back the queue of another.
+ *
+ * <p>
+ * Tasks can be given a key, usually the object they load data for. Of the tasks with the same key at most one runs at
+ * a time and at most one waits. A task that is submitted while another of its key is still waiting supersedes the
+ * waiting one, taking over its place in the queue. Waiting tasks can also be cancelled by key. Tasks that already run
+ * are never interrupted, as they might hold the wallet lock.
+ *
+ * <p>
+ * Like with {@code AsyncTask}, tasks need to propagate the bitcoinj context themselves.
+ */
+public final class WalletExecutor {
+    public enum Lane {
+        /** loads for what the user is looking at */
+        UI(2, Thread.NORM_PRIORITY),
+        /** network access and loads nobody waits for */
+        BACKGROUND(2, Thread.NORM_PRIORITY - 1),
+        /** long running work like wallet maintenance */
+        MAINTENANCE(1, Thread.MIN_PRIORITY);
+
+        private final int numThreads;
+        private final int threadPriority;
+
+        private Lane(final int numThreads, final int threadPriority) {
+            this.numThreads = numThreads;
+            this.threadPriority = threadPriority;
+        }
+    }
+
+    private final Map<Lane, ThreadPoolExecutor> executors = new EnumMap<>(Lane.class);
+    private final Map<Lane, Stats> stats = new EnumMap<>(Lane.class);
+    private final Map<Object, Task> waiting = new HashMap<>(); // guarded by this
+    private final Set<Object> running = new HashSet<>(); // guarded by this
+
+    private static final long SLOW_TASK_MS = 1000;
+    private static WalletExecutor instance = null;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletExecutor.class);
+
+    public static synchronized WalletExecutor get() {
+        if (instance == null)
+            instance = new WalletExecutor();
+        return instance;
+    }
+
+    WalletExecutor() {
+        for (final Lane lane : Lane.values()) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(lane.numThreads, lane.numThreads, 10,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setNameFormat("Wallet " + lane.name().toLowerCase() + " %d")
+                            .setPriority(lane.threadPriority).setDaemon(true).build());
+            executor.allowCoreThreadTimeOut(true);
+            executors.put(lane, executor);
+            stats.put(lane, new Stats());
+        }
+    }
+
+    public void execute(final Lane lane, final Runnable runnable) {
+        execute(lane, null, runnable);
+    }
+
+    /**
+     * @param key
+     *            tasks with equal keys don't run concurrently and supersede each other while waiting, or null
+     */
+    public void execute(final Lane lane, final @Nullable Object key, final Runnable runnable) {
+        final Task task;
+        synchronized (this) {
+            if (key != null) {
+                final Task waitingTask = waiting.get(key);
+                if (waitingTask != null) {
+                    waitingTask.runnable = runnable;
+                    stats.get(waitingTask.lane).numSuperseded++;
+                    return;
+                }
+            }
+            task = new Task(lane, key, runnable);
+            if (key != null) {
+                waiting.put(key, task);
+                if (running.contains(key))
+                    return; // submitted once the running task is done
+            }
+        }
+        submit(task);
+    }
+
+    /**
+     * Cancel the task of the given key that is waiting, if any. A task that is already running is left alone.
+     */
+    public void cancel(final Object key) {
+        synchronized (this) {
+            final Task task = waiting.remove(key);
+            if (task != null) {
+                task.runnable = null;
+                stats.get(task.lane).numCancelled++;
+            }
+        }
+    }
+
+    private void submit(final Task task) {
+        task.submittedNanos = System.nanoTime();
+        executors.get(task.lane).execute(task);
+    }
+
+    private void afterRun(final Task task) {
+        final Task next;
+        synchronized (this) {
+            running.remove(task.key);
+            next = waiting.get(task.key);
+        }
+        if (next != null)
+            submit(next);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder(getClass().getSimpleName()).append('[');
+        for (final Lane lane : Lane.values()) {
+            if (lane.ordinal() > 0)
+                builder.append(", ");
+            builder.append(lane.name().toLowerCase()).append(": ").append(executors.get(lane).getQueue().size())
+                    .append(" queued, ").append(stats.get(lane));
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * @return counters of the given lane, copied
+     */
+    public synchronized Stats getStats(final Lane lane) {
+        return new Stats(stats.get(lane));
+    }
+
+    public static final class Stats {
+        public long numExecuted;
+        public long numSuperseded;
+        public long numCancelled;
+        public long totalWaitNanos;
+        public long maxWaitNanos;
+        public long totalRunNanos;
+        public long maxRunNanos;
+
+        private Stats() {
+        }
+
+        private Stats(final Stats other) {
+            numExecuted = other.numExecuted;
+            numSuperseded = other.numSuperseded;
+            numCancelled = other.numCancelled;
+            totalWaitNanos = other.totalWaitNanos;
+            maxWaitNanos = other.maxWaitNanos;
+            totalRunNanos = other.totalRunNanos;
+            maxRunNanos = other.maxRunNanos;
+        }
+
+        private void record(final long waitNanos, final long runNanos) {
+            numExecuted++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+            totalRunNanos += runNanos;
+            maxRunNanos = Math.max(maxRunNanos, runNanos);
+        }
+
+        @Override
+        public String toString() {
+            final long avgWaitMs = numExecuted > 0 ? TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / numExecuted) : 0;
+            final long avgRunMs = numExecuted > 0 ? TimeUnit.NANOSECONDS.toMillis(totalRunNanos / numExecuted) : 0;
+            return numExecuted + " executed, " + numSuperseded + " superseded, " + numCancelled
+                    + " cancelled, wait avg " + avgWaitMs + " ms max " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos)
+                    + " ms, run avg " + avgRunMs + " ms max " + TimeUnit.NANOSECONDS.toMillis(maxRunNanos) + " ms";
+        }
+    }
+
+    private final class Task implements Runnable {
+        public final Lane lane;
+        public final Object key;
+        public Runnable runnable; // guarded by WalletExecutor.this, null if cancelled
+        public long submittedNanos;
+
+        public Task(final Lane lane, final @Nullable Object key, final Runnable runnable) {
+            this.lane = lane;
+            this.key = key;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            final Runnable runnable;
+            synchronized (WalletExecutor.this) {
+                runnable = this.runnable;
+                if (runnable == null)
+                    return; // cancelled while queued
+                if (key != null) {
+                    if (waiting.get(key) == this)
+                        waiting.remove(key);
+                    running.add(key);
+                }
+            }
+
+            final long startedNanos = System.nanoTime();
+            try {
+                runnable.run();
+            } finally {
+                final long waitNanos = startedNanos - submittedNanos;
+                final long runNanos = System.nanoTime() - startedNanos;
+                synchronized (WalletExecutor.this) {
+                    stats.get(lane).record(waitNanos, runNanos);
+                }
+                if (TimeUnit.NANOSECONDS.toMillis(runNanos) >= SLOW_TASK_MS)
+                    log.info("slow wallet task {} in {} lane, waited {} ms, ran {} ms", runnable.getClass().getName(),
+                            lane, TimeUnit.NANOSECONDS.toMillis(waitNanos), TimeUnit.NANOSECONDS.toMillis(runNanos));
+                if (key != null)
+                    afterRun(this);
+            }
+        }
+    }
+}
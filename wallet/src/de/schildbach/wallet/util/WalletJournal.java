@@ -0,0 +1,857 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.DeterministicKeyChain;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.UnreadableWalletException;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletExtension;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Persists a wallet as a base protobuf file plus an append-only journal of changes, instead of rewriting the whole
+ * wallet on every change.
+ *
+ * <p>
+ * Each journal record is a partial {@link Protos.Wallet} holding the changed transactions (together with the
+ * transactions they spend from), the key chains if they changed and the last seen block. The rest of the wallet state,
+ * i.e. description, watched scripts, tags and extensions, is added as a whole when it changed; changes that come
+ * without a wallet event are picked up with the next one. Records are batched and appended after a delay. Depth-only
+ * confidence changes are not journaled; the depth of building transactions is derived from the last seen block on
+ * replay. Compaction writes the whole wallet to the base file and empties the journal. It happens on
+ * {@link #compactNow()}, when the journal grows too large and when a change can't be expressed as a record, e.g.
+ * transactions being removed.
+ *
+ * <p>
+ * Records carry a sequence number and the base file is tagged with the sequence number it includes, so replay skips
+ * records that were already folded into the base. Records that were taken before the base, but after the sequence
+ * number was read, are replayed again, which does no harm as they hold whole transactions. A record consists of its
+ * payload length, sequence number, CRC32 and the payload. Replay stops at the first incomplete or corrupt record, which
+ * is then cut off when appending resumes.
+ */
+public final class WalletJournal {
+    private final Wallet wallet;
+    private final File walletFile;
+    private final File journalFile;
+    private final long delayMs;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean compactionNeeded = new AtomicBoolean();
+    private volatile boolean historyPending;
+    private final AtomicReference<Map<Sha256Hash, Integer>> historyStates = new AtomicReference<>();
+
+    // guarded by the wallet lock, as all of these are only touched from wallet listeners
+    private final Set<Transaction> dirtyTransactions = new LinkedHashSet<>();
+    private final Map<Sha256Hash, Integer> journaledStates = new HashMap<>();
+    private Sha256Hash journaledLastBlockSeenHash;
+    private int journaledIssuedExternalKeys;
+    private int journaledIssuedInternalKeys;
+    private int journaledOtherState;
+
+    // guarded by this
+    private final List<Record> pendingRecords = new ArrayList<>();
+    private long nextSequence;
+    private boolean flushScheduled;
+
+    // only used by the executor
+    private FileChannel channel;
+
+    private static final String TAG_SEQUENCE = "de.schildbach.wallet.journal.sequence";
+    // marks records that carry the wallet state other than transactions, keys and last seen block
+    private static final String TAG_OTHER_STATE = "de.schildbach.wallet.journal.other_state";
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final long COMPACTION_THRESHOLD = 1024 * 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    // the serializer only exposes whole wallets, so its own code for single transactions is reached via reflection
+    private static final Method MAKE_TX_PROTO = makeTxProtoMethod();
+
+    /**
+     * Load a wallet from its base file and replay the journal on top of it. A missing journal is treated as empty.
+     */
+    public static Wallet load(final File walletFile, final File journalFile)
+            throws IOException, UnreadableWalletException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        final Protos.Wallet proto = loadProto(walletFile, journalFile);
+        final NetworkParameters params = NetworkParameters.fromID(proto.getNetworkIdentifier());
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + proto.getNetworkIdentifier());
+        final Wallet wallet = new WalletProtobufSerializer().readWallet(params, null, proto);
+        watch.stop();
+        log.info("wallet loaded from: '{}', took {}", walletFile, watch);
+        return wallet;
+    }
+
+    /**
+     * Same as {@link #load(File, File)}, but stops short of reading the wallet.
+     */
+    static Protos.Wallet loadProto(final File walletFile, final File journalFile) throws IOException {
+        final Protos.Wallet.Builder builder;
+        try (final FileInputStream is = new FileInputStream(walletFile)) {
+            builder = WalletProtobufSerializer.parseToProto(is).toBuilder();
+        }
+        final int replayed = replay(builder, journalFile);
+        if (replayed > 0)
+            log.info("replayed {} journal records from: '{}'", replayed, journalFile);
+        return builder.build();
+    }
+
+    /**
+     * Start journaling a wallet that was loaded via {@link #load(File, File)}, keeping the journal it was replayed
+     * from.
+     */
+    public static WalletJournal attach(final Wallet wallet, final File walletFile, final File journalFile,
+            final long delay, final TimeUnit unit) {
+        final WalletJournal journal = new WalletJournal(wallet, walletFile, journalFile, unit.toMillis(delay));
+        journal.start(false);
+        return journal;
+    }
+
+    /**
+     * Start journaling the wallet of the first stage of a {@link StagedWalletLoad}. Until {@link #historyLoaded()} is
+     * called, compaction is held back, as it would drop the missing history from the base file.
+     */
+    public static WalletJournal attachWithoutHistory(final Wallet wallet, final File walletFile,
+            final File journalFile, final long delay, final TimeUnit unit) {
+        final WalletJournal journal = new WalletJournal(wallet, walletFile, journalFile, unit.toMillis(delay));
+        journal.historyPending = true;
+        journal.start(false);
+        return journal;
+    }
+
+    /**
+     * Start journaling any other wallet, e.g. a fresh or restored one. The wallet is written to the base file right
+     * away and the journal is emptied.
+     */
+    public static WalletJournal create(final Wallet wallet, final File walletFile, final File journalFile,
+            final long delay, final TimeUnit unit) {
+        final WalletJournal journal = new WalletJournal(wallet, walletFile, journalFile, unit.toMillis(delay));
+        journal.start(true);
+        return journal;
+    }
+
+    private WalletJournal(final Wallet wallet, final File walletFile, final File journalFile, final long delayMs) {
+        this.wallet = wallet;
+        this.walletFile = walletFile;
+        this.journalFile = journalFile;
+        this.delayMs = delayMs;
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                new ContextPropagatingThreadFactory("Wallet journal"));
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+    }
+
+    private void start(final boolean compact) {
+        final ByteString tag = wallet.maybeGetTag(TAG_SEQUENCE);
+        nextSequence = tag != null ? Longs.fromByteArray(tag.toByteArray()) + 1 : 0;
+        try {
+            openJournal(compact);
+        } catch (final IOException x) {
+            log.warn("problem opening wallet journal, compacting", x);
+            compactionNeeded.set(true);
+        }
+        resetStates();
+
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, walletListener);
+        wallet.addKeyChainEventListener(executor, keyChainListener);
+        BulkSyncMode.get().addListener(bulkSyncListener);
+
+        if (compact || compactionNeeded.get())
+            scheduleCompaction();
+    }
+
+    public Wallet getWallet() {
+        return wallet;
+    }
+
+    /**
+     * Take note of the second stage of a {@link StagedWalletLoad} being done, which added transactions without
+     * events. Held back compaction happens now.
+     */
+    public void historyLoaded() {
+        final Map<Sha256Hash, Integer> states = new HashMap<>();
+        for (final Transaction tx : wallet.getTransactions(true))
+            states.put(tx.getTxId(), stateOf(tx));
+        historyStates.set(states);
+        historyPending = false;
+        if (compactionNeeded.get())
+            scheduleCompaction();
+    }
+
+    /**
+     * Fold the journal into the base file, blocking until done. While the history is still loading, only the key
+     * chains are journaled and everything pending is written out.
+     */
+    public void compactNow() throws IOException {
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    if (historyPending) {
+                        // key chains can change without events, e.g. when encrypting
+                        final Protos.Wallet.Builder record = newRecord();
+                        record.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+                        append(record.build());
+                    }
+                    compact();
+                    return null;
+                }
+            }).get();
+        } catch (final InterruptedException x) {
+            throw new RuntimeException(x);
+        } catch (final ExecutionException x) {
+            if (x.getCause() instanceof IOException)
+                throw (IOException) x.getCause();
+            throw new RuntimeException(x.getCause());
+        }
+    }
+
+    /**
+     * Stop journaling, dropping changes not yet written, and wait for a running write to finish.
+     */
+    public void shutdownAndWait() {
+        wallet.removeCoinsReceivedEventListener(walletListener);
+        wallet.removeCoinsSentEventListener(walletListener);
+        wallet.removeTransactionConfidenceEventListener(walletListener);
+        wallet.removeReorganizeEventListener(walletListener);
+        wallet.removeChangeEventListener(walletListener);
+        wallet.removeScriptChangeEventListener(walletListener);
+        wallet.removeKeyChainEventListener(keyChainListener);
+        BulkSyncMode.get().removeListener(bulkSyncListener);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (final InterruptedException x) {
+            throw new RuntimeException(x);
+        }
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (final IOException x) {
+            log.warn("problem closing wallet journal", x);
+        }
+    }
+
+    /** Write out pending records right away, blocking until done. */
+    void flushNow() throws IOException {
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    flush();
+                    return null;
+                }
+            }).get();
+        } catch (final InterruptedException | ExecutionException x) {
+            throw new IOException(x);
+        }
+    }
+
+    private final WalletListener walletListener = new WalletListener();
+
+    private class WalletListener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+            TransactionConfidenceEventListener, WalletReorganizeEventListener, WalletChangeEventListener,
+            ScriptsChangeEventListener {
+        @Override
+        public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+                final Coin newBalance) {
+            dirtyTransactions.add(tx);
+        }
+
+        @Override
+        public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+                final Coin newBalance) {
+            dirtyTransactions.add(tx);
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+            dirtyTransactions.add(tx);
+        }
+
+        @Override
+        public void onReorganize(final Wallet wallet) {
+            requestCompaction();
+        }
+
+        @Override
+        public void onWalletChanged(final Wallet wallet) {
+            journalChanges();
+        }
+
+        @Override
+        public void onScriptsChanged(final Wallet wallet, final List<Script> scripts, final boolean isAddingScripts) {
+            journalChanges();
+        }
+    }
+
+    // key chain events aren't followed by a wallet change, and arrive with the key chain lock held, which must not be
+    // taken before the wallet lock, so they are handled on the executor
+    private final KeyChainEventListener keyChainListener = new KeyChainEventListener() {
+        @Override
+        public void onKeysAdded(final List<ECKey> keys) {
+            final Protos.Wallet.Builder record = newRecord();
+            record.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+            append(record.build());
+        }
+    };
+
+    // called with the wallet lock held
+    private void journalChanges() {
+        // read before the states, which are set before the flag is cleared
+        final boolean historyPending = this.historyPending;
+        final Map<Sha256Hash, Integer> historyStates = this.historyStates.getAndSet(null);
+        if (historyStates != null)
+            for (final Map.Entry<Sha256Hash, Integer> entry : historyStates.entrySet())
+                if (!journaledStates.containsKey(entry.getKey()))
+                    journaledStates.put(entry.getKey(), entry.getValue());
+
+        final Sha256Hash lastBlockSeenHash = wallet.getLastBlockSeenHash();
+        if (lastBlockSeenHash == null && journaledLastBlockSeenHash != null) {
+            // the wallet was reset, which records can't express
+            resetStates();
+            requestCompaction();
+            return;
+        }
+
+        final Set<Transaction> changed = new LinkedHashSet<>();
+        for (final Transaction tx : dirtyTransactions)
+            checkChanged(tx, changed);
+        dirtyTransactions.clear();
+
+        if (!historyPending && WalletUtils.numTransactions(wallet) != journaledStates.size()) {
+            // transactions were added without an event or removed
+            for (final Transaction tx : wallet.getTransactions(true))
+                if (!journaledStates.containsKey(tx.getTxId()))
+                    checkChanged(tx, changed);
+            if (WalletUtils.numTransactions(wallet) != journaledStates.size()) {
+                // removals can't be expressed by records
+                resetStates();
+                requestCompaction();
+                return;
+            }
+        }
+
+        final DeterministicKeyChain keyChain = wallet.getActiveKeyChain();
+        final boolean keysIssued = keyChain.getIssuedExternalKeys() != journaledIssuedExternalKeys
+                || keyChain.getIssuedInternalKeys() != journaledIssuedInternalKeys;
+        final boolean blockSeen = !Objects.equals(lastBlockSeenHash, journaledLastBlockSeenHash);
+        final int otherState = otherStateOf();
+        final boolean otherStateChanged = otherState != journaledOtherState;
+        if (changed.isEmpty() && !keysIssued && !blockSeen && !otherStateChanged)
+            return;
+        if (!changed.isEmpty() && MAKE_TX_PROTO == null) {
+            resetStates();
+            requestCompaction();
+            return;
+        }
+
+        final Protos.Wallet.Builder record = newRecord();
+        for (final Transaction tx : changed) {
+            final Pool pool = poolOf(tx);
+            if (pool != null) {
+                record.addTransaction(txToProto(tx, pool));
+                journaledStates.put(tx.getTxId(), stateOf(tx));
+            }
+        }
+        if (keysIssued) {
+            record.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+            journaledIssuedExternalKeys = keyChain.getIssuedExternalKeys();
+            journaledIssuedInternalKeys = keyChain.getIssuedInternalKeys();
+        }
+        if (otherStateChanged) {
+            final Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(wallet);
+            if (proto.hasDescription())
+                record.setDescription(proto.getDescription());
+            record.addAllWatchedScript(proto.getWatchedScriptList());
+            record.addAllExtension(proto.getExtensionList());
+            for (final Protos.Tag tag : proto.getTagsList())
+                if (!tag.getTag().equals(TAG_SEQUENCE))
+                    record.addTags(tag);
+            record.addTags(Protos.Tag.newBuilder().setTag(TAG_OTHER_STATE).setData(ByteString.EMPTY));
+            journaledOtherState = otherState;
+        }
+        journaledLastBlockSeenHash = lastBlockSeenHash;
+        append(record.build());
+    }
+
+    private void checkChanged(final Transaction tx, final Set<Transaction> changed) {
+        final Integer state = stateOf(tx);
+        if (!state.equals(journaledStates.put(tx.getTxId(), state))) {
+            changed.add(tx);
+            // spending or unspending changes the outputs and pools of the transactions spent from
+            for (final TransactionInput input : tx.getInputs()) {
+                final Transaction spent = wallet.getTransaction(input.getOutpoint().getHash());
+                if (spent != null)
+                    changed.add(spent);
+            }
+        }
+    }
+
+    private void resetStates() {
+        dirtyTransactions.clear();
+        journaledStates.clear();
+        for (final Transaction tx : wallet.getTransactions(true))
+            journaledStates.put(tx.getTxId(), stateOf(tx));
+        journaledLastBlockSeenHash = wallet.getLastBlockSeenHash();
+        final DeterministicKeyChain keyChain = wallet.getActiveKeyChain();
+        journaledIssuedExternalKeys = keyChain.getIssuedExternalKeys();
+        journaledIssuedInternalKeys = keyChain.getIssuedInternalKeys();
+        journaledOtherState = otherStateOf();
+    }
+
+    private final BulkSyncMode.Listener bulkSyncListener = new BulkSyncMode.Listener() {
+        @Override
+        public void onBulkSyncModeChanged(final boolean active) {
+            synchronized (WalletJournal.this) {
+                if (active || !flushScheduled || executor.isShutdown())
+                    return;
+            }
+            // write out what was held back, the flush scheduled for later will find nothing left
+            executor.execute(flushRunnable);
+        }
+    };
+
+    private Protos.Wallet.Builder newRecord() {
+        final Protos.Wallet.Builder record = Protos.Wallet.newBuilder();
+        record.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        final Sha256Hash lastBlockSeenHash = wallet.getLastBlockSeenHash();
+        if (lastBlockSeenHash != null) {
+            record.setLastSeenBlockHash(WalletProtobufSerializer.hashToByteString(lastBlockSeenHash));
+            record.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+            record.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+        }
+        return record;
+    }
+
+    private void append(final Protos.Wallet record) {
+        if (executor.isShutdown())
+            return;
+        synchronized (this) {
+            pendingRecords.add(new Record(nextSequence++, record));
+            if (flushScheduled)
+                return;
+            flushScheduled = true;
+        }
+        executor.schedule(flushRunnable, BulkSyncMode.get().delayMs(delayMs), TimeUnit.MILLISECONDS);
+    }
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (final IOException x) {
+                log.warn("problem appending to wallet journal, compacting", x);
+                compactionNeeded.set(true);
+            }
+            if (compactionNeeded.get())
+                compactQuietly();
+        }
+    };
+
+    private void requestCompaction() {
+        if (!compactionNeeded.getAndSet(true))
+            scheduleCompaction();
+    }
+
+    private void scheduleCompaction() {
+        if (executor.isShutdown())
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compactQuietly();
+            }
+        });
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (final IOException x) {
+            log.warn("problem compacting wallet journal", x);
+        }
+    }
+
+    private void openJournal(final boolean truncate) throws IOException {
+        channel = new RandomAccessFile(journalFile, "rw").getChannel();
+        final List<Record> records = new ArrayList<>();
+        final long validLength = truncate ? 0 : scan(channel, records);
+        // keep sequence numbers increasing even across records the base file doesn't include yet
+        if (!records.isEmpty())
+            nextSequence = Math.max(nextSequence, records.get(records.size() - 1).sequence + 1);
+        if (validLength < channel.size()) {
+            log.info("cutting off {} bytes of incomplete records from wallet journal", channel.size() - validLength);
+            channel.truncate(validLength);
+            channel.force(false);
+        }
+        channel.position(validLength);
+    }
+
+    // executor only
+    private void flush() throws IOException {
+        final List<Record> records;
+        synchronized (this) {
+            records = new ArrayList<>(pendingRecords);
+            pendingRecords.clear();
+            flushScheduled = false;
+        }
+        if (records.isEmpty() || channel == null)
+            return;
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        final List<byte[]> payloads = new ArrayList<>(records.size());
+        int size = 0;
+        for (final Record record : records) {
+            final byte[] payload = record.delta.toByteArray();
+            payloads.add(payload);
+            size += RECORD_HEADER_SIZE + payload.length;
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int i = 0; i < records.size(); i++) {
+            final byte[] payload = payloads.get(i);
+            final long sequence = records.get(i).sequence;
+            buf.putInt(payload.length);
+            buf.putLong(sequence);
+            buf.putInt(crc(sequence, payload));
+            buf.put(payload);
+        }
+        buf.flip();
+        while (buf.hasRemaining())
+            channel.write(buf);
+        channel.force(false);
+        watch.stop();
+        log.info("{} records ({} bytes) appended to wallet journal: '{}', took {}", records.size(), size,
+                journalFile, watch);
+
+        if (channel.size() > COMPACTION_THRESHOLD)
+            compactionNeeded.set(true);
+    }
+
+    // executor only
+    private void compact() throws IOException {
+        if (historyPending) {
+            log.info("wallet history still loading, holding back compaction");
+            compactionNeeded.set(true);
+            flush();
+            return;
+        }
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        final long sequence;
+        synchronized (this) {
+            // pending records are part of the snapshot taken below
+            sequence = nextSequence - 1;
+            pendingRecords.clear();
+        }
+        compactionNeeded.set(false);
+
+        wallet.setTag(TAG_SEQUENCE, ByteString.copyFrom(Longs.toByteArray(sequence)));
+        final File tempFile = File.createTempFile("wallet", ".tmp", walletFile.getParentFile());
+        try (final FileOutputStream os = new FileOutputStream(tempFile)) {
+            // takes the snapshot with the wallet lock held, so it's consistent
+            wallet.saveToFileStream(os);
+            os.flush();
+            os.getFD().sync();
+        }
+        if (!tempFile.renameTo(walletFile)) {
+            tempFile.delete();
+            throw new IOException("Failed to rename " + tempFile + " to " + walletFile);
+        }
+
+        if (channel != null) {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(false);
+        }
+        watch.stop();
+        log.info("wallet journal compacted into: '{}', took {}", walletFile, watch);
+    }
+
+    /**
+     * Replay the valid records of a journal onto a base wallet, skipping records that the base already includes.
+     *
+     * @return number of records replayed
+     */
+    static int replay(final Protos.Wallet.Builder base, final File journalFile) throws IOException {
+        if (!journalFile.exists())
+            return 0;
+
+        long baseSequence = -1;
+        for (final Protos.Tag tag : base.getTagsList())
+            if (tag.getTag().equals(TAG_SEQUENCE))
+                baseSequence = Longs.fromByteArray(tag.getData().toByteArray());
+
+        final List<Protos.Wallet> records = new ArrayList<>();
+        try (final FileChannel channel = new FileInputStream(journalFile).getChannel()) {
+            final List<Record> allRecords = new ArrayList<>();
+            scan(channel, allRecords);
+            for (final Record record : allRecords)
+                if (record.sequence > baseSequence)
+                    records.add(record.delta);
+        }
+        if (records.isEmpty())
+            return 0;
+
+        final Map<ByteString, Integer> txIndex = new HashMap<>();
+        for (int i = 0; i < base.getTransactionCount(); i++)
+            txIndex.put(base.getTransaction(i).getHash(), i);
+        for (final Protos.Wallet record : records) {
+            for (final Protos.Transaction tx : record.getTransactionList()) {
+                final Integer index = txIndex.get(tx.getHash());
+                if (index != null) {
+                    base.setTransaction(index, tx);
+                } else {
+                    txIndex.put(tx.getHash(), base.getTransactionCount());
+                    base.addTransaction(tx);
+                }
+            }
+            if (record.getKeyCount() > 0)
+                base.clearKey().addAllKey(record.getKeyList());
+            if (record.hasLastSeenBlockHash()) {
+                base.setLastSeenBlockHash(record.getLastSeenBlockHash());
+                base.setLastSeenBlockHeight(record.getLastSeenBlockHeight());
+                base.setLastSeenBlockTimeSecs(record.getLastSeenBlockTimeSecs());
+            }
+            if (hasTag(record.getTagsList(), TAG_OTHER_STATE)) {
+                if (record.hasDescription())
+                    base.setDescription(record.getDescription());
+                else
+                    base.clearDescription();
+                base.clearWatchedScript().addAllWatchedScript(record.getWatchedScriptList());
+                base.clearExtension().addAllExtension(record.getExtensionList());
+                // tags are replaced, except for the sequence number of the base
+                for (int i = base.getTagsCount() - 1; i >= 0; i--)
+                    if (!base.getTags(i).getTag().equals(TAG_SEQUENCE))
+                        base.removeTags(i);
+                for (final Protos.Tag tag : record.getTagsList())
+                    if (!tag.getTag().equals(TAG_OTHER_STATE))
+                        base.addTags(tag);
+            }
+        }
+
+        // depth-only changes aren't journaled, so derive the depth from the last seen block
+        if (base.hasLastSeenBlockHeight()) {
+            final int lastSeenBlockHeight = base.getLastSeenBlockHeight();
+            for (int i = 0; i < base.getTransactionCount(); i++) {
+                final Protos.Transaction tx = base.getTransaction(i);
+                final Protos.TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getType() == Protos.TransactionConfidence.Type.BUILDING
+                        && confidence.hasAppearedAtHeight()) {
+                    final int depth = lastSeenBlockHeight - confidence.getAppearedAtHeight() + 1;
+                    if (depth > 0 && depth != confidence.getDepth())
+                        base.setTransaction(i,
+                                tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)));
+                }
+            }
+        }
+
+        return records.size();
+    }
+
+    /**
+     * Read records from the start of a journal until the end or the first incomplete or corrupt record.
+     *
+     * @param records
+     *            valid records are added to this list
+     * @return length of the valid part of the journal
+     */
+    private static long scan(final FileChannel channel, final List<Record> records) throws IOException {
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long position = 0;
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            if (!readFully(channel, header, position))
+                break;
+            header.flip();
+            final int length = header.getInt();
+            final long sequence = header.getLong();
+            final int crc = header.getInt();
+            if (length < 0 || length > MAX_RECORD_SIZE || position + RECORD_HEADER_SIZE + length > size)
+                break;
+            final ByteBuffer payload = ByteBuffer.allocate(length);
+            if (!readFully(channel, payload, position + RECORD_HEADER_SIZE))
+                break;
+            if (crc(sequence, payload.array()) != crc)
+                break;
+            try {
+                records.add(new Record(sequence, Protos.Wallet.parseFrom(payload.array())));
+            } catch (final InvalidProtocolBufferException x) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private static boolean hasTag(final List<Protos.Tag> tags, final String name) {
+        for (final Protos.Tag tag : tags)
+            if (tag.getTag().equals(name))
+                return true;
+        return false;
+    }
+
+    private static boolean readFully(final FileChannel channel, final ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            final int read = channel.read(buf, position);
+            if (read < 0)
+                return false;
+            position += read;
+        }
+        return true;
+    }
+
+    private static int crc(final long sequence, final byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(Longs.toByteArray(sequence));
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private Pool poolOf(final Transaction tx) {
+        final Sha256Hash hash = tx.getTxId();
+        for (final Pool pool : new Pool[] { Pool.UNSPENT, Pool.SPENT, Pool.DEAD, Pool.PENDING })
+            if (wallet.poolContainsTxHash(pool, hash))
+                return pool;
+        return null;
+    }
+
+    /**
+     * Everything persisted about a transaction that changes after it is added, except for its depth.
+     */
+    private int stateOf(final Transaction tx) {
+        final TransactionConfidence confidence = tx.getConfidence();
+        final ConfidenceType type = confidence.getConfidenceType();
+        int state = Objects.hash(poolOf(tx), type,
+                type == ConfidenceType.BUILDING ? confidence.getAppearedAtChainHeight() : -1,
+                type == ConfidenceType.DEAD ? confidence.getOverridingTransaction() : null, confidence.getSource(),
+                confidence.numBroadcastPeers(), confidence.getLastBroadcastedAt(), tx.getUpdateTime(), tx.getMemo(),
+                tx.getExchangeRate());
+        for (final TransactionOutput output : tx.getOutputs())
+            state = 31 * state + (output.getSpentBy() != null ? 1 : 0);
+        return state;
+    }
+
+    /**
+     * Everything persisted about the wallet other than transactions, keys and the last seen block.
+     */
+    private int otherStateOf() {
+        int state = Objects.hash(wallet.getDescription(), wallet.getWatchedScripts());
+        for (final Map.Entry<String, ByteString> tag : wallet.getTags().entrySet())
+            if (!tag.getKey().equals(TAG_SEQUENCE))
+                state += tag.hashCode();
+        for (final WalletExtension extension : wallet.getExtensions().values())
+            state += Objects.hash(extension.getWalletExtensionID(), extension.isWalletExtensionMandatory(),
+                    Arrays.hashCode(extension.serializeWalletExtension()));
+        return state;
+    }
+
+    private static Protos.Transaction txToProto(final Transaction tx, final Pool pool) {
+        try {
+            return (Protos.Transaction) MAKE_TX_PROTO.invoke(null, new WalletTransaction(pool, tx));
+        } catch (final IllegalAccessException | InvocationTargetException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    private static Method makeTxProtoMethod() {
+        try {
+            final Method method = WalletProtobufSerializer.class.getDeclaredMethod("makeTxProto",
+                    WalletTransaction.class);
+            method.setAccessible(true);
+            return method;
+        } catch (final NoSuchMethodException | SecurityException x) {
+            log.warn("cannot serialize single transactions, every change will be compacted", x);
+            return null;
+        }
+    }
+
+    private static final class Record {
+        public final long sequence;
+        public final Protos.Wallet delta;
+
+        public Record(final long sequence, final Protos.Wallet delta) {
+            this.sequence = sequence;
+            this.delta = delta;
+        }
+    }
+}
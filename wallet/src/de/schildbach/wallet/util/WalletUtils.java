@@ -36,6 +36,7 @@ import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.UnreadableWalletException;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -169,6 +170,22 @@ public class WalletUtils {
         return true;
     }
 
+    /**
+     * Internal transactions move coins within the wallet, so they count as neither sent nor received.
+     */
+    public static boolean isInternal(final Transaction tx, final Wallet wallet) {
+        return tx.getPurpose() == Transaction.Purpose.KEY_ROTATION || isEntirelySelf(tx, wallet);
+    }
+
+    /**
+     * @return number of transactions in the wallet, like {@code wallet.getTransactions(true).size()} but without
+     *         copying them
+     */
+    public static int numTransactions(final Wallet wallet) {
+        return wallet.getPoolSize(Pool.UNSPENT) + wallet.getPoolSize(Pool.SPENT) + wallet.getPoolSize(Pool.DEAD)
+                + wallet.getPoolSize(Pool.PENDING);
+    }
+
     public static void autoBackupWallet(final Context context, final Wallet wallet) {
         final Stopwatch watch = Stopwatch.createStarted();
         final Protos.Wallet.Builder builder = new WalletProtobufSerializer().walletToProto(wallet).toBuilder();
@@ -0,0 +1,106 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.app.Application;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+
+/**
+ * Needs an Android runtime for SQLite, so unlike the other tests this one runs on Robolectric. A plain
+ * {@link Application} is configured, as the wallet's own would start loading the wallet.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class, sdk = 28)
+public class AppDatabaseTest {
+    @Test
+    public void transactionSummaryDao() {
+        final AppDatabase db = Room
+                .inMemoryDatabaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase.class)
+                .allowMainThreadQueries().build();
+        try {
+            final TransactionSummaryDao dao = db.transactionSummaryDao();
+            final TransactionSummary old = summary("a", 1000, "BUILDING");
+            final TransactionSummary pending = summary("b", 500, "PENDING");
+            final TransactionSummary newer = summary("c", 2000, "BUILDING");
+            final TransactionSummary sameTime = summary("d", 2000, "BUILDING");
+            dao.insertOrUpdate(Arrays.asList(old, pending, newer, sameTime));
+            assertEquals(Arrays.asList(pending, newer, sameTime, old), dao.getNewest(10));
+            assertEquals(Arrays.asList(pending, newer), dao.getNewest(2));
+
+            // replaced on conflict
+            final TransactionSummary confirmed = summary("b", 500, "BUILDING");
+            dao.insertOrUpdate(Collections.singleton(confirmed));
+            assertEquals(Arrays.asList(newer, sameTime, old, confirmed), dao.getNewest(10));
+
+            dao.delete(Arrays.asList("a", "c", "unknown"));
+            assertEquals(Arrays.asList(sameTime, confirmed), dao.getNewest(10));
+
+            dao.deleteAll();
+            assertTrue(dao.getAll().isEmpty());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void migrationFromVersion2() {
+        final Context context = ApplicationProvider.getApplicationContext();
+        final File file = context.getDatabasePath("address_book");
+        file.getParentFile().mkdirs();
+        final SQLiteDatabase v2 = SQLiteDatabase.openOrCreateDatabase(file, null);
+        v2.execSQL("CREATE TABLE address_book (address TEXT NOT NULL, label TEXT NULL, PRIMARY KEY(address))");
+        v2.execSQL("INSERT INTO address_book (address, label) VALUES ('address', 'label')");
+        v2.setVersion(2);
+        v2.close();
+
+        // Room validates the migrated schema against the entities when opening
+        final AppDatabase db = AppDatabase.getDatabase(context);
+        try {
+            assertEquals("label", db.addressBookDao().resolveLabel("address"));
+
+            final TransactionSummary summary = summary("a", 1000, "PENDING");
+            db.transactionSummaryDao().insertOrUpdate(Collections.singleton(summary));
+            final List<TransactionSummary> all = db.transactionSummaryDao().getAll();
+            assertEquals(Collections.singletonList(summary), all);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static TransactionSummary summary(final String hash, final long updateTime,
+            final String confidenceType) {
+        return new TransactionSummary(hash, 100, 10L, TransactionSummary.DIRECTION_SENT, "address", updateTime,
+                confidenceType, confidenceType.equals("BUILDING") ? 1 : 0);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+
+import de.schildbach.wallet.util.Benchmark;
+
+import okio.Buffer;
+
+public class CoinGeckoParserTest {
+    private static final int BENCHMARK_ITERATIONS = 2000;
+
+    private byte[] fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        try (final InputStream is = getClass().getResourceAsStream("coingecko-goldcoin.json")) {
+            fixture = ByteStreams.toByteArray(is);
+        }
+    }
+
+    @Test
+    public void fixture() throws Exception {
+        final Map<String, ExchangeRate> rates = CoinGeckoParser.parse(new Buffer().write(fixture), "goldcoin",
+                "test");
+        assertEquals(153, rates.get("USD").rate.fiat.value);
+        assertEquals(142, rates.get("EUR").rate.fiat.value);
+        assertEquals(3791340, rates.get("VND").rate.fiat.value);
+        assertEquals("test", rates.get("USD").source);
+        assertFalse(rates.containsKey("BTC"));
+        assertFalse(rates.containsKey("XAU")); // too small to be represented
+        assertEquals(56, rates.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherCoin() throws Exception {
+        CoinGeckoParser.parse(new Buffer().write(fixture), "bitcoin", "test");
+    }
+
+    @Test
+    public void malformed() throws Exception {
+        for (final String json : new String[] { "", "[]", "{\"id\":\"goldcoin\",\"market_data\":[]}",
+                "{\"id\":\"goldcoin\",\"market_data\":{\"current_price\":{\"usd\":1" }) {
+            try {
+                CoinGeckoParser.parse(new Buffer().writeUtf8(json), "goldcoin", "test");
+                fail(json);
+            } catch (final IOException x) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void unusablePricesSkipped() throws Exception {
+        final Map<String, ExchangeRate> rates = CoinGeckoParser.parse(new Buffer().writeUtf8(
+                "{\"market_data\":{\"current_price\":{\"usd\":null,\"eur\":\"x\",\"gbp\":-1,\"chf\":1e99999,"
+                        + "\"jpy\":2}},\"id\":\"goldcoin\"}"),
+                "goldcoin", "test");
+        assertEquals(1, rates.size());
+        assertEquals(20000, rates.get("JPY").rate.fiat.value);
+    }
+
+    @Test
+    public void parseFixedPointLikeBigDecimal() throws Exception {
+        for (final String str : new String[] { "0", "1", "-1", "0.00001", "0.0153", "379.134", "2.4327e-07",
+                "6.5943E-06", "1e4", "1E+2", "-12.34567", "123456789012345.6789", "0.1234567890123456789012345",
+                "12345678901234567890e-10", ".5", "5." })
+            assertEquals(str, new BigDecimal(str).movePointRight(4).longValue(),
+                    CoinGeckoParser.parseFixedPoint(str, 4));
+
+        final Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            final String str = BigDecimal.valueOf(random.nextLong() % 1000000000000L, random.nextInt(30) - 2)
+                    .toString();
+            assertEquals(str, new BigDecimal(str).movePointRight(4).longValue(),
+                    CoinGeckoParser.parseFixedPoint(str, 4));
+        }
+
+        for (final String str : new String[] { "", "-", ".", "e5", "1e", "1e+", "1.2.3", "1x", "1e5000",
+                "92233720368547758070" }) {
+            try {
+                CoinGeckoParser.parseFixedPoint(str, 4);
+                fail(str);
+            } catch (final NumberFormatException x) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void allocatesLessThanStringDecode() throws Exception {
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            final long stringAllocated = readAll(false, 200, Stopwatch.createUnstarted());
+            final long parseAllocated = readAll(true, 200, Stopwatch.createUnstarted());
+            if (round == 1)
+                assertTrue(parseAllocated < stringAllocated);
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Benchmark.assumeEnabled();
+
+        final Stopwatch stringWatch = Stopwatch.createUnstarted();
+        final Stopwatch parseWatch = Stopwatch.createUnstarted();
+        long stringAllocated = 0, parseAllocated = 0;
+        for (int round = 0; round < 3; round++) { // the first rounds warm up
+            stringAllocated = readAll(false, BENCHMARK_ITERATIONS, stringWatch.reset());
+            parseAllocated = readAll(true, BENCHMARK_ITERATIONS, parseWatch.reset());
+        }
+        Benchmark.report("{} bytes: streaming parse {} us, {} bytes allocated; string decode alone {} us, "
+                + "{} bytes allocated", fixture.length, Benchmark.microsEach(BENCHMARK_ITERATIONS, parseWatch),
+                parseAllocated, Benchmark.microsEach(BENCHMARK_ITERATIONS, stringWatch), stringAllocated);
+    }
+
+    /**
+     * Read the fixture a number of times, either parsing it or, as the baseline, just decoding it into a string like
+     * the tree parse had to.
+     *
+     * @return bytes allocated per read
+     */
+    private long readAll(final boolean parse, final int count, final Stopwatch watch) throws IOException {
+        final Buffer[] sources = new Buffer[count];
+        for (int i = 0; i < sources.length; i++)
+            sources[i] = new Buffer().write(fixture);
+        final long allocated = allocatedBytes();
+        watch.start();
+        for (final Buffer source : sources) {
+            if (parse)
+                assertTrue(CoinGeckoParser.parse(source, "goldcoin", "test").size() > 0);
+            else
+                assertTrue(source.readString(StandardCharsets.UTF_8).length() > 0);
+        }
+        watch.stop();
+        return (allocatedBytes() - allocated) / sources.length;
+    }
+
+    private static long allocatedBytes() {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.utils.Fiat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExchangeRatesCacheTest {
+    private static final long MAX_AGE_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private volatile long now = 1500000000000L;
+    private final ExchangeRatesCache.Clock clock = new ExchangeRatesCache.Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    };
+
+    private File file;
+    private ExecutorService executor;
+    private final AtomicInteger numChanges = new AtomicInteger();
+    private final ExchangeRatesCache.Listener listener = new ExchangeRatesCache.Listener() {
+        @Override
+        public void onRatesChanged() {
+            numChanges.incrementAndGet();
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("exchange-rates", null);
+        file.delete();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        file.delete();
+    }
+
+    @Test
+    public void concurrentCallersShareOneFetch() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final FakeFetcher fetcher = new FakeFetcher(release);
+        final ExchangeRatesCache cache = new ExchangeRatesCache(file, fetcher, MAX_AGE_MS, executor, listener, clock);
+
+        final List<Future<Map<String, ExchangeRate>>> results = new ArrayList<>();
+        final ExecutorService callers = Executors.newFixedThreadPool(8);
+        final CountDownLatch calling = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++)
+            results.add(callers.submit(new Callable<Map<String, ExchangeRate>>() {
+                @Override
+                public Map<String, ExchangeRate> call() {
+                    calling.countDown();
+                    return cache.get(false);
+                }
+            }));
+        // those that come late find the fresh rates, so one fetch is all there is either way
+        assertTrue(calling.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        for (final Future<Map<String, ExchangeRate>> result : results)
+            assertEquals(1.5, rate(result.get(5, TimeUnit.SECONDS), "USD"), 0);
+        assertEquals(1, fetcher.numFetches.get());
+        assertEquals(1, numChanges.get());
+        callers.shutdown();
+    }
+
+    @Test
+    public void staleRatesServedRightAway() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final FakeFetcher fetcher = new FakeFetcher(release);
+        release.countDown();
+        final ExchangeRatesCache cache = new ExchangeRatesCache(file, fetcher, 0, executor, listener, clock);
+        final Map<String, ExchangeRate> first = cache.get(false);
+        assertNotNull(first);
+
+        // stale at once, but the retry interval holds back another fetch
+        now++;
+        assertSame(first, cache.get(false));
+        assertEquals(1, fetcher.numFetches.get());
+    }
+
+    @Test
+    public void persistedForOfflineStart() throws Exception {
+        final CountDownLatch release = new CountDownLatch(0);
+        final ExchangeRatesCache cache = new ExchangeRatesCache(file, new FakeFetcher(release), MAX_AGE_MS,
+                executor, listener, clock);
+        cache.refresh().get(5, TimeUnit.SECONDS);
+
+        final FakeFetcher fetcher = new FakeFetcher(release);
+        final ExchangeRatesCache reloaded = new ExchangeRatesCache(file, fetcher, MAX_AGE_MS, executor, listener,
+                clock);
+        final Map<String, ExchangeRate> rates = reloaded.get(true);
+        assertEquals(2, rates.size());
+        assertEquals(1.5, rate(rates, "USD"), 0);
+        assertEquals("test", rates.get("EUR").source);
+        assertEquals(cache.getUpdatedAt(), reloaded.getUpdatedAt());
+        assertEquals(0, fetcher.numFetches.get());
+    }
+
+    @Test
+    public void notModifiedKeepsRates() throws Exception {
+        final CountDownLatch release = new CountDownLatch(0);
+        final FakeFetcher fetcher = new FakeFetcher(release);
+        final ExchangeRatesCache cache = new ExchangeRatesCache(file, fetcher, MAX_AGE_MS, executor, listener, clock);
+        cache.refresh().get(5, TimeUnit.SECONDS);
+        assertNull(fetcher.lastEtag);
+        final long updatedAt = cache.getUpdatedAt();
+
+        fetcher.notModified = true;
+        now += MAX_AGE_MS;
+        cache.refresh().get(5, TimeUnit.SECONDS);
+        assertEquals("\"v1\"", fetcher.lastEtag);
+        assertEquals(1.5, rate(cache.get(true), "USD"), 0);
+        assertEquals(1, numChanges.get());
+        assertEquals(updatedAt + MAX_AGE_MS, cache.getUpdatedAt());
+    }
+
+    private static double rate(final Map<String, ExchangeRate> rates, final String currencyCode) {
+        return rates.get(currencyCode).rate.fiat.value / 10000.0;
+    }
+
+    private static class FakeFetcher implements ExchangeRatesCache.Fetcher {
+        private final CountDownLatch release;
+        private final AtomicInteger numFetches = new AtomicInteger();
+        private volatile boolean notModified = false;
+        private volatile String lastEtag;
+
+        public FakeFetcher(final CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public ExchangeRatesCache.Result fetch(final String etag, final String lastModified) throws IOException {
+            numFetches.incrementAndGet();
+            lastEtag = etag;
+            try {
+                release.await();
+            } catch (final InterruptedException x) {
+                throw new IOException(x);
+            }
+            if (notModified)
+                return null;
+            final Map<String, ExchangeRate> rates = new TreeMap<>();
+            rates.put("USD", rate("USD", "1.5", null));
+            rates.put("EUR", rate("EUR", "1.25", "test"));
+            return new ExchangeRatesCache.Result(rates, "\"v1\"", null);
+        }
+
+        private static ExchangeRate rate(final String currencyCode, final String fiat, final String source) {
+            return new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(Coin.COIN, Fiat.parseFiat(currencyCode, fiat)),
+                    source);
+        }
+    }
+}
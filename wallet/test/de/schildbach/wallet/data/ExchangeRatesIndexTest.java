@@ -0,0 +1,104 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.utils.Fiat;
+import org.junit.Test;
+
+public class ExchangeRatesIndexTest {
+    private static final Map<String, ExchangeRate> RATES = new TreeMap<>();
+    static {
+        for (final String currencyCode : new String[] { "AUD", "CHF", "EUR", "GBP", "SATS", "USD" })
+            RATES.put(currencyCode, new ExchangeRate(
+                    new org.bitcoinj.utils.ExchangeRate(Coin.COIN, Fiat.valueOf(currencyCode, 100)), "test"));
+    }
+
+    @Test
+    public void codesAndSymbols() {
+        final ExchangeRatesIndex index = new ExchangeRatesIndex(RATES, Locale.US);
+        assertArrayEquals(new String[] { "AUD", "CHF", "EUR", "GBP", "SATS", "USD" }, search(index, ""));
+        assertArrayEquals(new String[] { "USD" }, search(index, "usd"));
+        assertArrayEquals(new String[] { "USD" }, search(index, "uSd"));
+        assertArrayEquals(new String[] { "EUR" }, search(index, "\u20ac"));
+        assertArrayEquals(new String[] { "SATS" }, search(index, "sats"));
+        assertArrayEquals(new String[0], search(index, "xyz"));
+        assertEquals(4, index.indexOf("SATS"));
+        assertEquals(-1, index.indexOf("XYZ"));
+        assertEquals(-1, index.indexOf(null));
+    }
+
+    @Test
+    public void localizedNames() {
+        final ExchangeRatesIndex english = new ExchangeRatesIndex(RATES, Locale.US);
+        // prefix of "US Dollar" before "Australian Dollar", which merely contains it
+        assertArrayEquals(new String[] { "USD", "AUD" }, search(english, "us"));
+        assertArrayEquals(new String[] { "CHF" }, search(english, "swiss"));
+        assertArrayEquals(new String[] { "AUD", "USD" }, search(english, "dollar"));
+        assertArrayEquals(new String[] { "GBP" }, search(english, "pound"));
+
+        final ExchangeRatesIndex french = new ExchangeRatesIndex(RATES, Locale.FRANCE);
+        assertArrayEquals(new String[] { "USD" }, search(french, "etats"));
+        assertArrayEquals(new String[] { "USD" }, search(french, "\u00c9tats"));
+        assertArrayEquals(new String[] { "CHF" }, search(french, "suisse"));
+    }
+
+    @Test
+    public void rebuiltOnlyForOtherTableOrLocale() {
+        final ExchangeRatesIndex index = new ExchangeRatesIndex(RATES, Locale.US);
+        assertEquals(true, index.isFor(RATES, Locale.US));
+        assertEquals(false, index.isFor(RATES, Locale.FRANCE));
+        assertEquals(false, index.isFor(new TreeMap<>(RATES), Locale.US));
+    }
+
+    @Test
+    public void asciiSearchDoesNotAllocate() {
+        final ExchangeRatesIndex index = new ExchangeRatesIndex(RATES, Locale.US);
+        final int[] matches = new int[index.size()];
+        final String[] queries = { "", "u", "us", "dollar", "xyz" };
+        for (int i = 0; i < 10000; i++) // warm up
+            index.search(queries[i % queries.length], matches);
+        final long allocated = allocatedBytes();
+        for (int i = 0; i < 10000; i++)
+            index.search(queries[i % queries.length], matches);
+        assertEquals(0, allocatedBytes() - allocated, 1024);
+    }
+
+    private static String[] search(final ExchangeRatesIndex index, final String query) {
+        final int[] matches = new int[index.size()];
+        final int numMatches = index.search(query, matches);
+        final String[] currencyCodes = new String[numMatches];
+        for (int i = 0; i < numMatches; i++)
+            currencyCodes[i] = index.get(matches[i]).getCurrencyCode();
+        return currencyCodes;
+    }
+
+    private static long allocatedBytes() {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
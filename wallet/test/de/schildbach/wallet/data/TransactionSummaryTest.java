@@ -0,0 +1,166 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.schildbach.wallet.Constants;
+
+public class TransactionSummaryTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final long T0 = 1500000000000L;
+
+    private Wallet wallet;
+    private StoredBlock chainHead;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        chainHead = new StoredBlock(PARAMS.getGenesisBlock(), BigInteger.ONE, 0);
+    }
+
+    @Test
+    public void received() {
+        final Address address = wallet.currentReceiveAddress();
+        final Transaction tx = receive(Coin.COIN, address);
+
+        final TransactionSummary summary = TransactionSummary.fromTransaction(tx, wallet);
+        assertEquals(tx.getTxId().toString(), summary.getHash());
+        assertEquals(Coin.COIN.value, summary.getValue());
+        assertNull(summary.getFee());
+        assertEquals(TransactionSummary.DIRECTION_RECEIVED, summary.getDirection());
+        assertEquals(addressString(address), summary.getAddress());
+        assertEquals(T0, summary.getUpdateTime());
+        assertEquals(ConfidenceType.PENDING.name(), summary.getConfidenceType());
+        assertEquals(0, summary.getDepth());
+    }
+
+    @Test
+    public void sentAndInternal() throws Exception {
+        confirm(receive(Coin.COIN, wallet.currentReceiveAddress()));
+
+        final Address foreignAddress = LegacyAddress.fromKey(PARAMS, new ECKey());
+        final Transaction tx = send(foreignAddress);
+        final TransactionSummary sent = TransactionSummary.fromTransaction(tx, wallet);
+        assertEquals(TransactionSummary.DIRECTION_SENT, sent.getDirection());
+        assertEquals(addressString(foreignAddress), sent.getAddress());
+        assertEquals(-Coin.CENT.value - sent.getFee(), sent.getValue());
+
+        confirm(tx); // so the change can be spent
+
+        final Transaction internal = send(wallet.freshReceiveAddress());
+        assertEquals(TransactionSummary.DIRECTION_INTERNAL,
+                TransactionSummary.fromTransaction(internal, wallet).getDirection());
+    }
+
+    @Test
+    public void depthIsCapped() throws Exception {
+        final Transaction tx = receive(Coin.COIN, wallet.currentReceiveAddress());
+        confirm(tx);
+        final TransactionSummary summary1 = TransactionSummary.fromTransaction(tx, wallet);
+        assertEquals(ConfidenceType.BUILDING.name(), summary1.getConfidenceType());
+        assertEquals(1, summary1.getDepth());
+
+        for (int i = 0; i < Constants.MAX_NUM_CONFIRMATIONS; i++)
+            confirm(null);
+        final TransactionSummary summary2 = TransactionSummary.fromTransaction(tx, wallet);
+        assertEquals(Constants.MAX_NUM_CONFIRMATIONS, summary2.getDepth());
+
+        // further blocks don't change the summary
+        confirm(null);
+        assertEquals(summary2, TransactionSummary.fromTransaction(tx, wallet));
+        assertNotEquals(summary1, summary2);
+    }
+
+    @Test
+    public void equalsAndHashCode() {
+        final TransactionSummary summary = new TransactionSummary("hash", 1, null,
+                TransactionSummary.DIRECTION_RECEIVED, null, T0, ConfidenceType.PENDING.name(), 0);
+        final TransactionSummary same = new TransactionSummary("hash", 1, null,
+                TransactionSummary.DIRECTION_RECEIVED, null, T0, ConfidenceType.PENDING.name(), 0);
+        assertEquals(summary, same);
+        assertEquals(summary.hashCode(), same.hashCode());
+
+        assertNotEquals(summary, new TransactionSummary("hash", 1, 1L, TransactionSummary.DIRECTION_RECEIVED,
+                null, T0, ConfidenceType.PENDING.name(), 0));
+        assertNotEquals(summary, new TransactionSummary("hash", 1, null, TransactionSummary.DIRECTION_RECEIVED,
+                "address", T0, ConfidenceType.PENDING.name(), 0));
+        assertNotEquals(summary, new TransactionSummary("hash", 1, null, TransactionSummary.DIRECTION_RECEIVED,
+                null, T0, ConfidenceType.BUILDING.name(), 1));
+    }
+
+    private static String addressString(final Address address) {
+        // the summary formats addresses for the app's network
+        return LegacyAddress.fromPubKeyHash(Constants.NETWORK_PARAMETERS, address.getHash()).toString();
+    }
+
+    private Transaction receive(final Coin value, final Address to) {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 0 },
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new ECKey().getPubKey()))));
+        tx.addOutput(value, to);
+        wallet.receivePending(tx, null);
+        tx.setUpdateTime(new Date(T0));
+        return tx;
+    }
+
+    private Transaction send(final Address to) throws Exception {
+        final SendRequest request = SendRequest.to(to, Coin.CENT);
+        wallet.completeTx(request);
+        wallet.commitTx(request.tx);
+        return request.tx;
+    }
+
+    /**
+     * Add a block to the best chain, containing the given transaction if any.
+     */
+    private void confirm(final Transaction tx) throws Exception {
+        final Block block = chainHead.getHeader().createNextBlock(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        chainHead = chainHead.build(block);
+        if (tx != null)
+            wallet.receiveFromBlock(tx, chainHead, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(chainHead);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveIdlePolicyTest {
+    @Test
+    public void fixedWithoutSamples() {
+        final ActivityTracker activity = new ActivityTracker(64);
+        final AdaptiveIdlePolicy policy = new AdaptiveIdlePolicy(null);
+        assertFalse(minute(activity, policy, 1, 0).idle);
+        for (int i = 1; i < FixedIdlePolicy.IDLE_TRANSACTION_TIMEOUT_MIN; i++)
+            assertFalse(minute(activity, policy, 0, 0).idle);
+        assertFalse(minute(activity, policy, 0, 0).idle);
+        final IdlePolicy.Decision decision = minute(activity, policy, 0, 0);
+        assertTrue(decision.idle);
+        assertEquals(FixedIdlePolicy.IDLE_TRANSACTION_TIMEOUT_MIN, decision.transactionTimeoutMin);
+        assertEquals(FixedIdlePolicy.IDLE_TRANSACTION_TIMEOUT_MIN + 1, decision.minutesSinceTransactions);
+    }
+
+    @Test
+    public void learnsGapsBetweenTransactions() {
+        final ActivityTracker activity = new ActivityTracker(64);
+        final AdaptiveIdlePolicy policy = new AdaptiveIdlePolicy(null);
+        // payments tend to come in three minutes apart
+        minute(activity, policy, 1, 0);
+        for (int i = 0; i < AdaptiveIdlePolicy.MIN_SAMPLES; i++) {
+            minute(activity, policy, 0, 0);
+            minute(activity, policy, 0, 0);
+            minute(activity, policy, 1, 0);
+        }
+        assertEquals("3,3,3,3,3", policy.getState());
+        assertFalse(minute(activity, policy, 0, 0).idle);
+        assertFalse(minute(activity, policy, 0, 0).idle);
+        assertFalse(minute(activity, policy, 0, 0).idle);
+        final IdlePolicy.Decision decision = minute(activity, policy, 0, 0);
+        assertTrue(decision.idle);
+        assertEquals(3, decision.transactionTimeoutMin);
+
+        // survives restart
+        assertEquals(3, new AdaptiveIdlePolicy(policy.getState()).decide(activity).transactionTimeoutMin);
+    }
+
+    @Test
+    public void blocksKeepActive() {
+        final ActivityTracker activity = new ActivityTracker(4);
+        final AdaptiveIdlePolicy policy = new AdaptiveIdlePolicy("garbage");
+        assertFalse(minute(activity, policy, 0, 1).idle);
+        assertFalse(minute(activity, policy, 0, 0).idle);
+        assertFalse(minute(activity, policy, 0, 0).idle);
+        assertTrue(minute(activity, policy, 0, 0).idle);
+        assertEquals("", policy.getState());
+    }
+
+    private static IdlePolicy.Decision minute(final ActivityTracker activity, final IdlePolicy policy,
+            final int numTransactions, final int numBlocks) {
+        activity.record(numTransactions, numBlocks);
+        return policy.decide(activity);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BroadcastQueueTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final long T0 = 1500000000000L;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        file = File.createTempFile("broadcast-queue", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void retriedWithBackoffUntilAnnounced() throws Exception {
+        final BroadcastQueue queue = BroadcastQueue.load(PARAMS, file);
+        final Transaction tx = tx(1);
+        assertTrue(queue.add(tx, T0));
+        assertFalse(queue.add(tx, T0));
+
+        assertEquals(Arrays.asList(tx), queue.due(T0));
+        assertEquals(Collections.emptyList(), queue.due(T0 + BroadcastQueue.MIN_BACKOFF_MS - 1));
+        assertEquals(Arrays.asList(tx), queue.due(T0 + BroadcastQueue.MIN_BACKOFF_MS));
+        // backoff doubled
+        assertEquals(T0 + 3 * BroadcastQueue.MIN_BACKOFF_MS, queue.nextAttemptAt());
+
+        final BroadcastQueue.Propagation propagation = queue.announced(tx.getHash(), T0 + 40000);
+        assertTrue(propagation.announced);
+        assertEquals(40000, propagation.latencyMs);
+        assertEquals(2, propagation.attempts);
+        assertEquals(0, queue.size());
+        assertEquals(Long.MAX_VALUE, queue.nextAttemptAt());
+        assertNull(queue.announced(tx.getHash(), T0 + 50000));
+        assertEquals(Arrays.asList(propagation), queue.getPropagations());
+    }
+
+    @Test
+    public void survivesRestart() throws Exception {
+        final BroadcastQueue queue = BroadcastQueue.load(PARAMS, file);
+        final Transaction tx = tx(2);
+        queue.add(tx, T0);
+        queue.due(T0);
+        queue.save();
+
+        final BroadcastQueue reloaded = BroadcastQueue.load(PARAMS, file);
+        assertEquals(1, reloaded.size());
+        // due right away after a restart
+        assertEquals(Arrays.asList(tx), reloaded.due(T0 + 1));
+        assertEquals(2, reloaded.announced(tx.getHash(), T0 + 1000).attempts);
+    }
+
+    @Test
+    public void confirmedOrDeadDropped() throws Exception {
+        final BroadcastQueue queue = BroadcastQueue.load(PARAMS, file);
+        final Transaction confirmed = tx(3), dead = tx(4), pending = tx(5);
+        queue.add(confirmed, T0);
+        queue.add(dead, T0);
+        queue.add(pending, T0);
+        confirmed.getConfidence().setAppearedAtChainHeight(1);
+        dead.getConfidence().setConfidenceType(ConfidenceType.DEAD);
+        assertEquals(Arrays.asList(pending), queue.due(T0));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void givenUpAfterMaxAttempts() throws Exception {
+        final BroadcastQueue queue = BroadcastQueue.load(PARAMS, file);
+        final Transaction tx = tx(7);
+        queue.add(tx, T0);
+        long now = T0;
+        for (int i = 0; i < BroadcastQueue.MAX_ATTEMPTS; i++) {
+            assertEquals(Arrays.asList(tx), queue.due(now));
+            now = queue.nextAttemptAt();
+        }
+        assertEquals(1, queue.giveUp(now - 1));
+        assertEquals(Collections.emptyList(), queue.due(now));
+        assertEquals(0, queue.size());
+        final BroadcastQueue.Propagation propagation = queue.getPropagations().get(0);
+        assertFalse(propagation.announced);
+        assertEquals(BroadcastQueue.MAX_ATTEMPTS, propagation.attempts);
+    }
+
+    @Test
+    public void givenUpWhenTooOld() throws Exception {
+        final BroadcastQueue queue = BroadcastQueue.load(PARAMS, file);
+        queue.add(tx(8), T0);
+        // no attempts made, e.g. because no peers connected
+        assertEquals(1, queue.giveUp(T0 + BroadcastQueue.MAX_AGE_MS - 1));
+        assertEquals(0, queue.giveUp(T0 + BroadcastQueue.MAX_AGE_MS));
+        assertEquals(0, queue.getPropagations().get(0).attempts);
+    }
+
+    @Test
+    public void unreadableLinesSkipped() throws Exception {
+        final BroadcastQueue queue = BroadcastQueue.load(PARAMS, file);
+        queue.add(tx(6), T0);
+        queue.save();
+        Files.write(file.toPath(), ("garbage\nabcd 0 0\n" + new String(Files.readAllBytes(file.toPath())))
+                .getBytes());
+        assertEquals(1, BroadcastQueue.load(PARAMS, file).size());
+    }
+
+    private static Transaction tx(final int index) {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 0 },
+                new TransactionOutPoint(PARAMS, index, Sha256Hash.ZERO_HASH)));
+        tx.addOutput(Coin.COIN, LegacyAddress.fromKey(PARAMS, new ECKey()));
+        return tx;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Random;
+
+import org.bitcoinj.core.CheckpointManager;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+public class CheckpointIndexTest {
+    private static final Logger log = LoggerFactory.getLogger(CheckpointIndexTest.class);
+
+    private static final int NUM_LOOKUPS = 200;
+
+    @Test
+    public void mainnet() throws Exception {
+        compareWithTextCheckpoints(MainNetParams.get(), "checkpoints");
+    }
+
+    @Test
+    public void testnet() throws Exception {
+        compareWithTextCheckpoints(TestNet3Params.get(), "checkpoints-testnet");
+    }
+
+    /**
+     * Checks the index as generated by the {@code compileCheckpoints} Gradle task, which passes its output directory
+     * as a system property.
+     */
+    private void compareWithTextCheckpoints(final NetworkParameters params, final String name) throws Exception {
+        final String indexDir = System.getProperty("checkpointsIndexDir");
+        assertNotNull("checkpointsIndexDir not set, run through Gradle", indexDir);
+        final File indexFile = new File(indexDir, name + ".bin");
+        final File textFile = new File("assets", name + ".txt");
+
+        final CheckpointManager manager;
+        try (final FileInputStream is = new FileInputStream(textFile)) {
+            manager = new CheckpointManager(params, is);
+        }
+        final long genesisTime = params.getGenesisBlock().getTimeSeconds();
+        final long latestTime = manager.getCheckpointBefore(Integer.MAX_VALUE).getHeader().getTimeSeconds();
+        final Random random = new Random(0);
+        final long[] times = new long[NUM_LOOKUPS];
+        for (int i = 0; i < times.length; i++)
+            times[i] = genesisTime + 1 + (long) (random.nextDouble() * (latestTime - genesisTime + 86400 * 30));
+
+        // text path, as done by CheckpointManager.checkpoint() for each fresh block store
+        final StoredBlock[] expected = new StoredBlock[times.length];
+        final Stopwatch textWatch = Stopwatch.createStarted();
+        for (int i = 0; i < times.length; i++) {
+            try (final FileInputStream is = new FileInputStream(textFile)) {
+                expected[i] = new CheckpointManager(params, is).getCheckpointBefore(times[i]);
+            }
+        }
+        textWatch.stop();
+
+        // index path, mapping the index for each lookup as well
+        final StoredBlock[] actual = new StoredBlock[times.length];
+        final Stopwatch indexWatch = Stopwatch.createStarted();
+        for (int i = 0; i < times.length; i++) {
+            try (final FileInputStream is = new FileInputStream(indexFile)) {
+                final CheckpointIndex index = CheckpointIndex.map(params, is.getChannel(), 0, indexFile.length());
+                actual[i] = index.getCheckpointBefore(times[i]);
+            }
+        }
+        indexWatch.stop();
+
+        for (int i = 0; i < times.length; i++) {
+            assertEquals("time " + times[i], expected[i], actual[i]);
+            assertEquals("time " + times[i], expected[i].getChainWork(), actual[i].getChainWork());
+        }
+
+        log.info("{}: {} lookups, text {}, index {}", textFile.getName(), NUM_LOOKUPS, textWatch, indexWatch);
+    }
+}
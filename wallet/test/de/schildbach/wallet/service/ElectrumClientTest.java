@@ -0,0 +1,188 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import de.schildbach.wallet.util.Benchmark;
+
+public class ElectrumClientTest {
+    private static final String LISTUNSPENT = "blockchain.scripthash.listunspent";
+    private static final int NUM_BENCHMARK_REQUESTS = 2000;
+
+    private FakeElectrumServer server;
+    private ElectrumClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeElectrumServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null)
+            client.close();
+        server.close();
+    }
+
+    @Test
+    public void pipelinedOnOneConnection() throws Exception {
+        client = new ElectrumClient(Collections.singletonList(server.server()), 1, 5000);
+        final List<ListenableFuture<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            futures.add(client.call(LISTUNSPENT, scripthash(i)));
+        for (int i = 0; i < futures.size(); i++)
+            assertEquals(scripthash(i), txHash(futures.get(i).get(5, TimeUnit.SECONDS)));
+        assertEquals(1, server.numConnections.get());
+    }
+
+    @Test
+    public void batch() throws Exception {
+        client = new ElectrumClient(Collections.singletonList(server.server()));
+        final List<ElectrumClient.Request> requests = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            requests.add(new ElectrumClient.Request(LISTUNSPENT, scripthash(i)));
+        requests.add(new ElectrumClient.Request("no.such.method"));
+        final List<ListenableFuture<Object>> futures = client.batch(requests);
+        for (int i = 0; i < 50; i++)
+            assertEquals(scripthash(i), txHash(futures.get(i).get(5, TimeUnit.SECONDS)));
+        try {
+            futures.get(50).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (final ExecutionException x) {
+            assertTrue(x.getCause() instanceof ElectrumClient.RpcException);
+        }
+        // a failing request doesn't take the connection down
+        assertEquals(Arrays.asList("FakeElectrumServer", "1.4"),
+                client.call("server.version").get(5, TimeUnit.SECONDS));
+        assertEquals(1, server.numConnections.get());
+    }
+
+    @Test
+    public void subscriptionSurvivesReconnect() throws Exception {
+        client = new ElectrumClient(Collections.singletonList(server.server()));
+        final BlockingQueue<String> statuses = new LinkedBlockingQueue<>();
+        final String scripthash = scripthash(1);
+        final Object status = client.subscribe(scripthash, new ElectrumClient.SubscriptionListener() {
+            @Override
+            public void onStatusChanged(final String scripthash, final String status) {
+                statuses.add(status);
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertEquals("status-0", status);
+        assertEquals(scripthash, server.subscribed.poll(5, TimeUnit.SECONDS));
+
+        server.notify(scripthash, "status-1");
+        assertEquals("status-1", statuses.poll(5, TimeUnit.SECONDS));
+
+        server.dropConnections();
+        assertEquals(scripthash, server.subscribed.poll(5, TimeUnit.SECONDS)); // resubscribed
+        server.notify(scripthash, "status-2");
+        assertEquals("status-2", statuses.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, server.numConnections.get());
+    }
+
+    @Test
+    public void unhealthyServerAvoided() throws Exception {
+        final int deadPort;
+        try (final ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            deadPort = socket.getLocalPort();
+        }
+        final ElectrumServer dead1 = new ElectrumServer("tcp", "127.0.0.1", Integer.toString(deadPort), null);
+        final ElectrumServer dead2 = new ElectrumServer("tcp", "127.0.0.1", Integer.toString(deadPort), null);
+        final ElectrumServer good = server.server();
+        client = new ElectrumClient(Arrays.asList(dead1, good, dead2), 2, 5000);
+        // whatever order they're tried in, the good one is among the attempts
+        assertEquals(Arrays.asList("FakeElectrumServer", "1.4"),
+                client.call("server.version").get(5, TimeUnit.SECONDS));
+        assertEquals(1, client.numConnections());
+        // those that were tried rank behind, those that weren't stay ahead to be tried
+        assertTrue(client.score(dead1) == 0 || client.score(dead1) > client.score(good));
+        assertTrue(client.score(dead2) == 0 || client.score(dead2) > client.score(good));
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Benchmark.assumeEnabled();
+
+        // like before: a connection per request
+        final Stopwatch singleWatch = Stopwatch.createStarted();
+        for (int i = 0; i < NUM_BENCHMARK_REQUESTS / 10; i++) {
+            final ElectrumClient single = new ElectrumClient(Collections.singletonList(server.server()));
+            single.call(LISTUNSPENT, scripthash(i)).get(5, TimeUnit.SECONDS);
+            single.close();
+        }
+        singleWatch.stop();
+
+        client = new ElectrumClient(Collections.singletonList(server.server()));
+        final Stopwatch pipelinedWatch = Stopwatch.createStarted();
+        final List<ListenableFuture<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < NUM_BENCHMARK_REQUESTS; i++)
+            futures.add(client.call(LISTUNSPENT, scripthash(i)));
+        for (final ListenableFuture<Object> future : futures)
+            future.get(5, TimeUnit.SECONDS);
+        pipelinedWatch.stop();
+
+        final Stopwatch batchedWatch = Stopwatch.createStarted();
+        final List<ListenableFuture<Object>> batchedFutures = new ArrayList<>();
+        for (int i = 0; i < NUM_BENCHMARK_REQUESTS; i += 100) {
+            final List<ElectrumClient.Request> requests = new ArrayList<>();
+            for (int j = i; j < i + 100; j++)
+                requests.add(new ElectrumClient.Request(LISTUNSPENT, scripthash(j)));
+            batchedFutures.addAll(client.batch(requests));
+        }
+        for (final ListenableFuture<Object> future : batchedFutures)
+            future.get(5, TimeUnit.SECONDS);
+        batchedWatch.stop();
+
+        Benchmark.report(
+                "{} requests: connection per request {} requests/s, pipelined {} requests/s, batched {} requests/s",
+                NUM_BENCHMARK_REQUESTS, Benchmark.perSecond(NUM_BENCHMARK_REQUESTS / 10, singleWatch),
+                Benchmark.perSecond(NUM_BENCHMARK_REQUESTS, pipelinedWatch),
+                Benchmark.perSecond(NUM_BENCHMARK_REQUESTS, batchedWatch));
+    }
+
+    private static String scripthash(final int i) {
+        return String.format("%064x", i);
+    }
+
+    private static String txHash(final Object result) {
+        return (String) ((Map<?, ?>) ((List<?>) result).get(0)).get("tx_hash");
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonWriter;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Stand-in for an Electrum server on localhost, answering the few methods the wallet uses. Batches are answered in
+ * reverse order, so that clients must match responses by id.
+ */
+public class FakeElectrumServer {
+    private final ServerSocket serverSocket;
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+    public final AtomicInteger numConnections = new AtomicInteger();
+    public final BlockingQueue<String> subscribed = new LinkedBlockingQueue<>(); // script hashes, once registered
+
+    public FakeElectrumServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Peer peer = new Peer(serverSocket.accept());
+                        numConnections.incrementAndGet();
+                        peers.add(peer);
+                        final Thread thread = new Thread(peer);
+                        thread.setDaemon(true);
+                        thread.start();
+                    }
+                } catch (final IOException x) {
+                    // closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public ElectrumServer server() {
+        return new ElectrumServer("tcp", "127.0.0.1", Integer.toString(serverSocket.getLocalPort()), null);
+    }
+
+    /**
+     * Push a status change to everybody subscribed to the script hash.
+     */
+    public void notify(final String scripthash, final String status) throws IOException {
+        final Map<String, Object> notification = new LinkedHashMap<>();
+        notification.put("jsonrpc", "2.0");
+        notification.put("method", "blockchain.scripthash.subscribe");
+        notification.put("params", Arrays.asList(scripthash, status));
+        for (final Peer peer : peers)
+            if (peer.subscriptions.contains(scripthash))
+                peer.write(notification);
+    }
+
+    public void dropConnections() throws IOException {
+        for (final Peer peer : peers)
+            peer.socket.close();
+        peers.clear();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        dropConnections();
+    }
+
+    private Object answer(final Object request) {
+        final Map<?, ?> map = (Map<?, ?>) request;
+        final String method = (String) map.get("method");
+        final List<?> params = (List<?>) map.get("params");
+        final Map<String, Object> response = new LinkedHashMap<>();
+        response.put("jsonrpc", "2.0");
+        response.put("id", map.get("id"));
+        if ("blockchain.scripthash.listunspent".equals(method)) {
+            final Map<String, Object> utxo = new LinkedHashMap<>();
+            utxo.put("tx_hash", params.get(0));
+            utxo.put("tx_pos", 0L);
+            utxo.put("value", 100000L);
+            utxo.put("height", 1L);
+            response.put("result", Collections.singletonList(utxo));
+        } else if ("blockchain.scripthash.subscribe".equals(method)) {
+            response.put("result", "status-0");
+        } else if ("server.version".equals(method)) {
+            response.put("result", Arrays.asList("FakeElectrumServer", "1.4"));
+        } else {
+            final Map<String, Object> error = new LinkedHashMap<>();
+            error.put("code", -32601L);
+            error.put("message", "unknown method " + method);
+            response.put("error", error);
+        }
+        return response;
+    }
+
+    private final class Peer implements Runnable {
+        private final Socket socket;
+        private final BufferedSource source;
+        private final BufferedSink sink;
+        private final List<String> subscriptions = new CopyOnWriteArrayList<>();
+
+        public Peer(final Socket socket) throws IOException {
+            this.socket = socket;
+            this.source = Okio.buffer(Okio.source(socket));
+            this.sink = Okio.buffer(Okio.sink(socket));
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final String line = source.readUtf8Line();
+                    if (line == null)
+                        break;
+                    final Object request = JsonReader.of(new Buffer().writeUtf8(line)).readJsonValue();
+                    if (request instanceof List) {
+                        final List<Object> responses = new ArrayList<>();
+                        for (final Object item : (List<?>) request)
+                            responses.add(0, handle(item));
+                        write(responses);
+                    } else {
+                        write(handle(request));
+                    }
+                }
+            } catch (final IOException x) {
+                // dropped
+            } finally {
+                peers.remove(this);
+            }
+        }
+
+        private Object handle(final Object request) {
+            final Map<?, ?> map = (Map<?, ?>) request;
+            if ("blockchain.scripthash.subscribe".equals(map.get("method"))) {
+                final String scripthash = (String) ((List<?>) map.get("params")).get(0);
+                subscriptions.add(scripthash);
+                subscribed.add(scripthash);
+            }
+            return answer(request);
+        }
+
+        public synchronized void write(final Object message) throws IOException {
+            final JsonWriter writer = JsonWriter.of(sink);
+            writeValue(writer, message);
+            writer.flush();
+            sink.writeByte('\n').flush();
+        }
+    }
+
+    private static void writeValue(final JsonWriter writer, final Object value) throws IOException {
+        if (value instanceof Map) {
+            writer.beginObject();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writer.name((String) entry.getKey());
+                writeValue(writer, entry.getValue());
+            }
+            writer.endObject();
+        } else if (value instanceof List) {
+            writer.beginArray();
+            for (final Object item : (List<?>) value)
+                writeValue(writer, item);
+            writer.endArray();
+        } else if (value instanceof Number) {
+            writer.value((Number) value);
+        } else if (value == null) {
+            writer.nullValue();
+        } else {
+            writer.value(value.toString());
+        }
+    }
+}
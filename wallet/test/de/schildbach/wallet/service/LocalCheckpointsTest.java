@@ -0,0 +1,107 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalCheckpointsTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        file = File.createTempFile("checkpoints", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void takeAndSeed() throws Exception {
+        final BlockStore chain = new MemoryBlockStore(PARAMS);
+        final ECKey key = new ECKey();
+        final LocalCheckpoints checkpoints = LocalCheckpoints.load(PARAMS, file);
+        assertEquals(0, checkpoints.size());
+
+        grow(chain, key, LocalCheckpoints.INTERVAL + LocalCheckpoints.CONFIRMATIONS - 1);
+        assertFalse(checkpoints.update(chain));
+        grow(chain, key, 1);
+        assertTrue(checkpoints.update(chain));
+        assertFalse(checkpoints.update(chain));
+        checkpoints.save();
+
+        final LocalCheckpoints reloaded = LocalCheckpoints.load(PARAMS, file);
+        assertEquals(1, reloaded.size());
+        final StoredBlock checkpoint = reloaded.newest();
+        assertEquals(LocalCheckpoints.INTERVAL, checkpoint.getHeight());
+        assertEquals(chain.get(checkpoint.getHeader().getHash()), checkpoint);
+
+        // keys created too shortly after the checkpoint, given the allowance for clock skew
+        final long checkpointTime = checkpoint.getHeader().getTimeSeconds();
+        final long week = 60 * 60 * 24 * 7;
+        assertNull(reloaded.advance(new MemoryBlockStore(PARAMS), checkpointTime + week - 1));
+
+        // keys created well after
+        final BlockStore fresh = new MemoryBlockStore(PARAMS);
+        assertEquals(checkpoint, reloaded.advance(fresh, checkpointTime + week));
+        assertEquals(checkpoint, fresh.getChainHead());
+    }
+
+    @Test
+    public void unreadableFileIgnored() throws Exception {
+        Files.write(file.toPath(), "garbage".getBytes());
+        assertEquals(0, LocalCheckpoints.load(PARAMS, file).size());
+    }
+
+    private static void grow(final BlockStore store, final ECKey key, final int numBlocks) throws Exception {
+        StoredBlock head = store.getChainHead();
+        for (int i = 0; i < numBlocks; i++) {
+            // a second apart, to stay clear of the limit on future block times
+            final Block next = head.getHeader().createNextBlock(LegacyAddress.fromKey(PARAMS, key),
+                    Block.BLOCK_VERSION_GENESIS, head.getHeader().getTimeSeconds() + 1, head.getHeight() + 1)
+                    .cloneAsHeader();
+            head = head.build(next);
+            store.put(head);
+        }
+        store.setChainHead(head);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.SPVBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+
+import de.schildbach.wallet.util.Benchmark;
+
+public class MappedBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int[] BENCHMARK_CAPACITIES = { 5000, 50000, 500000 };
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        file = File.createTempFile("blockchain", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".old").delete();
+    }
+
+    @Test
+    public void putGetAndReopen() throws Exception {
+        final List<StoredBlock> blocks = chain(250);
+        MappedBlockStore store = new MappedBlockStore(PARAMS, file, 100);
+        assertEquals(PARAMS.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+        for (final StoredBlock block : blocks)
+            store.put(block);
+        store.setChainHead(blocks.get(blocks.size() - 1));
+        store.put(blocks.get(blocks.size() - 1)); // again, must not take another slot
+        store.close();
+
+        store = new MappedBlockStore(PARAMS, file, 1); // capacity is taken from the file
+        assertEquals(100, store.getCapacity());
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        // only the last 100 are kept
+        for (int i = 0; i < blocks.size(); i++) {
+            final StoredBlock block = blocks.get(i);
+            if (i < blocks.size() - 100)
+                assertNull(store.get(block.getHeader().getHash()));
+            else
+                assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        store.close();
+    }
+
+    @Test
+    public void indexRebuiltIfNotClosed() throws Exception {
+        final List<StoredBlock> blocks = chain(150);
+        final MappedBlockStore store = new MappedBlockStore(PARAMS, file, 100);
+        for (final StoredBlock block : blocks)
+            store.put(block);
+        store.setChainHead(blocks.get(blocks.size() - 1));
+        // crash: not closed, and a slot gets damaged
+        final int damagedSlot = 20;
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(MappedBlockStore.HEADER_SIZE + damagedSlot * MappedBlockStore.SLOT_SIZE + 40);
+            raf.write(0xff);
+        }
+
+        final MappedBlockStore reopened = new MappedBlockStore(PARAMS, file, 100);
+        assertEquals(blocks.get(blocks.size() - 1), reopened.getChainHead());
+        int numFound = 0;
+        for (final StoredBlock block : blocks)
+            if (reopened.get(block.getHeader().getHash()) != null)
+                numFound++;
+        assertEquals(99, numFound);
+        reopened.close();
+    }
+
+    @Test
+    public void corruptionDetectedAtOpen() throws Exception {
+        final MappedBlockStore store = new MappedBlockStore(PARAMS, file, 100);
+        final List<StoredBlock> blocks = chain(10);
+        for (final StoredBlock block : blocks)
+            store.put(block);
+        store.setChainHead(blocks.get(blocks.size() - 1));
+        store.close();
+
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(30); // chain head hash
+            raf.write(raf.read() ^ 1);
+        }
+        try {
+            new MappedBlockStore(PARAMS, file, 100);
+            fail();
+        } catch (final BlockStoreException x) {
+            // expected
+        }
+    }
+
+    @Test
+    public void migrateFromSpvBlockStore() throws Exception {
+        final List<StoredBlock> blocks = chain(50);
+        final SPVBlockStore spvStore = new SPVBlockStore(PARAMS, file);
+        for (final StoredBlock block : blocks)
+            spvStore.put(block);
+        spvStore.setChainHead(blocks.get(blocks.size() - 1));
+        spvStore.close();
+
+        final BlockStore store = new MappedBlockStore.Factory(20).create(PARAMS, file);
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        assertEquals(blocks.get(30), store.get(blocks.get(30).getHeader().getHash()));
+        assertNull(store.get(blocks.get(29).getHeader().getHash()));
+        store.close();
+        new MappedBlockStore.Factory(20).create(PARAMS, file).close(); // now opens without migrating
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Benchmark.assumeEnabled();
+        for (final int capacity : BENCHMARK_CAPACITIES) {
+            file.delete();
+            final List<StoredBlock> blocks = chain(capacity);
+            final MappedBlockStore store = new MappedBlockStore(PARAMS, file, capacity);
+
+            final Stopwatch putWatch = Stopwatch.createStarted();
+            for (final StoredBlock block : blocks)
+                store.put(block);
+            store.setChainHead(blocks.get(blocks.size() - 1));
+            putWatch.stop();
+
+            final List<StoredBlock> shuffled = new ArrayList<>(blocks);
+            Collections.shuffle(shuffled);
+            final Stopwatch getWatch = Stopwatch.createStarted();
+            for (final StoredBlock block : shuffled)
+                store.get(block.getHeader().getHash());
+            getWatch.stop();
+            store.close();
+
+            final Stopwatch openWatch = Stopwatch.createStarted();
+            new MappedBlockStore(PARAMS, file, capacity).close();
+            openWatch.stop();
+
+            Benchmark.report("{} slots: put {} headers/s, get {} headers/s, open {}", capacity,
+                    Benchmark.perSecond(capacity, putWatch), Benchmark.perSecond(capacity, getWatch), openWatch);
+        }
+    }
+
+    private static List<StoredBlock> chain(final int numBlocks) {
+        final List<StoredBlock> blocks = new ArrayList<>(numBlocks);
+        final Block genesis = PARAMS.getGenesisBlock();
+        StoredBlock head = new StoredBlock(genesis.cloneAsHeader(), genesis.getWork(), 0);
+        for (int i = 0; i < numBlocks; i++) {
+            // not solved, the store doesn't check proof of work
+            final Block next = new Block(PARAMS, Block.BLOCK_VERSION_GENESIS, head.getHeader().getHash(),
+                    Sha256Hash.ZERO_HASH, head.getHeader().getTimeSeconds() + 1, head.getHeader().getDifficultyTarget(),
+                    i, Collections.<Transaction> emptyList()).cloneAsHeader();
+            head = new StoredBlock(next, head.getChainWork().add(BigInteger.ONE), head.getHeight() + 1);
+            blocks.add(head);
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+import de.schildbach.wallet.service.PeerReputationStore.DisconnectReason;
+
+public class PeerReputationStoreTest {
+    private static final InetSocketAddress FAST = new InetSocketAddress("10.0.0.1", 8121);
+    private static final InetSocketAddress SLOW = new InetSocketAddress("10.0.0.2", 8121);
+    private static final InetSocketAddress FAILING = new InetSocketAddress("10.0.0.3", 8121);
+    private static final InetSocketAddress UNKNOWN = new InetSocketAddress("10.0.0.4", 8121);
+
+    private long nanos = TimeUnit.DAYS.toNanos(1);
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos;
+        }
+    };
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("peers", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void bestPeersSurviveRestart() throws Exception {
+        final PeerReputationStore store = PeerReputationStore.load(file, ticker);
+        assertEquals(0, store.size());
+
+        session(store, FAST, 20, 1);
+        session(store, SLOW, 300, 20);
+        for (int i = 0; i < 5; i++) {
+            store.connecting(FAILING);
+            store.disconnected(FAILING, null);
+        }
+        store.connecting(UNKNOWN); // never got anywhere, but still counts as known
+        store.save();
+
+        final PeerReputationStore reloaded = PeerReputationStore.load(file, ticker);
+        assertEquals(4, reloaded.size());
+        assertEquals(Arrays.asList(FAST, SLOW), reloaded.bestPeers(10));
+        assertEquals(Arrays.asList(FAST), reloaded.bestPeers(1));
+    }
+
+    @Test
+    public void failuresDemote() throws Exception {
+        final PeerReputationStore store = PeerReputationStore.load(file, ticker);
+        session(store, FAST, 20, 1);
+        session(store, SLOW, 300, 20);
+        for (int i = 0; i < 3; i++) {
+            store.connecting(FAST);
+            store.disconnected(FAST, null);
+        }
+        final List<InetSocketAddress> best = store.bestPeers(10);
+        assertEquals(SLOW, best.get(0));
+        assertTrue(best.contains(FAST));
+    }
+
+    @Test
+    public void closedByUsNotLost() throws Exception {
+        final PeerReputationStore store = PeerReputationStore.load(file, ticker);
+        for (final InetSocketAddress address : Arrays.asList(FAST, SLOW)) {
+            store.connecting(address);
+            store.connected(address);
+        }
+        store.closing(SLOW, DisconnectReason.SWITCHED);
+        store.disconnected(SLOW, null);
+        store.disconnected(FAST, null);
+        assertEquals(Arrays.asList(SLOW, FAST), store.bestPeers(10));
+
+        store.save();
+        final String saved = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(saved, saved.contains(" SWITCHED\n") && saved.contains(" LOST\n"));
+    }
+
+    @Test
+    public void unreadableLinesSkipped() throws Exception {
+        Files.write(file.toPath(), "garbage\n10.0.0.1 8121 x 0 0 0 -\n10.0.0.2 8121 1 -1 -1.0 0 LOST\n".getBytes());
+        assertEquals(1, PeerReputationStore.load(file, ticker).size());
+    }
+
+    private void session(final PeerReputationStore store, final InetSocketAddress address, final long handshakeMs,
+            final long blockIntervalMs) {
+        store.connecting(address);
+        nanos += TimeUnit.MILLISECONDS.toNanos(handshakeMs);
+        store.connected(address);
+        for (int i = 0; i < 5; i++) {
+            store.blockReceived(address);
+            nanos += TimeUnit.MILLISECONDS.toNanos(blockIntervalMs);
+        }
+        store.disconnected(address, DisconnectReason.SHUTDOWN);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Ping;
+import org.bitcoinj.core.Pong;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+public class PeerSyncMetricsTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final InetSocketAddress PEER = new InetSocketAddress("10.0.0.1", 8121);
+
+    private long nanos = TimeUnit.DAYS.toNanos(1);
+    private final PeerSyncMetrics metrics = new PeerSyncMetrics(new Ticker() {
+        @Override
+        public long read() {
+            return nanos;
+        }
+    });
+
+    @Before
+    public void setUp() {
+        metrics.connected(PEER);
+    }
+
+    @Test
+    public void blocksAndStalls() {
+        for (int i = 0; i < 20; i++) {
+            sleep(500);
+            metrics.blockReceived(PEER, 4, 3, 100 - i);
+        }
+        PeerSyncMetrics.Snapshot snapshot = metrics.get(PEER);
+        assertEquals(2.0, snapshot.blocksPerSecond, 0.01);
+        assertEquals(20, snapshot.numFilteredBlocks);
+        assertEquals(0.75, snapshot.falsePositiveRate(), 0.001);
+        assertEquals(0, snapshot.numStalls);
+
+        sleep(8000);
+        snapshot = metrics.get(PEER);
+        assertEquals(8000, snapshot.currentStallMs);
+        metrics.blockReceived(PEER, -1, 0, 79);
+        snapshot = metrics.get(PEER);
+        assertEquals(0, snapshot.currentStallMs);
+        assertEquals(1, snapshot.numStalls);
+        assertEquals(8000, snapshot.longestStallMs);
+
+        metrics.disconnected(PEER);
+        assertNull(metrics.get(PEER));
+    }
+
+    @Test
+    public void pingsAndTraffic() throws Exception {
+        for (int i = 1; i <= 10; i++) {
+            metrics.messageSent(PEER, new Ping(i));
+            sleep(i * 10);
+            metrics.messageReceived(PEER, new Pong(PARAMS, new Pong(i).bitcoinSerialize()));
+        }
+        // unrelated pong
+        metrics.messageReceived(PEER, new Pong(PARAMS, new Pong(42).bitcoinSerialize()));
+
+        final PeerSyncMetrics.Snapshot snapshot = metrics.get(PEER);
+        assertEquals(60, snapshot.pingP50);
+        assertEquals(100, snapshot.pingP90);
+        assertEquals(10 * (24 + 8), snapshot.bytesSent);
+        assertEquals(11 * (24 + 8), snapshot.bytesReceived);
+    }
+
+    private void sleep(final long millis) {
+        nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
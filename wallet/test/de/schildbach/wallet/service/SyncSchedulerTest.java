@@ -0,0 +1,213 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.schildbach.wallet.Constants;
+
+/**
+ * Replays a week of usage and incoming payments against the sync scheduler, and against the two schedules it
+ * replaced, an alarm and a job each with their own interval ladder.
+ */
+public class SyncSchedulerTest {
+    private static final Logger log = LoggerFactory.getLogger(SyncSchedulerTest.class);
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long START = DAY * 20000;
+    private static final long DURATION = 7 * DAY;
+    /** how long the app is used in the foreground */
+    private static final long USAGE_MS = 5 * MINUTE;
+    /** how long a sync keeps running without payments, and after a payment */
+    private static final long SYNC_MS = 3 * MINUTE, SYNC_AFTER_PAYMENT_MS = 9 * MINUTE;
+
+    @Test
+    public void activeUser() {
+        final List<Long> usage = daily(8 * HOUR, 20 * HOUR);
+        final List<Long> payments = randomPayments(4);
+        final Result adaptive = simulate(new Adaptive(), usage, payments);
+        final Result legacy = simulate(new Legacy(), usage, payments);
+        log.info("active user, adaptive: {}, legacy: {}", adaptive, legacy);
+        assertTrue(adaptive.numWakeUps * 2 < legacy.numWakeUps);
+        assertTrue(adaptive.worstDelayMs <= 4 * HOUR);
+    }
+
+    @Test
+    public void quietUser() {
+        final List<Long> usage = daily(12 * HOUR);
+        final List<Long> payments = Collections.singletonList(START + 5 * DAY + 15 * HOUR);
+        final Result adaptive = simulate(new Adaptive(), usage, payments);
+        final Result legacy = simulate(new Legacy(), usage, payments);
+        log.info("quiet user, adaptive: {}, legacy: {}", adaptive, legacy);
+        assertTrue(adaptive.numWakeUps * 4 < legacy.numWakeUps);
+        assertTrue(adaptive.worstDelayMs <= SyncScheduler.INTERVAL_USED_MS);
+    }
+
+    @Test
+    public void stateSurvivesRestart() {
+        final SyncScheduler scheduler = new SyncScheduler(null);
+        scheduler.syncFinished(START, 2 * MINUTE, 0);
+        scheduler.syncFinished(START + DAY, 4 * MINUTE, 6);
+        final SyncScheduler reloaded = new SyncScheduler(scheduler.getState());
+        assertEquals(6, reloaded.paymentsPerDay(), 0.01);
+        assertEquals(2 * HOUR, reloaded.nextSyncDelayMs(DAY));
+        assertEquals(SyncScheduler.INTERVAL_JUST_USED_MS, reloaded.nextSyncDelayMs(MINUTE));
+        assertEquals(SyncScheduler.INTERVAL_RECENTLY_USED_MS, new SyncScheduler("garbage").nextSyncDelayMs(DAY));
+    }
+
+    @Test
+    public void unmeasuredDurationIgnored() {
+        final SyncScheduler scheduler = new SyncScheduler(null);
+        scheduler.syncFinished(START, 2 * HOUR, 0);
+        // the app was in use, so the time the service ran doesn't count
+        scheduler.syncFinished(START + HOUR, 0, 1);
+        assertEquals(SyncScheduler.DUTY_CYCLE_FACTOR * 2 * HOUR, scheduler.nextSyncDelayMs(MINUTE));
+    }
+
+    private static Result simulate(final Policy policy, final List<Long> usage, final List<Long> payments) {
+        final Result result = new Result();
+        final List<Long> pending = new ArrayList<>();
+        long lastUsed = START - 30 * DAY;
+        long runStart = 0, runUntil = 0;
+        int runPayments = 0;
+        policy.finished(START, START - lastUsed, SYNC_MS, 0);
+        for (long t = START; t < START + DURATION; t += MINUTE) {
+            final boolean running = t < runUntil;
+            final boolean used = usage.contains(t);
+            if (used)
+                lastUsed = t;
+            if (!running && (used || t >= policy.nextWakeUp())) {
+                if (!used)
+                    result.numWakeUps++;
+                runStart = t;
+                runPayments = 0;
+                runUntil = t + SYNC_MS;
+            }
+            if (used)
+                runUntil = Math.max(runUntil, t + USAGE_MS);
+            if (payments.contains(t))
+                pending.add(t);
+            if (t < runUntil) {
+                for (final long arrival : pending) {
+                    result.numPayments++;
+                    result.worstDelayMs = Math.max(result.worstDelayMs, t - arrival);
+                    runPayments++;
+                    runUntil = Math.max(runUntil, t + SYNC_AFTER_PAYMENT_MS);
+                }
+                pending.clear();
+                if (t + MINUTE >= runUntil)
+                    policy.finished(runUntil, runUntil - lastUsed, runUntil - runStart, runPayments);
+            }
+        }
+        // not notified within the week
+        for (final long arrival : pending)
+            result.worstDelayMs = Math.max(result.worstDelayMs, START + DURATION - arrival);
+        return result;
+    }
+
+    private static List<Long> daily(final long... timesOfDay) {
+        final List<Long> times = new ArrayList<>();
+        for (long day = START; day < START + DURATION; day += DAY)
+            for (final long timeOfDay : timesOfDay)
+                times.add(day + timeOfDay);
+        return times;
+    }
+
+    private static List<Long> randomPayments(final int perDay) {
+        final Random random = new Random(42);
+        final List<Long> times = new ArrayList<>();
+        for (long day = START; day < START + DURATION; day += DAY)
+            for (int i = 0; i < perDay; i++)
+                times.add(day + 7 * HOUR + random.nextInt(16 * 60) * MINUTE);
+        return times;
+    }
+
+    private interface Policy {
+        void finished(long now, long lastUsedAgo, long durationMs, int numPayments);
+
+        long nextWakeUp();
+    }
+
+    private static class Adaptive implements Policy {
+        private final SyncScheduler scheduler = new SyncScheduler(null);
+        private long nextWakeUp;
+
+        @Override
+        public void finished(final long now, final long lastUsedAgo, final long durationMs, final int numPayments) {
+            scheduler.syncFinished(now, durationMs, numPayments);
+            nextWakeUp = now + scheduler.nextSyncDelayMs(lastUsedAgo);
+        }
+
+        @Override
+        public long nextWakeUp() {
+            return nextWakeUp;
+        }
+    }
+
+    private static class Legacy implements Policy {
+        private long alarmAt, jobAt;
+
+        @Override
+        public void finished(final long now, final long lastUsedAgo, final long durationMs, final int numPayments) {
+            if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_JUST_MS)
+                alarmAt = now + 15 * MINUTE;
+            else if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_RECENTLY_MS)
+                alarmAt = now + 12 * HOUR;
+            else
+                alarmAt = now + DAY;
+
+            if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_JUST_MS)
+                jobAt = now + 15 * MINUTE;
+            else if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_RECENTLY_MS)
+                jobAt = now + HOUR;
+            else if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_INACTIVE_MS)
+                jobAt = now + 12 * HOUR;
+            else
+                jobAt = now + DAY;
+        }
+
+        @Override
+        public long nextWakeUp() {
+            return Math.min(alarmAt, jobAt);
+        }
+    }
+
+    private static class Result {
+        int numWakeUps, numPayments;
+        long worstDelayMs;
+
+        @Override
+        public String toString() {
+            return numWakeUps + " wake-ups, " + numPayments + " payments, worst delay "
+                    + TimeUnit.MILLISECONDS.toMinutes(worstDelayMs) + " min";
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+public class SyncSupervisorTest {
+    private static final InetSocketAddress FAST = new InetSocketAddress("10.0.0.1", 8121);
+    private static final InetSocketAddress OTHER = new InetSocketAddress("10.0.0.2", 8121);
+
+    private long nanos = TimeUnit.DAYS.toNanos(1);
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos;
+        }
+    };
+    private final PeerSyncMetrics metrics = new PeerSyncMetrics(ticker);
+    private final SyncSupervisor supervisor = new SyncSupervisor(ticker);
+    private final Map<InetSocketAddress, Double> knownRates = new HashMap<>();
+    private long blocksToGo = 100000;
+
+    @Test
+    public void switchesAwayFromThrottlingPeer() {
+        final StandInPeer fast = new StandInPeer(FAST, 50);
+        metrics.connected(OTHER);
+        knownRates.put(OTHER, 40.0);
+
+        // serving well, no reason to switch
+        for (int i = 0; i < 12; i++) {
+            fast.serve(5000);
+            assertNull(supervisor.check(FAST, blocksToGo, metrics.getAll(), knownRates));
+        }
+
+        // the peer starts throttling
+        fast.throttle(2);
+        SyncSupervisor.Decision decision = null;
+        for (int i = 0; i < 12 && decision == null; i++) {
+            fast.serve(5000);
+            decision = supervisor.check(FAST, blocksToGo, metrics.getAll(), knownRates);
+        }
+        assertNotNull(decision);
+        assertEquals(SyncSupervisor.Reason.SLOW, decision.reason);
+        assertEquals(OTHER, decision.to);
+        assertEquals(OTHER, supervisor.getPreferredDownloadPeer());
+        assertEquals(Collections.singletonList(decision), supervisor.getHistory());
+
+        // once the other peer took over, it's no longer preferred
+        supervisor.check(OTHER, blocksToGo, metrics.getAll(), knownRates);
+        assertNull(supervisor.getPreferredDownloadPeer());
+    }
+
+    @Test
+    public void staysNearChainHead() {
+        final StandInPeer fast = new StandInPeer(FAST, 50);
+        metrics.connected(OTHER);
+        knownRates.put(OTHER, 40.0);
+        fast.serve(40000);
+        blocksToGo = 20;
+        fast.throttle(2);
+        for (int i = 0; i < 12; i++) {
+            fast.serve(5000);
+            assertNull(supervisor.check(FAST, blocksToGo, metrics.getAll(), knownRates));
+        }
+    }
+
+    @Test
+    public void switchesAwayFromStalledPeer() {
+        final StandInPeer fast = new StandInPeer(FAST, 50);
+        metrics.connected(OTHER); // nothing known about it
+        fast.serve(40000);
+        assertNull(supervisor.check(FAST, blocksToGo, metrics.getAll(), knownRates));
+
+        fast.throttle(0);
+        SyncSupervisor.Decision decision = null;
+        for (int i = 0; i < 12 && decision == null; i++) {
+            fast.serve(5000);
+            decision = supervisor.check(FAST, blocksToGo, metrics.getAll(), knownRates);
+        }
+        assertNotNull(decision);
+        assertEquals(SyncSupervisor.Reason.STALLED, decision.reason);
+    }
+
+    /**
+     * Stands in for a peer serving blocks at a rate that can be throttled, on the clock of the test.
+     */
+    private class StandInPeer {
+        private final InetSocketAddress address;
+        private int blocksPerSecond;
+
+        public StandInPeer(final InetSocketAddress address, final int blocksPerSecond) {
+            this.address = address;
+            this.blocksPerSecond = blocksPerSecond;
+            metrics.connected(address);
+        }
+
+        public void throttle(final int blocksPerSecond) {
+            this.blocksPerSecond = blocksPerSecond;
+        }
+
+        public void serve(final long millis) {
+            final long end = nanos + TimeUnit.MILLISECONDS.toNanos(millis);
+            if (blocksPerSecond == 0) {
+                nanos = end;
+                return;
+            }
+            final long interval = TimeUnit.SECONDS.toNanos(1) / blocksPerSecond;
+            while (nanos + interval <= end) {
+                nanos += interval;
+                metrics.blockReceived(address, -1, 0, (int) Math.min(--blocksToGo, Integer.MAX_VALUE));
+            }
+            nanos = end;
+        }
+    }
+}
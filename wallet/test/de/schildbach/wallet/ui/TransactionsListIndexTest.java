@@ -0,0 +1,132 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.MonetaryFormat;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.schildbach.wallet.data.AddressBookEntry;
+import de.schildbach.wallet.ui.TransactionsAdapter.ListItem;
+import de.schildbach.wallet.ui.TransactionsAdapter.ListItem.PlaceholderItem;
+
+public class TransactionsListIndexTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final long T0 = 1500000000000L;
+    private static final List<AddressBookEntry> ADDRESS_BOOK = Collections.emptyList();
+
+    private Wallet wallet;
+    private TransactionsListIndex index;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        // materializing needs Android, so keep everything off screen and look at the placeholders
+        index = new TransactionsListIndex(null, 8);
+        index.setVisibleRange(1000, 1000);
+        assertEquals(0, update().size());
+    }
+
+    @Test
+    public void inserts() {
+        final Transaction tx1 = receive(1);
+        final List<ListItem> list1 = update(tx1);
+        assertHashes(list1, tx1);
+
+        final Transaction tx2 = receive(2);
+        final List<ListItem> list2 = update(tx2);
+        assertHashes(list2, tx2, tx1); // newest first
+        assertSame(list1.get(0), list2.get(1));
+
+        // added without event
+        final Transaction tx3 = receive(3);
+        assertHashes(update(), tx3, tx2, tx1);
+    }
+
+    @Test
+    public void updates() {
+        final Transaction tx1 = receive(1), tx2 = receive(2);
+        final List<ListItem> list1 = update(tx1, tx2);
+        assertHashes(list1, tx2, tx1);
+
+        // only what's named by events is looked at, even if pending
+        assertSame(list1, update());
+        assertSame(list1, update(tx1));
+
+        tx1.setMemo("memo");
+        final List<ListItem> list2 = update(tx1);
+        assertHashes(list2, tx2, tx1);
+        assertSame(list1.get(0), list2.get(0));
+        assertNotSame(list1.get(1), list2.get(1));
+    }
+
+    @Test
+    public void removals() {
+        final Transaction tx1 = receive(1), tx2 = receive(2);
+        assertHashes(update(tx1, tx2), tx2, tx1);
+
+        // removed without events
+        wallet.reset();
+        assertEquals(0, update().size());
+
+        final Transaction tx3 = receive(3);
+        assertHashes(update(tx3), tx3);
+    }
+
+    private List<ListItem> update(final Transaction... changedTransactions) {
+        return index.update(wallet, MonetaryFormat.BTC, ADDRESS_BOOK, null, null, null,
+                Arrays.asList(changedTransactions), false);
+    }
+
+    private static void assertHashes(final List<ListItem> list, final Transaction... expected) {
+        assertEquals(expected.length, list.size());
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i].getTxId(), ((PlaceholderItem) list.get(i)).transactionHash);
+    }
+
+    private Transaction receive(final int minutes) {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 0 },
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new ECKey().getPubKey()))));
+        tx.addOutput(Coin.COIN, wallet.currentReceiveAddress());
+        tx.setUpdateTime(new Date(T0 + minutes * 60000L));
+        wallet.receivePending(tx, null);
+        return tx;
+    }
+}
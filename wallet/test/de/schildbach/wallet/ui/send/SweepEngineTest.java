@@ -0,0 +1,190 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class SweepEngineTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private final ListeningExecutorService executor = MoreExecutors
+            .listeningDecorator(Executors.newFixedThreadPool(8));
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<String> asked = Collections.synchronizedList(new ArrayList<String>()); // backend and address
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void allKeysMerged() throws Exception {
+        final List<Address> addresses = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            for (final ECKey key : SweepEngine.keyVariants(new ECKey()))
+                addresses.add(LegacyAddress.fromKey(PARAMS, key));
+        assertEquals(6, new HashSet<>(addresses).size());
+        addresses.add(addresses.get(0)); // looked up only once
+
+        final Backend backend = new Backend("one", 0, false);
+        final SweepEngine engine = new SweepEngine(Collections.<UtxoBackend> singletonList(backend), executor,
+                scheduler, 1000);
+        final Set<UTXO> utxos = engine.lookup(addresses).get(5, TimeUnit.SECONDS);
+        assertEquals(12, utxos.size()); // two outputs per address
+        assertEquals(6, backend.numLookups.get());
+    }
+
+    @Test
+    public void slowBackendHedged() throws Exception {
+        final Backend slow = new Backend("slow", Long.MAX_VALUE, false); // only returns when cancelled
+        final Backend fast = new Backend("fast", 0, false);
+        final SweepEngine engine = new SweepEngine(Arrays.<UtxoBackend> asList(slow, fast), executor, scheduler, 100);
+        final List<Address> addresses = addresses(4);
+        assertEquals(8, engine.lookup(addresses).get(5, TimeUnit.SECONDS).size());
+        assertEquals(4, fast.numLookups.get());
+        assertTrue(slow.interrupted.tryAcquire(4, 5, TimeUnit.SECONDS));
+        for (final Address address : addresses)
+            assertTrue(asked.indexOf("slow " + address) < asked.indexOf("fast " + address));
+
+        // next time, the fast one is asked first, as the slow one took at least until it lost
+        asked.clear();
+        final List<Address> moreAddresses = addresses(4);
+        engine.lookup(moreAddresses).get(5, TimeUnit.SECONDS);
+        assertEquals(8, fast.numLookups.get());
+        for (final Address address : moreAddresses) {
+            final int slowIndex = asked.indexOf("slow " + address);
+            assertTrue(slowIndex == -1 || asked.indexOf("fast " + address) < slowIndex);
+        }
+        assertTrue(engine.getLatencyReport(), engine.getLatencyReport().contains("fast: latency"));
+    }
+
+    @Test
+    public void failingBackendFallsBackRightAway() throws Exception {
+        final Backend failing = new Backend("failing", 0, false);
+        failing.fail = true;
+        final Backend good = new Backend("good", 0, false);
+        final SweepEngine engine = new SweepEngine(Arrays.<UtxoBackend> asList(failing, good), executor, scheduler,
+                TimeUnit.MINUTES.toMillis(1));
+        assertEquals(2, engine.lookup(addresses(1)).get(5, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public void invalidAnswerRejected() throws Exception {
+        final Backend lying = new Backend("lying", 0, true);
+        final Backend good = new Backend("good", 0, false);
+        final SweepEngine engine = new SweepEngine(Arrays.<UtxoBackend> asList(lying, good), executor, scheduler,
+                TimeUnit.MINUTES.toMillis(1));
+        final List<Address> addresses = addresses(1);
+        for (final UTXO utxo : engine.lookup(addresses).get(5, TimeUnit.SECONDS))
+            assertEquals(ScriptBuilder.createOutputScript(addresses.get(0)), utxo.getScript());
+    }
+
+    @Test
+    public void failsIfNobodyAnswers() throws Exception {
+        final Backend failing = new Backend("failing", 0, false);
+        failing.fail = true;
+        final Backend lying = new Backend("lying", 0, true);
+        final SweepEngine engine = new SweepEngine(Arrays.<UtxoBackend> asList(failing, lying), executor, scheduler,
+                100);
+        try {
+            engine.lookup(addresses(2)).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (final ExecutionException x) {
+            assertTrue(x.getCause() instanceof IOException);
+        }
+    }
+
+    private static List<Address> addresses(final int count) {
+        final List<Address> addresses = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            addresses.add(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        return addresses;
+    }
+
+    private class Backend implements UtxoBackend {
+        private final String name;
+        private final long delayMs;
+        private final boolean lying;
+        private volatile boolean fail = false;
+        private final AtomicInteger numLookups = new AtomicInteger();
+        private final Semaphore interrupted = new Semaphore(0);
+
+        public Backend(final String name, final long delayMs, final boolean lying) {
+            this.name = name;
+            this.delayMs = delayMs;
+            this.lying = lying;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public Set<UTXO> lookup(final Address address) throws IOException, InterruptedException {
+            numLookups.incrementAndGet();
+            asked.add(name + " " + address);
+            try {
+                Thread.sleep(delayMs);
+            } catch (final InterruptedException x) {
+                interrupted.release();
+                throw x;
+            }
+            if (fail)
+                throw new IOException("failing on purpose");
+            final Address payTo = lying ? LegacyAddress.fromKey(PARAMS, new ECKey()) : address;
+            final Set<UTXO> utxos = new HashSet<>();
+            for (int i = 0; i < 2; i++)
+                utxos.add(new UTXO(Sha256Hash.of(address.getHash()), i, Coin.COIN, 1, false,
+                        ScriptBuilder.createOutputScript(payTo)));
+            return utxos;
+        }
+    }
+}
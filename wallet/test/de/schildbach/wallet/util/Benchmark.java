@@ -0,0 +1,65 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * Helpers for tests that measure performance rather than check behavior. They only run when asked for, e.g. with
+ * {@code gradle test -Pbenchmarks}, so they stay out of the regular unit test run.
+ */
+public final class Benchmark {
+    public static final String PROPERTY = "benchmarks";
+
+    private static final Logger log = LoggerFactory.getLogger(Benchmark.class);
+
+    private Benchmark() {
+    }
+
+    /**
+     * Skips the calling test unless benchmarks were asked for.
+     */
+    public static void assumeEnabled() {
+        assumeTrue("benchmarks not enabled", Boolean.getBoolean(PROPERTY));
+    }
+
+    /**
+     * @return how many of the given number of operations were done per second
+     */
+    public static long perSecond(final long count, final Stopwatch watch) {
+        return count * 1000000000L / Math.max(watch.elapsed(TimeUnit.NANOSECONDS), 1);
+    }
+
+    /**
+     * @return how many microseconds each of the given number of operations took
+     */
+    public static long microsEach(final long count, final Stopwatch watch) {
+        return watch.elapsed(TimeUnit.MICROSECONDS) / count;
+    }
+
+    public static void report(final String format, final Object... args) {
+        log.info(format, args);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+import com.lambdaworks.crypto.SCrypt;
+
+/**
+ * The benchmark needs the native library, built for the host and put on {@code java.library.path}, and only runs
+ * when asked for, see {@link Benchmark}.
+ */
+public class HeaderHasherTest {
+    private static final int NUM_HEADERS = 64;
+    private static final int NUM_BENCHMARK_HEADERS = 2000;
+
+    @Test
+    public void matchesReference() throws Exception {
+        final byte[] headers = randomHeaders(NUM_HEADERS);
+        final ByteBuffer in = ByteBuffer.allocateDirect(headers.length);
+        in.put(headers);
+        final ByteBuffer out = ByteBuffer.allocateDirect(NUM_HEADERS * HeaderHasher.HASH_SIZE);
+        HeaderHasher.hash(in, out, NUM_HEADERS);
+
+        final byte[] header = new byte[HeaderHasher.HEADER_SIZE];
+        final byte[] hash = new byte[HeaderHasher.HASH_SIZE];
+        for (int i = 0; i < NUM_HEADERS; i++) {
+            System.arraycopy(headers, i * HeaderHasher.HEADER_SIZE, header, 0, HeaderHasher.HEADER_SIZE);
+            out.get(hash);
+            assertArrayEquals("header " + i, SCrypt.scryptJ(header, header, 1024, 1, 1, 32), hash);
+        }
+    }
+
+    @Test
+    public void heapBuffers() throws Exception {
+        final byte[] headers = randomHeaders(3);
+        final ByteBuffer out = ByteBuffer.allocate(3 * HeaderHasher.HASH_SIZE);
+        HeaderHasher.hash(ByteBuffer.wrap(headers), out, 3);
+
+        final byte[] header = new byte[HeaderHasher.HEADER_SIZE];
+        final byte[] hash = new byte[HeaderHasher.HASH_SIZE];
+        for (int i = 0; i < 3; i++) {
+            System.arraycopy(headers, i * HeaderHasher.HEADER_SIZE, header, 0, HeaderHasher.HEADER_SIZE);
+            out.get(hash);
+            assertArrayEquals("header " + i, SCrypt.scryptJ(header, header, 1024, 1, 1, 32), hash);
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Benchmark.assumeEnabled();
+        assumeTrue(HeaderHasher.isNativeAvailable());
+
+        final byte[] headers = randomHeaders(NUM_BENCHMARK_HEADERS);
+        final byte[] header = new byte[HeaderHasher.HEADER_SIZE];
+
+        // warm up both paths
+        HeaderHasher.hashSingle(header);
+        final ByteBuffer in = ByteBuffer.allocateDirect(headers.length);
+        in.put(headers);
+        final ByteBuffer out = ByteBuffer.allocateDirect(NUM_BENCHMARK_HEADERS * HeaderHasher.HASH_SIZE);
+        HeaderHasher.hash(in, out, 1);
+
+        final Stopwatch singleWatch = Stopwatch.createStarted();
+        for (int i = 0; i < NUM_BENCHMARK_HEADERS; i++) {
+            System.arraycopy(headers, i * HeaderHasher.HEADER_SIZE, header, 0, HeaderHasher.HEADER_SIZE);
+            HeaderHasher.hashSingle(header);
+        }
+        singleWatch.stop();
+
+        final Stopwatch batchWatch = Stopwatch.createStarted();
+        HeaderHasher.hash(in, out, NUM_BENCHMARK_HEADERS);
+        batchWatch.stop();
+
+        Benchmark.report("{} headers: per-call {} hashes/s, batched {} hashes/s", NUM_BENCHMARK_HEADERS,
+                Benchmark.perSecond(NUM_BENCHMARK_HEADERS, singleWatch),
+                Benchmark.perSecond(NUM_BENCHMARK_HEADERS, batchWatch));
+    }
+
+    private static byte[] randomHeaders(final int count) {
+        final byte[] headers = new byte[count * HeaderHasher.HEADER_SIZE];
+        new Random(0).nextBytes(headers);
+        return headers;
+    }
+}
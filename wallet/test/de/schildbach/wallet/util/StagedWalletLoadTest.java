@@ -0,0 +1,229 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+
+public class StagedWalletLoadTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int NUM_UNSPENT = 10;
+    private static final int CHANGE_CHAIN_LENGTH = 10;
+
+    private File dir;
+    private File walletFile;
+    private File journalFile;
+    private long hashCounter = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        dir = Files.createTempDirectory("staged-wallet-load").toFile();
+        walletFile = new File(dir, "wallet-protobuf");
+        journalFile = new File(dir, "wallet-journal");
+    }
+
+    @After
+    public void tearDown() {
+        for (final File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void stagedMatchesFull() throws Exception {
+        writeSyntheticWallet(100);
+        final Wallet fullWallet = WalletJournal.load(walletFile, journalFile);
+
+        final StagedWalletLoad load = StagedWalletLoad.load(walletFile, journalFile);
+        final Wallet wallet = load.getWallet();
+        assertTrue(load.getHistorySize() > 0);
+        assertTrue(wallet.isConsistent());
+        assertEquals(fullWallet.getBalance(Wallet.BalanceType.ESTIMATED),
+                wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(fullWallet.getBalance(Wallet.BalanceType.AVAILABLE),
+                wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+        assertEquals(fullWallet.currentReceiveAddress(), wallet.currentReceiveAddress());
+
+        // compaction is held back while the history is missing
+        final WalletJournal journal = WalletJournal.attachWithoutHistory(wallet, walletFile, journalFile, 1,
+                TimeUnit.DAYS);
+        try {
+            wallet.freshReceiveKey();
+            journal.compactNow();
+            assertEquals(transactions(fullWallet), transactions(WalletJournal.load(walletFile, journalFile)));
+
+            load.loadHistory();
+            journal.historyLoaded();
+            assertTrue(wallet.isConsistent());
+            assertEquals(transactions(fullWallet), transactions(wallet));
+
+            journal.compactNow();
+            assertEquals(0, journalFile.length());
+            final Wallet reloadedWallet = WalletJournal.load(walletFile, journalFile);
+            assertEquals(transactions(fullWallet), transactions(reloadedWallet));
+            assertEquals(wallet.getActiveKeyChain().getIssuedExternalKeys(),
+                    reloadedWallet.getActiveKeyChain().getIssuedExternalKeys());
+        } finally {
+            journal.shutdownAndWait();
+        }
+    }
+
+    @Test
+    public void startupTime() throws Exception {
+        Benchmark.assumeEnabled();
+        for (final int numTransactions : new int[] { 100, 10000, 100000 }) {
+            writeSyntheticWallet(numTransactions);
+
+            final Stopwatch fullWatch = Stopwatch.createStarted();
+            WalletJournal.load(walletFile, journalFile);
+            fullWatch.stop();
+
+            final Stopwatch stageOneWatch = Stopwatch.createStarted();
+            final StagedWalletLoad load = StagedWalletLoad.load(walletFile, journalFile);
+            stageOneWatch.stop();
+            final Stopwatch stageTwoWatch = Stopwatch.createStarted();
+            load.loadHistory();
+            stageTwoWatch.stop();
+
+            Benchmark.report("{} transactions: full load {}, staged load usable after {}, history after another {}",
+                    numTransactions, fullWatch, stageOneWatch, stageTwoWatch);
+        }
+    }
+
+    /**
+     * A history of spent receives, a chain of payments with change ending in an unspent one, a few unspent receives
+     * and one pending.
+     */
+    private void writeSyntheticWallet(final int numTransactions) throws IOException {
+        final Wallet wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        final Address address = wallet.currentReceiveAddress();
+        final Address foreignAddress = LegacyAddress.fromKey(PARAMS, new ECKey());
+        final Protos.Wallet.Builder proto = new WalletProtobufSerializer().walletToProto(wallet).toBuilder();
+        final int numPairs = (numTransactions - NUM_UNSPENT - CHANGE_CHAIN_LENGTH - 1) / 2;
+        final int bestHeight = numPairs * 2 + CHANGE_CHAIN_LENGTH + NUM_UNSPENT;
+        int height = 1;
+
+        for (int i = 0; i < numPairs; i++) {
+            final Transaction receive = transaction(nextHash(), address);
+            final Transaction spend = transaction(receive.getTxId(), foreignAddress);
+            proto.addTransaction(txProto(receive, Protos.Transaction.Pool.SPENT, height++, bestHeight, spend));
+            proto.addTransaction(txProto(spend, Protos.Transaction.Pool.SPENT, height++, bestHeight, null));
+        }
+
+        Transaction previous = transaction(nextHash(), address);
+        for (int i = 1; i < CHANGE_CHAIN_LENGTH; i++) {
+            final Transaction change = transaction(previous.getTxId(), address);
+            proto.addTransaction(txProto(previous, Protos.Transaction.Pool.SPENT, height++, bestHeight, change));
+            previous = change;
+        }
+        proto.addTransaction(txProto(previous, Protos.Transaction.Pool.UNSPENT, height++, bestHeight, null));
+
+        for (int i = 0; i < NUM_UNSPENT; i++)
+            proto.addTransaction(txProto(transaction(nextHash(), address), Protos.Transaction.Pool.UNSPENT,
+                    height++, bestHeight, null));
+        proto.addTransaction(txProto(transaction(nextHash(), address), Protos.Transaction.Pool.PENDING, -1, bestHeight,
+                null));
+
+        proto.setLastSeenBlockHash(WalletProtobufSerializer.hashToByteString(nextHash()));
+        proto.setLastSeenBlockHeight(bestHeight);
+        try (final FileOutputStream os = new FileOutputStream(walletFile)) {
+            proto.build().writeTo(os);
+        }
+        journalFile.delete();
+    }
+
+    private static Transaction transaction(final Sha256Hash spentTxHash, final Address to) {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(
+                new TransactionInput(PARAMS, tx, new byte[] { 0 }, new TransactionOutPoint(PARAMS, 0, spentTxHash)));
+        tx.addOutput(Coin.CENT, to);
+        return tx;
+    }
+
+    private static Protos.Transaction txProto(final Transaction tx, final Protos.Transaction.Pool pool,
+            final int height, final int bestHeight, final Transaction spentBy) {
+        final Protos.Transaction.Builder builder = Protos.Transaction.newBuilder().setPool(pool)
+                .setHash(WalletProtobufSerializer.hashToByteString(tx.getTxId())).setVersion((int) tx.getVersion())
+                .setUpdatedAt(height * 600000L);
+        for (final TransactionInput input : tx.getInputs())
+            builder.addTransactionInput(Protos.TransactionInput.newBuilder()
+                    .setScriptBytes(ByteString.copyFrom(input.getScriptBytes()))
+                    .setTransactionOutPointHash(
+                            WalletProtobufSerializer.hashToByteString(input.getOutpoint().getHash()))
+                    .setTransactionOutPointIndex((int) input.getOutpoint().getIndex()));
+        final Protos.TransactionOutput.Builder output = Protos.TransactionOutput.newBuilder()
+                .setScriptBytes(ByteString.copyFrom(tx.getOutput(0).getScriptBytes()))
+                .setValue(tx.getOutput(0).getValue().value);
+        if (spentBy != null)
+            output.setSpentByTransactionHash(WalletProtobufSerializer.hashToByteString(spentBy.getTxId()))
+                    .setSpentByTransactionIndex(0);
+        builder.addTransactionOutput(output);
+        final Protos.TransactionConfidence.Builder confidence = Protos.TransactionConfidence.newBuilder()
+                .setSource(Protos.TransactionConfidence.Source.SOURCE_NETWORK);
+        if (height > 0)
+            confidence.setType(Protos.TransactionConfidence.Type.BUILDING).setAppearedAtHeight(height)
+                    .setDepth(bestHeight - height + 1);
+        else
+            confidence.setType(Protos.TransactionConfidence.Type.PENDING);
+        builder.setConfidence(confidence);
+        return builder.build();
+    }
+
+    private Sha256Hash nextHash() {
+        return Sha256Hash.of(Longs.toByteArray(hashCounter++));
+    }
+
+    private static Map<Sha256Hash, Protos.Transaction> transactions(final Wallet wallet) {
+        final Map<Sha256Hash, Protos.Transaction> transactions = new TreeMap<>();
+        for (final Protos.Transaction tx : new WalletProtobufSerializer().walletToProto(wallet).getTransactionList())
+            transactions.put(Sha256Hash.wrap(tx.getHash().toByteArray()), tx);
+        return transactions;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WalletBalanceTrackerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Wallet wallet;
+    private WalletBalanceTracker tracker;
+    private StoredBlock chainHead;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        receive(Coin.COIN); // before the tracker, so the initial totals count
+        chainHead = new StoredBlock(PARAMS.getGenesisBlock(), BigInteger.ONE, 0);
+        // no checking against the wallet, as that would cover up mistakes by resyncing
+        tracker = new WalletBalanceTracker(false);
+        tracker.register(wallet);
+        assertBalances();
+    }
+
+    @Test
+    public void followsWallet() throws Exception {
+        final Transaction pending = receive(Coin.CENT);
+        assertBalances();
+
+        final Transaction confirmed = receive(Coin.COIN.multiply(2));
+        confirm(confirmed);
+        assertBalances();
+        assertTrue(tracker.getBalance(BalanceType.AVAILABLE).signum() > 0);
+
+        // a payment with change, spending the confirmed coins
+        final Address foreignAddress = LegacyAddress.fromKey(PARAMS, new ECKey());
+        final SendRequest request = SendRequest.to(foreignAddress, Coin.COIN.divide(2));
+        wallet.completeTx(request);
+        wallet.commitTx(request.tx);
+        assertBalances();
+
+        confirm(request.tx);
+        confirm(pending);
+        for (int i = 0; i < 3; i++)
+            confirm(null);
+        assertBalances();
+
+        // watched outputs count as estimated, but not as spendable
+        final Address watchedAddress = LegacyAddress.fromKey(PARAMS, new ECKey());
+        wallet.addWatchedAddress(watchedAddress);
+        final Transaction watched = transaction(Coin.COIN, watchedAddress);
+        wallet.receivePending(watched, null);
+        confirm(watched);
+        assertBalances();
+        assertEquals(tracker.getBalance(BalanceType.ESTIMATED).subtract(Coin.COIN),
+                tracker.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+    }
+
+    @Test
+    public void followsRemovals() throws Exception {
+        final Transaction confirmed = receive(Coin.COIN.multiply(2));
+        confirm(confirmed);
+        receive(Coin.CENT);
+        assertBalances();
+
+        // no coins sent or received, only a change event
+        wallet.reset();
+        assertBalances();
+        assertEquals(Coin.ZERO, tracker.getBalance(BalanceType.ESTIMATED));
+
+        receive(Coin.CENT);
+        assertBalances();
+    }
+
+    private void assertBalances() {
+        for (final BalanceType type : new BalanceType[] { BalanceType.ESTIMATED, BalanceType.ESTIMATED_SPENDABLE,
+                BalanceType.AVAILABLE, BalanceType.AVAILABLE_SPENDABLE })
+            assertEquals(type.toString(), wallet.getBalance(type), tracker.getBalance(type));
+    }
+
+    private Transaction receive(final Coin value) throws Exception {
+        final Transaction tx = transaction(value, wallet.currentReceiveAddress());
+        wallet.receivePending(tx, null);
+        return tx;
+    }
+
+    private static Transaction transaction(final Coin value, final Address to) {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 0 },
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new ECKey().getPubKey()))));
+        tx.addOutput(value, to);
+        return tx;
+    }
+
+    /**
+     * Add a block to the best chain, containing the given transaction if any.
+     */
+    private void confirm(final Transaction tx) throws Exception {
+        final Block block = chainHead.getHeader().createNextBlock(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        chainHead = chainHead.build(block);
+        if (tx != null)
+            wallet.receiveFromBlock(tx, chainHead, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(chainHead);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WalletEventHubTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Wallet wallet;
+    private final BulkSyncMode bulkSyncMode = new BulkSyncMode();
+    private WalletEventHub hub;
+    private final List<WalletEventHub.Batch> batches = new CopyOnWriteArrayList<>();
+    private final WalletEventHub.Subscriber subscriber = new WalletEventHub.Subscriber() {
+        @Override
+        public void onWalletEvents(final WalletEventHub.Batch batch) {
+            batches.add(batch);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        hub = new WalletEventHub(100, bulkSyncMode);
+        hub.register(wallet);
+    }
+
+    @Test
+    public void burstIsCoalesced() throws Exception {
+        hub.subscribe(Threading.SAME_THREAD, subscriber);
+        final Set<Transaction> received = new LinkedHashSet<>();
+        for (int i = 0; i < 500; i++)
+            received.add(receive(Coin.CENT));
+        awaitQuiet();
+
+        final Set<Transaction> batchedTransactions = new LinkedHashSet<>();
+        for (final WalletEventHub.Batch batch : batches) {
+            assertTrue(batch.contains(WalletEventHub.Type.COINS_RECEIVED));
+            batchedTransactions.addAll(batch.coinsTransactions);
+        }
+        assertEquals(received, batchedTransactions);
+        assertTrue(batches.size() + " batches", batches.size() < received.size() / 10);
+        assertTrue(hub.getNumEvents() >= 500);
+        assertEquals(batches.size(), hub.getNumBatches());
+        assertEquals(batches.size(), hub.getNumDeliveries());
+    }
+
+    @Test
+    public void heldBackInBulkSyncMode() throws Exception {
+        hub.subscribe(Threading.SAME_THREAD, subscriber);
+        bulkSyncMode.setActive(true);
+        final Set<Transaction> received = new LinkedHashSet<>();
+        for (int i = 0; i < 5; i++) {
+            received.add(receive(Coin.CENT));
+            TimeUnit.MILLISECONDS.sleep(150);
+        }
+        assertTrue(batches.isEmpty());
+
+        bulkSyncMode.setActive(false);
+        awaitQuiet();
+        assertEquals(1, batches.size());
+        assertEquals(received, batches.get(0).coinsTransactions);
+    }
+
+    @Test
+    public void unsubscribe() throws Exception {
+        hub.subscribe(Threading.SAME_THREAD, subscriber);
+        assertTrue(hub.unsubscribe(subscriber));
+        assertFalse(hub.unsubscribe(subscriber));
+        receive(Coin.CENT);
+        awaitQuiet();
+        assertTrue(batches.isEmpty());
+        assertEquals(1, hub.getNumBatches());
+    }
+
+    private Transaction receive(final Coin value) throws Exception {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 0 },
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new ECKey().getPubKey()))));
+        tx.addOutput(value, wallet.currentReceiveAddress());
+        wallet.receivePending(tx, null);
+        return tx;
+    }
+
+    private void awaitQuiet() throws InterruptedException {
+        long numBatches;
+        do {
+            numBatches = hub.getNumBatches();
+            TimeUnit.MILLISECONDS.sleep(300);
+        } while (hub.getNumBatches() != numBatches);
+    }
+}
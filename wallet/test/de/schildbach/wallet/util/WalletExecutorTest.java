@@ -0,0 +1,122 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class WalletExecutorTest {
+    private final WalletExecutor executor = new WalletExecutor();
+
+    @Test
+    public void maintenanceDoesntDelayUi() throws Exception {
+        final CountDownLatch maintenanceRelease = new CountDownLatch(1);
+        executor.execute(WalletExecutor.Lane.MAINTENANCE, new Runnable() {
+            @Override
+            public void run() {
+                await(maintenanceRelease);
+            }
+        });
+        final CountDownLatch uiDone = new CountDownLatch(1);
+        executor.execute(WalletExecutor.Lane.UI, new Runnable() {
+            @Override
+            public void run() {
+                uiDone.countDown();
+            }
+        });
+        assertTrue(uiDone.await(5, TimeUnit.SECONDS));
+        maintenanceRelease.countDown();
+    }
+
+    @Test
+    public void supersededAndCancelled() throws Exception {
+        final Object key = new Object();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> runs = new CopyOnWriteArrayList<>();
+        executor.execute(WalletExecutor.Lane.UI, key, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                await(release);
+                runs.add("first");
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the first is running, so these wait and supersede each other
+        for (final String name : new String[] { "second", "third", "fourth" }) {
+            executor.execute(WalletExecutor.Lane.UI, key, new Runnable() {
+                @Override
+                public void run() {
+                    runs.add(name);
+                }
+            });
+        }
+        release.countDown();
+        awaitIdle(WalletExecutor.Lane.UI, 2);
+        assertEquals(2, runs.size());
+        assertEquals("fourth", runs.get(1));
+        assertEquals(2, executor.getStats(WalletExecutor.Lane.UI).numSuperseded);
+
+        final Object otherKey = new Object();
+        final CountDownLatch otherRelease = new CountDownLatch(1);
+        executor.execute(WalletExecutor.Lane.BACKGROUND, otherKey, new Runnable() {
+            @Override
+            public void run() {
+                await(otherRelease);
+            }
+        });
+        final AtomicBoolean cancelledRan = new AtomicBoolean();
+        executor.execute(WalletExecutor.Lane.BACKGROUND, otherKey, new Runnable() {
+            @Override
+            public void run() {
+                cancelledRan.set(true);
+            }
+        });
+        executor.cancel(otherKey);
+        otherRelease.countDown();
+        awaitIdle(WalletExecutor.Lane.BACKGROUND, 1);
+        assertFalse(cancelledRan.get());
+        assertEquals(1, executor.getStats(WalletExecutor.Lane.BACKGROUND).numCancelled);
+    }
+
+    private void awaitIdle(final WalletExecutor.Lane lane, final long numExecuted) throws InterruptedException {
+        for (int i = 0; i < 50 && executor.getStats(lane).numExecuted < numExecuted; i++)
+            TimeUnit.MILLISECONDS.sleep(100);
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(numExecuted, executor.getStats(lane).numExecuted);
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException x) {
+            throw new RuntimeException(x);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WalletJournalTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private File dir;
+    private File walletFile;
+    private File journalFile;
+    private Wallet wallet;
+    private WalletJournal journal;
+    private StoredBlock chainHead;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        dir = Files.createTempDirectory("wallet-journal").toFile();
+        walletFile = new File(dir, "wallet-protobuf");
+        journalFile = new File(dir, "wallet-journal");
+        wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        chainHead = new StoredBlock(PARAMS.getGenesisBlock(), PARAMS.getGenesisBlock().getWork(), 0);
+        journal = WalletJournal.create(wallet, walletFile, journalFile, 1, TimeUnit.DAYS);
+    }
+
+    @After
+    public void tearDown() {
+        journal.shutdownAndWait();
+        for (final File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void replay() throws Exception {
+        runScenario(null);
+        journal.flushNow();
+
+        assertEquals(snapshot(wallet), snapshot(WalletJournal.load(walletFile, journalFile)));
+    }
+
+    @Test
+    public void truncatedJournal() throws Exception {
+        final List<Long> lengths = new ArrayList<>();
+        final List<Map<String, Object>> snapshots = new ArrayList<>();
+        runScenario(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    journal.flushNow();
+                } catch (final IOException x) {
+                    throw new RuntimeException(x);
+                }
+                lengths.add(journalFile.length());
+                snapshots.add(snapshot(wallet));
+            }
+        });
+        final byte[] journalBytes = Files.readAllBytes(journalFile.toPath());
+        assertEquals(journalBytes.length, (long) lengths.get(lengths.size() - 1));
+        journal.shutdownAndWait();
+
+        // cut at every few bytes and around the end of each step
+        final SortedSet<Integer> offsets = new TreeSet<>();
+        for (int offset = 0; offset <= journalBytes.length; offset += 7)
+            offsets.add(offset);
+        for (final long length : lengths)
+            for (int offset = (int) length - 2; offset <= length + 2; offset++)
+                if (offset >= 0 && offset <= journalBytes.length)
+                    offsets.add(offset);
+
+        // a step can append several records, so in between steps only check that no transaction is lost or invented
+        final File truncatedFile = new File(dir, "wallet-journal-truncated");
+        Map<String, Object> previous = snapshot(WalletJournal.load(walletFile, new File(dir, "missing")));
+        int step = 0;
+        for (final int offset : offsets) {
+            while (step < lengths.size() && lengths.get(step) < offset)
+                previous = snapshots.get(step++);
+            try (final FileOutputStream os = new FileOutputStream(truncatedFile)) {
+                os.write(journalBytes, 0, offset);
+            }
+            final Map<String, Object> loaded = snapshot(WalletJournal.load(walletFile, truncatedFile));
+            if (lengths.get(step) == offset) {
+                int last = step;
+                while (last + 1 < lengths.size() && lengths.get(last + 1) == offset)
+                    last++;
+                assertEquals("offset " + offset, snapshots.get(last), loaded);
+            } else {
+                assertTrue("offset " + offset, transactions(loaded).containsAll(transactions(previous)));
+                assertTrue("offset " + offset, transactions(snapshots.get(step)).containsAll(transactions(loaded)));
+            }
+        }
+
+        // appending after a torn record must cut it off first
+        try (final FileOutputStream os = new FileOutputStream(journalFile)) {
+            os.write(journalBytes, 0, journalBytes.length - 3);
+        }
+        wallet = WalletJournal.load(walletFile, journalFile);
+        journal = WalletJournal.attach(wallet, walletFile, journalFile, 1, TimeUnit.DAYS);
+        receive(Coin.CENT);
+        journal.flushNow();
+        assertEquals(snapshot(wallet), snapshot(WalletJournal.load(walletFile, journalFile)));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        runScenario(null);
+        journal.flushNow();
+        final byte[] journalBytes = Files.readAllBytes(journalFile.toPath());
+
+        journal.compactNow();
+        assertEquals(0, journalFile.length());
+        final Map<String, Object> expected = snapshot(wallet);
+        assertEquals(expected, snapshot(WalletJournal.load(walletFile, journalFile)));
+
+        // crash after writing the base file, but before emptying the journal
+        try (final FileOutputStream os = new FileOutputStream(journalFile)) {
+            os.write(journalBytes);
+        }
+        assertEquals(expected, snapshot(WalletJournal.load(walletFile, journalFile)));
+    }
+
+    @Test
+    public void resetCompacts() throws Exception {
+        runScenario(null);
+        journal.flushNow();
+
+        wallet.reset();
+        journal.flushNow();
+        assertEquals(0, journalFile.length());
+        assertEquals(snapshot(wallet), snapshot(WalletJournal.load(walletFile, journalFile)));
+    }
+
+    @Test
+    public void otherStateJournaled() throws Exception {
+        final Script watched = ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        wallet.addWatchedScripts(Collections.singletonList(watched));
+        journal.flushNow();
+        assertEquals(Collections.singletonList(watched),
+                WalletJournal.load(walletFile, journalFile).getWatchedScripts());
+
+        // no event of its own, so it's picked up with the next change
+        wallet.setDescription("journal test");
+        receive(Coin.COIN);
+        journal.flushNow();
+        final Wallet loaded = WalletJournal.load(walletFile, journalFile);
+        assertEquals("journal test", loaded.getDescription());
+        assertEquals(Collections.singletonList(watched), loaded.getWatchedScripts());
+        assertEquals(snapshot(wallet), snapshot(loaded));
+    }
+
+    private void runScenario(final Runnable afterStep) throws Exception {
+        final Transaction pending = receive(Coin.COIN);
+        step(afterStep);
+        final Transaction second = receive(Coin.valueOf(2, 0));
+        step(afterStep);
+        mine(pending, second);
+        step(afterStep);
+        for (int i = 0; i < 3; i++) {
+            mine();
+            step(afterStep);
+        }
+
+        final SendRequest request = SendRequest.to(LegacyAddress.fromKey(PARAMS, new ECKey()), Coin.CENT);
+        request.memo = "journal test";
+        wallet.completeTx(request);
+        wallet.commitTx(request.tx);
+        step(afterStep);
+        mine(request.tx);
+        step(afterStep);
+
+        wallet.freshReceiveKey();
+        step(afterStep);
+    }
+
+    private void step(final Runnable afterStep) {
+        if (afterStep != null)
+            afterStep.run();
+    }
+
+    private Transaction receive(final Coin value) throws Exception {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 0 },
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new ECKey().getPubKey()))));
+        tx.addOutput(value, wallet.freshReceiveAddress());
+        wallet.receivePending(tx, null);
+        return tx;
+    }
+
+    private void mine(final Transaction... txs) throws Exception {
+        final Block block = chainHead.getHeader().createNextBlock(LegacyAddress.fromKey(PARAMS, new ECKey()));
+        for (final Transaction tx : txs)
+            block.addTransaction(tx);
+        block.solve();
+        chainHead = chainHead.build(block);
+        for (int i = 0; i < txs.length; i++)
+            wallet.receiveFromBlock(txs[i], chainHead, BlockChain.NewBlockType.BEST_CHAIN, i);
+        wallet.notifyNewBestBlock(chainHead);
+    }
+
+    private static Map<String, Object> snapshot(final Wallet wallet) {
+        final Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(wallet);
+        final Map<String, Object> snapshot = new TreeMap<>();
+        for (final Protos.Transaction tx : proto.getTransactionList())
+            snapshot.put("tx " + Sha256Hash.wrap(tx.getHash().toByteArray()), tx);
+        snapshot.put("issuedExternalKeys", wallet.getActiveKeyChain().getIssuedExternalKeys());
+        snapshot.put("issuedInternalKeys", wallet.getActiveKeyChain().getIssuedInternalKeys());
+        snapshot.put("lastSeenBlockHash", proto.getLastSeenBlockHash());
+        snapshot.put("lastSeenBlockHeight", proto.getLastSeenBlockHeight());
+        snapshot.put("balance", wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        return snapshot;
+    }
+
+    private static Set<String> transactions(final Map<String, Object> snapshot) {
+        final Set<String> transactions = new HashSet<>();
+        for (final String key : snapshot.keySet())
+            if (key.startsWith("tx "))
+                transactions.add(key);
+        return transactions;
+    }
+}